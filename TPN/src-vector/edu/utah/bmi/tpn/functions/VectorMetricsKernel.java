@@ -0,0 +1,228 @@
+package edu.utah.bmi.tpn.functions;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import edu.utah.bmi.tpn.objects.PatientBatch;
+
+/**
+ * The output metrics of a batch, computed over lanes of rows at once through the Vector API. Every formula is
+ * evaluated with the same operations in the same order as RecommendOrderGen.outputMetrics (no fused multiply-add,
+ * no reassociation), and each lane operation is rounded like its scalar counterpart, so the results are
+ * bit-identical. The rows after the last full vector are calculated by the scalar kernel.
+ *
+ * Compile and run with "--add-modules jdk.incubator.vector", see MetricsKernel.
+ *
+ * @author Jianlin Shi
+ *
+ */
+class VectorMetricsKernel implements MetricsKernel {
+
+	private static final VectorSpecies<Double> Species = DoubleVector.SPECIES_PREFERRED;
+
+	VectorMetricsKernel() {
+		// the Vector API falls back to plain java on platforms without SIMD, which is slower than the scalar kernel
+		if (Species.length() < 2)
+			throw new UnsupportedOperationException("No SIMD for doubles");
+	}
+
+	@Override
+	public void outputMetrics(PatientBatch batch, double[][] ml, int from,
+			int to) {
+		// one loop per table like the scalar kernel, a single loop is too large for the JIT to keep the vectors in
+		// registers
+		int upper = from + Species.loopBound(to - from);
+		volumes(batch, ml, from, upper);
+		grams(batch, ml, from, upper);
+		osmolarity(batch, ml, from, upper);
+		concentrations(batch, from, upper);
+		if (upper < to)
+			RecommendOrderGen.outputMetrics(batch, ml, upper, to);
+	}
+
+	// the top left table
+	private static void volumes(PatientBatch batch, double[][] ml, int from,
+			int upper) {
+		double[] lipid = ml[RecommendOrderGen.Lipid];
+		double[] weight = batch.column("weight"), inputVolumePerKg = batch
+				.column("inputVolumePerKg"), lipidhours = batch
+				.column("lipidhours");
+		double[] pn_ml_kg = batch.column("pn_ml_kg"), pn_ml_day = batch
+				.column("pn_ml_day"), lipid_ml_kg = batch.column("lipid_ml_kg"), lipid_ml_day = batch
+				.column("lipid_ml_day"), total_ml_kg = batch
+				.column("total_ml_kg"), total_ml_day = batch
+				.column("total_ml_day");
+		double[] lipid_rate = batch.column("lipid_rate"), pn_rate = batch
+				.column("pn_rate");
+		for (int i = from; i < upper; i += Species.length()) {
+			DoubleVector w = DoubleVector.fromArray(Species, weight, i);
+			DoubleVector lipidMl = DoubleVector.fromArray(Species, lipid, i);
+			DoubleVector totalMl = DoubleVector.fromArray(Species,
+					inputVolumePerKg, i).mul(w);
+			DoubleVector pnMl = totalMl.sub(lipidMl);
+			lipidMl.intoArray(lipid_ml_day, i);
+			totalMl.intoArray(total_ml_day, i);
+			pnMl.intoArray(pn_ml_day, i);
+			lipidMl.div(w).intoArray(lipid_ml_kg, i);
+			pnMl.div(w).intoArray(pn_ml_kg, i);
+			totalMl.div(w).intoArray(total_ml_kg, i);
+
+			DoubleVector lipidh = DoubleVector.fromArray(Species, lipidhours,
+					i);
+			lipidMl.div(lipidh).intoArray(lipid_rate, i);
+			pnMl.div(lipidh).intoArray(pn_rate, i);
+		}
+	}
+
+	// the middle table
+	private static void grams(PatientBatch batch, double[][] ml, int from,
+			int upper) {
+		double[] protein = ml[RecommendOrderGen.Protein], dextrose = ml[RecommendOrderGen.Dextrose];
+		double[] weight = batch.column("weight"), inputLipid_g = batch
+				.column("inputLipid_g");
+		double[] dextrose_g_day = batch.column("dextrose_g_day"), protein_g_day = batch
+				.column("protein_g_day"), lipid_g_day = batch
+				.column("lipid_g_day"), total_g_day = batch
+				.column("total_g_day");
+		double[] dextrose_g_kg = batch.column("dextrose_g_kg"), protein_g_kg = batch
+				.column("protein_g_kg"), lipid_g_kg = batch
+				.column("lipid_g_kg"), total_g_kg = batch.column("total_g_kg");
+		double[] dextrose_cal_kg = batch.column("dextrose_cal_kg"), protein_cal_kg = batch
+				.column("protein_cal_kg"), lipid_cal_kg = batch
+				.column("lipid_cal_kg"), total_cal_kg = batch
+				.column("total_cal_kg");
+		double[] dextrose_perc_cal = batch.column("dextrose_perc_cal"), protein_perc_cal = batch
+				.column("protein_perc_cal"), lipid_perc_cal = batch
+				.column("lipid_perc_cal"), total_perc_cal = batch
+				.column("total_perc_cal");
+		DoubleVector totalPerc = DoubleVector.broadcast(Species, 100);
+		for (int i = from; i < upper; i += Species.length()) {
+			DoubleVector w = DoubleVector.fromArray(Species, weight, i);
+			DoubleVector lipidG = DoubleVector.fromArray(Species, inputLipid_g,
+					i);
+			DoubleVector dextroseG = DoubleVector.fromArray(Species, dextrose,
+					i).mul(RecommendOrderGen.DextroseG);
+			DoubleVector proteinG = DoubleVector.fromArray(Species, protein, i)
+					.mul(RecommendOrderGen.ProteinG);
+			DoubleVector totalG = lipidG.add(dextroseG).add(proteinG);
+			lipidG.intoArray(lipid_g_day, i);
+			dextroseG.intoArray(dextrose_g_day, i);
+			proteinG.intoArray(protein_g_day, i);
+			totalG.intoArray(total_g_day, i);
+
+			DoubleVector dextroseGKg = dextroseG.div(w);
+			DoubleVector proteinGKg = proteinG.div(w);
+			DoubleVector lipidGKg = lipidG.div(w);
+			dextroseGKg.intoArray(dextrose_g_kg, i);
+			proteinGKg.intoArray(protein_g_kg, i);
+			lipidGKg.intoArray(lipid_g_kg, i);
+			totalG.div(w).intoArray(total_g_kg, i);
+
+			DoubleVector dextroseCal = dextroseGKg.mul(RecommendOrderGen.DextroseKcal).div(
+					RecommendOrderGen.DextroseG);
+			DoubleVector proteinCal = proteinGKg.mul(RecommendOrderGen.ProteinKcal).div(
+					RecommendOrderGen.ProteinG);
+			DoubleVector lipidCal = lipidGKg.mul(RecommendOrderGen.LipidKcal).div(
+					RecommendOrderGen.LipidG);
+			DoubleVector totalCal = dextroseCal.add(lipidCal).add(proteinCal);
+			dextroseCal.intoArray(dextrose_cal_kg, i);
+			proteinCal.intoArray(protein_cal_kg, i);
+			lipidCal.intoArray(lipid_cal_kg, i);
+			totalCal.intoArray(total_cal_kg, i);
+
+			dextroseCal.div(totalCal).mul(100).intoArray(dextrose_perc_cal, i);
+			proteinCal.div(totalCal).mul(100).intoArray(protein_perc_cal, i);
+			lipidCal.div(totalCal).mul(100).intoArray(lipid_perc_cal, i);
+			totalPerc.intoArray(total_perc_cal, i);
+		}
+	}
+
+	// the top right table, from the mOsm/ml of the products
+	private static void osmolarity(PatientBatch batch, double[][] ml,
+			int from, int upper) {
+		double[] inputTotalVolume_ml = batch.column("inputTotalVolume_ml"), lipid_ml_day = batch
+				.column("lipid_ml_day");
+		double[] twoInOne_mosm_l = batch.column("twoInOne_mosm_l"), lipid_mosm_l = batch
+				.column("lipid_mosm_l"), threeInOne_mosm_l = batch
+				.column("threeInOne_mosm_l");
+		int[] osmotic = RecommendOrderGen.Osmotic;
+		double[] mosm = RecommendOrderGen.OsmoticMosm;
+		DoubleVector lipidMosm = DoubleVector.broadcast(Species,
+				RecommendOrderGen.LipidMosm);
+		for (int i = from; i < upper; i += Species.length()) {
+			DoubleVector volume = DoubleVector.fromArray(Species,
+					inputTotalVolume_ml, i);
+			DoubleVector lipidMl = DoubleVector.fromArray(Species,
+					lipid_ml_day, i);
+			DoubleVector osmoles = DoubleVector.zero(Species);
+			for (int k = 0; k < osmotic.length; k++)
+				osmoles = osmoles.add(DoubleVector.fromArray(Species,
+						ml[osmotic[k]], i).mul(mosm[k]));
+			osmoles.div(volume.sub(lipidMl)).mul(1000)
+					.intoArray(twoInOne_mosm_l, i);
+			lipidMosm.intoArray(lipid_mosm_l, i);
+			osmoles.add(lipidMl.mul(lipidMosm)).div(volume).mul(1000)
+					.intoArray(threeInOne_mosm_l, i);
+		}
+	}
+
+	// the 2nd middle table, reads the grams
+	private static void concentrations(PatientBatch batch, int from, int upper) {
+		double[] inputTotalVolume_ml = batch.column("inputTotalVolume_ml"), pnhours = batch
+				.column("pnhours"), inputKPerKg = batch.column("inputKPerKg");
+		double[] inputNa_mEq = batch.column("inputNa_mEq"), inputK_mEq = batch
+				.column("inputK_mEq"), inputCl_mEq = batch
+				.column("inputCl_mEq"), inputCa_mEq = batch
+				.column("inputCa_mEq"), inputP_mmol = batch
+				.column("inputP_mmol");
+		double[] dextrose_g_day = batch.column("dextrose_g_day"), protein_g_day = batch
+				.column("protein_g_day"), lipid_g_day = batch
+				.column("lipid_g_day"), dextrose_g_kg = batch
+				.column("dextrose_g_kg");
+		double[] dex_mgKgMin = batch.column("dex_mgKgMin"), na_meq_l = batch
+				.column("na_meq_l"), k_meq_kg_h = batch.column("k_meq_kg_h"), k_meq_l = batch
+				.column("k_meq_l"), cl_mEq_l = batch.column("cl_mEq_l"), npcal_g_nit = batch
+				.column("npcal_g_nit"), kcal_n_ratio = batch
+				.column("kcal_n_ratio");
+		double[] ca_mEq_day = batch.column("ca_mEq_day"), p_mmol_day = batch
+				.column("p_mmol_day"), ca_p_ratio = batch.column("ca_p_ratio"), ca_mg_x_p_mg = batch
+				.column("ca_mg_x_p_mg"), precip_limit = batch
+				.column("precip_limit");
+		DoubleVector precipLimit = DoubleVector.broadcast(Species, 78.0);
+		for (int i = from; i < upper; i += Species.length()) {
+			DoubleVector volume = DoubleVector.fromArray(Species,
+					inputTotalVolume_ml, i);
+			DoubleVector pnh = DoubleVector.fromArray(Species, pnhours, i);
+			DoubleVector.fromArray(Species, dextrose_g_kg, i).mul(1000)
+					.div(pnh.mul(60)).intoArray(dex_mgKgMin, i);
+			DoubleVector.fromArray(Species, inputNa_mEq, i).div(volume)
+					.mul(1000).intoArray(na_meq_l, i);
+			DoubleVector.fromArray(Species, inputKPerKg, i).div(pnh)
+					.intoArray(k_meq_kg_h, i);
+			DoubleVector.fromArray(Species, inputK_mEq, i).div(volume)
+					.mul(1000).intoArray(k_meq_l, i);
+			DoubleVector.fromArray(Species, inputCl_mEq, i).div(volume)
+					.mul(1000).intoArray(cl_mEq_l, i);
+
+			DoubleVector proteinG = DoubleVector.fromArray(Species,
+					protein_g_day, i);
+			DoubleVector nonProteinKcal = DoubleVector
+					.fromArray(Species, lipid_g_day, i)
+					.mul(RecommendOrderGen.LipidKcal)
+					.add(DoubleVector.fromArray(Species, dextrose_g_day, i)
+							.mul(RecommendOrderGen.DextroseKcal));
+			nonProteinKcal.add(proteinG.mul(RecommendOrderGen.ProteinKcal))
+					.div(proteinG).mul(6.25).intoArray(kcal_n_ratio, i);
+			nonProteinKcal.div(proteinG).mul(6.25).intoArray(npcal_g_nit, i);
+
+			DoubleVector ca = DoubleVector.fromArray(Species, inputCa_mEq, i);
+			DoubleVector p = DoubleVector.fromArray(Species, inputP_mmol, i);
+			ca.intoArray(ca_mEq_day, i);
+			p.intoArray(p_mmol_day, i);
+			p.div(ca).intoArray(ca_p_ratio, i);
+			ca.mul(20).mul(p).div(31).intoArray(ca_mg_x_p_mg, i);
+			precipLimit.intoArray(precip_limit, i);
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package edu.utah.bmi.tpn.cohort;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Push a whole cohort through calWithoutLab, (CrCl,) useRecommendedInput, generateOrder and the dosage alerts, on a
+ * fork-join pool of its own.
+ * 
+ * The patient source is split by its Spliterator and the chunks are balanced by work stealing; a List splits evenly,
+ * an Iterator is read in growing batches. Every run pins the current ReferenceKB snapshot, so all patients of a run
+ * are checked against the same KB even if it's reloaded meanwhile.
+ * 
+ * <pre>
+ * CohortEngine engine = new CohortEngine(16);
+ * CohortStats stats = engine.run(patients, result -&gt; writer.write(result), false);
+ * engine.close();
+ * </pre>
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class CohortEngine implements Closeable {
+
+	private final ForkJoinPool pool;
+
+	public CohortEngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public CohortEngine(int parallelism) {
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Run the whole pipeline for one patient, it's what every worker does for each patient of the cohort
+	 */
+	public static CohortResult process(Patient pt, ReferenceKB kb) {
+		TPNCalculator.calWithoutLab(pt);
+		if (pt.sCr != TPNCalculator.NotSpecified)
+			TPNCalculator.calculateCrCl(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+		AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		return new CohortResult(pt, order, alerts);
+	}
+
+	public CohortStats run(Iterable<Patient> patients,
+			Consumer<CohortResult> consumer, boolean ordered) {
+		return run(patients.spliterator(), consumer, ordered);
+	}
+
+	public CohortStats run(Iterator<Patient> patients,
+			Consumer<CohortResult> consumer, boolean ordered) {
+		return run(Spliterators.spliteratorUnknownSize(patients,
+				Spliterator.ORDERED | Spliterator.NONNULL), consumer, ordered);
+	}
+
+	/**
+	 * @param patients
+	 *            the patient source
+	 * @param consumer
+	 *            receives the result of each patient. If ordered is false it's called from several threads at the
+	 *            same time, and needs to be thread-safe
+	 * @param ordered
+	 *            whether the results are delivered in the order of the source
+	 * @return the throughput of the run
+	 */
+	public CohortStats run(Spliterator<Patient> patients,
+			final Consumer<CohortResult> consumer, boolean ordered) {
+		final ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		final LongAdder count = new LongAdder();
+		final LongAdder withWarning = new LongAdder();
+		final LongAdder withUnacceptable = new LongAdder();
+		final Stream<CohortResult> results = StreamSupport
+				.stream(patients, true).map(pt -> {
+					CohortResult result = process(pt, kb);
+					count.increment();
+					if (result.alerts.warningCount() > 0)
+						withWarning.increment();
+					if (result.alerts.unacceptableCount() > 0)
+						withUnacceptable.increment();
+					return result;
+				});
+		long start = System.nanoTime();
+		try {
+			if (ordered)
+				pool.submit(() -> results.forEachOrdered(consumer)).get();
+			else
+				pool.submit(() -> results.forEach(consumer)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The cohort run is interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("The cohort run failed", e.getCause());
+		}
+		return new CohortStats(count.sum(), withWarning.sum(),
+				withUnacceptable.sum(), System.nanoTime() - start,
+				pool.getParallelism());
+	}
+
+	/**
+	 * Process all rows of an off-heap cohort in place, in chunks of OffHeapCohort.SegmentRows rows
+	 * 
+	 * @return the throughput of the run
+	 */
+	public CohortStats run(final OffHeapCohort cohort) {
+		final long size = cohort.size();
+		final long chunks = (size + OffHeapCohort.SegmentRows - 1)
+				/ OffHeapCohort.SegmentRows;
+		final LongAdder withWarning = new LongAdder();
+		final LongAdder withUnacceptable = new LongAdder();
+		long start = System.nanoTime();
+		try {
+			pool.submit(() -> LongStream.range(0, chunks).parallel()
+					.forEach(chunk -> {
+						long from = chunk * OffHeapCohort.SegmentRows;
+						long to = Math.min(size, from + OffHeapCohort.SegmentRows);
+						cohort.process(from, to);
+						for (long row = from; row < to; row++) {
+							if (cohort.hasWarning(row))
+								withWarning.increment();
+							if (cohort.hasUnacceptable(row))
+								withUnacceptable.increment();
+						}
+					})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The cohort run is interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("The cohort run failed", e.getCause());
+		}
+		return new CohortStats(size, withWarning.sum(),
+				withUnacceptable.sum(), System.nanoTime() - start,
+				pool.getParallelism());
+	}
+
+	/**
+	 * Run the cohort and keep all results in the order of the source
+	 */
+	public List<CohortResult> collect(Iterable<Patient> patients) {
+		List<CohortResult> results = new ArrayList<CohortResult>();
+		run(patients, results::add, true);
+		return results;
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+
+}
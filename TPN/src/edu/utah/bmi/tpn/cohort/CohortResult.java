@@ -0,0 +1,25 @@
+package edu.utah.bmi.tpn.cohort;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * The outcome of one patient in a cohort run: the calculated patient, its recommended order and dosage alerts
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class CohortResult {
+
+	public final Patient patient;
+	public final MedicationOrder order;
+	public final AlertSet alerts;
+
+	public CohortResult(Patient patient, MedicationOrder order, AlertSet alerts) {
+		this.patient = patient;
+		this.order = order;
+		this.alerts = alerts;
+	}
+
+}
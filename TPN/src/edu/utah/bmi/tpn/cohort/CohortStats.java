@@ -0,0 +1,41 @@
+package edu.utah.bmi.tpn.cohort;
+
+/**
+ * Throughput of a cohort run
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class CohortStats {
+
+	public final long patients;
+	// patients with at least one warning / unacceptable alert
+	public final long withWarning, withUnacceptable;
+	public final long elapsedNanos;
+	public final int parallelism;
+
+	public CohortStats(long patients, long withWarning, long withUnacceptable,
+			long elapsedNanos, int parallelism) {
+		this.patients = patients;
+		this.withWarning = withWarning;
+		this.withUnacceptable = withUnacceptable;
+		this.elapsedNanos = elapsedNanos;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return patients per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : patients * 1e9 / elapsedNanos;
+	}
+
+	public String toString() {
+		return patients + " patients in " + (elapsedNanos / 1000000)
+				+ " ms with parallelism " + parallelism + " ("
+				+ Math.round(getThroughput()) + " patients/s), "
+				+ withWarning + " with warnings, " + withUnacceptable
+				+ " with unacceptable alerts";
+	}
+
+}
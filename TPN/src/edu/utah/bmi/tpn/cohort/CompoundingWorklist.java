@@ -0,0 +1,325 @@
+package edu.utah.bmi.tpn.cohort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+
+/**
+ * The compounding worklist of a shift: the orders of all the patients are added one by one, the total volume of each
+ * product is summed up, and the bags whose volumes are the same once rounded to the measuring resolution (e.g. 0.1
+ * ml) are grouped together, so that they are compounded as one bag repeated.
+ *
+ * The steps are sequenced product by product (in the order that the products are first seen), so that each source
+ * container is set up once for the whole shift; within a product the bags go from the largest volume to the
+ * smallest. Not thread safe, add the orders from one thread, e.g. from the results of CohortEngine.
+ *
+ * <pre>
+ * CompoundingWorklist worklist = new CompoundingWorklist(0.1);
+ * for (CohortResult result : results)
+ * 	worklist.add(result.patient.toString(), result.order);
+ * System.out.println(worklist);
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class CompoundingWorklist {
+
+	private final double resolution;
+	// resolution units per ml, dividing by it prints 0.3 rather than 3 * 0.1 = 0.30000000000000004
+	private final double unitsPerMl;
+	// product code -> position in the product lists below, in the order that the products are first seen
+	private final LinkedHashMap<Integer, Integer> productIndex = new LinkedHashMap<Integer, Integer>();
+	private final List<String> productNames = new ArrayList<String>();
+	// exact total volumes (ml), before rounding
+	private double[] totals = new double[16];
+	private final HashMap<Key, Bag> bagsByVolume = new HashMap<Key, Bag>();
+	private final List<Bag> bags = new ArrayList<Bag>();
+	private int orders;
+	// sequenced lazily, dropped when an order is added
+	private List<Step> steps;
+
+	/**
+	 * @param resolution
+	 *            the ml that the volumes are rounded to when the bags are grouped, e.g. 0.1
+	 */
+	public CompoundingWorklist(double resolution) {
+		if (!(resolution > 0))
+			throw new IllegalArgumentException(
+					"resolution needs to be positive: " + resolution);
+		this.resolution = resolution;
+		this.unitsPerMl = 1 / resolution;
+	}
+
+	/**
+	 * Add the order of one bag
+	 *
+	 * @param label
+	 *            the patient or bag label printed on the worklist
+	 * @param order
+	 * @return this worklist
+	 */
+	public CompoundingWorklist add(String label, MedicationOrder order) {
+		int n = order.size();
+		// (code, rounded volume) pairs of the products in use, sorted by code so that the key doesn't depend on the
+		// product list order
+		long[] pairs = new long[n * 2];
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			int product = product(order.getCode(i), order.getName(i));
+			totals[product] += order.getMl(i);
+			long units = Math.round(order.getMl(i) * unitsPerMl);
+			if (units != 0) {
+				pairs[used * 2] = order.getCode(i);
+				pairs[used * 2 + 1] = units;
+				used++;
+			}
+		}
+		Key key = new Key(sortByCode(pairs, used));
+		Bag bag = bagsByVolume.get(key);
+		if (bag == null) {
+			bag = new Bag(bags.size(), key.pairs, unitsPerMl);
+			bagsByVolume.put(key, bag);
+			bags.add(bag);
+		}
+		bag.labels.add(label);
+		orders++;
+		steps = null;
+		return this;
+	}
+
+	public double getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * @return the number of orders added
+	 */
+	public int getOrderCount() {
+		return orders;
+	}
+
+	/**
+	 * @return the distinct bags, in the order that they are first seen
+	 */
+	public List<Bag> getBags() {
+		return Collections.unmodifiableList(bags);
+	}
+
+	/**
+	 * @return product code -> total ml of all the orders (not rounded), in the order that the products are first seen
+	 */
+	public Map<Integer, Double> getTotals() {
+		LinkedHashMap<Integer, Double> map = new LinkedHashMap<Integer, Double>();
+		for (Map.Entry<Integer, Integer> product : productIndex.entrySet())
+			map.put(product.getKey(), totals[product.getValue()]);
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * @return total ml of the product, or 0 if no order uses it
+	 */
+	public double getTotalMl(int code) {
+		Integer product = productIndex.get(code);
+		return product == null ? 0 : totals[product];
+	}
+
+	/**
+	 * @return the compounding steps, product by product, each product's bags from the largest volume to the smallest
+	 */
+	public List<Step> getSteps() {
+		if (steps != null)
+			return steps;
+		List<Step> sequence = new ArrayList<Step>();
+		List<Step> productSteps = new ArrayList<Step>();
+		for (Map.Entry<Integer, Integer> product : productIndex.entrySet()) {
+			int code = product.getKey();
+			String name = productNames.get(product.getValue());
+			productSteps.clear();
+			for (Bag bag : bags) {
+				double ml = bag.getMl(code);
+				if (ml != 0)
+					productSteps.add(new Step(code, name, bag, ml));
+			}
+			Collections.sort(productSteps, LargestFirst);
+			sequence.addAll(productSteps);
+		}
+		steps = Collections.unmodifiableList(sequence);
+		return steps;
+	}
+
+	/**
+	 * @return how many times the source container changes along the steps
+	 */
+	public int getContainerChanges() {
+		int changes = 0;
+		List<Step> steps = getSteps();
+		for (int i = 1; i < steps.size(); i++) {
+			if (steps.get(i).code != steps.get(i - 1).code)
+				changes++;
+		}
+		return changes;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(orders).append(" orders, ").append(bags.size())
+				.append(" distinct bags\n");
+		for (Map.Entry<Integer, Integer> product : productIndex.entrySet())
+			sb.append(productNames.get(product.getValue())).append(": ")
+					.append(totals[product.getValue()]).append(" ml\n");
+		for (Step step : getSteps())
+			sb.append(step).append('\n');
+		return sb.toString();
+	}
+
+	private int product(int code, String name) {
+		Integer product = productIndex.get(code);
+		if (product != null)
+			return product;
+		int index = productIndex.size();
+		productIndex.put(code, index);
+		productNames.add(name);
+		if (index == totals.length)
+			totals = Arrays.copyOf(totals, index * 2);
+		return index;
+	}
+
+	private static long[] sortByCode(long[] pairs, int used) {
+		// insertion sort, an order has only a few products, which are usually sorted already
+		for (int i = 1; i < used; i++) {
+			long code = pairs[i * 2], units = pairs[i * 2 + 1];
+			int j = i - 1;
+			while (j >= 0 && pairs[j * 2] > code) {
+				pairs[(j + 1) * 2] = pairs[j * 2];
+				pairs[(j + 1) * 2 + 1] = pairs[j * 2 + 1];
+				j--;
+			}
+			pairs[(j + 1) * 2] = code;
+			pairs[(j + 1) * 2 + 1] = units;
+		}
+		return Arrays.copyOf(pairs, used * 2);
+	}
+
+	private static final Comparator<Step> LargestFirst = new Comparator<Step>() {
+		@Override
+		public int compare(Step a, Step b) {
+			int compare = Double.compare(b.mlPerBag, a.mlPerBag);
+			return compare != 0 ? compare : Integer.compare(a.bag.index,
+					b.bag.index);
+		}
+	};
+
+	private static final class Key {
+		final long[] pairs;
+		final int hash;
+
+		Key(long[] pairs) {
+			this.pairs = pairs;
+			this.hash = Arrays.hashCode(pairs);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.equals(pairs, ((Key) obj).pairs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * The orders whose volumes are the same once rounded to the resolution
+	 */
+	public static class Bag {
+		private final int index;
+		// (code, volume in resolution units) pairs, sorted by code
+		private final long[] pairs;
+		private final double unitsPerMl;
+		private final List<String> labels = new ArrayList<String>();
+
+		Bag(int index, long[] pairs, double unitsPerMl) {
+			this.index = index;
+			this.pairs = pairs;
+			this.unitsPerMl = unitsPerMl;
+		}
+
+		/**
+		 * @return the rounded ml of the product in this bag, or 0 if it is not used
+		 */
+		public double getMl(int code) {
+			for (int i = 0; i < pairs.length; i += 2) {
+				if (pairs[i] == code)
+					return pairs[i + 1] / unitsPerMl;
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the labels of the orders, in the order they were added
+		 */
+		public List<String> getLabels() {
+			return Collections.unmodifiableList(labels);
+		}
+
+		public int getCount() {
+			return labels.size();
+		}
+
+		public String toString() {
+			return "bag " + (index + 1) + " x" + labels.size() + " " + labels;
+		}
+	}
+
+	/**
+	 * Draw one product into every bag of a group
+	 */
+	public static class Step {
+		private final int code;
+		private final String name;
+		private final Bag bag;
+		private final double mlPerBag;
+
+		Step(int code, String name, Bag bag, double mlPerBag) {
+			this.code = code;
+			this.name = name;
+			this.bag = bag;
+			this.mlPerBag = mlPerBag;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Bag getBag() {
+			return bag;
+		}
+
+		public double getMlPerBag() {
+			return mlPerBag;
+		}
+
+		public double getTotalMl() {
+			return mlPerBag * bag.getCount();
+		}
+
+		public String toString() {
+			return name + ": " + mlPerBag + " ml x" + bag.getCount() + " -> "
+					+ bag;
+		}
+	}
+
+}
@@ -0,0 +1,431 @@
+package edu.utah.bmi.tpn.cohort;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Stream an EMR extract through the calculator: one csv row per patient in, one result row per patient out.
+ *
+ * A reader thread parses the input, several worker threads run CohortEngine.process() for each patient, and a
+ * writer thread formats the results. The stages are connected by bounded queues, so a slow writer holds back the
+ * workers and the reader, and the memory in use doesn't grow with the size of the file. The result rows come out in
+ * the order they are finished, the 1st column is the row number (from 0) of the patient in the input.
+ *
+ * The input needs a header row, the columns can be in any order:
+ *
+ * <pre>
+ * age,gender,weight,height,stressor,sCr,ivType,otherFluid_ml
+ * 35,1,60,175,1.3,,1,1000
+ * </pre>
+ *
+ * age, gender, weight and height are required. An empty stressor means 1.3, an empty sCr or ivType means not
+ * specified, an empty otherFluid_ml means 0. A row that can't be parsed or calculated gets an error message in the
+ * last column instead of stopping the run.
+ *
+ * <pre>
+ * java edu.utah.bmi.tpn.cohort.CsvCohortPipeline extract.csv results.csv [workers]
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class CsvCohortPipeline {
+
+	public static final Charset Encoding = Charset.forName("UTF-8");
+	public static final String[] InputColumns = { "age", "gender", "weight",
+			"height", "stressor", "sCr", "ivType", "otherFluid_ml" };
+	// the Patient fields that are written after the medications
+	private static final String[] OutputMetrics = { "actFluid", "actKcal",
+			"twoInOne_mosm_l", "threeInOne_mosm_l", "dex_mgKgMin" };
+
+	// marks the end of the input in the queues, one per worker
+	private static final Row EndOfInput = new Row(-1, null);
+
+	private final int workers;
+	private final int queueCapacity;
+
+	public CsvCohortPipeline() {
+		this(Runtime.getRuntime().availableProcessors(), 1024);
+	}
+
+	/**
+	 * @param workers
+	 *            number of calculation threads
+	 * @param queueCapacity
+	 *            maximum number of rows waiting between two stages
+	 */
+	public CsvCohortPipeline(int workers, int queueCapacity) {
+		if (workers < 1 || queueCapacity < 1)
+			throw new IllegalArgumentException(
+					"workers and queueCapacity need to be positive");
+		this.workers = workers;
+		this.queueCapacity = queueCapacity;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out
+					.println("Usage: CsvCohortPipeline <input csv> <output csv> [workers]");
+			return;
+		}
+		CsvCohortPipeline pipeline = args.length > 2 ? new CsvCohortPipeline(
+				Integer.parseInt(args[2]), 1024) : new CsvCohortPipeline();
+		CohortStats stats = pipeline.run(new File(args[0]), new File(args[1]));
+		System.out.println(stats);
+	}
+
+	public CohortStats run(File input, File output) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(input), Encoding);
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(output),
+					Encoding);
+			try {
+				return run(in, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read all patients from in and write their results to out. The streams are not closed.
+	 *
+	 * @return the throughput of the run
+	 * @throws IOException
+	 *             if the input can't be read or the output can't be written
+	 */
+	public CohortStats run(Reader in, Writer out) throws IOException {
+		final ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		final BufferedReader reader = new BufferedReader(in);
+		final BufferedWriter writer = new BufferedWriter(out);
+		final int[] columns = readHeader(reader.readLine());
+		writer.write(outputHeader());
+		writer.newLine();
+
+		final BlockingQueue<Row> inputQueue = new ArrayBlockingQueue<Row>(
+				queueCapacity);
+		final BlockingQueue<Row> outputQueue = new ArrayBlockingQueue<Row>(
+				queueCapacity);
+		final AtomicLong withWarning = new AtomicLong();
+		final AtomicLong withUnacceptable = new AtomicLong();
+		final long[] count = new long[1];
+		final IOException[] error = new IOException[1];
+		long start = System.nanoTime();
+
+		Thread readerThread = new Thread(() -> {
+			try {
+				long index = 0;
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().length() > 0)
+						inputQueue.put(new Row(index++, line));
+				}
+			} catch (IOException e) {
+				synchronized (error) {
+					if (error[0] == null)
+						error[0] = e;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				for (int i = 0; i < workers; i++)
+					putUninterruptibly(inputQueue, EndOfInput);
+			}
+		}, "tpn-csv-reader");
+
+		Thread[] workerThreads = new Thread[workers];
+		for (int w = 0; w < workers; w++) {
+			workerThreads[w] = new Thread(() -> {
+				try {
+					Row row;
+					while ((row = inputQueue.take()) != EndOfInput) {
+						try {
+							row.result = process(row, columns, kb);
+						} catch (RuntimeException e) {
+							// the worker goes on with the next row
+							row.warning = row.unacceptable = false;
+							row.result = errorRow(row.index, e.toString());
+						}
+						if (row.warning)
+							withWarning.incrementAndGet();
+						if (row.unacceptable)
+							withUnacceptable.incrementAndGet();
+						outputQueue.put(row);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					putUninterruptibly(outputQueue, EndOfInput);
+				}
+			}, "tpn-csv-worker-" + w);
+		}
+
+		Thread writerThread = new Thread(() -> {
+			int finishedWorkers = 0;
+			while (finishedWorkers < workers) {
+				Row row = takeUninterruptibly(outputQueue);
+				if (row == EndOfInput) {
+					finishedWorkers++;
+					continue;
+				}
+				count[0]++;
+				// after a write error keep draining the queue, so that the other stages can finish
+				if (error[0] != null)
+					continue;
+				try {
+					writer.write(row.result);
+					writer.newLine();
+				} catch (IOException e) {
+					synchronized (error) {
+						if (error[0] == null)
+							error[0] = e;
+					}
+				}
+			}
+		}, "tpn-csv-writer");
+
+		readerThread.start();
+		for (Thread thread : workerThreads)
+			thread.start();
+		writerThread.start();
+		joinUninterruptibly(readerThread);
+		for (Thread thread : workerThreads)
+			joinUninterruptibly(thread);
+		joinUninterruptibly(writerThread);
+
+		synchronized (error) {
+			if (error[0] != null)
+				throw error[0];
+		}
+		writer.flush();
+		return new CohortStats(count[0], withWarning.get(),
+				withUnacceptable.get(), System.nanoTime() - start, workers);
+	}
+
+	/**
+	 * @return the position of each of InputColumns in the header, -1 if the column is missing
+	 */
+	static int[] readHeader(String header) throws IOException {
+		if (header == null)
+			throw new IOException("The input is empty");
+		String[] names = header.split(",", -1);
+		int[] columns = new int[InputColumns.length];
+		for (int i = 0; i < InputColumns.length; i++) {
+			columns[i] = -1;
+			for (int j = 0; j < names.length; j++) {
+				if (names[j].trim().equals(InputColumns[i]))
+					columns[i] = j;
+			}
+			// age, gender, weight and height are required
+			if (i < 4 && columns[i] == -1)
+				throw new IOException("The input doesn't have a column named "
+						+ InputColumns[i]);
+		}
+		return columns;
+	}
+
+	static String outputHeader() {
+		StringBuilder sb = new StringBuilder("row");
+		for (String column : InputColumns)
+			sb.append(',').append(column);
+		sb.append(",requiredTotalVolume,requiredAdjustedKcal");
+		for (int code : RecommendOrderGen.MedicationCodes)
+			sb.append(",med").append(code);
+		for (String metric : OutputMetrics)
+			sb.append(',').append(metric);
+		sb.append(",warning,unacceptable,error");
+		return sb.toString();
+	}
+
+	/**
+	 * Calculate one patient, called by the worker threads. A RuntimeException fails only this patient's row.
+	 */
+	protected CohortResult calculate(Patient pt, ReferenceKB kb) {
+		return CohortEngine.process(pt, kb);
+	}
+
+	private String process(Row row, int[] columns, ReferenceKB kb) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(row.index);
+		Patient pt;
+		try {
+			pt = parsePatient(row.line.split(",", -1), columns);
+		} catch (IllegalArgumentException e) {
+			return errorRow(row.index, e.getMessage());
+		}
+		for (String column : InputColumns) {
+			sb.append(',');
+			if (column.equals("gender"))
+				sb.append(pt.gender);
+			else if (column.equals("ivType"))
+				sb.append(pt.ivType);
+			else
+				sb.append(field(pt, column));
+		}
+		CohortResult result = calculate(pt, kb);
+		sb.append(',').append(pt.requiredTotalVolume);
+		sb.append(',').append(pt.requiredAdjustedKcal);
+		for (int i = 0; i < result.order.size(); i++)
+			sb.append(',').append(result.order.getMl(i));
+		for (String metric : OutputMetrics)
+			sb.append(',').append(field(pt, metric));
+		AlertSet alerts = result.alerts;
+		// one name per variable, at the most severe level of its ranges
+		List<String> warning = alerts.getWarningVariables();
+		List<String> unacceptable = alerts.getUnacceptableVariables();
+		row.warning = !warning.isEmpty();
+		row.unacceptable = !unacceptable.isEmpty();
+		sb.append(',');
+		appendCell(sb, String.join(";", warning));
+		sb.append(',');
+		appendCell(sb, String.join(";", unacceptable));
+		sb.append(',');
+		return sb.toString();
+	}
+
+	/**
+	 * @return a row with only the row number and the error message
+	 */
+	private static String errorRow(long index, String message) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(index);
+		// keep the columns aligned: inputs, requirements, medications, metrics, alerts
+		int empty = InputColumns.length + 2
+				+ RecommendOrderGen.MedicationCodes.length
+				+ OutputMetrics.length + 2;
+		for (int i = 0; i < empty; i++)
+			sb.append(',');
+		sb.append(',');
+		appendCell(sb, message);
+		return sb.toString();
+	}
+
+	private static Patient parsePatient(String[] cells, int[] columns) {
+		double age = number(cells, columns, 0, Double.NaN);
+		double gender = number(cells, columns, 1, Double.NaN);
+		double weight = number(cells, columns, 2, Double.NaN);
+		double height = number(cells, columns, 3, Double.NaN);
+		if (Double.isNaN(age) || Double.isNaN(gender) || Double.isNaN(weight)
+				|| Double.isNaN(height))
+			throw new IllegalArgumentException(
+					"age, gender, weight and height are required");
+		Patient pt = new Patient(age, (int) gender, weight, height,
+				number(cells, columns, 4, 1.3), (int) number(cells, columns,
+						6, -1));
+		pt.setSCr(number(cells, columns, 5, -1));
+		pt.setOtherFluidVolume(number(cells, columns, 7, 0));
+		return pt;
+	}
+
+	/**
+	 * @return the value of the i-th input column, or defaultValue if the column is missing or empty
+	 */
+	private static double number(String[] cells, int[] columns, int i,
+			double defaultValue) {
+		int column = columns[i];
+		if (column < 0 || column >= cells.length)
+			return defaultValue;
+		String cell = cells[column].trim();
+		if (cell.length() == 0)
+			return defaultValue;
+		try {
+			return Double.parseDouble(cell);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(InputColumns[i]
+					+ " is not a number: " + cell);
+		}
+	}
+
+	private static double field(Patient pt, String name) {
+		return PatientFields.get(pt, PatientFields.indexOf(name));
+	}
+
+	private static void appendCell(StringBuilder sb, String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+			sb.append(value);
+		} else {
+			sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+		}
+	}
+
+	private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(item);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return queue.take();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void joinUninterruptibly(Thread thread) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * One patient travelling through the queues
+	 */
+	private static class Row {
+		final long index;
+		final String line;
+		String result;
+		boolean warning, unacceptable;
+
+		Row(long index, String line) {
+			this.index = index;
+			this.line = line;
+		}
+	}
+
+}
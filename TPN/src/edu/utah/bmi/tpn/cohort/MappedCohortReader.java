@@ -0,0 +1,432 @@
+package edu.utah.bmi.tpn.cohort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import edu.utah.bmi.tpn.objects.PatientBatch;
+
+/**
+ * Read a large EMR extract (the same csv format as CsvCohortPipeline) into a PatientBatch, without creating a
+ * String per line or per cell.
+ *
+ * The file is split into ranges that end at line boundaries, and each range is memory-mapped and parsed by its own
+ * thread: the numbers are parsed straight from the mapped bytes into the columns of the batch. The file is read
+ * twice, once to count the rows of each range (so that every range knows its 1st row in the batch), and once to
+ * parse them. Numbers with at most 15 digits and no exponent are converted as mantissa / 10^k, which is exact and
+ * gives the same double as Double.parseDouble. Anything else goes through Double.parseDouble.
+ *
+ * read(File) gives the whole file as one PatientBatch. For a file that doesn't fit in memory as a batch,
+ * read(File, long, ChunkConsumer) parses it in line-aligned chunks of about a given size, each into a PatientBatch
+ * of its own that is handed to a consumer, so that only the chunks being parsed or consumed are held.
+ *
+ * <pre>
+ * PatientBatch batch = new MappedCohortReader(8).read(new File("extract.csv"));
+ *
+ * new MappedCohortReader(8).read(new File("extract.csv"), 64 &lt;&lt; 20, (chunk, firstRow) -&gt; {
+ * 	TPNCalculator.calWithoutLab(chunk, 0, chunk.size);
+ * 	TPNCalculator.useRecommendedInput(chunk, 0, chunk.size);
+ * 	double[][] ml = RecommendOrderGen.generateOrders(chunk);
+ * 	AlertBatch alerts = BatchDosageAlerts.checkAlerts(chunk, kb);
+ * });
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class MappedCohortReader {
+
+	private static final Charset Encoding = CsvCohortPipeline.Encoding;
+	// a mapped range is never larger than this
+	private static final long MaxRangeBytes = 1L << 30;
+	private static final int MaxFastDigits = 15;
+	private static final double[] PowersOf10 = new double[MaxFastDigits + 1];
+	static {
+		PowersOf10[0] = 1;
+		for (int i = 1; i < PowersOf10.length; i++)
+			PowersOf10[i] = PowersOf10[i - 1] * 10;
+	}
+
+	private final int threads;
+
+	/**
+	 * Receives the chunks of read(File, long, ChunkConsumer)
+	 */
+	public interface ChunkConsumer {
+		/**
+		 * @param chunk
+		 *            the rows of one chunk, the batch isn't used by the reader any more
+		 * @param firstRow
+		 *            the position of the chunk's 1st row in the file, from 0
+		 */
+		void accept(PatientBatch chunk, long firstRow) throws IOException;
+	}
+
+	public MappedCohortReader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public MappedCohortReader(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads need to be positive");
+		this.threads = threads;
+	}
+
+	/**
+	 * @return one row per non-blank line after the header, in the order of the file
+	 * @throws IOException
+	 *             if the file can't be read, or the header misses a required column
+	 * @throws IllegalArgumentException
+	 *             if a row has a missing or malformed number
+	 */
+	public PatientBatch read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long headerEnd = nextLine(channel, 0, size);
+			final int[] fields = fieldTargets(readHeader(channel, headerEnd));
+			long length = size - headerEnd;
+			final long[] bounds = split(channel, headerEnd, size, Math.max(
+					threads, (length + MaxRangeBytes - 1) / MaxRangeBytes));
+			final int ranges = bounds.length - 1;
+
+			// count the rows of each range, then parse each range from its 1st row
+			final long[] rowsBefore = new long[ranges + 1];
+			final int[] counts = new int[ranges];
+			runRanges(ranges, r -> counts[r] = countRows(map(channel,
+					bounds[r], bounds[r + 1])));
+			for (int r = 0; r < ranges; r++)
+				rowsBefore[r + 1] = rowsBefore[r] + counts[r];
+			if (rowsBefore[ranges] > Integer.MAX_VALUE)
+				throw new IOException("Too many rows for one PatientBatch: "
+						+ rowsBefore[ranges]);
+			final PatientBatch batch = new PatientBatch((int) rowsBefore[ranges]);
+			runRanges(ranges, r -> parseRows(map(channel, bounds[r],
+					bounds[r + 1]), fields, batch, (int) rowsBefore[r],
+					rowsBefore[r]));
+			return batch;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read the file in chunks that end at line boundaries, each one into a PatientBatch of its own. The chunks are
+	 * parsed by the threads of this reader and the consumer is called from those threads, concurrently and not in
+	 * the order of the file. A chunk is only referenced by the reader until the consumer returns, so the memory in
+	 * use is about threads x the batch of chunkBytes of csv, whatever the size of the file.
+	 *
+	 * @param chunkBytes
+	 *            the size of a chunk in the file, a chunk is larger only to finish its last line
+	 * @return the number of rows of the file
+	 * @throws IOException
+	 *             if the file can't be read, the header misses a required column, or the consumer throws it
+	 * @throws IllegalArgumentException
+	 *             if a row has a missing or malformed number
+	 */
+	public long read(File file, long chunkBytes, final ChunkConsumer consumer)
+			throws IOException {
+		if (chunkBytes < 1)
+			throw new IllegalArgumentException(
+					"chunkBytes need to be positive");
+		chunkBytes = Math.min(chunkBytes, MaxRangeBytes);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long headerEnd = nextLine(channel, 0, size);
+			final int[] fields = fieldTargets(readHeader(channel, headerEnd));
+			final long[] bounds = split(channel, headerEnd, size,
+					(size - headerEnd + chunkBytes - 1) / chunkBytes);
+			final int chunks = bounds.length - 1;
+
+			// count the rows of each chunk for their position in the file, then parse one chunk at a time per thread
+			final long[] rowsBefore = new long[chunks + 1];
+			final int[] counts = new int[chunks];
+			runRanges(chunks, r -> counts[r] = countRows(map(channel,
+					bounds[r], bounds[r + 1])));
+			for (int r = 0; r < chunks; r++)
+				rowsBefore[r + 1] = rowsBefore[r] + counts[r];
+			runRanges(chunks, r -> {
+				if (counts[r] == 0)
+					return;
+				PatientBatch chunk = new PatientBatch(counts[r]);
+				parseRows(map(channel, bounds[r], bounds[r + 1]), fields,
+						chunk, 0, rowsBefore[r]);
+				consumer.accept(chunk, rowsBefore[r]);
+			});
+			return rowsBefore[chunks];
+		} finally {
+			raf.close();
+		}
+	}
+
+	private interface RangeTask {
+		void run(int range) throws IOException;
+	}
+
+	private void runRanges(int ranges, final RangeTask task) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.submit(() -> IntStream.range(0, ranges).parallel().forEach(r -> {
+				try {
+					task.run(r);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			})).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Reading is interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// the fork/join pool can wrap the exception of another thread again
+			for (Throwable t = cause; t != null; t = t.getCause()) {
+				if (t instanceof UncheckedIOException)
+					throw ((UncheckedIOException) t).getCause();
+			}
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long from, long to)
+			throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+	}
+
+	private static int[] readHeader(FileChannel channel, long headerEnd)
+			throws IOException {
+		if (headerEnd == 0)
+			throw new IOException("The input is empty");
+		ByteBuffer header = map(channel, 0, headerEnd);
+		byte[] bytes = new byte[header.remaining()];
+		header.get(bytes);
+		return CsvCohortPipeline.readHeader(new String(bytes, Encoding).trim());
+	}
+
+	/**
+	 * @return for each cell position of a line, the InputColumns position it's parsed into, or -1
+	 */
+	private static int[] fieldTargets(int[] columns) {
+		int cells = 0;
+		for (int column : columns)
+			cells = Math.max(cells, column + 1);
+		int[] targets = new int[cells];
+		for (int i = 0; i < targets.length; i++)
+			targets[i] = -1;
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i] >= 0)
+				targets[columns[i]] = i;
+		}
+		return targets;
+	}
+
+	/**
+	 * Split [from, to) into about the given number of ranges, moving each boundary to the start of the next line
+	 *
+	 * @return the boundaries, range r is [bounds[r], bounds[r+1])
+	 */
+	private static long[] split(FileChannel channel, long from, long to,
+			long parts) throws IOException {
+		long length = to - from;
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(from);
+		for (long p = 1; p < parts; p++) {
+			// length / parts * p + length % parts * p / parts is length * p / parts without the overflow
+			long bound = nextLine(channel, from + length / parts * p + length
+					% parts * p / parts, to);
+			if (bound > bounds.get(bounds.size() - 1) && bound < to)
+				bounds.add(bound);
+		}
+		bounds.add(to);
+		long[] array = new long[bounds.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = bounds.get(i);
+		return array;
+	}
+
+	/**
+	 * @return the position after the 1st '\n' at or after position, or to if there is none
+	 */
+	private static long nextLine(FileChannel channel, long position, long to)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < to) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++) {
+				if (buffer.get(i) == '\n')
+					return position + i + 1;
+			}
+			position += n;
+		}
+		return to;
+	}
+
+	static int countRows(ByteBuffer buffer) {
+		int rows = 0;
+		int limit = buffer.limit();
+		int start = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i == limit || buffer.get(i) == '\n') {
+				if (!isBlank(buffer, start, i))
+					rows++;
+				start = i + 1;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @param row
+	 *            the row of the batch where the 1st line of the buffer goes
+	 * @param fileRow
+	 *            the row of the file of that line, for the error messages
+	 */
+	private static void parseRows(ByteBuffer buffer, int[] fields,
+			PatientBatch batch, int row, long fileRow) {
+		double[][] columns = new double[CsvCohortPipeline.InputColumns.length][];
+		for (int i = 0; i < columns.length; i++) {
+			String name = CsvCohortPipeline.InputColumns[i];
+			// gender and ivType are int columns
+			if (!name.equals("gender") && !name.equals("ivType"))
+				columns[i] = batch.column(name);
+		}
+		double[] values = new double[columns.length];
+		int limit = buffer.limit();
+		int start = 0;
+		for (int i = 0; i <= limit; i++) {
+			if (i < limit && buffer.get(i) != '\n')
+				continue;
+			if (!isBlank(buffer, start, i)) {
+				parseRow(buffer, start, i, fields, values, fileRow++);
+				for (int c = 0; c < columns.length; c++) {
+					if (columns[c] != null)
+						columns[c][row] = values[c];
+				}
+				// age, gender, weight, height, stressor, sCr, ivType, otherFluid_ml
+				batch.gender[row] = (int) values[1];
+				batch.ivType[row] = (int) values[6];
+				row++;
+			}
+			start = i + 1;
+		}
+	}
+
+	/**
+	 * Parse the cells of one line into values, in the order of InputColumns
+	 */
+	private static void parseRow(ByteBuffer buffer, int from, int to,
+			int[] fields, double[] values, long row) {
+		// defaults of the optional columns, see CsvCohortPipeline
+		values[0] = Double.NaN;
+		values[1] = Double.NaN;
+		values[2] = Double.NaN;
+		values[3] = Double.NaN;
+		values[4] = 1.3;
+		values[5] = -1;
+		values[6] = -1;
+		values[7] = 0;
+		int cell = 0;
+		int start = from;
+		for (int i = from; i <= to && cell < fields.length; i++) {
+			if (i < to && buffer.get(i) != ',')
+				continue;
+			int target = fields[cell];
+			if (target >= 0) {
+				int end = i;
+				if (end > start && buffer.get(end - 1) == '\r')
+					end--;
+				if (!isBlank(buffer, start, end))
+					values[target] = parseDouble(buffer, start, end, row);
+			}
+			cell++;
+			start = i + 1;
+		}
+		for (int i = 0; i < 4; i++) {
+			if (Double.isNaN(values[i]))
+				throw new IllegalArgumentException("Row " + row + ": "
+						+ CsvCohortPipeline.InputColumns[i] + " is required");
+		}
+	}
+
+	/**
+	 * Parse a decimal number from the bytes [from, to), surrounding blanks are ignored
+	 *
+	 * @param row
+	 *            for the error message
+	 */
+	static double parseDouble(ByteBuffer buffer, int from, int to, long row) {
+		while (from < to && isSpace(buffer.get(from)))
+			from++;
+		while (to > from && isSpace(buffer.get(to - 1)))
+			to--;
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, fractionDigits = 0;
+		boolean point = false;
+		for (; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0');
+				digits++;
+				if (point)
+					fractionDigits++;
+			} else if (b == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (i == to && digits > 0 && digits <= MaxFastDigits) {
+			double value = mantissa / PowersOf10[fractionDigits];
+			return negative ? -value : value;
+		}
+		// exponent, too many digits, or not a number at all
+		byte[] bytes = new byte[to - from];
+		for (int j = 0; j < bytes.length; j++)
+			bytes[j] = buffer.get(from + j);
+		String text = new String(bytes, Encoding);
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Row " + row
+					+ ": not a number: " + text);
+		}
+	}
+
+	private static boolean isBlank(ByteBuffer buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (!isSpace(buffer.get(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+}
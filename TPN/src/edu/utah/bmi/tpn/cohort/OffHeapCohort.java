@@ -0,0 +1,276 @@
+package edu.utah.bmi.tpn.cohort;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * A cohort stored outside of the Java heap, for population studies with millions of patients.
+ *
+ * Every patient is one fixed size row in direct ByteBuffers: all double fields of Patient (in PatientFields order),
+ * gender, ivType, the recommended medications (in the order of RecommendOrderGen.MedicationCodes), and the warning
+ * and unacceptable bitsets of its dosage alerts. The buffers are allocated in segments of SegmentRows rows as the
+ * rows are written, so only the rows in use take memory. The heap only holds the segment table, whatever the size
+ * of the cohort is.
+ *
+ * process() calculates a range of rows in place, through one reused Patient and AlertSet. Different ranges can be
+ * processed by different threads at the same time, see CohortEngine.run(OffHeapCohort). The alerts are checked
+ * against the KB snapshot given to the constructor.
+ *
+ * The direct memory is limited by -XX:MaxDirectMemorySize, about (1.1KB + 16 bytes per 64 reference ranges) per
+ * row.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class OffHeapCohort {
+
+	// rows per segment = 2^SegmentShift
+	private static final int SegmentShift = 14;
+	public static final int SegmentRows = 1 << SegmentShift;
+
+	private static final int Products = RecommendOrderGen.MedicationCodes.length;
+	// byte offsets in a row
+	private static final int Gender = PatientFields.COUNT * 8;
+	private static final int IvType = Gender + 4;
+	private static final int Medications = IvType + 4;
+	private static final int Alerts = Medications + Products * 8;
+
+	private final ReferenceKB kb;
+	private final long capacity;
+	// number of long words of each alert bitset
+	private final int words;
+	private final int rowBytes;
+	private final AtomicReferenceArray<ByteBuffer> segments;
+	private long size = 0;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of rows
+	 * @param kb
+	 *            the KB snapshot that the alerts are checked against
+	 */
+	public OffHeapCohort(long capacity, ReferenceKB kb) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Negative capacity: "
+					+ capacity);
+		this.kb = kb;
+		this.capacity = capacity;
+		this.words = (kb.size() + 63) >>> 6;
+		this.rowBytes = Alerts + words * 16;
+		this.segments = new AtomicReferenceArray<ByteBuffer>(
+				(int) ((capacity + SegmentRows - 1) >>> SegmentShift));
+	}
+
+	public ReferenceKB getReferenceKB() {
+		return kb;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of rows written through append()
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int getRowBytes() {
+		return rowBytes;
+	}
+
+	/**
+	 * Write the patient into the next row. Not thread-safe, rows are expected to be loaded by one thread.
+	 *
+	 * @return the row
+	 */
+	public long append(Patient pt) {
+		if (size == capacity)
+			throw new IllegalStateException("The cohort is full: " + capacity
+					+ " rows");
+		write(size, pt);
+		return size++;
+	}
+
+	/**
+	 * Write the input and calculated fields of the patient into a row
+	 */
+	public void write(long row, Patient pt) {
+		ByteBuffer segment = segment(row);
+		int offset = offset(row);
+		for (int i = 0; i < PatientFields.COUNT; i++)
+			segment.putDouble(offset + i * 8, PatientFields.get(pt, i));
+		segment.putInt(offset + Gender, pt.gender);
+		segment.putInt(offset + IvType, pt.ivType);
+	}
+
+	/**
+	 * Read a row into an existing Patient, so that one Patient can be reused for many rows
+	 *
+	 * @return pt
+	 */
+	public Patient read(long row, Patient pt) {
+		ByteBuffer segment = segment(row);
+		int offset = offset(row);
+		for (int i = 0; i < PatientFields.COUNT; i++)
+			PatientFields.set(pt, i, segment.getDouble(offset + i * 8));
+		pt.gender = segment.getInt(offset + Gender);
+		pt.ivType = segment.getInt(offset + IvType);
+		return pt;
+	}
+
+	public Patient read(long row) {
+		return read(row, new Patient(0, 0, 0, 0));
+	}
+
+	/**
+	 * @param ordinal
+	 *            see PatientFields.indexOf
+	 */
+	public double get(long row, int ordinal) {
+		return segment(row).getDouble(offset(row) + ordinal * 8);
+	}
+
+	public void set(long row, int ordinal, double value) {
+		segment(row).putDouble(offset(row) + ordinal * 8, value);
+	}
+
+	/**
+	 * @param product
+	 *            position in RecommendOrderGen.MedicationCodes
+	 * @return the recommended volume in ml
+	 */
+	public double getMl(long row, int product) {
+		return segment(row).getDouble(offset(row) + Medications + product * 8);
+	}
+
+	public MedicationOrder getOrder(long row) {
+		double[] ml = new double[Products];
+		for (int i = 0; i < Products; i++)
+			ml[i] = getMl(row, i);
+		return new MedicationOrder(RecommendOrderGen.MedicationCodes,
+				RecommendOrderGen.MedicationNames, ml);
+	}
+
+	/**
+	 * Overwrite an AlertSet created by getReferenceKB().newAlertSet() with the alerts of a row
+	 *
+	 * @return alerts
+	 */
+	public AlertSet readAlerts(long row, AlertSet alerts) {
+		ByteBuffer segment = segment(row);
+		int offset = offset(row) + Alerts;
+		alerts.clear();
+		for (int w = 0; w < words; w++) {
+			long warning = segment.getLong(offset + w * 8);
+			long unacceptable = segment.getLong(offset + (words + w) * 8);
+			for (; warning != 0; warning &= warning - 1)
+				alerts.addWarning((w << 6)
+						+ Long.numberOfTrailingZeros(warning));
+			for (; unacceptable != 0; unacceptable &= unacceptable - 1)
+				alerts.addUnacceptable((w << 6)
+						+ Long.numberOfTrailingZeros(unacceptable));
+		}
+		return alerts;
+	}
+
+	public AlertSet readAlerts(long row) {
+		return readAlerts(row, kb.newAlertSet());
+	}
+
+	public boolean hasWarning(long row) {
+		return hasAny(row, 0);
+	}
+
+	public boolean hasUnacceptable(long row) {
+		return hasAny(row, words);
+	}
+
+	/**
+	 * Run calWithoutLab, (CrCl,) useRecommendedInput, generateOrder and the dosage alerts for the rows from
+	 * (inclusive) to to (exclusive), and write the results back into the same rows. Nothing is kept on the heap after
+	 * it returns.
+	 */
+	public void process(long from, long to) {
+		Patient pt = new Patient(0, 0, 0, 0);
+		AlertSet alerts = kb.newAlertSet();
+		for (long row = from; row < to; row++) {
+			read(row, pt);
+			TPNCalculator.calWithoutLab(pt);
+			if (pt.sCr != TPNCalculator.NotSpecified)
+				TPNCalculator.calculateCrCl(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+			RecommendOrderGen.checkAlerts(pt, kb, alerts);
+			write(row, pt);
+			writeResults(row, order, alerts);
+		}
+	}
+
+	private void writeResults(long row, MedicationOrder order, AlertSet alerts) {
+		ByteBuffer segment = segment(row);
+		int offset = offset(row);
+		for (int i = 0; i < Products; i++)
+			segment.putDouble(offset + Medications + i * 8, order.getMl(i));
+		offset += Alerts;
+		for (int w = 0; w < words; w++) {
+			segment.putLong(offset + w * 8, 0);
+			segment.putLong(offset + (words + w) * 8, 0);
+		}
+		for (int i = alerts.nextWarning(0); i >= 0; i = alerts
+				.nextWarning(i + 1))
+			setBit(segment, offset, i);
+		for (int i = alerts.nextUnacceptable(0); i >= 0; i = alerts
+				.nextUnacceptable(i + 1))
+			setBit(segment, offset + words * 8, i);
+	}
+
+	private static void setBit(ByteBuffer segment, int offset, int ordinal) {
+		int position = offset + (ordinal >>> 6) * 8;
+		segment.putLong(position, segment.getLong(position)
+				| (1L << ordinal));
+	}
+
+	private boolean hasAny(long row, int firstWord) {
+		ByteBuffer segment = segment(row);
+		int offset = offset(row) + Alerts + firstWord * 8;
+		for (int w = 0; w < words; w++) {
+			if (segment.getLong(offset + w * 8) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	private int offset(long row) {
+		return (int) (row & (SegmentRows - 1)) * rowBytes;
+	}
+
+	/**
+	 * @return the segment of the row, allocated at the 1st time it's used
+	 */
+	private ByteBuffer segment(long row) {
+		if (row < 0 || row >= capacity)
+			throw new IndexOutOfBoundsException("Row " + row
+					+ " is out of the capacity " + capacity);
+		int s = (int) (row >>> SegmentShift);
+		ByteBuffer segment = segments.get(s);
+		if (segment == null) {
+			segment = ByteBuffer.allocateDirect(SegmentRows * rowBytes).order(
+					ByteOrder.nativeOrder());
+			if (!segments.compareAndSet(s, null, segment))
+				segment = segments.get(s);
+		}
+		return segment;
+	}
+
+}
@@ -0,0 +1,137 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import edu.utah.bmi.tpn.objects.IVTYPE;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * Precomputed applicability of the reference ranges for every age band x gender x iv type combination.
+ *
+ * The age bounds of all ranges split the age axis into bands, inside one band every range either applies or not.
+ * The same is true for each gender and iv type value that appears in the KB, plus one "other" slot for the values
+ * that don't appear. For each combination a bitmask of the applicable ranges is kept, so that dosageAlerts only
+ * visits the ranges that can fire for a patient.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class ApplicabilityIndex {
+
+	private static final int NotSpecified = -1;
+
+	// distinct specified age bounds, sorted. Band b covers (ageBoundaries[b-1], ageBoundaries[b]]
+	private final double[] ageBoundaries;
+	// distinct specified gender/iv type values, the slot after the last value is for anything else
+	private final int[] genderValues, ivTypeValues;
+	private final int ageBands, genderSlots, ivTypeSlots;
+	// number of long words in each mask
+	final int words;
+	// masks of all combinations, the mask of combination c starts at c * words
+	final long[] masks;
+
+	public ApplicabilityIndex(IngredientReferenceRange[] ranges) {
+		TreeSet<Double> boundaries = new TreeSet<Double>();
+		TreeSet<Integer> genders = new TreeSet<Integer>();
+		TreeSet<Integer> ivTypes = new TreeSet<Integer>();
+		for (IngredientReferenceRange irr : ranges) {
+			if (irr.ageLowerBound != NotSpecified)
+				boundaries.add(irr.ageLowerBound);
+			if (irr.ageHigherBound != NotSpecified)
+				boundaries.add(irr.ageHigherBound);
+			if (irr.gender != NotSpecified)
+				genders.add(irr.gender);
+			if (irr.ivType != IVTYPE.NotSpecified)
+				ivTypes.add(irr.ivType);
+		}
+		ageBoundaries = new double[boundaries.size()];
+		int i = 0;
+		for (double boundary : boundaries)
+			ageBoundaries[i++] = boundary;
+		genderValues = toArray(genders);
+		ivTypeValues = toArray(ivTypes);
+
+		// one band below the first boundary, one above the last, and one for unknown (NaN) age
+		ageBands = ageBoundaries.length + 2;
+		genderSlots = genderValues.length + 1;
+		ivTypeSlots = ivTypeValues.length + 1;
+		words = (ranges.length + 63) >>> 6;
+		masks = new long[ageBands * genderSlots * ivTypeSlots * words];
+
+		for (int band = 0; band < ageBands; band++) {
+			for (int g = 0; g < genderSlots; g++) {
+				for (int iv = 0; iv < ivTypeSlots; iv++) {
+					int offset = ((band * genderSlots + g) * ivTypeSlots + iv)
+							* words;
+					for (int r = 0; r < ranges.length; r++) {
+						if (applies(ranges[r], band, g, iv))
+							masks[offset + (r >>> 6)] |= 1L << r;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the offset in masks of the applicable ranges for a patient
+	 */
+	public int offset(double age, int gender, int ivType) {
+		int band;
+		if (Double.isNaN(age)) {
+			band = ageBands - 1;
+		} else {
+			// number of boundaries that are lower than age
+			band = Arrays.binarySearch(ageBoundaries, age);
+			if (band < 0)
+				band = -band - 1;
+		}
+		return ((band * genderSlots + slot(genderValues, gender))
+				* ivTypeSlots + slot(ivTypeValues, ivType))
+				* words;
+	}
+
+	/**
+	 * @param offset
+	 *            returned by offset(age, gender, ivType)
+	 * @param range
+	 *            position of the range in the compiled KB
+	 */
+	public boolean isApplicable(int offset, int range) {
+		return (masks[offset + (range >>> 6)] & (1L << range)) != 0;
+	}
+
+	private boolean applies(IngredientReferenceRange irr, int band,
+			int genderSlot, int ivTypeSlot) {
+		int lastBand = ageBoundaries.length;
+		boolean unknownAge = band == ageBands - 1;
+		// if the age range is not specified in knowledge base, or the whole band is within the range
+		boolean ageLowerOK = irr.ageLowerBound == NotSpecified
+				|| (!unknownAge && band > 0 && ageBoundaries[band - 1] >= irr.ageLowerBound);
+		boolean ageHigherOK = irr.ageHigherBound == NotSpecified
+				|| (!unknownAge && band < lastBand && ageBoundaries[band] <= irr.ageHigherBound);
+		boolean genderOK = irr.gender == NotSpecified
+				|| (genderSlot < genderValues.length && genderValues[genderSlot] == irr.gender);
+		// ranges for deep line are not checked
+		boolean ivTypeOK = irr.ivType != IVTYPE.Deep
+				&& (irr.ivType == IVTYPE.NotSpecified || (ivTypeSlot < ivTypeValues.length && ivTypeValues[ivTypeSlot] == irr.ivType));
+		return ageLowerOK && ageHigherOK && genderOK && ivTypeOK;
+	}
+
+	private static int slot(int[] values, int value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == value)
+				return i;
+		}
+		return values.length;
+	}
+
+	private static int[] toArray(TreeSet<Integer> values) {
+		int[] array = new int[values.size()];
+		int i = 0;
+		for (int value : values)
+			array[i++] = value;
+		return array;
+	}
+
+}
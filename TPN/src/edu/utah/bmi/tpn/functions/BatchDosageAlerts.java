@@ -0,0 +1,96 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.List;
+
+import edu.utah.bmi.tpn.objects.AlertBatch;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Check the dosage alerts of many patients at once, e.g. for the nightly re-screen of all active orders.
+ *
+ * Instead of running every reference range for one patient after another, the loop is turned inside out: for each
+ * range, the checked variable of all patients is copied into one contiguous column, and then compared with the
+ * warning and unacceptable levels in a tight loop without branches, writing into the per-patient bitsets of an
+ * AlertBatch. The result is the same as calling RecommendOrderGen.checkAlerts() for each patient, except that
+ * nothing is reported to the trace sink.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class BatchDosageAlerts {
+
+	public static AlertBatch checkAlerts(List<Patient> patients, ReferenceKB kb) {
+		return checkAlerts(patients.toArray(new Patient[patients.size()]), kb);
+	}
+
+	public static AlertBatch checkAlerts(Patient[] patients, ReferenceKB kb) {
+		int n = patients.length;
+		// offset of each patient's applicable ranges in the index
+		int[] offsets = new int[n];
+		for (int i = 0; i < n; i++) {
+			Patient pt = patients[i];
+			RecommendOrderGen.calculation4Cheking(pt);
+			offsets[i] = kb.index.offset(pt.age, pt.gender, pt.ivType);
+		}
+		AlertBatch alerts = new AlertBatch(n, kb.variableNames,
+				kb.warningMessages, kb.unacceptableMessages);
+		double[] column = new double[n];
+		for (int r = 0; r < kb.ranges.length; r++) {
+			int ordinal = kb.checkingOrdinals[r];
+			for (int i = 0; i < n; i++)
+				column[i] = PatientFields.get(patients[i], ordinal);
+			compare(kb, r, column, offsets, 0, n, alerts);
+		}
+		return alerts;
+	}
+
+	/**
+	 * Same as checkAlerts(Patient[], kb), the checked variables are compared straight from the columns of the batch
+	 */
+	public static AlertBatch checkAlerts(PatientBatch batch, ReferenceKB kb) {
+		int n = batch.size;
+		RecommendOrderGen.calculation4Cheking(batch, 0, n);
+		double[] age = batch.column("age");
+		int[] offsets = new int[n];
+		for (int i = 0; i < n; i++)
+			offsets[i] = kb.index.offset(age[i], batch.gender[i],
+					batch.ivType[i]);
+		AlertBatch alerts = new AlertBatch(n, kb.variableNames,
+				kb.warningMessages, kb.unacceptableMessages);
+		for (int r = 0; r < kb.ranges.length; r++)
+			compare(kb, r, batch.column(kb.checkingOrdinals[r]), offsets, 0,
+					n, alerts);
+		return alerts;
+	}
+
+	/**
+	 * Compare one column of checked values with range r, for patients from (inclusive) to to (exclusive)
+	 */
+	static void compare(ReferenceKB kb, int r, double[] column, int[] offsets,
+			int from, int to, AlertBatch alerts) {
+		double warning = kb.ranges[r].warning;
+		double unacceptable = kb.ranges[r].unacceptable;
+		// -1 means the level is not specified
+		long hasWarning = warning != -1 ? 1L : 0L;
+		long hasUnacceptable = unacceptable != -1 ? 1L : 0L;
+		int word = r >>> 6;
+		int bit = r & 63;
+		long[] masks = kb.index.masks;
+		long[] warningBits = alerts.warning;
+		long[] unacceptableBits = alerts.unacceptable;
+		int words = alerts.words;
+		for (int i = from; i < to; i++) {
+			double value = column[i];
+			long applicable = (masks[offsets[i] + word] >>> bit) & 1L;
+			long isUnacceptable = hasUnacceptable
+					& (value >= unacceptable ? 1L : 0L);
+			long isWarning = hasWarning & (value >= warning ? 1L : 0L);
+			int w = i * words + word;
+			unacceptableBits[w] |= (applicable & isUnacceptable) << bit;
+			warningBits[w] |= (applicable & ~isUnacceptable & isWarning) << bit;
+		}
+	}
+
+}
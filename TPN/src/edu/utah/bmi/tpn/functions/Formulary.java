@@ -0,0 +1,453 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * The stock products that the orders are made of, read from a csv file (resources/TPNFormulary.csv), so that a site
+ * can list its own products without a code change.
+ *
+ * Each row is one product: its code and name, the concentration (% w/v), kcal/ml, mOsm/ml, the input amount that
+ * it is dosed by (a Patient field, e.g. inputNa_mEq), and how much of each ingredient one ml contains (the remaining
+ * columns, each named after the Patient field of the ingredient amount). A product that is not dosed by any input
+ * is listed with 0 ml. The dextrose product is dosed by "inputDextrose_perc", see RecommendOrderGen.medicationVolumes.
+ *
+ * At load time the table is compiled into a lower triangular conversion from the input amounts to the product
+ * volumes: a product's volume is its input amount divided by its content, minus what the products solved before it
+ * already bring of that ingredient (e.g. sodium chloride after the sodium of sodium phosphate). An order then costs
+ * one division per dosed product and one multiply-subtract per shared ingredient, whatever the number of products
+ * listed. The contents are kept as divisors rather than inverted into reciprocals, so the volumes are exactly those
+ * of the labels' concentrations.
+ *
+ * A formulary is never changed after it is loaded.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class Formulary {
+
+	// the "dosed by" value of the dextrose product
+	public static final String Dextrose = "inputDextrose_perc";
+
+	// csv columns
+	private static final int CodeColumn = 0, NameColumn = 1,
+			ConcentrationColumn = 2, KcalColumn = 3, MosmColumn = 4,
+			DosedByColumn = 5, FirstIngredientColumn = 6;
+
+	private final String source;
+	private final int[] codes;
+	private final String[] names;
+	// per product: % w/v, kcal/ml, mOsm/ml
+	private final double[] concentration, kcalPerMl, mosmPerMl;
+	// ingredient columns (Patient fields) and the content of each product: [product][ingredient] per ml
+	private final String[] ingredients;
+	private final double[][] content;
+	private final int lipid, protein, dextrose;
+
+	// the compiled conversion, one step per dosed product in the order they are solved:
+	// ml[stepProducts[s]] = pt[stepOrdinals[s]] / stepContents[s] - sum(stepFactors[s][k] * ml[stepCoupled[s][k]])
+	private final int[] stepProducts, stepOrdinals;
+	private final String[] stepFields;
+	private final double[] stepContents;
+	private final int[][] stepCoupled;
+	private final double[][] stepFactors;
+	// the products that are not dosed by an input (dextrose excluded), always 0 ml
+	private final int[] unused;
+
+	private Formulary(String source, int[] codes, String[] names,
+			double[] concentration, double[] kcalPerMl, double[] mosmPerMl,
+			String[] dosedBy, String[] ingredients, double[][] content) {
+		this.source = source;
+		this.codes = codes;
+		this.names = names;
+		this.concentration = concentration;
+		this.kcalPerMl = kcalPerMl;
+		this.mosmPerMl = mosmPerMl;
+		this.ingredients = ingredients;
+		this.content = content;
+		int n = codes.length;
+
+		// which product each ingredient is dosed by
+		int[] dosingProduct = new int[ingredients.length];
+		Arrays.fill(dosingProduct, -1);
+		int[] dosedIngredient = new int[n];
+		int dextrose = -1;
+		List<Integer> unused = new ArrayList<Integer>();
+		for (int p = 0; p < n; p++) {
+			dosedIngredient[p] = -1;
+			if (dosedBy[p].length() == 0) {
+				unused.add(p);
+			} else if (dosedBy[p].equals(Dextrose)) {
+				if (dextrose != -1)
+					throw new IllegalArgumentException(source
+							+ ": more than one dextrose product");
+				dextrose = p;
+			} else {
+				int i = indexOf(ingredients, dosedBy[p]);
+				if (i < 0)
+					throw new IllegalArgumentException(source + ": "
+							+ codes[p] + " is dosed by " + dosedBy[p]
+							+ ", which is not an ingredient column");
+				if (dosingProduct[i] != -1)
+					throw new IllegalArgumentException(source + ": "
+							+ dosedBy[p] + " doses both "
+							+ codes[dosingProduct[i]] + " and " + codes[p]);
+				if (!(content[p][i] > 0))
+					throw new IllegalArgumentException(source + ": "
+							+ codes[p] + " doesn't contain " + dosedBy[p]);
+				dosingProduct[i] = p;
+				dosedIngredient[p] = i;
+			}
+		}
+		if (dextrose == -1)
+			throw new IllegalArgumentException(source
+					+ ": no product is dosed by " + Dextrose);
+		this.dextrose = dextrose;
+		this.lipid = dosedProduct(ingredients, dosingProduct,
+				"inputLipid_g", source);
+		this.protein = dosedProduct(ingredients, dosingProduct,
+				"inputProtein_g", source);
+		this.unused = new int[unused.size()];
+		for (int u = 0; u < this.unused.length; u++)
+			this.unused[u] = unused.get(u);
+		for (int i = 0; i < ingredients.length; i++) {
+			if (dosingProduct[i] != -1 && content[dextrose][i] != 0)
+				throw new IllegalArgumentException(source
+						+ ": the dextrose product can't contain "
+						+ ingredients[i]);
+		}
+
+		// solve the dosed products in an order where each one comes after the dosed products that share its
+		// ingredient
+		int steps = 0;
+		for (int p = 0; p < n; p++) {
+			if (dosedIngredient[p] != -1)
+				steps++;
+		}
+		stepProducts = new int[steps];
+		stepOrdinals = new int[steps];
+		stepFields = new String[steps];
+		stepContents = new double[steps];
+		stepCoupled = new int[steps][];
+		stepFactors = new double[steps][];
+		boolean[] solved = new boolean[n];
+		for (int s = 0; s < steps;) {
+			int before = s;
+			for (int p = 0; p < n; p++) {
+				int i = dosedIngredient[p];
+				if (i == -1 || solved[p]
+						|| !coupledSolved(p, i, dosedIngredient, solved))
+					continue;
+				List<Integer> coupled = new ArrayList<Integer>();
+				for (int q = 0; q < n; q++) {
+					if (q != p && dosedIngredient[q] != -1
+							&& content[q][i] != 0)
+						coupled.add(q);
+				}
+				stepProducts[s] = p;
+				stepFields[s] = ingredients[i];
+				stepOrdinals[s] = PatientFields.indexOf(ingredients[i]);
+				stepContents[s] = content[p][i];
+				stepCoupled[s] = new int[coupled.size()];
+				stepFactors[s] = new double[coupled.size()];
+				for (int k = 0; k < coupled.size(); k++) {
+					int q = coupled.get(k);
+					stepCoupled[s][k] = q;
+					stepFactors[s][k] = content[q][i] / content[p][i];
+				}
+				solved[p] = true;
+				s++;
+			}
+			if (s == before)
+				throw new IllegalArgumentException(source
+						+ ": the dosed products share their ingredients in a cycle");
+		}
+	}
+
+	/**
+	 * Read the products from a csv file on the filesystem
+	 */
+	public static Formulary load(File csvFile) throws IOException {
+		InputStream in = new FileInputStream(csvFile);
+		try {
+			return parse(new InputStreamReader(in, ReferenceKB.Encoding),
+					csvFile.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the products from a csv file on the classpath, e.g. "/resources/TPNFormulary.csv"
+	 */
+	public static Formulary loadFromClasspath(String resource)
+			throws IOException {
+		InputStream in = Formulary.class.getResourceAsStream(resource);
+		if (in == null)
+			throw new FileNotFoundException("classpath:" + resource);
+		try {
+			return parse(new InputStreamReader(in, ReferenceKB.Encoding),
+					"classpath:" + resource);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the products in the formulary csv format
+	 *
+	 * @param csv
+	 * @param source
+	 *            where the csv comes from, used in error messages
+	 * @throws IllegalArgumentException
+	 *             if a row is malformed, an ingredient column is not a Patient field, or the products can't be
+	 *             compiled (see the class comment)
+	 */
+	public static Formulary parse(Reader csv, String source) throws IOException {
+		BufferedReader csvReader = new BufferedReader(csv);
+		String header = csvReader.readLine();
+		if (header == null)
+			throw new IllegalArgumentException(source + ": empty formulary");
+		String[] titles = header.split(",", -1);
+		String[] ingredients = new String[titles.length
+				- FirstIngredientColumn];
+		for (int i = 0; i < ingredients.length; i++) {
+			ingredients[i] = titles[FirstIngredientColumn + i].trim();
+			if (PatientFields.indexOf(ingredients[i]) == PatientFields.NotFound)
+				throw new IllegalArgumentException(source
+						+ ": Class Patient doesn't have any field named: "
+						+ ingredients[i]);
+		}
+
+		List<String[]> rows = new ArrayList<String[]>();
+		String line;
+		int lineNumber = 1;
+		while ((line = csvReader.readLine()) != null) {
+			lineNumber++;
+			if (line.trim().length() == 0)
+				continue;
+			String[] cells = line.split(",", -1);
+			if (cells.length != titles.length)
+				throw new IllegalArgumentException(source + ":" + lineNumber
+						+ ": expect " + titles.length + " columns");
+			rows.add(cells);
+		}
+
+		int n = rows.size();
+		int[] codes = new int[n];
+		String[] names = new String[n], dosedBy = new String[n];
+		double[] concentration = new double[n], kcalPerMl = new double[n], mosmPerMl = new double[n];
+		double[][] content = new double[n][ingredients.length];
+		for (int p = 0; p < n; p++) {
+			String[] cells = rows.get(p);
+			String where = source + " (" + cells[NameColumn] + ")";
+			codes[p] = (int) number(cells[CodeColumn], where);
+			names[p] = cells[NameColumn];
+			concentration[p] = number(cells[ConcentrationColumn], where);
+			kcalPerMl[p] = number(cells[KcalColumn], where);
+			mosmPerMl[p] = number(cells[MosmColumn], where);
+			dosedBy[p] = cells[DosedByColumn].trim();
+			for (int i = 0; i < ingredients.length; i++)
+				content[p][i] = number(cells[FirstIngredientColumn + i], where);
+		}
+		return new Formulary(source, codes, names, concentration, kcalPerMl,
+				mosmPerMl, dosedBy, ingredients, content);
+	}
+
+	/**
+	 * The volumes of the products dosed by an input amount, and 0 ml for the unused ones. The dextrose product is
+	 * left to the caller.
+	 *
+	 * @param ml
+	 *            in the order of the products
+	 */
+	public void volumes(Patient pt, double[] ml) {
+		for (int s = 0; s < stepProducts.length; s++) {
+			double volume = PatientFields.get(pt, stepOrdinals[s])
+					/ stepContents[s];
+			int[] coupled = stepCoupled[s];
+			for (int k = 0; k < coupled.length; k++)
+				volume -= stepFactors[s][k] * ml[coupled[k]];
+			ml[stepProducts[s]] = volume;
+		}
+		for (int p : unused)
+			ml[p] = 0;
+	}
+
+	/**
+	 * Same as volumes(Patient, double[]) for the rows from (inclusive) to to (exclusive) of a batch
+	 *
+	 * @param ml
+	 *            ml[product][row]
+	 */
+	public void volumes(PatientBatch batch, double[][] ml, int from, int to) {
+		for (int s = 0; s < stepProducts.length; s++) {
+			double[] amount = batch.column(stepFields[s]);
+			double[] volume = ml[stepProducts[s]];
+			double divisor = stepContents[s];
+			for (int i = from; i < to; i++)
+				volume[i] = amount[i] / divisor;
+			for (int k = 0; k < stepCoupled[s].length; k++) {
+				double[] coupled = ml[stepCoupled[s][k]];
+				double factor = stepFactors[s][k];
+				for (int i = from; i < to; i++)
+					volume[i] -= factor * coupled[i];
+			}
+		}
+		for (int p : unused) {
+			for (int i = from; i < to; i++)
+				ml[p][i] = 0;
+		}
+	}
+
+	/**
+	 * @return the osmoles (mOsm) that the products bring, from the mOsm/ml of each product
+	 */
+	public double osmoles(double[] ml) {
+		double mosm = 0;
+		for (int p = 0; p < ml.length; p++) {
+			if (mosmPerMl[p] != 0)
+				mosm += ml[p] * mosmPerMl[p];
+		}
+		return mosm;
+	}
+
+	/**
+	 * @return the position of the product, or -1
+	 */
+	public int indexOf(int code) {
+		for (int p = 0; p < codes.length; p++) {
+			if (codes[p] == code)
+				return p;
+		}
+		return -1;
+	}
+
+	public int size() {
+		return codes.length;
+	}
+
+	public int[] getCodes() {
+		return codes.clone();
+	}
+
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	public int getCode(int p) {
+		return codes[p];
+	}
+
+	public String getName(int p) {
+		return names[p];
+	}
+
+	/**
+	 * @return % w/v, 0 if not listed
+	 */
+	public double getConcentration(int p) {
+		return concentration[p];
+	}
+
+	public double getKcalPerMl(int p) {
+		return kcalPerMl[p];
+	}
+
+	public double getMosmPerMl(int p) {
+		return mosmPerMl[p];
+	}
+
+	/**
+	 * @return the amount of the ingredient in one ml of the product, 0 if it doesn't contain it
+	 */
+	public double getContent(int p, String ingredient) {
+		int i = indexOf(ingredients, ingredient);
+		return i < 0 ? 0 : content[p][i];
+	}
+
+	/**
+	 * @return the Patient fields of the input amounts that dose a product, in the order they are solved
+	 */
+	public String[] getDosingInputs() {
+		return stepFields.clone();
+	}
+
+	/**
+	 * @return the position of the product dosed by inputLipid_g
+	 */
+	public int getLipid() {
+		return lipid;
+	}
+
+	/**
+	 * @return the position of the product dosed by inputProtein_g
+	 */
+	public int getProtein() {
+		return protein;
+	}
+
+	/**
+	 * @return the position of the dextrose product
+	 */
+	public int getDextrose() {
+		return dextrose;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	private boolean coupledSolved(int p, int i, int[] dosedIngredient,
+			boolean[] solved) {
+		for (int q = 0; q < codes.length; q++) {
+			if (q != p && dosedIngredient[q] != -1 && content[q][i] != 0
+					&& !solved[q])
+				return false;
+		}
+		return true;
+	}
+
+	private static int dosedProduct(String[] ingredients,
+			int[] dosingProduct, String ingredient, String source) {
+		int i = indexOf(ingredients, ingredient);
+		if (i < 0 || dosingProduct[i] == -1)
+			throw new IllegalArgumentException(source
+					+ ": no product is dosed by " + ingredient);
+		return dosingProduct[i];
+	}
+
+	private static int indexOf(String[] values, String value) {
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(value))
+				return i;
+		}
+		return -1;
+	}
+
+	private static double number(String cell, String where) {
+		cell = cell.trim();
+		if (cell.length() == 0)
+			return 0;
+		try {
+			return Double.parseDouble(cell);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(where + ": not a number: "
+					+ cell);
+		}
+	}
+
+}
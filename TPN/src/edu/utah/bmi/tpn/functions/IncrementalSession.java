@@ -0,0 +1,176 @@
+package edu.utah.bmi.tpn.functions;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+import edu.utah.bmi.tpn.trace.TraceSink;
+
+/**
+ * An interactive editing session of one patient's order: each change only recalculates what depends on it.
+ *
+ * Changed fields are marked dirty. recompute() runs only the groups of MetricsGraph that read a dirty field, marks
+ * the outputs whose value actually changed as dirty for the groups after them, and re-checks only the reference
+ * ranges whose checked variable changed (all of them if age or iv type changed). The result is the same as
+ * TPNCalculator.calculateAmounts + RecommendOrderGen.generateOrder + checkAlerts after every change.
+ *
+ * <pre>
+ * TPNCalculator.calWithoutLab(pt);
+ * TPNCalculator.useRecommendedInput(pt);
+ * IncrementalSession session = new IncrementalSession(pt);
+ * session.set("inputZn", 5);
+ * session.recompute(); // only the dosage checking variables and the rules reading them
+ * </pre>
+ *
+ * Not thread-safe, a session belongs to the one user that edits the order.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public final class IncrementalSession {
+
+	private static final int Age = PatientFields.indexOf("age");
+
+	private final Patient pt;
+	private final ReferenceKB kb;
+	private final double[] ml = new double[MetricsGraph.Products];
+	private final AlertSet alerts;
+	// fields changed since the last recompute
+	private final long[] dirty = new long[MetricsGraph.Words];
+	private boolean applicabilityChanged = true;
+	private int groupsRun, rulesChecked;
+
+	public IncrementalSession(Patient pt) {
+		this(pt, RecommendOrderGen.getReferenceKB());
+	}
+
+	/**
+	 * Calculate everything once
+	 *
+	 * @param pt
+	 *            a patient with its input set, e.g. after TPNCalculator.useRecommendedInput. The session changes it
+	 *            in place.
+	 * @param kb
+	 */
+	public IncrementalSession(Patient pt, ReferenceKB kb) {
+		this.pt = pt;
+		this.kb = kb;
+		this.alerts = kb.newAlertSet();
+		for (int i = 0; i < MetricsGraph.Fields; i++)
+			MetricsGraph.set(dirty, i);
+		recompute();
+	}
+
+	/**
+	 * Change a double field of the patient, it takes effect at the next recompute()
+	 */
+	public void set(String variableName, double value) {
+		int ordinal = PatientFields.indexOf(variableName);
+		if (ordinal == PatientFields.NotFound)
+			throw new IllegalArgumentException(
+					"Class Patient doesn't have any field named: "
+							+ variableName);
+		set(ordinal, value);
+	}
+
+	public void set(int ordinal, double value) {
+		if (Double.compare(PatientFields.get(pt, ordinal), value) == 0)
+			return;
+		PatientFields.set(pt, ordinal, value);
+		MetricsGraph.set(dirty, ordinal);
+		if (ordinal == Age)
+			applicabilityChanged = true;
+	}
+
+	public void setIvType(int ivType) {
+		if (pt.ivType != ivType) {
+			pt.ivType = ivType;
+			applicabilityChanged = true;
+		}
+	}
+
+	/**
+	 * Recalculate the groups and re-check the rules that depend on the changes since the last call
+	 */
+	public void recompute() {
+		groupsRun = 0;
+		rulesChecked = 0;
+		// every field that changed in this pass, for the rules
+		long[] changed = dirty.clone();
+		long[] next = new long[MetricsGraph.Words];
+		double[] before = new double[MetricsGraph.Fields];
+		for (int g = 0; g < MetricsGraph.Groups; g++) {
+			if (!MetricsGraph.intersects(MetricsGraph.Inputs[g], dirty))
+				continue;
+			int[] outputs = MetricsGraph.OutputFields[g];
+			for (int i = 0; i < outputs.length; i++)
+				before[i] = MetricsGraph.value(pt, ml, outputs[i]);
+			MetricsGraph.run(g, pt, ml);
+			groupsRun++;
+			for (int i = 0; i < outputs.length; i++) {
+				if (Double.compare(before[i],
+						MetricsGraph.value(pt, ml, outputs[i])) == 0)
+					continue;
+				MetricsGraph.set(dirty, outputs[i]);
+				MetricsGraph.set(changed, outputs[i]);
+				if (MetricsGraph.isSet(MetricsGraph.Feedback[g], outputs[i]))
+					MetricsGraph.set(next, outputs[i]);
+			}
+		}
+		System.arraycopy(next, 0, dirty, 0, dirty.length);
+
+		int offset = kb.index.offset(pt.age, pt.gender, pt.ivType);
+		for (int i = 0; i < kb.ranges.length; i++) {
+			if (!applicabilityChanged
+					&& !MetricsGraph.isSet(changed, kb.checkingOrdinals[i]))
+				continue;
+			alerts.remove(i);
+			if (!kb.index.isApplicable(offset, i))
+				continue;
+			IngredientReferenceRange irr = kb.ranges[i];
+			int outcome = RecommendOrderGen.outcome(irr,
+					PatientFields.get(pt, kb.checkingOrdinals[i]));
+			if (outcome == TraceSink.Unacceptable)
+				alerts.addUnacceptable(i);
+			else if (outcome == TraceSink.Warning)
+				alerts.addWarning(i);
+			rulesChecked++;
+		}
+		applicabilityChanged = false;
+	}
+
+	/**
+	 * @return the patient being edited, change it through set() so that the changes are tracked
+	 */
+	public Patient getPatient() {
+		return pt;
+	}
+
+	public MedicationOrder getOrder() {
+		return new MedicationOrder(RecommendOrderGen.MedicationCodes,
+				RecommendOrderGen.MedicationNames, ml);
+	}
+
+	/**
+	 * @return the alerts of the last recompute(), updated in place by the next one
+	 */
+	public AlertSet getAlerts() {
+		return alerts;
+	}
+
+	/**
+	 * @return how many groups the last recompute() ran
+	 */
+	public int getGroupsRun() {
+		return groupsRun;
+	}
+
+	/**
+	 * @return how many reference ranges the last recompute() checked
+	 */
+	public int getRulesChecked() {
+		return rulesChecked;
+	}
+
+}
@@ -0,0 +1,334 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Fit the input of a patient to the reference ranges: starting from the current input (e.g. the recommended one after
+ * TPNCalculator.useRecommendedInput), change as little as possible so that no applicable reference range is violated.
+ *
+ * A violated range is cleared through its alerting variables (the alertingVariableName column of the KB, e.g.
+ * "inputDextrose_perc inputVolumePerKg" for the dextrose concentration), the names that are not inputs (e.g. "hours")
+ * are skipped. Each alerting variable is searched by bisection, lowering or raising it, for the value closest to the
+ * current one that clears the range, so the clinician's input is only moved to the edge of the range. The candidate
+ * that leaves the fewest violations, then moves its variable the least away from the patient's required* target
+ * (e.g. requiredVolumePerKg for inputVolumePerKg, relative to the target), is kept; a variable without a target
+ * (e.g. inputDextrose_perc when requiredDextrose_perc is -1) is measured from its current value instead. Another
+ * range can be violated by the change (e.g. a lower volume raises the osmolarity), so this is repeated until no
+ * range is violated or none of the violated ones can be cleared. This is a greedy search, one range and one variable
+ * at a time: the result clears the ranges with small changes, it is not guaranteed to be the input vector closest to
+ * the targets.
+ *
+ * Every trial is calculated on its own copy of the patient through one InputUpdate, the patient itself is never
+ * changed.
+ *
+ * <pre>
+ * InputSolver.Solution solution = new InputSolver(pt).solve();
+ * if (solution.isSolved())
+ * 	order = solution.getOrder();
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class InputSolver {
+
+	// bisection stops when the interval is narrower than this, relative to the current value
+	private static final double Tolerance = 1e-9;
+	private static final int MaxBisections = 60, MaxDoublings = 10;
+	// the inputs that InputUpdate treats 0 as "use the default", so they are never lowered to 0
+	private static final String[] NonZeroInputs = { "inputVolumePerKg",
+			"inputLipidPerKg", "inputDextrose_perc", "inputProteinPerKg" };
+
+	private final Patient pt;
+	private final ReferenceKB kb;
+	private boolean clearWarnings = false;
+	private int evaluations;
+
+	public InputSolver(Patient pt) {
+		this(pt, RecommendOrderGen.getReferenceKB());
+	}
+
+	/**
+	 * @param pt
+	 *            a patient with its input set, e.g. after TPNCalculator.useRecommendedInput
+	 * @param kb
+	 */
+	public InputSolver(Patient pt, ReferenceKB kb) {
+		this.pt = pt;
+		this.kb = kb;
+	}
+
+	/**
+	 * @param clearWarnings
+	 *            whether the warning levels need to be cleared too, by default only the unacceptable levels
+	 * @return this solver
+	 */
+	public InputSolver clearWarnings(boolean clearWarnings) {
+		this.clearWarnings = clearWarnings;
+		return this;
+	}
+
+	public Solution solve() {
+		evaluations = 0;
+		Map<String, Double> changes = new LinkedHashMap<String, Double>();
+		Trial current = evaluate(changes, null, 0);
+		// the ranges that can't be cleared through their alerting variables
+		BitSet stuck = new BitSet(kb.size());
+		for (int round = 0, rounds = kb.size() * 4; round < rounds; round++) {
+			int range = nextViolation(current.alerts, stuck);
+			if (range < 0)
+				break;
+			Candidate best = null;
+			for (String name : alertingInputs(kb.ranges[range])) {
+				for (int direction = -1; direction <= 1; direction += 2) {
+					Candidate candidate = fit(changes, current, range, name,
+							direction);
+					if (candidate != null
+							&& (best == null || candidate.isBetterThan(best)))
+						best = candidate;
+				}
+			}
+			if (best == null) {
+				stuck.set(range);
+				continue;
+			}
+			changes.put(best.name, best.value);
+			current = best.trial;
+			// a change can make a stuck range clearable, or clear it
+			stuck.clear();
+		}
+		return new Solution(changes, current, violations(current.alerts) == 0,
+				evaluations);
+	}
+
+	/**
+	 * Search the value of one alerting variable closest to its current value that clears the range
+	 *
+	 * @param direction
+	 *            -1 to lower the variable, 1 to raise it
+	 * @return null if the range can't be cleared that way
+	 */
+	private Candidate fit(Map<String, Double> changes, Trial current,
+			int range, String name, int direction) {
+		double start = PatientFields.get(current.pt,
+				PatientFields.indexOf(name));
+		double clearing;
+		Trial clearingTrial;
+		if (direction < 0) {
+			if (!(start > 0))
+				return null;
+			clearing = isNonZero(name) ? start / 1024 : 0;
+			clearingTrial = evaluate(changes, name, clearing);
+			if (isViolated(clearingTrial.alerts, range))
+				return null;
+		} else {
+			clearing = start > 0 ? start : 1;
+			clearingTrial = null;
+			for (int i = 0; i < MaxDoublings; i++) {
+				clearing *= 2;
+				Trial trial = evaluate(changes, name, clearing);
+				if (!isViolated(trial.alerts, range)) {
+					clearingTrial = trial;
+					break;
+				}
+			}
+			if (clearingTrial == null)
+				return null;
+		}
+		double violating = start;
+		double tolerance = Tolerance * Math.max(1, Math.abs(start));
+		for (int i = 0; i < MaxBisections
+				&& Math.abs(clearing - violating) > tolerance; i++) {
+			double middle = (clearing + violating) / 2;
+			Trial trial = evaluate(changes, name, middle);
+			if (isViolated(trial.alerts, range)) {
+				violating = middle;
+			} else {
+				clearing = middle;
+				clearingTrial = trial;
+			}
+		}
+		return new Candidate(name, clearing, distance(name, start, clearing),
+				clearingTrial, violations(clearingTrial.alerts));
+	}
+
+	/**
+	 * @return how much further from the required target of the variable the change goes (negative if it gets closer),
+	 *         relative to the target, or the relative change if the variable has no target
+	 */
+	private double distance(String name, double from, double to) {
+		int required = name.startsWith("input") ? PatientFields
+				.indexOf("required" + name.substring("input".length())) : -1;
+		double target = required >= 0 ? PatientFields.get(pt, required) : -1;
+		if (!(target > 0))
+			return Math.abs(to - from)
+					/ Math.max(Math.abs(from), Double.MIN_NORMAL);
+		return (Math.abs(to - target) - Math.abs(from - target)) / target;
+	}
+
+	/**
+	 * Apply the changes, and name = value if name is not null, to a copy of the patient
+	 */
+	private Trial evaluate(Map<String, Double> changes, String name,
+			double value) {
+		evaluations++;
+		Patient trial = pt.copy();
+		InputUpdate update = new InputUpdate(trial);
+		for (Map.Entry<String, Double> change : changes.entrySet())
+			update.set(change.getKey(), change.getValue());
+		if (name != null)
+			update.set(name, value);
+		MedicationOrder order = update.apply();
+		AlertSet alerts = RecommendOrderGen.checkAlerts(trial, kb,
+				kb.newAlertSet());
+		return new Trial(trial, order, alerts);
+	}
+
+	private boolean isViolated(AlertSet alerts, int range) {
+		return alerts.isUnacceptable(range) || clearWarnings
+				&& alerts.isWarning(range);
+	}
+
+	private int violations(AlertSet alerts) {
+		return alerts.unacceptableCount()
+				+ (clearWarnings ? alerts.warningCount() : 0);
+	}
+
+	private int nextViolation(AlertSet alerts, BitSet stuck) {
+		for (int i = 0; i < kb.size(); i++) {
+			if (isViolated(alerts, i) && !stuck.get(i))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the alerting variables of the range that InputUpdate can change
+	 */
+	static List<String> alertingInputs(IngredientReferenceRange irr) {
+		List<String> inputs = new ArrayList<String>();
+		String names = irr.alertingVariableName != null ? irr.alertingVariableName
+				: irr.checkingVariableName;
+		for (String name : names.trim().split("\\s+")) {
+			if (InputUpdate.indexOf(name) >= 0 && !inputs.contains(name))
+				inputs.add(name);
+		}
+		return inputs;
+	}
+
+	private static boolean isNonZero(String name) {
+		for (String input : NonZeroInputs) {
+			if (input.equals(name))
+				return true;
+		}
+		return false;
+	}
+
+	private static final class Trial {
+		final Patient pt;
+		final MedicationOrder order;
+		final AlertSet alerts;
+
+		Trial(Patient pt, MedicationOrder order, AlertSet alerts) {
+			this.pt = pt;
+			this.order = order;
+			this.alerts = alerts;
+		}
+	}
+
+	private static final class Candidate {
+		final String name;
+		final double value, change;
+		final Trial trial;
+		final int violations;
+
+		Candidate(String name, double value, double change, Trial trial,
+				int violations) {
+			this.name = name;
+			this.value = value;
+			this.change = change;
+			this.trial = trial;
+			this.violations = violations;
+		}
+
+		boolean isBetterThan(Candidate other) {
+			if (violations != other.violations)
+				return violations < other.violations;
+			return change < other.change;
+		}
+	}
+
+	/**
+	 * The fitted input: the changes to apply through InputUpdate, and the patient, order and alerts that they lead to
+	 */
+	public static class Solution {
+		private final Map<String, Double> changes;
+		private final Trial trial;
+		private final boolean solved;
+		private final int evaluations;
+
+		Solution(Map<String, Double> changes, Trial trial, boolean solved,
+				int evaluations) {
+			this.changes = Collections.unmodifiableMap(changes);
+			this.trial = trial;
+			this.solved = solved;
+			this.evaluations = evaluations;
+		}
+
+		/**
+		 * @return whether no range is violated any more
+		 */
+		public boolean isSolved() {
+			return solved;
+		}
+
+		/**
+		 * @return the changed inputs and their new values, in the order they were changed
+		 */
+		public Map<String, Double> getChanges() {
+			return changes;
+		}
+
+		/**
+		 * @return a copy of the patient with the changes applied
+		 */
+		public Patient getPatient() {
+			return trial.pt;
+		}
+
+		public MedicationOrder getOrder() {
+			return trial.order;
+		}
+
+		public AlertSet getAlerts() {
+			return trial.alerts;
+		}
+
+		/**
+		 * @return how many inputs have been tried
+		 */
+		public int getEvaluations() {
+			return evaluations;
+		}
+
+		@Override
+		public String toString() {
+			return "Solution: solved=" + solved + ", changes=" + changes
+					+ ", warnings=" + trial.alerts.warningCount()
+					+ ", unacceptable=" + trial.alerts.unacceptableCount()
+					+ ", evaluations=" + evaluations;
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package edu.utah.bmi.tpn.functions;
+
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * A set of changes to the input of a patient, applied together and calculated once.
+ *
+ * Changing the total volume, lipid, dextrose % or protein also changes the total volume, dextrose % or kcal that
+ * the others assume. The changes are resolved in one pass, in the order volume,
+ * lipid, dextrose %, protein, each one from the state the previous one leaves, which is the same as applying them
+ * through separate updateInput calls in that order. The other input fields are simply set. The patient's input
+ * needs to be set first, e.g. through TPNCalculator.useRecommendedInput.
+ *
+ * <pre>
+ * MedicationOrder order = new InputUpdate(pt).set("inputLipidPerKg", 2.5)
+ * 		.set("inputVolumePerKg", 120).set("pnhours", 12).setIvType(1).apply();
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class InputUpdate {
+
+	// the input fields that can be changed, in the order of the parameters of TPNCalculator.updateInput
+	public static final String[] InputNames = { "inputProteinPerKg",
+			"inputDextrose_perc", "inputCysMgPerg", "inputNaPerKg",
+			"inputKPerKg", "inputClPerKg", "inputAcetPerKg", "inputMgPerKg",
+			"inputCaPerKg", "inputPPerKg", "inputZn", "inputCu", "inputMn",
+			"inputCr", "inputSel", "inputIo", "inputFe", "inputVitMix",
+			"inputVitK", "inputVitC", "inputVolumePerKg", "inputLipidPerKg",
+			"inputRanitidine", "inputInsulin", "otherFluid_ml", "pnhours",
+			"lipidhours" };
+	private static final int[] InputOrdinals = new int[InputNames.length];
+	static {
+		for (int i = 0; i < InputNames.length; i++)
+			InputOrdinals[i] = PatientFields.indexOf(InputNames[i]);
+	}
+	private static final int Protein = 0, Dextrose = 1, Volume = 20,
+			Lipid = 21;
+
+	private final Patient pt;
+	private final double[] values = new double[InputNames.length];
+	private final boolean[] changed = new boolean[InputNames.length];
+	private int ivType;
+
+	public InputUpdate(Patient pt) {
+		this.pt = pt;
+		for (int i = 0; i < InputNames.length; i++)
+			values[i] = PatientFields.get(pt, InputOrdinals[i]);
+		ivType = pt.ivType;
+	}
+
+	/**
+	 * @param inputName
+	 *            one of InputNames
+	 * @param value
+	 * @return this update
+	 */
+	public InputUpdate set(String inputName, double value) {
+		int i = indexOf(inputName);
+		if (i < 0)
+			throw new IllegalArgumentException("Unknown input: " + inputName);
+		values[i] = value;
+		// compared with the patient when the update is applied, so that setting a value back cancels the change
+		changed[i] = true;
+		return this;
+	}
+
+	public InputUpdate setIvType(int ivType) {
+		this.ivType = ivType;
+		return this;
+	}
+
+	/**
+	 * @return the position of the input in InputNames, or -1
+	 */
+	public static int indexOf(String inputName) {
+		for (int i = 0; i < InputNames.length; i++) {
+			if (InputNames[i].equals(inputName))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Apply the changes and generate the order once
+	 *
+	 * @return the medication volumes, see RecommendOrderGen.generateOrder
+	 */
+	public MedicationOrder apply() {
+		applyInput();
+		return RecommendOrderGen.generateOrder(pt);
+	}
+
+	/**
+	 * Apply the changes and the daily amounts, without generating the order
+	 */
+	public void applyInput() {
+		boolean volume = changed(Volume), lipid = changed(Lipid);
+		boolean dextrose = changed(Dextrose), protein = changed(Protein);
+		if (volume) {
+			// only add/reduce water: the dextrose amount stays the same
+			pt.inputVolumePerKg = values[Volume];
+			pt.inputDextrose_perc = pt.inputTotalVolume_ml
+					* pt.inputDextrose_perc / (values[Volume] * pt.weight);
+			pt.inputTotalVolume_ml = values[Volume] * pt.weight;
+		}
+		if (lipid) {
+			// total volume stays the same by adjusting water
+			// the change in g times the kcal/ml of the lipid product, the same factor as the legacy updateInput
+			pt.inputKcal = pt.inputKcal
+					+ (values[Lipid] * pt.weight - pt.inputLipid_g)
+					* RecommendOrderGen.LipidKcal;
+			pt.inputLipidPerKg = values[Lipid];
+		}
+		if (dextrose) {
+			// total volume stays the same, the dextrose amount will be calculated in RecommendOrderGen
+			if (values[Dextrose] != -1 && values[Dextrose] != 0)
+				pt.inputKcal = pt.inputKcal + pt.inputTotalVolume_ml
+						* (values[Dextrose] - pt.inputDextrose_perc)
+						* RecommendOrderGen.DextroseKcal
+						/ RecommendOrderGen.DextroseG;
+			pt.inputDextrose_perc = values[Dextrose];
+		}
+		if (protein) {
+			// total volume stays the same by adjusting water
+			pt.inputKcal = pt.inputKcal
+					+ (values[Protein] - pt.inputProteinPerKg) * pt.weight
+					* RecommendOrderGen.ProteinKcal;
+			pt.inputProteinPerKg = values[Protein];
+		}
+		if (!volume && !lipid && !dextrose && !protein) {
+			if (pt.inputKcal == 0)
+				pt.inputKcal = pt.requiredAdjustedKcal;
+			if (pt.inputTotalVolume_ml == 0)
+				pt.inputTotalVolume_ml = pt.requiredTotalVolume;
+		}
+
+		if (pt.inputVolumePerKg == 0)
+			pt.inputVolumePerKg = pt.requiredVolumePerKg;
+		if (pt.inputLipidPerKg == 0)
+			pt.inputLipidPerKg = pt.requiredLipidPerKg;
+		// there is no default value for inputDextrose_perc, till the medications is generated,
+		// because the dextrose are computed through MacKay's table by subtracting the liqid kcal
+		// from total kcal
+		if (pt.inputDextrose_perc == 0 && pt.requiredDextrose_perc != -1) {
+			pt.inputDextrose_perc = pt.requiredDextrose_perc;
+		} else if (pt.inputDextrose_perc == 0 && pt.dextrose_g_day != 0) {
+			pt.inputDextrose_perc = pt.dextrose_g_day / pt.inputTotalVolume_ml;
+		}
+		if (pt.inputProteinPerKg == 0)
+			pt.inputProteinPerKg = pt.requiredProteinPerKg;
+		if (pt.inputKcal == 0)
+			pt.inputKcal = pt.requiredAdjustedKcal;
+
+		for (int i = 0; i < InputNames.length; i++) {
+			if (!isCoupled(i))
+				PatientFields.set(pt, InputOrdinals[i], values[i]);
+		}
+		pt.ivType = ivType;
+
+		TPNCalculator.calculateAmounts(pt);
+		for (int i = 0; i < changed.length; i++)
+			changed[i] = false;
+	}
+
+	/**
+	 * @param i
+	 *            the position of the input in InputNames
+	 * @return whether changing the input also changes the total volume, dextrose % or kcal
+	 */
+	static boolean isCoupled(int i) {
+		return i == Protein || i == Dextrose || i == Volume || i == Lipid;
+	}
+
+	private boolean changed(int i) {
+		return changed[i] && PatientFields.get(pt, InputOrdinals[i]) != values[i];
+	}
+
+}
@@ -0,0 +1,213 @@
+package edu.utah.bmi.tpn.functions;
+
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * The dependencies between the input fields of a patient and the derived amounts, medications and output metrics.
+ *
+ * The calculation after updateInput is split into groups (the amounts in TPNCalculator, the medication volumes and
+ * the metric tables in RecommendOrderGen). Each group declares the fields it reads and the fields it writes, the
+ * groups are listed in an order where a group only reads what the groups before it write. The medication volumes
+ * are addressed as extra fields after the Patient fields, named "med" + the product code (e.g. "med27370").
+ *
+ * Keep the declarations in sync with the group methods, TestIncrementalSession compares the incremental result
+ * with a full recalculation.
+ *
+ * @author Jianlin Shi
+ *
+ */
+final class MetricsGraph {
+
+	static final int Products = RecommendOrderGen.MedicationCodes.length;
+	// Patient fields + medication volumes
+	static final int Fields = PatientFields.COUNT + Products;
+	// number of long words of a field bitset
+	static final int Words = (Fields + 63) >>> 6;
+
+	static final int Amounts = 0, Medications = 1, Actual = 2, Volumes = 3,
+			Grams = 4, Osmolarity = 5, Concentrations = 6,
+			CalciumPhosphate = 7, Rates = 8, Checking = 9;
+	static final String[] GroupNames = { "amounts", "medications", "actual",
+			"volumes", "grams", "osmolarity", "concentrations",
+			"calciumPhosphate", "rates", "checking" };
+	static final int Groups = GroupNames.length;
+
+	// bitsets of the fields that each group reads / writes
+	static final long[][] Inputs = new long[Groups][];
+	static final long[][] Outputs = new long[Groups][];
+	// the fields that each group writes, as a list
+	static final int[][] OutputFields = new int[Groups][];
+	// the outputs of each group that are read by the same or an earlier group, they stay dirty for the next pass
+	static final long[][] Feedback = new long[Groups][];
+
+	static {
+		declare(Amounts, new String[] { "inputNaPerKg", "inputKPerKg",
+				"inputClPerKg", "inputAcetPerKg", "inputCaPerKg",
+				"inputPPerKg", "inputMgPerKg", "inputProteinPerKg",
+				"inputLipidPerKg", "weight" }, new String[] { "inputNa_mEq",
+				"inputK_mEq", "inputCl_mEq", "inputAcet_mEq", "inputCa_mEq",
+				"inputP_mmol", "inputMg_mEq", "inputProtein_g", "inputLipid_g" });
+		// the input amounts that dose the products are listed in the formulary
+		declare(Medications, concat(RecommendOrderGen.getFormulary()
+				.getDosingInputs(), "inputDextrose_perc", "inputKcal",
+				"inputVolumePerKg", "weight"), concat(medicationNames(),
+				"inputDextrose_perc"));
+		declare(Actual, medicationNames(), new String[] { "actFluid",
+				"actKcal" });
+		declare(Volumes, new String[] {
+				medicationName(RecommendOrderGen.Lipid), "inputVolumePerKg",
+				"weight" }, new String[] { "lipid_ml_day", "total_ml_day",
+				"pn_ml_day", "lipid_ml_kg", "pn_ml_kg", "total_ml_kg" });
+		declare(Grams, new String[] { "inputLipid_g",
+				medicationName(RecommendOrderGen.Dextrose),
+				medicationName(RecommendOrderGen.Protein), "weight" }, new String[] { "lipid_g_day", "dextrose_g_day",
+				"protein_g_day", "total_g_day", "dextrose_g_kg",
+				"protein_g_kg", "lipid_g_kg", "total_g_kg", "dextrose_cal_kg",
+				"protein_cal_kg", "lipid_cal_kg", "total_cal_kg",
+				"dextrose_perc_cal", "protein_perc_cal", "lipid_perc_cal",
+				"total_perc_cal" });
+		// the osmoles are counted from the mOsm/ml of the products
+		declare(Osmolarity, concat(medicationNames(), "inputTotalVolume_ml",
+				"lipid_ml_day"), new String[] { "twoInOne_mosm_l",
+				"lipid_mosm_l", "threeInOne_mosm_l" });
+		declare(Concentrations, new String[] { "dextrose_g_kg", "pnhours",
+				"inputNa_mEq", "inputTotalVolume_ml", "inputKPerKg",
+				"inputK_mEq", "inputCl_mEq", "lipid_g_day", "dextrose_g_day",
+				"protein_g_day" }, new String[] { "dex_mgKgMin", "na_meq_l",
+				"k_meq_kg_h", "k_meq_l", "cl_mEq_l", "kcal_n_ratio",
+				"npcal_g_nit" });
+		declare(CalciumPhosphate,
+				new String[] { "inputCa_mEq", "inputP_mmol" }, new String[] {
+						"ca_mEq_day", "p_mmol_day", "ca_p_ratio",
+						"ca_mg_x_p_mg", "precip_limit" });
+		declare(Rates, new String[] { "lipid_ml_day", "pn_ml_day",
+				"lipidhours" }, new String[] { "lipid_rate", "pn_rate" });
+		declare(Checking, new String[] { "inputNa_mEq", "inputK_mEq",
+				"inputCl_mEq", "inputAcet_mEq", "inputZn", "inputRanitidine",
+				"inputTotalVolume_ml", "weight" }, new String[] {
+				"inputNa_mEq_l", "inputK_mEq_l", "inputCl_mEq_l",
+				"inputAcet_mEq_l", "inputZn_mg_l", "inputRanitidine_mg_Kg" });
+
+		for (int g = 0; g < Groups; g++) {
+			Feedback[g] = new long[Words];
+			for (int earlier = 0; earlier <= g; earlier++) {
+				for (int w = 0; w < Words; w++)
+					Feedback[g][w] |= Outputs[g][w] & Inputs[earlier][w];
+			}
+		}
+	}
+
+	private MetricsGraph() {
+	}
+
+	/**
+	 * Run one group on the patient and its medication volumes
+	 */
+	static void run(int group, Patient pt, double[] ml) {
+		switch (group) {
+		case Amounts:
+			TPNCalculator.calculateAmounts(pt);
+			break;
+		case Medications:
+			RecommendOrderGen.medicationVolumes(pt, ml);
+			break;
+		case Actual:
+			RecommendOrderGen.actualFluidAndKcal(pt, ml);
+			break;
+		case Volumes:
+			RecommendOrderGen.metricsVolumes(pt, ml);
+			break;
+		case Grams:
+			RecommendOrderGen.metricsGrams(pt, ml);
+			break;
+		case Osmolarity:
+			RecommendOrderGen.metricsOsmolarity(pt, ml);
+			break;
+		case Concentrations:
+			RecommendOrderGen.metricsConcentrations(pt);
+			break;
+		case CalciumPhosphate:
+			RecommendOrderGen.metricsCalciumPhosphate(pt);
+			break;
+		case Rates:
+			RecommendOrderGen.metricsRates(pt);
+			break;
+		case Checking:
+			RecommendOrderGen.calculation4Cheking(pt);
+			break;
+		default:
+			throw new IndexOutOfBoundsException("Group: " + group);
+		}
+	}
+
+	static double value(Patient pt, double[] ml, int field) {
+		return field < PatientFields.COUNT ? PatientFields.get(pt, field)
+				: ml[field - PatientFields.COUNT];
+	}
+
+	/**
+	 * @return the field of a Patient field name or a medication name (e.g. "med27370"), or PatientFields.NotFound
+	 */
+	static int indexOf(String name) {
+		for (int i = 0; i < Products; i++) {
+			if (name.equals("med" + RecommendOrderGen.MedicationCodes[i]))
+				return PatientFields.COUNT + i;
+		}
+		return PatientFields.indexOf(name);
+	}
+
+	static boolean intersects(long[] a, long[] b) {
+		for (int w = 0; w < a.length; w++) {
+			if ((a[w] & b[w]) != 0)
+				return true;
+		}
+		return false;
+	}
+
+	static boolean isSet(long[] bits, int field) {
+		return (bits[field >>> 6] & (1L << field)) != 0;
+	}
+
+	static void set(long[] bits, int field) {
+		bits[field >>> 6] |= 1L << field;
+	}
+
+	private static void declare(int group, String[] inputs, String[] outputs) {
+		Inputs[group] = bits(inputs);
+		Outputs[group] = bits(outputs);
+		OutputFields[group] = new int[outputs.length];
+		for (int i = 0; i < outputs.length; i++)
+			OutputFields[group][i] = indexOf(outputs[i]);
+	}
+
+	private static long[] bits(String[] names) {
+		long[] bits = new long[Words];
+		for (String name : names) {
+			int field = indexOf(name);
+			if (field == PatientFields.NotFound)
+				throw new IllegalStateException("Unknown field: " + name);
+			set(bits, field);
+		}
+		return bits;
+	}
+
+	private static String[] medicationNames() {
+		String[] names = new String[Products];
+		for (int i = 0; i < Products; i++)
+			names[i] = medicationName(i);
+		return names;
+	}
+
+	private static String medicationName(int product) {
+		return "med" + RecommendOrderGen.MedicationCodes[product];
+	}
+
+	private static String[] concat(String[] names, String... more) {
+		String[] all = new String[names.length + more.length];
+		System.arraycopy(names, 0, all, 0, names.length);
+		System.arraycopy(more, 0, all, names.length, more.length);
+		return all;
+	}
+
+}
@@ -0,0 +1,42 @@
+package edu.utah.bmi.tpn.functions;
+
+import edu.utah.bmi.tpn.objects.PatientBatch;
+
+/**
+ * Calculates the output metrics of a range of rows of a batch, see RecommendOrderGen.outputMetrics(PatientBatch,
+ * double[][], int, int). Every kernel gives bit-identical results.
+ *
+ * The vectorized kernel (VectorMetricsKernel, under src-vector) needs the jdk.incubator.vector module, both to
+ * compile and to run: "--add-modules jdk.incubator.vector". It is loaded by name, so that the rest of the code is
+ * compiled and runs without the module, falling back to the scalar kernel.
+ *
+ * @author Jianlin Shi
+ *
+ */
+interface MetricsKernel {
+
+	// set -Dtpn.vector=false to use the scalar kernel even if the vectorized one is available
+	String VectorProperty = "tpn.vector";
+	String VectorKernel = "edu.utah.bmi.tpn.functions.VectorMetricsKernel";
+
+	MetricsKernel Scalar = RecommendOrderGen::outputMetrics;
+
+	void outputMetrics(PatientBatch batch, double[][] ml, int from, int to);
+
+	/**
+	 * @return the vectorized kernel if it's compiled and jdk.incubator.vector is available, otherwise Scalar
+	 */
+	static MetricsKernel load() {
+		if ("false".equals(System.getProperty(VectorProperty)))
+			return Scalar;
+		try {
+			return (MetricsKernel) Class.forName(VectorKernel)
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError
+				| UnsupportedOperationException e) {
+			// not compiled, the module is not added, or no SIMD on this platform
+			return Scalar;
+		}
+	}
+
+}
@@ -0,0 +1,331 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.ClinicianInput;
+import edu.utah.bmi.tpn.objects.Demographics;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.OrderMetrics;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+import edu.utah.bmi.tpn.objects.Requirements;
+
+/**
+ * The TPN course of one patient, day by day: the charted demographics and labs (weight, sCr), the requirements
+ * (CrCl included), the input, the order with its metrics and the alerts of each day.
+ *
+ * The first day starts from the recommended input. Each following day carries the input of the day before with the
+ * clinician's changes of that day. The per kg amounts are kept and the daily amounts follow the new (dosing)
+ * weight: the electrolytes, protein and lipid, and inputTotalVolume_ml = inputVolumePerKg * weight (unless the
+ * clinician sets inputTotalVolume_ml that day). inputKcal is a daily total that the clinician sets, it is kept as it
+ * is; once the first order fills in inputDextrose_perc the dextrose follows the concentration, not the kcal. Only
+ * what the new values affect is recalculated: the requirements only when the demographics changed, then the order
+ * groups and the reference ranges through an IncrementalSession kept along the course.
+ *
+ * A day keeps the immutable records (Demographics, Requirements, OrderMetrics) and the alerts, the ones that didn't
+ * change are shared with the day before rather than copied, so a stable course costs a few references per day.
+ *
+ * <pre>
+ * PatientCourse course = new PatientCourse(new Demographics(0.02, 1, 3.2, 50), 20);
+ * course.addDay(new Demographics(0.02, 1, 3.3, 50));
+ * Map&lt;String, Double&gt; changes = new HashMap&lt;String, Double&gt;();
+ * changes.put("inputNaPerKg", 4.0);
+ * course.addDay(course.getLatest().getDemographics(), changes);
+ * </pre>
+ *
+ * Not thread-safe, add the days from one thread.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class PatientCourse {
+
+	private static final int Age = PatientFields.indexOf("age"),
+			Weight = PatientFields.indexOf("weight"),
+			Height = PatientFields.indexOf("height"),
+			Stressor = PatientFields.indexOf("stressor"),
+			SCr = PatientFields.indexOf("sCr");
+	private static final int TotalVolume = PatientFields
+			.indexOf("inputTotalVolume_ml"), VolumePerKg = PatientFields
+			.indexOf("inputVolumePerKg");
+	private static final int FirstRequirement = PatientFields
+			.indexOf("surfaceArea"), LastRequirement = PatientFields
+			.indexOf("requiredVolumePerKg");
+	private static final int FirstInput = PatientFields.indexOf("otherFluid_ml"),
+			LastInput = PatientFields.indexOf("inputLipid_g");
+
+	private final ReferenceKB kb;
+	private final List<Day> days = new ArrayList<Day>();
+	private IncrementalSession session;
+
+	public PatientCourse(Demographics admission, double otherFluid_ml) {
+		this(admission, otherFluid_ml, RecommendOrderGen.getReferenceKB());
+	}
+
+	/**
+	 * Start the course with the recommended input of the first day
+	 *
+	 * @param admission
+	 *            the demographics and labs of the first day
+	 * @param otherFluid_ml
+	 *            other fluids from EMR
+	 * @param kb
+	 */
+	public PatientCourse(Demographics admission, double otherFluid_ml,
+			ReferenceKB kb) {
+		this.kb = kb;
+		Requirements requirements = TPNCalculator
+				.calculateRequirements(admission);
+		Patient pt = Patient.of(admission, requirements, null, null);
+		pt.otherFluid_ml = otherFluid_ml;
+		TPNCalculator.useRecommendedInput(pt);
+		session = new IncrementalSession(pt, kb);
+		days.add(new Day(0, admission, requirements, OrderMetrics.from(pt,
+				session.getOrder()), session.getAlerts().copy(), session
+				.getGroupsRun(), session.getRulesChecked()));
+	}
+
+	/**
+	 * Add the next day with the same input as the day before
+	 *
+	 * @param demographics
+	 *            the demographics and labs charted on that day
+	 * @return the new day
+	 */
+	public Day addDay(Demographics demographics) {
+		return addDay(demographics,
+				Collections.<String, Double> emptyMap());
+	}
+
+	/**
+	 * Add the next day
+	 *
+	 * @param demographics
+	 *            the demographics and labs charted on that day
+	 * @param inputChanges
+	 *            the input fields (otherFluid_ml to inputLipid_g) that the clinician changed, by name
+	 * @return the new day
+	 * @throws IllegalArgumentException
+	 *             if a change is not an input field
+	 */
+	public Day addDay(Demographics demographics,
+			Map<String, Double> inputChanges) {
+		int[] ordinals = new int[inputChanges.size()];
+		int c = 0;
+		for (String name : inputChanges.keySet()) {
+			int ordinal = PatientFields.indexOf(name);
+			if (ordinal < FirstInput || ordinal > LastInput)
+				throw new IllegalArgumentException(name
+						+ " is not an input field");
+			ordinals[c++] = ordinal;
+		}
+
+		Day previous = getLatest();
+		Requirements requirements = previous.requirements;
+		if (demographics.equals(previous.demographics)) {
+			demographics = previous.demographics;
+		} else {
+			requirements = TPNCalculator.calculateRequirements(demographics);
+			if (requirements.equals(previous.requirements))
+				requirements = previous.requirements;
+		}
+		if (demographics.gender != previous.demographics.gender) {
+			// the session doesn't track the gender, start it again from the input of the day before
+			Patient pt = Patient.of(demographics, requirements,
+					previous.metrics.getInput(), null);
+			c = 0;
+			for (double value : inputChanges.values())
+				PatientFields.set(pt, ordinals[c++], value);
+			if (followsWeight(previous, pt, ordinals))
+				pt.inputTotalVolume_ml = pt.inputVolumePerKg * pt.weight;
+			session = new IncrementalSession(pt, kb);
+		} else {
+			if (demographics != previous.demographics)
+				setDemographics(demographics, requirements);
+			c = 0;
+			for (double value : inputChanges.values())
+				session.set(ordinals[c++], value);
+			Patient pt = session.getPatient();
+			if (followsWeight(previous, pt, ordinals))
+				session.set(TotalVolume, pt.inputVolumePerKg * pt.weight);
+			session.recompute();
+		}
+
+		Patient pt = session.getPatient();
+		OrderMetrics metrics = previous.metrics;
+		if (session.getGroupsRun() != 0
+				|| !ClinicianInput.from(pt).equals(metrics.getInput())) {
+			OrderMetrics current = OrderMetrics.from(pt, session.getOrder());
+			if (!current.equals(metrics))
+				metrics = current;
+		}
+		AlertSet alerts = previous.alerts;
+		if (!session.getAlerts().hasSameAlerts(alerts))
+			alerts = session.getAlerts().copy();
+		Day day = new Day(days.size(), demographics, requirements, metrics,
+				alerts, session.getGroupsRun(), session.getRulesChecked());
+		days.add(day);
+		return day;
+	}
+
+	/**
+	 * @param day
+	 *            0 for the first day
+	 */
+	public Day getDay(int day) {
+		return days.get(day);
+	}
+
+	public Day getLatest() {
+		return days.get(days.size() - 1);
+	}
+
+	public List<Day> getDays() {
+		return Collections.unmodifiableList(days);
+	}
+
+	public int size() {
+		return days.size();
+	}
+
+	/**
+	 * @return the number of distinct records (demographics, requirements, order metrics and alerts) kept for the
+	 *         whole course
+	 */
+	public int getDistinctRecords() {
+		IdentityHashMap<Object, Boolean> records = new IdentityHashMap<Object, Boolean>();
+		for (Day day : days) {
+			records.put(day.demographics, Boolean.TRUE);
+			records.put(day.requirements, Boolean.TRUE);
+			records.put(day.metrics, Boolean.TRUE);
+			records.put(day.alerts, Boolean.TRUE);
+		}
+		return records.size();
+	}
+
+	private void setDemographics(Demographics demographics,
+			Requirements requirements) {
+		session.set(Age, demographics.age);
+		session.set(Height, demographics.height);
+		session.set(Stressor, demographics.stressor);
+		session.set(SCr, demographics.sCr);
+		session.setIvType(demographics.ivType);
+		// the dosing weight
+		session.set(Weight, requirements.getWeight());
+		for (int i = FirstRequirement; i <= LastRequirement; i++)
+			session.set(i, requirements.get(i));
+	}
+
+	/**
+	 * @return whether the total volume needs to follow the weight or the volume per kg: one of them changed and the
+	 *         clinician didn't set the total volume that day
+	 */
+	private static boolean followsWeight(Day previous, Patient pt,
+			int[] changed) {
+		boolean volumePerKg = false;
+		for (int ordinal : changed) {
+			if (ordinal == TotalVolume)
+				return false;
+			if (ordinal == VolumePerKg)
+				volumePerKg = true;
+		}
+		return volumePerKg
+				|| Double.compare(pt.weight, previous.requirements.getWeight()) != 0;
+	}
+
+	/**
+	 * One day of the course. The records are shared with the other days that have the same values.
+	 */
+	public static class Day {
+		private final int day;
+		private final Demographics demographics;
+		private final Requirements requirements;
+		private final OrderMetrics metrics;
+		private final AlertSet alerts;
+		private final int groupsRun, rulesChecked;
+
+		Day(int day, Demographics demographics, Requirements requirements,
+				OrderMetrics metrics, AlertSet alerts, int groupsRun,
+				int rulesChecked) {
+			this.day = day;
+			this.demographics = demographics;
+			this.requirements = requirements;
+			this.metrics = metrics;
+			this.alerts = alerts;
+			this.groupsRun = groupsRun;
+			this.rulesChecked = rulesChecked;
+		}
+
+		/**
+		 * @return 0 for the first day
+		 */
+		public int getDay() {
+			return day;
+		}
+
+		public Demographics getDemographics() {
+			return demographics;
+		}
+
+		public Requirements getRequirements() {
+			return requirements;
+		}
+
+		/**
+		 * @return the input as it was used for the order
+		 */
+		public ClinicianInput getInput() {
+			return metrics.getInput();
+		}
+
+		public OrderMetrics getMetrics() {
+			return metrics;
+		}
+
+		public MedicationOrder getOrder() {
+			return metrics.getOrder();
+		}
+
+		/**
+		 * @return a copy of the alerts, the day's own AlertSet is shared with the other days that have the same
+		 *         alerts
+		 */
+		public AlertSet getAlerts() {
+			return alerts.copy();
+		}
+
+		/**
+		 * @return a patient with all the fields of the day
+		 */
+		public Patient toPatient() {
+			return Patient.of(demographics, requirements, null, metrics);
+		}
+
+		/**
+		 * @return how many groups of MetricsGraph were recalculated for this day
+		 */
+		public int getGroupsRun() {
+			return groupsRun;
+		}
+
+		/**
+		 * @return how many reference ranges were checked again for this day
+		 */
+		public int getRulesChecked() {
+			return rulesChecked;
+		}
+
+		public String toString() {
+			return "day " + day + ": " + demographics + ", "
+					+ metrics.getOrder().toMap() + ", "
+					+ alerts.warningCount() + " warnings, "
+					+ alerts.unacceptableCount() + " unacceptable";
+		}
+	}
+
+}
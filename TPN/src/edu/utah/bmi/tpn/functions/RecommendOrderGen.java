@@ -1,17 +1,21 @@
 package edu.utah.bmi.tpn.functions;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
+import edu.utah.bmi.tpn.objects.AlertSet;
 import edu.utah.bmi.tpn.objects.Alerts;
-import edu.utah.bmi.tpn.objects.IVTYPE;
+import edu.utah.bmi.tpn.objects.ClinicianInput;
+import edu.utah.bmi.tpn.objects.Demographics;
 import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.OrderMetrics;
 import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+import edu.utah.bmi.tpn.objects.Requirements;
+import edu.utah.bmi.tpn.trace.Trace;
+import edu.utah.bmi.tpn.trace.TraceSink;
 
 /**
  * Based on ingradient requirment, generate recommend medication list,
@@ -46,83 +50,208 @@ import edu.utah.bmi.tpn.objects.Patient;
  */
 public class RecommendOrderGen {
 
-	// The following medications are in "ml" unit.
+	// The following medications are in "ml" unit. They are only set by calculate() and caclulateMedications(),
+	// for the orders of several patients at the same time, use the MedicationOrder returned by generateOrder()
 	public static double med27370, med19726, med17421, med17371, med12722,
 			med3751, med19699, med19769, med17358, med251304, med6392;
-	// The csv file that store the reference range information;
+	// The csv file that lists the stock products, relative to the working directory
+	public static final String FormularyFile = "resources/TPNFormulary.csv";
+	// Where the csv file is looked up on the classpath if FormularyFile doesn't exist (e.g. inside the jar)
+	public static final String FormularyResource = "/resources/TPNFormulary.csv";
+	// the stock products, read when the class is loaded, see Formulary
+	private static final Formulary formulary = loadFormulary();
+	public static final int[] MedicationCodes = formulary.getCodes();
+	public static final String[] MedicationNames = formulary.getNames();
+	// position of the lipid, protein and dextrose products in MedicationCodes
+	static final int Lipid = formulary.getLipid(),
+			Protein = formulary.getProtein(),
+			Dextrose = formulary.getDextrose();
+	// g/ml and kcal/ml of the lipid, protein and dextrose products, dextrose % w/v
+	static final double LipidG = formulary.getContent(Lipid, "inputLipid_g"),
+			LipidKcal = formulary.getKcalPerMl(Lipid),
+			ProteinG = formulary.getContent(Protein, "inputProtein_g"),
+			ProteinKcal = formulary.getKcalPerMl(Protein),
+			DextroseG = formulary.getConcentration(Dextrose) / 100,
+			DextroseKcal = formulary.getKcalPerMl(Dextrose),
+			DextrosePerc = formulary.getConcentration(Dextrose);
+	// mOsm/ml of the lipid product, and the other products that bring osmoles to the 2 in 1 solution
+	static final double LipidMosm = formulary.getMosmPerMl(Lipid);
+	static final int[] Osmotic = osmoticProducts();
+	static final double[] OsmoticMosm = mosmPerMl(Osmotic);
+	// the medications of the last calculate() or caclulateMedications(), in the order of MedicationCodes
+	private static double[] medications = new double[MedicationCodes.length];
+	// The csv file that store the reference range information, relative to the working directory
 	public static final String ReferenceFile = "resources/TPNReferences.csv";
+	// Where the csv file is looked up on the classpath if ReferenceFile doesn't exist (e.g. inside the jar)
+	public static final String ReferenceResource = "/resources/TPNReferences.csv";
 
 	public static final int NotSpecified = -1;
 
-	// When referenceRanges is called at the 1st time, it will be initiated through reading ReferenceFile .
-	public static TreeMap<String, IngredientReferenceRange> referenceRanges = new TreeMap<String, IngredientReferenceRange>();
+	// The current reference range snapshot. When it is used at the 1st time, it will be initiated through reading
+	// ReferenceFile. It's replaced as a whole by setReferenceKB, never modified in place.
+	private static volatile ReferenceKB referenceKB;
+	// the output metrics of a batch, vectorized if jdk.incubator.vector is available, see MetricsKernel
+	private static final MetricsKernel metricsKernel = MetricsKernel.load();
 
+	/**
+	 * Generate the recommended medications of the patient, and set the actual fluid, kcal and the output metrics
+	 * in the patient. Nothing but the patient is changed, so different patients can be calculated in parallel.
+	 * 
+	 * @param patient
+	 * @return the medication volumes (product code -> ml)
+	 */
+	public static MedicationOrder generateOrder(Patient patient) {
+		double[] ml = new double[MedicationCodes.length];
+		calculateMedications(patient, ml);
+		actualFluidAndKcal(patient, ml);
+
+		TraceSink trace = Trace.sink();
+		if (trace.isEnabled()) {
+			for (int i = 0; i < MedicationCodes.length; i++)
+				trace.medication(MedicationCodes[i], ml[i]);
+		}
+		return new MedicationOrder(MedicationCodes, MedicationNames, ml);
+	}
+
+	/**
+	 * Same as generateOrder(Patient), for callers that keep the parts of a patient separately. The variables for
+	 * dosage checking are calculated as well.
+	 * 
+	 * @param demographics
+	 * @param requirements
+	 * @param input
+	 * @return the order and the output metrics
+	 */
+	public static OrderMetrics generateOrder(Demographics demographics,
+			Requirements requirements, ClinicianInput input) {
+		Patient pt = Patient.of(demographics, requirements, input, null);
+		MedicationOrder order = generateOrder(pt);
+		calculation4Cheking(pt);
+		return OrderMetrics.from(pt, order);
+	}
+
+	/**
+	 * Same as generateOrder, and keep the medications in the static med fields (e.g. med27370) as well.
+	 * Only use it when one patient is calculated at a time.
+	 * 
+	 * @param patient
+	 */
 	public static void calculate(Patient patient) {
-		caclulateMedications(patient);
-		// calculate the actual volume of total fluid
-		patient.actFluid = Math.round(med27370 + med12722 + med3751 + med19769
-				+ med17358 + med251304 + med19726 + med6392);
-		patient.actKcal = (med27370 * 2 + med251304 * 0.6 + med6392 * 2.38);
+		setMedications(generateOrder(patient));
 	}
 
 	/**
-	 * Based on the medications' ingredients, calculate the recommended dose for each medication.
+	 * Based on the medications' ingredients, calculate the recommended dose for each medication, and keep them in the
+	 * static med fields. Only use it when one patient is calculated at a time.
 	 * 
 	 * @param patient
 	 */
 	public static void caclulateMedications(Patient patient) {
-		// 27370 FAT EMULSION 20 % IV EMUL 0.2 g　2 kcal
-		med27370 = patient.inputLipid_g / 0.2;
+		double[] ml = new double[MedicationCodes.length];
+		calculateMedications(patient, ml);
+		setMedications(new MedicationOrder(MedicationCodes, MedicationNames,
+				ml));
+	}
 
-		// 17421 POTASSIUM PHOSPHATE DIBASIC 3 MMOLE/ML IV SOLN 3 mmol　4.4 mEq
+	private static void setMedications(MedicationOrder order) {
+		double[] ml = new double[MedicationCodes.length];
+		for (int p = 0; p < ml.length; p++)
+			ml[p] = order.getMl(p);
+		med27370 = ml(ml, 27370);
+		med19726 = ml(ml, 19726);
+		med17421 = ml(ml, 17421);
+		med17371 = ml(ml, 17371);
+		med12722 = ml(ml, 12722);
+		med3751 = ml(ml, 3751);
+		med19699 = ml(ml, 19699);
+		med19769 = ml(ml, 19769);
+		med17358 = ml(ml, 17358);
+		med251304 = ml(ml, 251304);
+		med6392 = ml(ml, 6392);
+		medications = ml;
+	}
 
-		// 17371 POTASSIUM CHLORIDE 2 MEQ/ML IV SOLN 2 mEq
+	/**
+	 * @return the ml of the product, 0 if it's not in the formulary
+	 */
+	private static double ml(double[] ml, int productCode) {
+		int p = formulary.indexOf(productCode);
+		return p == -1 ? 0 : ml[p];
+	}
 
-		// 12722 MAGNESIUM SULFATE 50 % IJ SOLN 500 mg 4.06 mEq
-		med12722 = patient.inputMg_mEq / 4.06;
-		// 3751 CALCIUM GLUCONATE 10 % IV SOLN 100 mg 0.465 mEq
-		med3751 = patient.inputCa_mEq / 0.465;
-		// 19699 SODIUM ACETATE 2 MEQ/ML IV SOLN 2 mEq
+	/**
+	 * Based on the medications' ingredients, calculate the recommended dose for each medication into ml (in the
+	 * order of MedicationCodes), then the output metrics of the patient.
+	 * 
+	 * @param patient
+	 * @param ml
+	 */
+	static void calculateMedications(Patient patient, double[] ml) {
+		medicationVolumes(patient, ml);
+		outputMetrics(patient, ml);
+	}
 
-		// 19769 SODIUM PHOSPHATE 3 MMOLE/ML IV SOLN 3 mmol 4 mEq
-		med19769 = patient.inputP_mmol / 4;
-		// 17358 POTASSIUM ACETATE 2 MEQ/ML IV SOLN 2 mEq
-		med17358 = patient.inputK_mEq / 2;
-		// 251304 CLINISOL SF 15 % IV SOLN 0.15 g 0.6 kcal
-		med251304 = patient.inputProtein_g / 0.15;
+	/**
+	 * calculate the actual volume of total fluid and the actual kcal
+	 */
+	static void actualFluidAndKcal(Patient patient, double[] ml) {
+		double fluid = 0, kcal = 0;
+		for (int p = 0; p < ml.length; p++) {
+			fluid += ml[p];
+			if (formulary.getKcalPerMl(p) != 0)
+				kcal += ml[p] * formulary.getKcalPerMl(p);
+		}
+		patient.actFluid = Math.round(fluid);
+		patient.actKcal = kcal;
+	}
 
-		// 19726 SODIUM CHLORIDE 4 MEQ/ML IV SOLN 0.234 g 4 mEq
-		med19726 = patient.inputNa_mEq / 4 - med19769;
+	/**
+	 * the recommended dose for each medication into ml, inputDextrose_perc is set if it's not specified
+	 */
+	static void medicationVolumes(Patient patient, double[] ml) {
+		// the products dosed by the input amounts, e.g. 27370 FAT EMULSION by inputLipid_g
+		formulary.volumes(patient, ml);
 
-		// 6392 DEXTROSE 70 % IV SOLN 0.7 g 2.38 kcal
+		// e.g. 6392 DEXTROSE 70 % IV SOLN 0.7 g 2.38 kcal
 		if (patient.inputDextrose_perc == 0 || patient.inputDextrose_perc == -1) {
-			med6392 = (patient.inputKcal - med27370 * 2) / 2.38;
-			patient.inputDextrose_perc = med6392 / patient.inputVolumePerKg;
+			ml[Dextrose] = (patient.inputKcal - ml[Lipid] * LipidKcal)
+					/ DextroseKcal;
+			patient.inputDextrose_perc = ml[Dextrose] / patient.inputVolumePerKg;
 		} else {
-			med6392 = patient.inputVolumePerKg * patient.weight
-					* patient.inputDextrose_perc / 70;
+			ml[Dextrose] = patient.inputVolumePerKg * patient.weight
+					* patient.inputDextrose_perc / DextrosePerc;
 		}
 		// (patient.inputKcal - med27370 * 2) / 2.38;
-
-		outputMetrics(patient);
-
 	}
 
-	private static void outputMetrics(Patient pt) {
+	/**
+	 * The output metrics are calculated in groups, see MetricsGraph for what each group reads and writes
+	 */
+	private static void outputMetrics(Patient pt, double[] ml) {
+		metricsVolumes(pt, ml);
+		metricsGrams(pt, ml);
+		metricsOsmolarity(pt, ml);
+		metricsConcentrations(pt);
+		metricsCalciumPhosphate(pt);
+		metricsRates(pt);
+	}
 
+	static void metricsVolumes(Patient pt, double[] ml) {
 		// calculate the top left table;
-		pt.lipid_ml_day = med27370;
+		pt.lipid_ml_day = ml[Lipid];
 		pt.total_ml_day = pt.inputVolumePerKg * pt.weight;
 		pt.pn_ml_day = pt.total_ml_day - pt.lipid_ml_day;
 
 		pt.lipid_ml_kg = pt.lipid_ml_day / pt.weight;
 		pt.pn_ml_kg = pt.pn_ml_day / pt.weight;
 		pt.total_ml_kg = pt.total_ml_day / pt.weight;
+	}
 
+	static void metricsGrams(Patient pt, double[] ml) {
 		// calculate middle table
 		pt.lipid_g_day = pt.inputLipid_g;
-		pt.dextrose_g_day = med6392 * 0.7;
-		pt.protein_g_day = med251304 * 0.15;
+		pt.dextrose_g_day = ml[Dextrose] * DextroseG;
+		pt.protein_g_day = ml[Protein] * ProteinG;
 		pt.total_g_day = pt.lipid_g_day + pt.dextrose_g_day + pt.protein_g_day;
 
 		pt.dextrose_g_kg = pt.dextrose_g_day / pt.weight;
@@ -130,9 +259,9 @@ public class RecommendOrderGen {
 		pt.lipid_g_kg = pt.lipid_g_day / pt.weight;
 		pt.total_g_kg = pt.total_g_day / pt.weight;
 
-		pt.dextrose_cal_kg = pt.dextrose_g_kg * 2.38 / 0.7;
-		pt.protein_cal_kg = pt.protein_g_kg * 0.6 / 0.15;
-		pt.lipid_cal_kg = pt.lipid_g_kg * 2 / 0.2;
+		pt.dextrose_cal_kg = pt.dextrose_g_kg * DextroseKcal / DextroseG;
+		pt.protein_cal_kg = pt.protein_g_kg * ProteinKcal / ProteinG;
+		pt.lipid_cal_kg = pt.lipid_g_kg * LipidKcal / LipidG;
 		pt.total_cal_kg = pt.dextrose_cal_kg + pt.lipid_cal_kg
 				+ pt.protein_cal_kg;
 
@@ -140,29 +269,44 @@ public class RecommendOrderGen {
 		pt.protein_perc_cal = pt.protein_cal_kg / pt.total_cal_kg * 100;
 		pt.lipid_perc_cal = pt.lipid_cal_kg / pt.total_cal_kg * 100;
 		pt.total_perc_cal = 100;
+	}
 
-		// calculate the top right table;
+	static void metricsOsmolarity(Patient pt, double[] ml) {
+		// calculate the top right table from the mOsm/ml of the products;
 		// this calculation is assuming lipid is added into TPN
-		// pt.twoInOne_mosm_l = (pt.protein_g_day * 10 + pt.dextrose_g_day * 5
-		// + pt.inputNa_mEq * 2 + pt.inputP_mmol * 2 + pt.inputMg_mEq
-		// + pt.inputK_mEq * 2 + pt.inputCa_mEq * 1.46)
-		// / pt.inputTotalVolume_ml * 1000;
-		// pt.lipid_mosm_l = 0.26;
-		// pt.threeInOne_mosm_l = (pt.protein_g_day * 10 + pt.dextrose_g_day * 5
-		// + pt.inputNa_mEq * 2 + pt.inputP_mmol * 2 + pt.inputMg_mEq
-		// + pt.inputK_mEq * 2 + pt.inputCa_mEq * 1.46+pt.lipid_ml_day * 0.26)
-		// / pt.inputTotalVolume_ml * 1000;
-
-		pt.twoInOne_mosm_l = (pt.protein_g_day * 10 + pt.dextrose_g_day * 5
-				+ pt.inputNa_mEq * 2 + pt.inputP_mmol * 2 + pt.inputMg_mEq
-				+ pt.inputK_mEq * 2 + pt.inputCa_mEq * 1.46)
+		double osmoles = 0;
+		for (int k = 0; k < Osmotic.length; k++)
+			osmoles += ml[Osmotic[k]] * OsmoticMosm[k];
+		pt.twoInOne_mosm_l = osmoles
 				/ (pt.inputTotalVolume_ml - pt.lipid_ml_day) * 1000;
-		pt.lipid_mosm_l = 0.26;
-		pt.threeInOne_mosm_l = (pt.protein_g_day * 10 + pt.dextrose_g_day * 5
-				+ pt.inputNa_mEq * 2 + pt.inputP_mmol * 2 + pt.inputMg_mEq
-				+ pt.inputK_mEq * 2 + pt.inputCa_mEq * 1.46 + pt.lipid_ml_day * 0.26)
+		pt.lipid_mosm_l = LipidMosm;
+		pt.threeInOne_mosm_l = (osmoles + pt.lipid_ml_day * LipidMosm)
 				/ pt.inputTotalVolume_ml * 1000;
+	}
+
+	/**
+	 * @return the products other than the lipid that have osmoles, in the order of MedicationCodes
+	 */
+	private static int[] osmoticProducts() {
+		int count = 0;
+		int[] products = new int[formulary.size()];
+		for (int p = 0; p < products.length; p++) {
+			if (p != Lipid && formulary.getMosmPerMl(p) != 0)
+				products[count++] = p;
+		}
+		int[] osmotic = new int[count];
+		System.arraycopy(products, 0, osmotic, 0, count);
+		return osmotic;
+	}
 
+	private static double[] mosmPerMl(int[] products) {
+		double[] mosm = new double[products.length];
+		for (int k = 0; k < products.length; k++)
+			mosm[k] = formulary.getMosmPerMl(products[k]);
+		return mosm;
+	}
+
+	static void metricsConcentrations(Patient pt) {
 		// calculate the 2nd middle table;
 		pt.dex_mgKgMin = pt.dextrose_g_kg * 1000 / (pt.pnhours * 60);
 		pt.na_meq_l = pt.inputNa_mEq / pt.inputTotalVolume_ml * 1000;
@@ -171,24 +315,238 @@ public class RecommendOrderGen {
 
 		pt.cl_mEq_l = pt.inputCl_mEq / pt.inputTotalVolume_ml * 1000;
 
-		pt.kcal_n_ratio = (pt.lipid_g_day * 2 + pt.dextrose_g_day * 2.38 + pt.protein_g_day * 0.6)
+		pt.kcal_n_ratio = (pt.lipid_g_day * LipidKcal + pt.dextrose_g_day * DextroseKcal + pt.protein_g_day * ProteinKcal)
+				/ pt.protein_g_day * 6.25;
+		// need to check if the factor is 6.25;
+		pt.npcal_g_nit = (pt.lipid_g_day * LipidKcal + pt.dextrose_g_day * DextroseKcal)
 				/ pt.protein_g_day * 6.25;
+	}
 
+	static void metricsCalciumPhosphate(Patient pt) {
 		pt.ca_mEq_day = pt.inputCa_mEq;
 		pt.p_mmol_day = pt.inputP_mmol;
 		// display this as: "1:"+pt.ca_p_ratio
 		pt.ca_p_ratio = pt.p_mmol_day / pt.ca_mEq_day;
 		pt.ca_mg_x_p_mg = pt.ca_mEq_day * 20 * pt.p_mmol_day / 31;
-
-		// need to check if the factor is 6.25;
-		pt.npcal_g_nit = (pt.lipid_g_day * 2 + pt.dextrose_g_day * 2.38)
-				/ pt.protein_g_day * 6.25;
 		// faked number for now
 		pt.precip_limit = 78.0;
+	}
 
+	static void metricsRates(Patient pt) {
 		pt.lipid_rate = pt.lipid_ml_day / pt.lipidhours;
 		pt.pn_rate = pt.pn_ml_day / pt.lipidhours;
+	}
 
+	/**
+	 * @return empty medication columns for a batch, ml[product][row] with the products in the order of
+	 *         MedicationCodes
+	 */
+	public static double[][] newMedicationColumns(int size) {
+		return new double[MedicationCodes.length][size];
+	}
+
+	/**
+	 * @return the order of one row of the medication columns filled by generateOrders
+	 */
+	public static MedicationOrder getOrder(double[][] ml, int row) {
+		double[] order = new double[MedicationCodes.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = ml[i][row];
+		return new MedicationOrder(MedicationCodes, MedicationNames, order);
+	}
+
+	/**
+	 * @return the medication columns of all rows, see generateOrders(PatientBatch, double[][], int, int)
+	 */
+	public static double[][] generateOrders(PatientBatch batch) {
+		double[][] ml = newMedicationColumns(batch.size);
+		generateOrders(batch, ml, 0, batch.size);
+		return ml;
+	}
+
+	/**
+	 * Same as generateOrder(Patient) for the rows from (inclusive) to to (exclusive) of a batch. The medications are
+	 * written into ml[product][row], the actual fluid, kcal and the output metrics into the batch.
+	 * 
+	 * @param batch
+	 * @param ml
+	 *            see newMedicationColumns
+	 * @param from
+	 * @param to
+	 */
+	public static void generateOrders(PatientBatch batch, double[][] ml,
+			int from, int to) {
+		double[] lipid = ml[Lipid], dextrose = ml[Dextrose];
+		double[] inputDextrose_perc = batch.column("inputDextrose_perc"), inputKcal = batch
+				.column("inputKcal"), inputVolumePerKg = batch
+				.column("inputVolumePerKg"), weight = batch.column("weight");
+		double[] actFluid = batch.column("actFluid"), actKcal = batch
+				.column("actKcal");
+
+		// see medicationVolumes
+		formulary.volumes(batch, ml, from, to);
+		for (int i = from; i < to; i++) {
+			if (inputDextrose_perc[i] == 0 || inputDextrose_perc[i] == -1) {
+				dextrose[i] = (inputKcal[i] - lipid[i] * LipidKcal)
+						/ DextroseKcal;
+				inputDextrose_perc[i] = dextrose[i] / inputVolumePerKg[i];
+			} else {
+				dextrose[i] = inputVolumePerKg[i] * weight[i]
+						* inputDextrose_perc[i] / DextrosePerc;
+			}
+		}
+		metricsKernel.outputMetrics(batch, ml, from, to);
+		// see actualFluidAndKcal
+		for (int i = from; i < to; i++) {
+			actFluid[i] = 0;
+			actKcal[i] = 0;
+		}
+		for (int p = 0; p < ml.length; p++) {
+			double[] volume = ml[p];
+			double kcal = formulary.getKcalPerMl(p);
+			for (int i = from; i < to; i++)
+				actFluid[i] += volume[i];
+			if (kcal != 0) {
+				for (int i = from; i < to; i++)
+					actKcal[i] += volume[i] * kcal;
+			}
+		}
+		for (int i = from; i < to; i++)
+			actFluid[i] = Math.round(actFluid[i]);
+
+		TraceSink trace = Trace.sink();
+		if (trace.isEnabled()) {
+			for (int row = from; row < to; row++) {
+				for (int i = 0; i < MedicationCodes.length; i++)
+					trace.medication(MedicationCodes[i], ml[i][row]);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the output metrics of a batch are calculated through the Vector API, see MetricsKernel
+	 */
+	public static boolean isVectorized() {
+		return metricsKernel != MetricsKernel.Scalar;
+	}
+
+	/**
+	 * Same as outputMetrics(Patient, double[]) for the rows from (inclusive) to to (exclusive) of a batch
+	 */
+	static void outputMetrics(PatientBatch batch, double[][] ml, int from,
+			int to) {
+		double[] lipid = ml[Lipid], protein = ml[Protein], dextrose = ml[Dextrose];
+		double[] weight = batch.column("weight"), inputVolumePerKg = batch
+				.column("inputVolumePerKg"), inputLipid_g = batch
+				.column("inputLipid_g"), inputTotalVolume_ml = batch
+				.column("inputTotalVolume_ml"), pnhours = batch
+				.column("pnhours"), lipidhours = batch.column("lipidhours"), inputKPerKg = batch
+				.column("inputKPerKg");
+		double[] inputNa_mEq = batch.column("inputNa_mEq"), inputK_mEq = batch
+				.column("inputK_mEq"), inputCl_mEq = batch
+				.column("inputCl_mEq"), inputCa_mEq = batch
+				.column("inputCa_mEq"), inputP_mmol = batch
+				.column("inputP_mmol");
+		double[] pn_ml_kg = batch.column("pn_ml_kg"), pn_ml_day = batch
+				.column("pn_ml_day"), lipid_ml_kg = batch.column("lipid_ml_kg"), lipid_ml_day = batch
+				.column("lipid_ml_day"), total_ml_kg = batch
+				.column("total_ml_kg"), total_ml_day = batch
+				.column("total_ml_day");
+		double[] twoInOne_mosm_l = batch.column("twoInOne_mosm_l"), lipid_mosm_l = batch
+				.column("lipid_mosm_l"), threeInOne_mosm_l = batch
+				.column("threeInOne_mosm_l");
+		double[] dextrose_g_day = batch.column("dextrose_g_day"), protein_g_day = batch
+				.column("protein_g_day"), lipid_g_day = batch
+				.column("lipid_g_day"), total_g_day = batch
+				.column("total_g_day");
+		double[] dextrose_g_kg = batch.column("dextrose_g_kg"), protein_g_kg = batch
+				.column("protein_g_kg"), lipid_g_kg = batch
+				.column("lipid_g_kg"), total_g_kg = batch.column("total_g_kg");
+		double[] dextrose_cal_kg = batch.column("dextrose_cal_kg"), protein_cal_kg = batch
+				.column("protein_cal_kg"), lipid_cal_kg = batch
+				.column("lipid_cal_kg"), total_cal_kg = batch
+				.column("total_cal_kg");
+		double[] dextrose_perc_cal = batch.column("dextrose_perc_cal"), protein_perc_cal = batch
+				.column("protein_perc_cal"), lipid_perc_cal = batch
+				.column("lipid_perc_cal"), total_perc_cal = batch
+				.column("total_perc_cal");
+		double[] dex_mgKgMin = batch.column("dex_mgKgMin"), na_meq_l = batch
+				.column("na_meq_l"), k_meq_kg_h = batch.column("k_meq_kg_h"), k_meq_l = batch
+				.column("k_meq_l"), cl_mEq_l = batch.column("cl_mEq_l"), npcal_g_nit = batch
+				.column("npcal_g_nit"), kcal_n_ratio = batch
+				.column("kcal_n_ratio");
+		double[] ca_mEq_day = batch.column("ca_mEq_day"), p_mmol_day = batch
+				.column("p_mmol_day"), ca_p_ratio = batch.column("ca_p_ratio"), ca_mg_x_p_mg = batch
+				.column("ca_mg_x_p_mg"), precip_limit = batch
+				.column("precip_limit");
+		double[] lipid_rate = batch.column("lipid_rate"), pn_rate = batch
+				.column("pn_rate");
+
+		// the top left table
+		for (int i = from; i < to; i++) {
+			lipid_ml_day[i] = lipid[i];
+			total_ml_day[i] = inputVolumePerKg[i] * weight[i];
+			pn_ml_day[i] = total_ml_day[i] - lipid_ml_day[i];
+			lipid_ml_kg[i] = lipid_ml_day[i] / weight[i];
+			pn_ml_kg[i] = pn_ml_day[i] / weight[i];
+			total_ml_kg[i] = total_ml_day[i] / weight[i];
+		}
+		// the middle table
+		for (int i = from; i < to; i++) {
+			lipid_g_day[i] = inputLipid_g[i];
+			dextrose_g_day[i] = dextrose[i] * DextroseG;
+			protein_g_day[i] = protein[i] * ProteinG;
+			total_g_day[i] = lipid_g_day[i] + dextrose_g_day[i]
+					+ protein_g_day[i];
+
+			dextrose_g_kg[i] = dextrose_g_day[i] / weight[i];
+			protein_g_kg[i] = protein_g_day[i] / weight[i];
+			lipid_g_kg[i] = lipid_g_day[i] / weight[i];
+			total_g_kg[i] = total_g_day[i] / weight[i];
+
+			dextrose_cal_kg[i] = dextrose_g_kg[i] * DextroseKcal / DextroseG;
+			protein_cal_kg[i] = protein_g_kg[i] * ProteinKcal / ProteinG;
+			lipid_cal_kg[i] = lipid_g_kg[i] * LipidKcal / LipidG;
+			total_cal_kg[i] = dextrose_cal_kg[i] + lipid_cal_kg[i]
+					+ protein_cal_kg[i];
+
+			dextrose_perc_cal[i] = dextrose_cal_kg[i] / total_cal_kg[i] * 100;
+			protein_perc_cal[i] = protein_cal_kg[i] / total_cal_kg[i] * 100;
+			lipid_perc_cal[i] = lipid_cal_kg[i] / total_cal_kg[i] * 100;
+			total_perc_cal[i] = 100;
+		}
+		// the top right table
+		for (int i = from; i < to; i++) {
+			double osmoles = 0;
+			for (int k = 0; k < Osmotic.length; k++)
+				osmoles += ml[Osmotic[k]][i] * OsmoticMosm[k];
+			twoInOne_mosm_l[i] = osmoles
+					/ (inputTotalVolume_ml[i] - lipid_ml_day[i]) * 1000;
+			lipid_mosm_l[i] = LipidMosm;
+			threeInOne_mosm_l[i] = (osmoles + lipid_ml_day[i] * LipidMosm)
+					/ inputTotalVolume_ml[i] * 1000;
+		}
+		// the 2nd middle table
+		for (int i = from; i < to; i++) {
+			dex_mgKgMin[i] = dextrose_g_kg[i] * 1000 / (pnhours[i] * 60);
+			na_meq_l[i] = inputNa_mEq[i] / inputTotalVolume_ml[i] * 1000;
+			k_meq_kg_h[i] = inputKPerKg[i] / pnhours[i];
+			k_meq_l[i] = inputK_mEq[i] / inputTotalVolume_ml[i] * 1000;
+			cl_mEq_l[i] = inputCl_mEq[i] / inputTotalVolume_ml[i] * 1000;
+			kcal_n_ratio[i] = (lipid_g_day[i] * LipidKcal + dextrose_g_day[i] * DextroseKcal + protein_g_day[i] * ProteinKcal)
+					/ protein_g_day[i] * 6.25;
+
+			ca_mEq_day[i] = inputCa_mEq[i];
+			p_mmol_day[i] = inputP_mmol[i];
+			ca_p_ratio[i] = p_mmol_day[i] / ca_mEq_day[i];
+			ca_mg_x_p_mg[i] = ca_mEq_day[i] * 20 * p_mmol_day[i] / 31;
+			npcal_g_nit[i] = (lipid_g_day[i] * LipidKcal + dextrose_g_day[i] * DextroseKcal)
+					/ protein_g_day[i] * 6.25;
+			precip_limit[i] = 78.0;
+
+			lipid_rate[i] = lipid_ml_day[i] / lipidhours[i];
+			pn_rate[i] = pn_ml_day[i] / lipidhours[i];
+		}
 	}
 
 	/**
@@ -197,84 +555,101 @@ public class RecommendOrderGen {
 	 * @return
 	 */
 	public static Alerts dosageAlerts(Patient pt) {
-		if (referenceRanges == null || referenceRanges.size() == 0) {
-			initiateReferences(ReferenceFile);
-		}
+		return dosageAlerts(pt, getReferenceKB());
+	}
+
+	/**
+	 * return warning ingredients (variable names) checked against the given KB snapshot
+	 * 
+	 * @return
+	 */
+	public static Alerts dosageAlerts(Patient pt, ReferenceKB kb) {
+		return kb.toAlerts(checkAlerts(pt, kb, kb.newAlertSet()));
+	}
+
+	/**
+	 * return warning ingredients as a compact AlertSet, whose ordinals are the ranges of the current KB snapshot
+	 * 
+	 * @return
+	 */
+	public static AlertSet checkAlerts(Patient pt) {
+		ReferenceKB kb = getReferenceKB();
+		return checkAlerts(pt, kb, kb.newAlertSet());
+	}
+
+	/**
+	 * Check the dosage alerts of a patient kept in parts
+	 * 
+	 * @return alerts
+	 */
+	public static AlertSet checkAlerts(Demographics demographics,
+			Requirements requirements, OrderMetrics metrics, ReferenceKB kb,
+			AlertSet alerts) {
+		return checkAlerts(Patient.of(demographics, requirements, null,
+				metrics), kb, alerts);
+	}
+
+	/**
+	 * Check the patient against the given KB snapshot, reusing an AlertSet created by kb.newAlertSet(), so that
+	 * checking a large cohort doesn't allocate anything per patient.
+	 * 
+	 * @param pt
+	 * @param kb
+	 * @param alerts
+	 *            will be cleared before checking
+	 * @return alerts
+	 */
+	public static AlertSet checkAlerts(Patient pt, ReferenceKB kb,
+			AlertSet alerts) {
+		if (!alerts.uses(kb.variableNames))
+			throw new IllegalArgumentException(
+					"The AlertSet was not created by this ReferenceKB");
+		TraceSink trace = Trace.sink();
 		calculation4Cheking(pt);
-		Alerts alerts = new Alerts();
 		alerts.clear();
 		// iterate all applicable reference ranges to check the variables in Patient object
-		for (Entry<String, IngredientReferenceRange> entry : referenceRanges
-				.entrySet()) {
-			IngredientReferenceRange irr = entry.getValue();
-
-			String checkingVariableName = irr.checkingVariableName;
-
-			System.out.print("checking ingredient: " + checkingVariableName
-					+ "\t");
-			try {
-				// if the variable does exists in Patient class
-				if (Patient.class.getField(checkingVariableName) != null) {
-					// if the patient's age is within the range or the age range is not specified in knowledge base
-					if ((irr.ageLowerBound == NotSpecified || pt.age > irr.ageLowerBound)
-							&& (irr.ageHigherBound == NotSpecified || pt.age <= irr.ageHigherBound)
-							// if the patient's iv method is the same as knowledge base or the iv method is not specified in knowledge base
-							&& ((pt.ivType == irr.ivType || irr.ivType == IVTYPE.NotSpecified) && irr.ivType != IVTYPE.Deep)
-							// if the patient's gender is the same as knowledge base or the gender is not specified in knowledge base
-							&& (pt.gender == irr.gender || irr.gender == NotSpecified)) {
-
-						System.out.println(Patient.class.getField(
-								checkingVariableName).get(pt));
-
-						// there can be a case that when one variable is checked, but several variables are involved. e.g. "Ca:P ratio"
-						if ((Double) Patient.class.getField(
-								checkingVariableName).get(pt) >= irr.unacceptable
-								&& irr.unacceptable != -1) {
-
-							alerts.addUnacceptable(Arrays
-									.asList(checkingVariableName
-											.split("[\\|;\\s]")));
-							System.out.println("\t\t---unacceptable");
-						} else if ((Double) Patient.class.getField(
-								checkingVariableName).get(pt) >= irr.warning
-								&& irr.warning != -1) {
-
-							alerts.addWarning(Arrays
-									.asList(checkingVariableName
-											.split("[,;\\s]")));
-							System.out.println("\t\t---warning");
-						} else {
-							// System.out
-							// .println(". The dosage is within reference range.");
-						}
-					}
-				} else {
-					System.out
-							.println("Class Patient doesn't have any field named: "
-									+ checkingVariableName);
-				}
-
-			} catch (NoSuchFieldException | SecurityException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IllegalArgumentException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		// the age, iv method and gender filters have been applied when the KB was loaded
+		int offset = kb.index.offset(pt.age, pt.gender, pt.ivType);
+		for (int w = 0; w < kb.index.words; w++) {
+			long applicable = kb.index.masks[offset + w];
+			while (applicable != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(applicable);
+				applicable &= applicable - 1;
+				IngredientReferenceRange irr = kb.ranges[i];
+
+				// the checking variable has been resolved to a Patient field when the KB was loaded
+				double value = PatientFields.get(pt, kb.checkingOrdinals[i]);
+
+				int outcome = outcome(irr, value);
+				if (outcome == TraceSink.Unacceptable)
+					alerts.addUnacceptable(i);
+				else if (outcome == TraceSink.Warning)
+					alerts.addWarning(i);
+				if (trace.isEnabled())
+					trace.ruleChecked(irr, value, outcome);
 			}
 		}
 
 		return alerts;
 	}
 
+	/**
+	 * @return TraceSink.WithinRange, Warning or Unacceptable
+	 */
+	static int outcome(IngredientReferenceRange irr, double value) {
+		if (value >= irr.unacceptable && irr.unacceptable != -1)
+			return TraceSink.Unacceptable;
+		if (value >= irr.warning && irr.warning != -1)
+			return TraceSink.Warning;
+		return TraceSink.WithinRange;
+	}
+
 	/**
 	 * Finish additional variable calculation for dosage checking
 	 * 
 	 * @param pt
 	 */
-	private static void calculation4Cheking(Patient pt) {
+	static void calculation4Cheking(Patient pt) {
 		pt.inputNa_mEq_l = pt.inputNa_mEq / pt.inputTotalVolume_ml;
 		pt.inputK_mEq_l = pt.inputK_mEq / pt.inputTotalVolume_ml;
 		pt.inputCl_mEq_l = pt.inputCl_mEq / pt.inputTotalVolume_ml;
@@ -285,71 +660,113 @@ public class RecommendOrderGen {
 	}
 
 	/**
-	 * Read reference range from ReferenceFile
+	 * Same as calculation4Cheking(Patient) for the rows from (inclusive) to to (exclusive) of a batch
+	 */
+	static void calculation4Cheking(PatientBatch batch, int from, int to) {
+		double[] inputTotalVolume_ml = batch.column("inputTotalVolume_ml"), weight = batch
+				.column("weight");
+		double[] inputNa_mEq = batch.column("inputNa_mEq"), inputK_mEq = batch
+				.column("inputK_mEq"), inputCl_mEq = batch
+				.column("inputCl_mEq"), inputAcet_mEq = batch
+				.column("inputAcet_mEq"), inputZn = batch.column("inputZn"), inputRanitidine = batch
+				.column("inputRanitidine");
+		double[] inputNa_mEq_l = batch.column("inputNa_mEq_l"), inputK_mEq_l = batch
+				.column("inputK_mEq_l"), inputCl_mEq_l = batch
+				.column("inputCl_mEq_l"), inputAcet_mEq_l = batch
+				.column("inputAcet_mEq_l"), inputZn_mg_l = batch
+				.column("inputZn_mg_l"), inputRanitidine_mg_Kg = batch
+				.column("inputRanitidine_mg_Kg");
+		for (int i = from; i < to; i++) {
+			inputNa_mEq_l[i] = inputNa_mEq[i] / inputTotalVolume_ml[i];
+			inputK_mEq_l[i] = inputK_mEq[i] / inputTotalVolume_ml[i];
+			inputCl_mEq_l[i] = inputCl_mEq[i] / inputTotalVolume_ml[i];
+			inputAcet_mEq_l[i] = inputAcet_mEq[i] / inputTotalVolume_ml[i];
+			inputZn_mg_l[i] = inputZn[i] / inputTotalVolume_ml[i];
+			inputRanitidine_mg_Kg[i] = inputRanitidine[i] / weight[i];
+		}
+	}
+
+	/**
+	 * @return the current reference range snapshot, loaded from ReferenceFile (or ReferenceResource) at the 1st call
+	 */
+	public static ReferenceKB getReferenceKB() {
+		ReferenceKB kb = referenceKB;
+		if (kb == null) {
+			synchronized (RecommendOrderGen.class) {
+				kb = referenceKB;
+				if (kb == null) {
+					kb = loadDefaultReferences();
+					referenceKB = kb;
+				}
+			}
+		}
+		return kb;
+	}
+
+	/**
+	 * Replace the reference range snapshot. Evaluations that have already started keep using the previous one.
+	 * 
+	 * @param kb
+	 */
+	public static void setReferenceKB(ReferenceKB kb) {
+		if (kb == null)
+			throw new IllegalArgumentException("ReferenceKB can't be null");
+		referenceKB = kb;
+	}
+
+	/**
+	 * Read reference range from ReferenceFile, and use it as the current snapshot
 	 * 
 	 * @param ReferenceFile
+	 * @throws IllegalArgumentException
+	 *             if a checkingVariableName in ReferenceFile doesn't match any field in Patient
 	 * 
 	 * @return
 	 */
 	public static void initiateReferences(String ReferenceFile) {
-		BufferedReader csvReader = null;
-		String line = "";
 		try {
-
-			csvReader = new BufferedReader(new FileReader(ReferenceFile));
-			while ((line = csvReader.readLine()) != null) {
-				// skip first title row and blank rows
-				if (line.startsWith("description") || line.startsWith(",,"))
-					continue;
-				// use comma as separator, keep blank columns
-				String[] reference = line.split(",", -1);
-
-				IngredientReferenceRange irr = new IngredientReferenceRange(
-						reference);
-				// ignore information that don't have a variableName
-				if (!irr.checkingVariableName.equals(""))
-					referenceRanges.put(irr.checkingVariableName, irr.clone());
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			setReferenceKB(ReferenceKB.load(new File(ReferenceFile)));
 		} catch (IOException e) {
 			e.printStackTrace();
-		} finally {
-			if (csvReader != null) {
-				try {
-					csvReader.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
 		}
+	}
 
+	/**
+	 * @return the stock products that the orders are made of
+	 */
+	public static Formulary getFormulary() {
+		return formulary;
+	}
+
+	private static Formulary loadFormulary() {
+		try {
+			File csvFile = new File(FormularyFile);
+			if (csvFile.exists())
+				return Formulary.load(csvFile);
+			return Formulary.loadFromClasspath(FormularyResource);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't read the formulary from "
+					+ FormularyFile + " or classpath:" + FormularyResource, e);
+		}
+	}
+
+	private static ReferenceKB loadDefaultReferences() {
+		try {
+			File csvFile = new File(ReferenceFile);
+			// use the precompiled snapshot next to the csv if it's up to date
+			if (csvFile.exists())
+				return ReferenceKBSnapshot.load(csvFile);
+			return ReferenceKB.loadFromClasspath(ReferenceResource);
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Can't read the reference ranges from " + ReferenceFile
+							+ " or classpath:" + ReferenceResource, e);
+		}
 	}
 
 	public static void printMeds() {
-		System.out
-				.println("27370 FAT EMULSION 20 % IV EMUL 0.2 g　2 kcal\n"
-						+ med27370
-						+ "\n19726 SODIUM CHLORIDE 4 MEQ/ML IV SOLN 0.234 g 4 mEq\n"
-						+ med19726
-						+ "\n17421 POTASSIUM PHOSPHATE DIBASIC 3 MMOLE/ML IV SOLN 3 mmol　4.4 mEq\n"
-						+ med17421
-						+ "\n17371 POTASSIUM CHLORIDE 2 MEQ/ML IV SOLN 2 mEq\n"
-						+ med17371
-						+ "\n12722 MAGNESIUM SULFATE 50 % IJ SOLN 500 mg 4.06 mEq\n"
-						+ med12722
-						+ "\n3751 CALCIUM GLUCONATE 10 % IV SOLN 100 mg 0.465 mEq\n"
-						+ med3751
-						+ "\n19699 SODIUM ACETATE 2 MEQ/ML IV SOLN 2 mEq\n"
-						+ med19699
-						+ "\n19769 SODIUM PHOSPHATE 3 MMOLE/ML IV SOLN 3 mmol 4 mEq\n"
-						+ med19769
-						+ "\n17358 POTASSIUM ACETATE 2 MEQ/ML IV SOLN 2 mEq\n"
-						+ med17358
-						+ "\n251304 CLINISOL SF 15 % IV SOLN 0.15 g 0.6 kcal\n"
-						+ med251304
-						+ "\n6392 DEXTROSE 70 % IV SOLN 0.7 g 2.38 kcal\n"
-						+ med6392);
+		System.out.println(new MedicationOrder(MedicationCodes,
+				MedicationNames, medications.clone()));
 	}
 
 }
@@ -0,0 +1,269 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.Alerts;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * An immutable snapshot of the reference ranges read from the KB csv file.
+ *
+ * Each IngredientReferenceRange is resolved against Patient once, when the KB is loaded, so that
+ * RecommendOrderGen.dosageAlerts() can read the checked variable through its PatientFields ordinal
+ * instead of looking it up by name for every patient.
+ *
+ * Every row of the csv is a range of its own, several rows can check the same variable (e.g. one per age band or
+ * iv type), each of them is checked when it applies to the patient.
+ *
+ * A snapshot is never changed after it is built. To pick up an edited KB, load a new snapshot and hand it to
+ * RecommendOrderGen.setReferenceKB(), evaluations that already hold the old snapshot finish with it.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class ReferenceKB {
+
+	public static final Charset Encoding = Charset.forName("UTF-8");
+
+	// where the snapshot was loaded from, for logging
+	private final String source;
+	// private copies of the reference ranges, sorted by checkingVariableName, the rows of one variable in the order
+	// they were given
+	final IngredientReferenceRange[] ranges;
+	// the checkingVariableNames, sorted
+	private final Set<String> checkingVariableNames;
+	// PatientFields ordinal of each range's checkingVariableName
+	final int[] checkingOrdinals;
+	// variable names that will be added to Alerts when the value is above unacceptable or warning level
+	final List<List<String>> unacceptableNames = new ArrayList<List<String>>();
+	final List<List<String>> warningNames = new ArrayList<List<String>>();
+	// which ranges apply to which age band x gender x iv type
+	final ApplicabilityIndex index;
+	// checked variable name and alert messages of each range, shared by all the AlertSets of this snapshot
+	final String[] variableNames, warningMessages, unacceptableMessages;
+
+	/**
+	 * @param referenceRanges
+	 *            reference ranges keyed by checkingVariableName, one range per variable
+	 * @throws IllegalArgumentException
+	 *             if a checkingVariableName doesn't match any double field in Patient
+	 */
+	public ReferenceKB(TreeMap<String, IngredientReferenceRange> referenceRanges) {
+		this(referenceRanges, "memory");
+	}
+
+	public ReferenceKB(
+			TreeMap<String, IngredientReferenceRange> referenceRanges,
+			String source) {
+		this(new ArrayList<IngredientReferenceRange>(referenceRanges.values()),
+				source);
+	}
+
+	/**
+	 * @param referenceRanges
+	 *            reference ranges, e.g. the rows of the csv, several of them can check the same variable
+	 * @param source
+	 *            where the ranges come from, for logging
+	 * @throws IllegalArgumentException
+	 *             if a checkingVariableName doesn't match any double field in Patient
+	 */
+	public ReferenceKB(List<IngredientReferenceRange> referenceRanges,
+			String source) {
+		this.source = source;
+		List<IngredientReferenceRange> copies = new ArrayList<IngredientReferenceRange>();
+		for (IngredientReferenceRange irr : referenceRanges)
+			copies.add(irr.clone());
+		// a stable sort, the rows of one variable keep their order
+		Collections.sort(copies, new Comparator<IngredientReferenceRange>() {
+			public int compare(IngredientReferenceRange a,
+					IngredientReferenceRange b) {
+				return a.checkingVariableName
+						.compareTo(b.checkingVariableName);
+			}
+		});
+		ranges = copies.toArray(new IngredientReferenceRange[copies.size()]);
+		checkingOrdinals = new int[ranges.length];
+		variableNames = new String[ranges.length];
+		warningMessages = new String[ranges.length];
+		unacceptableMessages = new String[ranges.length];
+		TreeSet<String> names = new TreeSet<String>();
+		for (int i = 0; i < ranges.length; i++) {
+			IngredientReferenceRange irr = ranges[i];
+			int ordinal = PatientFields.indexOf(irr.checkingVariableName);
+			if (ordinal == PatientFields.NotFound) {
+				throw new IllegalArgumentException(
+						"Class Patient doesn't have any field named: "
+								+ irr.checkingVariableName + " (" + irr.description
+								+ ") in " + source);
+			}
+			names.add(irr.checkingVariableName);
+			checkingOrdinals[i] = ordinal;
+			variableNames[i] = irr.checkingVariableName.intern();
+			warningMessages[i] = irr.description + ": above warning level "
+					+ irr.warning;
+			unacceptableMessages[i] = irr.description
+					+ ": above unacceptable level " + irr.unacceptable;
+			// there can be a case that when one variable is checked, but several variables are involved. e.g. "Ca:P ratio"
+			unacceptableNames.add(Arrays.asList(irr.checkingVariableName
+					.split("[\\|;\\s]")));
+			warningNames.add(Arrays.asList(irr.checkingVariableName
+					.split("[,;\\s]")));
+		}
+		checkingVariableNames = Collections.unmodifiableSet(names);
+		index = new ApplicabilityIndex(ranges);
+	}
+
+	/**
+	 * Read reference ranges from a csv file on the filesystem
+	 */
+	public static ReferenceKB load(File csvFile) throws IOException {
+		InputStream in = new FileInputStream(csvFile);
+		try {
+			return parse(new InputStreamReader(in, Encoding),
+					csvFile.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read reference ranges from a csv file on the classpath, e.g. "/resources/TPNReferences.csv"
+	 */
+	public static ReferenceKB loadFromClasspath(String resource)
+			throws IOException {
+		InputStream in = ReferenceKB.class.getResourceAsStream(resource);
+		if (in == null)
+			throw new FileNotFoundException("classpath:" + resource);
+		try {
+			return parse(new InputStreamReader(in, Encoding), "classpath:"
+					+ resource);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read reference ranges in the KB csv format
+	 *
+	 * @param csv
+	 * @param source
+	 *            where the csv comes from, used in error messages
+	 * @throws IllegalArgumentException
+	 *             if a checkingVariableName doesn't match any double field in Patient
+	 */
+	public static ReferenceKB parse(Reader csv, String source)
+			throws IOException {
+		List<IngredientReferenceRange> referenceRanges = new ArrayList<IngredientReferenceRange>();
+		BufferedReader csvReader = new BufferedReader(csv);
+		String line = "";
+		while ((line = csvReader.readLine()) != null) {
+			// skip first title row and blank rows
+			if (line.startsWith("description") || line.startsWith(",,"))
+				continue;
+			// use comma as separator, keep blank columns
+			String[] reference = line.split(",", -1);
+
+			IngredientReferenceRange irr = new IngredientReferenceRange(
+					reference);
+			// ignore information that don't have a variableName
+			if (!irr.checkingVariableName.equals(""))
+				referenceRanges.add(irr);
+		}
+		return new ReferenceKB(referenceRanges, source);
+	}
+
+	/**
+	 * @return an empty AlertSet whose ordinals are the positions of the ranges in this snapshot
+	 */
+	public AlertSet newAlertSet() {
+		return new AlertSet(variableNames, warningMessages,
+				unacceptableMessages);
+	}
+
+	/**
+	 * Convert an AlertSet of this snapshot to the list based Alerts, in the order of the ranges. Each name is listed
+	 * once, a variable that is unacceptable through one range is not listed as a warning through another one.
+	 */
+	public Alerts toAlerts(AlertSet alertSet) {
+		LinkedHashSet<String> unacceptable = new LinkedHashSet<String>();
+		LinkedHashSet<String> warning = new LinkedHashSet<String>();
+		for (int i = 0; i < ranges.length; i++) {
+			if (alertSet.isUnacceptable(i))
+				unacceptable.addAll(unacceptableNames.get(i));
+		}
+		for (int i = 0; i < ranges.length; i++) {
+			if (alertSet.isWarning(i))
+				warning.addAll(warningNames.get(i));
+		}
+		warning.removeAll(unacceptable);
+		Alerts alerts = new Alerts();
+		alerts.addWarning(new ArrayList<String>(warning));
+		alerts.addUnacceptable(new ArrayList<String>(unacceptable));
+		return alerts;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public int size() {
+		return ranges.length;
+	}
+
+	/**
+	 * @return a copy of the i-th reference range, changing it doesn't affect the snapshot
+	 */
+	public IngredientReferenceRange getRange(int i) {
+		return ranges[i].clone();
+	}
+
+	/**
+	 * @return a copy of the first reference range that checks the given variable, or null if there is none
+	 */
+	public IngredientReferenceRange getRange(String checkingVariableName) {
+		for (IngredientReferenceRange irr : ranges) {
+			if (irr.checkingVariableName.equals(checkingVariableName))
+				return irr.clone();
+		}
+		return null;
+	}
+
+	/**
+	 * @return copies of all the reference ranges that check the given variable, in the order of the csv rows
+	 */
+	public List<IngredientReferenceRange> getRanges(String checkingVariableName) {
+		List<IngredientReferenceRange> copies = new ArrayList<IngredientReferenceRange>();
+		for (IngredientReferenceRange irr : ranges) {
+			if (irr.checkingVariableName.equals(checkingVariableName))
+				copies.add(irr.clone());
+		}
+		return copies;
+	}
+
+	/**
+	 * @return the checkingVariableNames in the snapshot, sorted
+	 */
+	public Set<String> getCheckingVariableNames() {
+		return checkingVariableNames;
+	}
+
+}
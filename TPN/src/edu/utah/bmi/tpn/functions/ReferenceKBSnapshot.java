@@ -0,0 +1,176 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * A precompiled binary copy of the KB csv file, so that short-lived processes don't need to parse the csv again.
+ *
+ * The snapshot is written after the csv has been validated (see ReferenceKB), and records the length and the last
+ * modified time of the csv it was compiled from. load() memory-maps the snapshot and reads the ranges directly from
+ * the mapped bytes. When the snapshot is missing, from another format version, or older than the csv, load() falls
+ * back to the csv.
+ *
+ * Compile step:
+ *
+ * <pre>
+ * java edu.utah.bmi.tpn.functions.ReferenceKBSnapshot resources/TPNReferences.csv [resources/TPNReferences.kb]
+ * </pre>
+ *
+ * Layout (big endian): magic "TPNK", version, csv length, csv last modified, number of ranges, then for each range:
+ * description, checkingVariableName, alertingVariableName, code (length + UTF-8 bytes), ageLowerBound, ageHigherBound,
+ * warning, unacceptable (double), gender, ivType (int)
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class ReferenceKBSnapshot {
+
+	public static final int Magic = 0x54504E4B;
+	// increase when the layout or the meaning of the ranges changes, older snapshots will be ignored. 2: every csv
+	// row is a range, 1 kept one range per checkingVariableName
+	public static final int Version = 2;
+	public static final String Extension = ".kb";
+
+	/**
+	 * Compile a csv file into a snapshot file
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out
+					.println("Usage: ReferenceKBSnapshot <csv file> [snapshot file]");
+			return;
+		}
+		File csvFile = new File(args[0]);
+		File snapshotFile = args.length > 1 ? new File(args[1])
+				: snapshotFileOf(csvFile);
+		ReferenceKB kb = ReferenceKB.load(csvFile);
+		write(kb, csvFile, snapshotFile);
+		System.out.println(kb.size() + " reference ranges are compiled to "
+				+ snapshotFile);
+	}
+
+	/**
+	 * @return e.g. resources/TPNReferences.kb for resources/TPNReferences.csv
+	 */
+	public static File snapshotFileOf(File csvFile) {
+		String name = csvFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return new File(csvFile.getParentFile(), name + Extension);
+	}
+
+	/**
+	 * Use the snapshot next to the csv file if it's up to date, otherwise read the csv
+	 */
+	public static ReferenceKB load(File csvFile) throws IOException {
+		ReferenceKB kb = read(snapshotFileOf(csvFile), csvFile);
+		if (kb == null)
+			kb = ReferenceKB.load(csvFile);
+		return kb;
+	}
+
+	public static void write(ReferenceKB kb, File csvFile, File snapshotFile)
+			throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(snapshotFile)));
+		try {
+			out.writeInt(Magic);
+			out.writeInt(Version);
+			out.writeLong(csvFile.length());
+			out.writeLong(csvFile.lastModified());
+			out.writeInt(kb.ranges.length);
+			for (IngredientReferenceRange irr : kb.ranges) {
+				writeString(out, irr.description);
+				writeString(out, irr.checkingVariableName);
+				writeString(out, irr.alertingVariableName);
+				writeString(out, irr.code);
+				out.writeDouble(irr.ageLowerBound);
+				out.writeDouble(irr.ageHigherBound);
+				out.writeDouble(irr.warning);
+				out.writeDouble(irr.unacceptable);
+				out.writeInt(irr.gender);
+				out.writeInt(irr.ivType);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the snapshot, or null if it doesn't exist, can't be read, or is stale compared with csvFile
+	 */
+	public static ReferenceKB read(File snapshotFile, File csvFile) {
+		if (!snapshotFile.isFile())
+			return null;
+		try {
+			RandomAccessFile file = new RandomAccessFile(snapshotFile, "r");
+			try {
+				FileChannel channel = file.getChannel();
+				MappedByteBuffer buffer = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.getInt() != Magic || buffer.getInt() != Version)
+					return null;
+				long csvLength = buffer.getLong();
+				long csvLastModified = buffer.getLong();
+				if (csvFile.exists()
+						&& (csvFile.length() != csvLength || csvFile
+								.lastModified() != csvLastModified))
+					return null;
+				int size = buffer.getInt();
+				List<IngredientReferenceRange> referenceRanges = new ArrayList<IngredientReferenceRange>();
+				for (int i = 0; i < size; i++) {
+					String description = readString(buffer);
+					String checkingVariableName = readString(buffer);
+					String alertingVariableName = readString(buffer);
+					String code = readString(buffer);
+					double ageLowerBound = buffer.getDouble();
+					double ageHigherBound = buffer.getDouble();
+					double warning = buffer.getDouble();
+					double unacceptable = buffer.getDouble();
+					int gender = buffer.getInt();
+					int ivType = buffer.getInt();
+					referenceRanges.add(new IngredientReferenceRange(
+							description, checkingVariableName,
+							alertingVariableName, ageLowerBound,
+							ageHigherBound, gender, code, warning,
+							unacceptable, ivType));
+				}
+				return new ReferenceKB(referenceRanges, snapshotFile.getPath());
+			} finally {
+				file.close();
+			}
+		} catch (IOException | BufferUnderflowException
+				| NegativeArraySizeException | IllegalArgumentException e) {
+			// a broken snapshot, or one that doesn't match the Patient class any more
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		byte[] bytes = (value == null ? "" : value)
+				.getBytes(ReferenceKB.Encoding);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, ReferenceKB.Encoding);
+	}
+
+}
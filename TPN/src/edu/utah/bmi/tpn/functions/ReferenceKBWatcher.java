@@ -0,0 +1,138 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Watches the KB csv file and reloads it into RecommendOrderGen when it changes.
+ *
+ * The new snapshot is built on the watcher's own thread and swapped in with RecommendOrderGen.setReferenceKB(),
+ * so threads that are checking dosage alerts are never paused. If the edited file can't be read or contains an
+ * unknown variable name, the previous snapshot stays in use, and the error is passed to the error listener and kept
+ * for getLastError().
+ *
+ * <pre>
+ * ReferenceKBWatcher watcher = new ReferenceKBWatcher(new File(RecommendOrderGen.ReferenceFile));
+ * ...
+ * watcher.close();
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class ReferenceKBWatcher implements Closeable {
+
+	// editors often write a file in several steps, wait until it settles before reading it
+	private static final long SettleMillis = 200;
+
+	private final File csvFile;
+	private final WatchService watchService;
+	private final Thread worker;
+	private final Consumer<Exception> errorListener;
+	// reload() can also be called from other threads than the watcher
+	private final AtomicLong reloads = new AtomicLong();
+	private volatile Exception lastError;
+
+	/**
+	 * Load csvFile as the current snapshot and start watching it, the reload errors are only kept for getLastError()
+	 */
+	public ReferenceKBWatcher(File csvFile) throws IOException {
+		this(csvFile, null);
+	}
+
+	/**
+	 * @param errorListener
+	 *            receives the error of each failed reload on the thread that reloads, can be null
+	 */
+	public ReferenceKBWatcher(File csvFile, Consumer<Exception> errorListener)
+			throws IOException {
+		this.csvFile = csvFile.getAbsoluteFile();
+		this.errorListener = errorListener;
+		RecommendOrderGen.setReferenceKB(ReferenceKB.load(this.csvFile));
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.csvFile.getParentFile().toPath().register(watchService,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "tpn-kb-watcher");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void watch() {
+		Path fileName = csvFile.toPath().getFileName();
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (fileName.equals(event.context()))
+						changed = true;
+				}
+				key.reset();
+				if (changed) {
+					Thread.sleep(SettleMillis);
+					reload();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Read csvFile again and swap it in, keep the current snapshot if it fails
+	 *
+	 * @return whether the new snapshot is in use
+	 */
+	public boolean reload() {
+		try {
+			RecommendOrderGen.setReferenceKB(ReferenceKB.load(csvFile));
+			reloads.incrementAndGet();
+			lastError = null;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			lastError = e;
+			if (errorListener != null)
+				errorListener.accept(e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return the error of the last reload, null if it succeeded or there hasn't been any
+	 */
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @return how many times the file has been reloaded successfully
+	 */
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		worker.interrupt();
+	}
+
+}
@@ -0,0 +1,236 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.Requirements;
+
+/**
+ * A bounded cache of calWithoutLab results, keyed on the demographics rounded to the precision that clinicians chart
+ * (by default age to 0.01 year, weight to 1 g, height to 1 mm and stressor to 0.01).
+ *
+ * The requirements of a key are calculated once, from the rounded demographics, so every patient that rounds to the
+ * same key gets exactly the same requirements whichever of them came first. A patient that the rounding would move
+ * across a breakpoint (a band of the requirement table, or the adult body weight rule) is calculated as it is,
+ * without the cache. The least recently used entry is evicted when the cache is full. The entries are dropped when
+ * TPNCalculator.setRequirementTable() changes the requirement table. It can be shared by any number of threads.
+ *
+ * <pre>
+ * RequirementCache cache = new RequirementCache();
+ * Patient pt = new Patient(0.02, 1, 3.2, 50);
+ * cache.calWithoutLab(pt);
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class RequirementCache {
+
+	private final int capacity;
+	private final double ageScale, weightScale, heightScale, stressorScale;
+	// access ordered, guarded by itself
+	private final LinkedHashMap<Key, Requirements> entries;
+	// the table that the entries are calculated with, guarded by entries
+	private RequirementTable table;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+			evictions = new AtomicLong(), invalidations = new AtomicLong(),
+			bypasses = new AtomicLong();
+
+	public RequirementCache() {
+		this(10000, 2, 3, 1, 2);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries
+	 * @param ageDecimals
+	 *            the number of decimals the age (years) is rounded to
+	 * @param weightDecimals
+	 *            the number of decimals the weight (kg) is rounded to
+	 * @param heightDecimals
+	 *            the number of decimals the height (cm) is rounded to
+	 * @param stressorDecimals
+	 *            the number of decimals the stressor is rounded to
+	 */
+	public RequirementCache(int capacity, int ageDecimals, int weightDecimals,
+			int heightDecimals, int stressorDecimals) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity needs to be positive");
+		this.capacity = capacity;
+		this.ageScale = scale(ageDecimals);
+		this.weightScale = scale(weightDecimals);
+		this.heightScale = scale(heightDecimals);
+		this.stressorScale = scale(stressorDecimals);
+		this.entries = new LinkedHashMap<Key, Requirements>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Key, Requirements> eldest) {
+				if (size() <= RequirementCache.this.capacity)
+					return false;
+				evictions.incrementAndGet();
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Same as TPNCalculator.calWithoutLab for the rounded demographics of the patient. The requirement fields of the
+	 * patient (surfaceArea to requiredVolumePerKg, crcl included) and its weight are replaced by those of a new
+	 * patient with the rounded demographics (see get), so call TPNCalculator.calculateCrCl after it if needed.
+	 *
+	 * @param pt
+	 */
+	public void calWithoutLab(Patient pt) {
+		get(pt.age, pt.gender, pt.weight, pt.height, pt.stressor).applyTo(pt);
+	}
+
+	/**
+	 * @return the requirements of a new patient with the rounded demographics, after TPNCalculator.calWithoutLab, or
+	 *         with the demographics as they are when the rounding would move them to another band
+	 */
+	public Requirements get(double age, int gender, double weight,
+			double height, double stressor) {
+		Key key = new Key(Math.round(age * ageScale), gender,
+				Math.round(weight * weightScale), Math.round(height
+						* heightScale), Math.round(stressor * stressorScale));
+		double roundedAge = key.age / ageScale, roundedWeight = key.weight
+				/ weightScale, roundedHeight = key.height / heightScale;
+		RequirementTable current = TPNCalculator.getRequirementTable();
+		if (!TPNCalculator.sameBranches(current, gender, age, weight, height,
+				roundedAge, roundedWeight, roundedHeight)) {
+			// next to a breakpoint, not cached
+			bypasses.incrementAndGet();
+			return calculate(new Patient(age, gender, weight, height, stressor));
+		}
+		synchronized (entries) {
+			if (current != table) {
+				if (table != null)
+					invalidations.incrementAndGet();
+				entries.clear();
+				table = current;
+			}
+			Requirements requirements = entries.get(key);
+			if (requirements != null) {
+				hits.incrementAndGet();
+				return requirements;
+			}
+		}
+		misses.incrementAndGet();
+		// calculated outside the lock, two threads may calculate the same key at the same time
+		Requirements requirements = calculate(new Patient(roundedAge, gender,
+				roundedWeight, roundedHeight, key.stressor / stressorScale));
+		synchronized (entries) {
+			// not kept if the table has changed in the meantime
+			if (table == current
+					&& TPNCalculator.getRequirementTable() == current)
+				entries.put(key, requirements);
+		}
+		return requirements;
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how many entries have been evicted because the cache was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return how many times the entries have been dropped because the requirement table changed
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * @return how many requests were calculated without the cache, because the rounding would have moved them across
+	 *         a breakpoint
+	 */
+	public long getBypasses() {
+		return bypasses.get();
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		return "RequirementCache: size=" + size() + "/" + capacity + ", hits="
+				+ hits + ", misses=" + misses + ", hit rate="
+				+ (hits + misses == 0 ? 0 : hits * 100 / (hits + misses))
+				+ "%, evictions=" + getEvictions() + ", invalidations="
+				+ getInvalidations() + ", bypasses=" + getBypasses();
+	}
+
+	private static Requirements calculate(Patient pt) {
+		TPNCalculator.calWithoutLab(pt);
+		return Requirements.from(pt);
+	}
+
+	private static double scale(int decimals) {
+		if (decimals < 0)
+			throw new IllegalArgumentException(
+					"decimals can't be negative: " + decimals);
+		return Math.pow(10, decimals);
+	}
+
+	private static final class Key {
+		final long age, weight, height, stressor;
+		final int gender;
+
+		Key(long age, int gender, long weight, long height, long stressor) {
+			this.age = age;
+			this.gender = gender;
+			this.weight = weight;
+			this.height = height;
+			this.stressor = stressor;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return age == other.age && gender == other.gender
+					&& weight == other.weight && height == other.height
+					&& stressor == other.stressor;
+		}
+
+		@Override
+		public int hashCode() {
+			long hash = age;
+			hash = hash * 31 + gender;
+			hash = hash * 31 + weight;
+			hash = hash * 31 + height;
+			hash = hash * 31 + stressor;
+			return (int) (hash ^ (hash >>> 32));
+		}
+	}
+
+}
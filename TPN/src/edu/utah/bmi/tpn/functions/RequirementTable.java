@@ -0,0 +1,338 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The weight and age banded requirement formulas, read from a csv file (resources/TPNRequirements.csv) instead of
+ * being written as if cascades, so that a unit can change its bands without a code change.
+ *
+ * Each row of the csv is one band of a requirement: an optional gender, an age band and a weight band (each given as
+ * its upper bound, "<x" or "<=x", blank for the rest), and the formula of the band:
+ * constant + a*height + b*weight + c/weight + d*surfaceArea + e*age, optionally rounded to an integer. The bands of a
+ * requirement are listed in increasing order, age first, then weight within an age band. A lookup is a binary search
+ * of the age band, then of the weight band.
+ *
+ * The default bands (resources/TPNRequirements.csv) are the formulas of the references listed in TPNCalculator.
+ *
+ * A table is never changed after it is loaded, see TPNCalculator.setRequirementTable().
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class RequirementTable {
+
+	// the requirements that a table needs to define, see TPNCalculator.calWithoutLab
+	public static final String[] Requirements = { "requiredTotalVolume",
+			"requiredRestKcal", "requiredNaPerKg", "requiredKPerKg",
+			"requiredCaPerKg", "requiredMgPerKg", "requiredPPerKg",
+			"requiredProteinPerKg", "requiredLipidPerKg", "requiredZn",
+			"requiredCu", "requiredMn", "requiredCr", "requiredSel",
+			"requiredIo", "requiredRanitidine" };
+	public static final int TotalVolume = 0, RestKcal = 1, NaPerKg = 2,
+			KPerKg = 3, CaPerKg = 4, MgPerKg = 5, PPerKg = 6,
+			ProteinPerKg = 7, LipidPerKg = 8, Zn = 9, Cu = 10, Mn = 11,
+			Cr = 12, Sel = 13, Io = 14, Ranitidine = 15;
+
+	// coefficients of a formula
+	private static final int Constant = 0, Height = 1, Weight = 2,
+			PerWeight = 3, SurfaceArea = 4, Age = 5, Coefficients = 6;
+	// csv columns
+	private static final int RequirementColumn = 1, GenderColumn = 2,
+			AgeColumn = 3, WeightColumn = 4, FirstCoefficientColumn = 5,
+			RoundColumn = FirstCoefficientColumn + Coefficients;
+
+	private final String source;
+	// [requirement * 2 + gender] -> age bands, each age band -> weight bands, each weight band -> Formula
+	private final Bands[] bands;
+
+	private RequirementTable(Bands[] bands, String source) {
+		this.bands = bands;
+		this.source = source;
+	}
+
+	/**
+	 * Read the bands from a csv file on the filesystem
+	 */
+	public static RequirementTable load(File csvFile) throws IOException {
+		InputStream in = new FileInputStream(csvFile);
+		try {
+			return parse(new InputStreamReader(in, ReferenceKB.Encoding),
+					csvFile.getPath());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the bands from a csv file on the classpath, e.g. "/resources/TPNRequirements.csv"
+	 */
+	public static RequirementTable loadFromClasspath(String resource)
+			throws IOException {
+		InputStream in = RequirementTable.class.getResourceAsStream(resource);
+		if (in == null)
+			throw new FileNotFoundException("classpath:" + resource);
+		try {
+			return parse(new InputStreamReader(in, ReferenceKB.Encoding),
+					"classpath:" + resource);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the bands in the requirement csv format
+	 *
+	 * @param csv
+	 * @param source
+	 *            where the csv comes from, used in error messages
+	 * @throws IllegalArgumentException
+	 *             if a row is malformed, the bands are not in increasing order, or a requirement doesn't cover every
+	 *             age and weight
+	 */
+	public static RequirementTable parse(Reader csv, String source)
+			throws IOException {
+		List<List<String[]>> rows = new ArrayList<List<String[]>>();
+		for (int r = 0; r < Requirements.length; r++)
+			rows.add(new ArrayList<String[]>());
+		BufferedReader csvReader = new BufferedReader(csv);
+		String line;
+		int lineNumber = 0;
+		while ((line = csvReader.readLine()) != null) {
+			lineNumber++;
+			// skip the title row and blank rows
+			if (line.startsWith("description") || line.trim().length() == 0)
+				continue;
+			String[] cells = line.split(",", -1);
+			if (cells.length <= RoundColumn)
+				throw new IllegalArgumentException(source + ":" + lineNumber
+						+ ": expect " + (RoundColumn + 1) + " columns");
+			int r = indexOf(cells[RequirementColumn].trim());
+			if (r < 0)
+				throw new IllegalArgumentException(source + ":" + lineNumber
+						+ ": unknown requirement " + cells[RequirementColumn]);
+			// keep the line number for the error messages
+			cells[0] = Integer.toString(lineNumber);
+			rows.get(r).add(cells);
+		}
+
+		Bands[] bands = new Bands[Requirements.length * 2];
+		for (int r = 0; r < Requirements.length; r++) {
+			for (int gender = 0; gender < 2; gender++)
+				bands[r * 2 + gender] = ageBands(rows.get(r), gender, source
+						+ ": " + Requirements[r]);
+		}
+		return new RequirementTable(bands, source);
+	}
+
+	/**
+	 * @return the position of the requirement in Requirements, or -1
+	 */
+	public static int indexOf(String requirement) {
+		for (int i = 0; i < Requirements.length; i++) {
+			if (Requirements[i].equals(requirement))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param requirement
+	 *            one of the constants, e.g. RequirementTable.NaPerKg
+	 * @param surfaceArea
+	 *            only read by the bands that use it, e.g. the fluid of heavier patients
+	 * @return the value of the band that the patient falls in
+	 */
+	public double evaluate(int requirement, double age, int gender,
+			double weight, double height, double surfaceArea) {
+		Bands ages = bands[requirement * 2
+				+ (gender == TPNCalculator.FEMALE ? 0 : 1)];
+		Bands weights = (Bands) ages.values[ages.find(age)];
+		return ((Formula) weights.values[weights.find(weight)]).evaluate(age,
+				weight, height, surfaceArea);
+	}
+
+	/**
+	 * Same as evaluate() for the rows from (inclusive) to to (exclusive) of the columns of a batch
+	 * 
+	 * @param output
+	 *            the column that the values are written to
+	 */
+	public void evaluate(int requirement, double[] age, int[] gender,
+			double[] weight, double[] height, double[] surfaceArea,
+			double[] output, int from, int to) {
+		for (int i = from; i < to; i++)
+			output[i] = evaluate(requirement, age[i], gender[i], weight[i],
+					height[i], surfaceArea[i]);
+	}
+
+	/**
+	 * @return whether the two patients fall in the same age and weight bands of every requirement
+	 */
+	public boolean sameBands(int gender, double age, double weight,
+			double otherAge, double otherWeight) {
+		for (int requirement = 0; requirement < Requirements.length; requirement++) {
+			Bands ages = bands[requirement * 2
+					+ (gender == TPNCalculator.FEMALE ? 0 : 1)];
+			int band = ages.find(age);
+			if (band != ages.find(otherAge))
+				return false;
+			Bands weights = (Bands) ages.values[band];
+			if (weights.find(weight) != weights.find(otherWeight))
+				return false;
+		}
+		return true;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	private static Bands ageBands(List<String[]> rows, int gender,
+			String source) {
+		List<String> ageBounds = new ArrayList<String>();
+		List<Bands> weightBands = new ArrayList<Bands>();
+		List<String[]> group = new ArrayList<String[]>();
+		for (String[] row : rows) {
+			String rowGender = row[GenderColumn].trim();
+			if (rowGender.length() > 0
+					&& Integer.parseInt(rowGender) != gender)
+				continue;
+			String ageBound = row[AgeColumn].trim();
+			if (!group.isEmpty()
+					&& !ageBound.equals(ageBounds.get(ageBounds.size() - 1))) {
+				weightBands.add(weightBands(group, source));
+				group.clear();
+			}
+			if (group.isEmpty())
+				ageBounds.add(ageBound);
+			group.add(row);
+		}
+		if (group.isEmpty())
+			throw new IllegalArgumentException(source
+					+ ": no band for gender " + gender);
+		weightBands.add(weightBands(group, source));
+		return new Bands(ageBounds, weightBands.toArray(), source + " age");
+	}
+
+	private static Bands weightBands(List<String[]> rows, String source) {
+		List<String> weightBounds = new ArrayList<String>();
+		Object[] formulas = new Object[rows.size()];
+		for (int i = 0; i < formulas.length; i++) {
+			String[] row = rows.get(i);
+			weightBounds.add(row[WeightColumn].trim());
+			double[] coefficients = new double[Coefficients];
+			for (int c = 0; c < Coefficients; c++) {
+				String cell = row[FirstCoefficientColumn + c].trim();
+				coefficients[c] = cell.length() == 0 ? 0 : number(cell,
+						source, row);
+			}
+			formulas[i] = new Formula(coefficients, row[RoundColumn].trim()
+					.equals("1"));
+		}
+		return new Bands(weightBounds, formulas, source + " weight");
+	}
+
+	private static double number(String cell, String source, String[] row) {
+		try {
+			return Double.parseDouble(cell);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(source + " (line " + row[0]
+					+ "): not a number: " + cell);
+		}
+	}
+
+	/**
+	 * Bands of one variable, each given by its upper bound, and the value of each band
+	 */
+	private static final class Bands {
+		final double[] upper;
+		final boolean[] inclusive;
+		final Object[] values;
+
+		Bands(List<String> bounds, Object[] values, String source) {
+			int n = bounds.size();
+			upper = new double[n];
+			inclusive = new boolean[n];
+			this.values = values;
+			for (int i = 0; i < n; i++) {
+				String bound = bounds.get(i);
+				if (bound.length() == 0) {
+					if (i != n - 1)
+						throw new IllegalArgumentException(source
+								+ ": only the last band can be unbounded");
+					upper[i] = Double.POSITIVE_INFINITY;
+					inclusive[i] = true;
+					continue;
+				}
+				inclusive[i] = bound.startsWith("<=");
+				if (!bound.startsWith("<"))
+					throw new IllegalArgumentException(source
+							+ ": a bound should be <x or <=x: " + bound);
+				upper[i] = Double.parseDouble(bound.substring(inclusive[i] ? 2
+						: 1));
+				if (i > 0
+						&& (upper[i] < upper[i - 1] || upper[i] == upper[i - 1]
+								&& (inclusive[i - 1] || !inclusive[i])))
+					throw new IllegalArgumentException(source
+							+ ": the bands need to be in increasing order: "
+							+ bound);
+			}
+			if (upper[n - 1] != Double.POSITIVE_INFINITY)
+				throw new IllegalArgumentException(source
+						+ ": the last band needs to be unbounded");
+		}
+
+		/**
+		 * @return the 1st band whose upper bound is above the value
+		 */
+		int find(double value) {
+			int low = 0, high = upper.length - 1;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (value < upper[middle] || inclusive[middle]
+						&& value == upper[middle])
+					high = middle;
+				else
+					low = middle + 1;
+			}
+			return low;
+		}
+	}
+
+	private static final class Formula {
+		final double[] coefficients;
+		final boolean round;
+
+		Formula(double[] coefficients, boolean round) {
+			this.coefficients = coefficients;
+			this.round = round;
+		}
+
+		double evaluate(double age, double weight, double height,
+				double surfaceArea) {
+			// only the terms in use, in the order of the original formulas
+			double value = coefficients[Constant];
+			if (coefficients[Height] != 0)
+				value += coefficients[Height] * height;
+			if (coefficients[Weight] != 0)
+				value += coefficients[Weight] * weight;
+			if (coefficients[PerWeight] != 0)
+				value += coefficients[PerWeight] / weight;
+			if (coefficients[SurfaceArea] != 0)
+				value += coefficients[SurfaceArea] * surfaceArea;
+			if (coefficients[Age] != 0)
+				value += coefficients[Age] * age;
+			return round ? Math.round(value) : value;
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package edu.utah.bmi.tpn.functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.OrderMetrics;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Evaluate every combination of a few inputs of one patient (e.g. lipid g/kg x dextrose % x protein g/kg x volume/kg),
+ * and keep the combinations that don't trigger any unacceptable alert.
+ *
+ * Each combination is applied to its own copy of the patient through one InputUpdate, so the combinations don't
+ * depend on each other and are evaluated in parallel. The patient itself is never changed.
+ *
+ * <pre>
+ * List&lt;ScenarioSweep.Scenario&gt; feasible = new ScenarioSweep(pt).range("inputLipidPerKg", 0.5, 3, 0.5)
+ * 		.range("inputDextrose_perc", 10, 25, 2.5).values("inputProteinPerKg", 2, 3).run();
+ * </pre>
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class ScenarioSweep {
+
+	private final Patient pt;
+	private final ReferenceKB kb;
+	private final List<String> inputs = new ArrayList<String>();
+	private final List<double[]> grids = new ArrayList<double[]>();
+
+	public ScenarioSweep(Patient pt) {
+		this(pt, RecommendOrderGen.getReferenceKB());
+	}
+
+	/**
+	 * @param pt
+	 *            a patient with its input set, e.g. after TPNCalculator.useRecommendedInput
+	 * @param kb
+	 */
+	public ScenarioSweep(Patient pt, ReferenceKB kb) {
+		this.pt = pt;
+		this.kb = kb;
+	}
+
+	/**
+	 * Sweep an input from from to to (both inclusive) by step
+	 *
+	 * @param inputName
+	 *            one of InputUpdate.InputNames
+	 * @return this sweep
+	 */
+	public ScenarioSweep range(String inputName, double from, double to,
+			double step) {
+		if (!(step > 0) || to < from)
+			throw new IllegalArgumentException("Can't sweep " + inputName
+					+ " from " + from + " to " + to + " by " + step);
+		// a tolerance so that rounding doesn't drop the last value
+		int count = (int) Math.floor((to - from) / step + 1e-9) + 1;
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++)
+			values[i] = from + i * step;
+		return values(inputName, values);
+	}
+
+	/**
+	 * Sweep an input through the given values
+	 *
+	 * @param inputName
+	 *            one of InputUpdate.InputNames
+	 * @return this sweep
+	 */
+	public ScenarioSweep values(String inputName, double... values) {
+		if (InputUpdate.indexOf(inputName) < 0)
+			throw new IllegalArgumentException("Unknown input: " + inputName);
+		if (inputs.contains(inputName))
+			throw new IllegalArgumentException(inputName
+					+ " is swept already");
+		if (values.length == 0)
+			throw new IllegalArgumentException("No value to sweep "
+					+ inputName);
+		inputs.add(inputName);
+		grids.add(values.clone());
+		return this;
+	}
+
+	/**
+	 * @return the number of combinations
+	 */
+	public int size() {
+		long size = 1;
+		for (double[] grid : grids) {
+			size *= grid.length;
+			if (size > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("Too many combinations");
+		}
+		return (int) size;
+	}
+
+	/**
+	 * @return the combinations that don't trigger any unacceptable alert, in the order of the grid (the last input
+	 *         changes fastest)
+	 */
+	public List<Scenario> run() {
+		final String[] names = inputs.toArray(new String[inputs.size()]);
+		final double[][] values = grids.toArray(new double[grids.size()][]);
+		return IntStream.range(0, size()).parallel()
+				.mapToObj(i -> evaluate(i, names, values))
+				.filter(scenario -> scenario.alerts.unacceptableCount() == 0)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return all the combinations, feasible or not, in the order of the grid
+	 */
+	public List<Scenario> runAll() {
+		final String[] names = inputs.toArray(new String[inputs.size()]);
+		final double[][] values = grids.toArray(new double[grids.size()][]);
+		return IntStream.range(0, size()).parallel()
+				.mapToObj(i -> evaluate(i, names, values))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Evaluate the i-th combination of the grids
+	 */
+	private Scenario evaluate(int i, String[] names, double[][] grids) {
+		double[] values = new double[names.length];
+		for (int d = values.length - 1; d >= 0; d--) {
+			values[d] = grids[d][i % grids[d].length];
+			i /= grids[d].length;
+		}
+		Patient scenario = pt.copy();
+		InputUpdate update = new InputUpdate(scenario);
+		for (int d = 0; d < values.length; d++)
+			update.set(names[d], values[d]);
+		MedicationOrder order = update.apply();
+		AlertSet alerts = RecommendOrderGen.checkAlerts(scenario, kb,
+				kb.newAlertSet());
+		return new Scenario(names, values, OrderMetrics.from(scenario, order),
+				alerts);
+	}
+
+	/**
+	 * One combination of the swept inputs, with its order, output metrics and alerts
+	 */
+	public static class Scenario {
+		private final String[] inputs;
+		private final double[] values;
+		private final OrderMetrics metrics;
+		private final AlertSet alerts;
+
+		Scenario(String[] inputs, double[] values, OrderMetrics metrics,
+				AlertSet alerts) {
+			this.inputs = inputs;
+			this.values = values;
+			this.metrics = metrics;
+			this.alerts = alerts;
+		}
+
+		/**
+		 * @return the value of a swept input in this combination
+		 */
+		public double get(String inputName) {
+			for (int d = 0; d < inputs.length; d++) {
+				if (inputs[d].equals(inputName))
+					return values[d];
+			}
+			throw new IllegalArgumentException(inputName + " is not swept");
+		}
+
+		/**
+		 * @return the output metrics, e.g. metrics.get("threeInOne_mosm_l"), metrics.get("dex_mgKgMin")
+		 */
+		public OrderMetrics getMetrics() {
+			return metrics;
+		}
+
+		public MedicationOrder getOrder() {
+			return metrics.getOrder();
+		}
+
+		public AlertSet getAlerts() {
+			return alerts;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int d = 0; d < values.length; d++)
+				sb.append(inputs[d]).append('=').append(values[d])
+						.append(' ');
+			sb.append("warnings=").append(alerts.warningCount())
+					.append(" unacceptable=")
+					.append(alerts.unacceptableCount());
+			return sb.toString();
+		}
+	}
+
+}
@@ -1,6 +1,16 @@
 package edu.utah.bmi.tpn.functions;
 
+import java.io.File;
+import java.io.IOException;
+
+import edu.utah.bmi.tpn.objects.ClinicianInput;
+import edu.utah.bmi.tpn.objects.Demographics;
 import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+import edu.utah.bmi.tpn.objects.Requirements;
+import edu.utah.bmi.tpn.trace.Trace;
+import edu.utah.bmi.tpn.trace.TraceSink;
 
 /**
  * 
@@ -24,33 +34,51 @@ public class TPNCalculator {
 	public static final int MALE = 1;
 	public static final int NotSpecified = -1;
 
+	public static final String RequirementFile = "resources/TPNRequirements.csv";
+
+	public static final String RequirementResource = "/resources/TPNRequirements.csv";
+
+	// The current requirement table. When it is used at the 1st time, it will be initiated through reading
+	// RequirementFile. It's replaced as a whole by setRequirementTable, never modified in place.
+	private static volatile RequirementTable requirementTable;
+
+	// the Patient fields that are reported to the trace sink after calWithoutLab
+	private static final int FirstRequirement = PatientFields
+			.indexOf("surfaceArea");
+	private static final int LastRequirement = PatientFields
+			.indexOf("requiredVolumePerKg");
+
 	public static void calWithoutLab(Patient pt) {
+		RequirementTable table = getRequirementTable();
 		calBodyWeights(pt);
 		pt.surfaceArea = calSurfaceArea(pt.weight, pt.height);
 		pt.BMI = calBMI(pt.weight, pt.height);
-		pt.requiredTotalVolume = calRequiredFluid(pt.weight, pt.height);
+		pt.requiredTotalVolume = required(table, RequirementTable.TotalVolume,
+				pt);
 		pt.requiredVolumePerKg = pt.requiredTotalVolume / pt.weight;
-		pt.requiredAdjustedKcal = calRequiredAdjustedKcal(pt.age, pt.gender,
-				pt.weight, pt.height, pt.stressor);
+		pt.requiredAdjustedKcal = calRequiredAdjustedKcal(table, pt.age,
+				pt.gender, pt.weight, pt.height, pt.surfaceArea, pt.stressor);
 		pt.requiredAdjustedKcalPerKg = pt.requiredAdjustedKcal / pt.weight;
 
 		// main ingredient
-		pt.requiredNaPerKg = requiredSodiumPerKg(pt.age, pt.weight);
-		pt.requiredKPerKg = requiredPotassiumPerKg(pt.age, pt.weight);
+		pt.requiredNaPerKg = required(table, RequirementTable.NaPerKg, pt);
+		pt.requiredKPerKg = required(table, RequirementTable.KPerKg, pt);
 		pt.requiredClPerKg = pt.requiredNaPerKg;
 		pt.requiredAcetPerKg = pt.requiredKPerKg;
-		pt.requiredCaPerKg = requiredCalciumPerKg(pt.age, pt.weight);
-		pt.requiredMgPerKg = requiredMagnesiumPerKg(pt.age, pt.weight);
-		pt.requiredPPerKg = requiredPhosphorusPerKg(pt.age, pt.weight);
-		pt.requiredProteinPerKg = requiredProteinPerKg(pt.age, pt.weight);
-		pt.requiredLipidPerKg = requiredFatPerKg(pt.age, pt.weight);
+		pt.requiredCaPerKg = required(table, RequirementTable.CaPerKg, pt);
+		pt.requiredMgPerKg = required(table, RequirementTable.MgPerKg, pt);
+		pt.requiredPPerKg = required(table, RequirementTable.PPerKg, pt);
+		pt.requiredProteinPerKg = required(table,
+				RequirementTable.ProteinPerKg, pt);
+		pt.requiredLipidPerKg = required(table, RequirementTable.LipidPerKg,
+				pt);
 		// other ingredient (need to check the KB last column's unit)
-		pt.requiredZn = requiredZn_mcg_PerKg(pt.weight);
-		pt.requiredCu = requiredCu_mcg_PerKg(pt.weight);
-		pt.requiredMn = requiredMn_mcg_PerKg(pt.weight);
-		pt.requiredCr = requiredCr_mcg_PerKg(pt.weight);
-		pt.requiredSel = requiredSel_mcg_PerKg(pt.weight);
-		pt.requiredIo = requiredIo_mcg_PerKg(pt.weight);
+		pt.requiredZn = required(table, RequirementTable.Zn, pt);
+		pt.requiredCu = required(table, RequirementTable.Cu, pt);
+		pt.requiredMn = required(table, RequirementTable.Mn, pt);
+		pt.requiredCr = required(table, RequirementTable.Cr, pt);
+		pt.requiredSel = required(table, RequirementTable.Sel, pt);
+		pt.requiredIo = required(table, RequirementTable.Io, pt);
 
 		// -1 means not default value, use these ingredients as needed
 		pt.requiredFe = NotSpecified;
@@ -59,10 +87,171 @@ public class TPNCalculator {
 		pt.requiredVitC = NotSpecified;
 		pt.requiredAlbumin = NotSpecified;
 		pt.requiredInsulin = NotSpecified;
-		pt.requiredRanitidine = requiredRanitidine_mg(pt.weight);
+		pt.requiredRanitidine = required(table, RequirementTable.Ranitidine,
+				pt);
 		pt.requiredVolumePerKg = pt.requiredTotalVolume / pt.weight;
 		// check this
 		pt.requiredDextrose_perc = -1;
+
+		TraceSink trace = Trace.sink();
+		if (trace.isEnabled()) {
+			for (int i = FirstRequirement; i <= LastRequirement; i++)
+				trace.calculated("calWithoutLab", PatientFields.nameOf(i),
+						PatientFields.get(pt, i));
+		}
+	}
+
+	/**
+	 * Same as calWithoutLab(Patient) for the rows from (inclusive) to to (exclusive) of a batch. Each formula reads
+	 * and writes the columns of the batch directly.
+	 * 
+	 * @param batch
+	 * @param from
+	 * @param to
+	 */
+	public static void calWithoutLab(PatientBatch batch, int from, int to) {
+		int[] gender = batch.gender;
+		double[] age = batch.column("age"), weight = batch.column("weight"), height = batch
+				.column("height"), stressor = batch.column("stressor");
+		double[] idealBodyWeight = batch.column("idealBodyWeight"), adjustedBodyWeight = batch
+				.column("adjustedBodyWeight");
+		double[] surfaceArea = batch.column("surfaceArea"), BMI = batch
+				.column("BMI"), requiredTotalVolume = batch
+				.column("requiredTotalVolume"), requiredVolumePerKg = batch
+				.column("requiredVolumePerKg"), requiredAdjustedKcal = batch
+				.column("requiredAdjustedKcal"), requiredAdjustedKcalPerKg = batch
+				.column("requiredAdjustedKcalPerKg");
+		double[] requiredNaPerKg = batch.column("requiredNaPerKg"), requiredKPerKg = batch
+				.column("requiredKPerKg"), requiredClPerKg = batch
+				.column("requiredClPerKg"), requiredAcetPerKg = batch
+				.column("requiredAcetPerKg");
+		double[] requiredFe = batch.column("requiredFe"), requiredVitMix = batch
+				.column("requiredVitMix"), requiredVitK = batch
+				.column("requiredVitK"), requiredVitC = batch
+				.column("requiredVitC"), requiredAlbumin = batch
+				.column("requiredAlbumin"), requiredInsulin = batch
+				.column("requiredInsulin"), requiredDextrose_perc = batch
+				.column("requiredDextrose_perc");
+
+		// body weights, see calBodyWeights
+		for (int i = from; i < to; i++) {
+			if (age[i] >= 18 && height[i] >= 150) {
+				idealBodyWeight[i] = calIdealBodyWeight(gender[i], height[i]);
+				adjustedBodyWeight[i] = 0.6 * idealBodyWeight[i] + 0.4
+						* weight[i];
+				if (weight[i] > 1.3 * idealBodyWeight[i])
+					weight[i] = adjustedBodyWeight[i];
+			}
+		}
+		RequirementTable table = getRequirementTable();
+		for (int i = from; i < to; i++) {
+			surfaceArea[i] = calSurfaceArea(weight[i], height[i]);
+			BMI[i] = calBMI(weight[i], height[i]);
+		}
+		table.evaluate(RequirementTable.TotalVolume, age, gender, weight,
+				height, surfaceArea, requiredTotalVolume, from, to);
+		table.evaluate(RequirementTable.RestKcal, age, gender, weight, height,
+				surfaceArea, requiredAdjustedKcal, from, to);
+		for (int i = from; i < to; i++) {
+			requiredVolumePerKg[i] = requiredTotalVolume[i] / weight[i];
+			requiredAdjustedKcal[i] = Math.round(requiredAdjustedKcal[i]
+					* stressor[i]);
+			requiredAdjustedKcalPerKg[i] = requiredAdjustedKcal[i] / weight[i];
+		}
+		// main and other ingredients, each requirement is named after its column
+		for (int r = RequirementTable.NaPerKg;
+				r < RequirementTable.Requirements.length; r++)
+			table.evaluate(r, age, gender, weight, height, surfaceArea,
+					batch.column(RequirementTable.Requirements[r]), from, to);
+		for (int i = from; i < to; i++) {
+			requiredClPerKg[i] = requiredNaPerKg[i];
+			requiredAcetPerKg[i] = requiredKPerKg[i];
+		}
+		// -1 means not default value, use these ingredients as needed
+		fill(requiredFe, from, to, NotSpecified);
+		fill(requiredVitMix, from, to, NotSpecified);
+		fill(requiredVitK, from, to, NotSpecified);
+		fill(requiredVitC, from, to, NotSpecified);
+		fill(requiredAlbumin, from, to, NotSpecified);
+		fill(requiredInsulin, from, to, NotSpecified);
+		fill(requiredDextrose_perc, from, to, -1);
+
+		TraceSink trace = Trace.sink();
+		if (trace.isEnabled()) {
+			for (int row = from; row < to; row++) {
+				for (int i = FirstRequirement; i <= LastRequirement; i++)
+					trace.calculated("calWithoutLab", PatientFields.nameOf(i),
+							batch.get(row, i));
+			}
+		}
+	}
+
+	private static double required(RequirementTable table, int requirement,
+			Patient pt) {
+		return table.evaluate(requirement, pt.age, pt.gender, pt.weight,
+				pt.height, pt.surfaceArea);
+	}
+
+	/**
+	 * @return the current requirement table, loaded from RequirementFile (or RequirementResource) at the 1st call
+	 */
+	public static RequirementTable getRequirementTable() {
+		RequirementTable table = requirementTable;
+		if (table == null) {
+			synchronized (TPNCalculator.class) {
+				table = requirementTable;
+				if (table == null) {
+					table = loadDefaultRequirements();
+					requirementTable = table;
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Replace the requirement table. Calculations that have already started keep using the previous one.
+	 * 
+	 * @param table
+	 */
+	public static void setRequirementTable(RequirementTable table) {
+		if (table == null)
+			throw new IllegalArgumentException(
+					"RequirementTable can't be null");
+		requirementTable = table;
+	}
+
+	private static RequirementTable loadDefaultRequirements() {
+		try {
+			File csvFile = new File(RequirementFile);
+			if (csvFile.exists())
+				return RequirementTable.load(csvFile);
+			return RequirementTable.loadFromClasspath(RequirementResource);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't read the requirements from "
+					+ RequirementFile + " or classpath:" + RequirementResource,
+					e);
+		}
+	}
+
+	private static void fill(double[] column, int from, int to, double value) {
+		for (int i = from; i < to; i++)
+			column[i] = value;
+	}
+
+	/**
+	 * Same as calWithoutLab, and calculateCrCl if the serum creatinine is specified, for callers that only keep the
+	 * requirements
+	 * 
+	 * @param demographics
+	 * @return
+	 */
+	public static Requirements calculateRequirements(Demographics demographics) {
+		Patient pt = demographics.toPatient();
+		calWithoutLab(pt);
+		if (pt.sCr != NotSpecified)
+			calculateCrCl(pt);
+		return Requirements.from(pt);
 	}
 
 	/**
@@ -100,6 +289,9 @@ public class TPNCalculator {
 					/ (sCr * 72 * (pt.gender == FEMALE ? 0.85 : 1));
 		}
 		pt.crcl = crcl;
+		TraceSink trace = Trace.sink();
+		if (trace.isEnabled())
+			trace.calculated("calculateCrCl", "crcl", crcl);
 		return crcl;
 	}
 
@@ -123,88 +315,6 @@ public class TPNCalculator {
 		return calculateCrCl(pt, pt.sCr);
 	}
 
-	private static double requiredZn_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 300;
-		} else if (weight < 25) {
-			output = 100;
-		} else {
-			output = 2500 / weight;
-		}
-		return output;
-	}
-
-	private static double requiredCu_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 20;
-		} else if (weight < 25) {
-			output = 20;
-		} else {
-			output = 500 / weight;
-		}
-		return output;
-	}
-
-	private static double requiredMn_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 5;
-		} else if (weight < 25) {
-			output = 5;
-		} else {
-			output = 150 / weight;
-		}
-		return output;
-	}
-
-	private static double requiredCr_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 0.14;
-		} else if (weight < 25) {
-			output = 0.14;
-		} else {
-			output = 10 / weight;
-		}
-		return output;
-	}
-
-	private static double requiredSel_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 3;
-		} else if (weight < 25) {
-			output = 3;
-		} else {
-			output = 30 / weight;
-		}
-		return output;
-	}
-
-	private static double requiredIo_mcg_PerKg(double weight) {
-		// TODO Auto-generated method stub
-		double output = NotSpecified;
-		if (weight < 3) {
-			output = 3;
-		} else if (weight < 25) {
-			output = 3;
-		} else {
-			output = 2;
-		}
-		return output;
-	}
-
-	private static double requiredRanitidine_mg(double weight) {
-		return 1 * weight;
-	}
-
 	/**
 	 * 
 	 * Use recommended default values for medication calculation
@@ -225,6 +335,45 @@ public class TPNCalculator {
 				pt.requiredInsulin, pt.otherFluid_ml, 24, 24, NotSpecified);
 	}
 
+	/**
+	 * Same as useRecommendedInput(Patient) for the rows from (inclusive) to to (exclusive) of a batch. updateInput
+	 * depends on the previous input of each row, so every row goes through one reused Patient.
+	 * 
+	 * @param batch
+	 * @param from
+	 * @param to
+	 */
+	public static void useRecommendedInput(PatientBatch batch, int from,
+			int to) {
+		Patient pt = new Patient(0, 0, 0, 0);
+		for (int row = from; row < to; row++) {
+			batch.copyTo(row, pt);
+			useRecommendedInput(pt);
+			batch.set(row, pt);
+		}
+	}
+
+	/**
+	 * Same as useRecommendedInput(Patient), for callers that keep the parts of a patient separately
+	 * 
+	 * @param demographics
+	 * @param requirements
+	 * @param otherFluid_ml
+	 *            other fluids from EMR
+	 * @return
+	 */
+	public static ClinicianInput recommendedInput(Demographics demographics,
+			Requirements requirements, double otherFluid_ml) {
+		Patient pt = Patient.of(demographics, requirements, null, null);
+		pt.otherFluid_ml = otherFluid_ml;
+		useRecommendedInput(pt);
+		return ClinicianInput.from(pt);
+	}
+
+	/**
+	 * Update the input after the user changes one variable, through InputUpdate. To change several variables at once,
+	 * use InputUpdate directly.
+	 */
 	public static void updateInput(Patient pt, double inputProteinPerKg,
 			double inputDextrose_perc, double inputCysMgPerg,
 			double inputNaPerKg, double inputKPerKg, double inputClPerKg,
@@ -237,80 +386,38 @@ public class TPNCalculator {
 			double pnhours, double lipidhours, int ivType) {
 		// update inputTotalVolume_ml and inputKcal based on which variable the user changes
 		// !!!!!!make sure each time only one variable is changed!!!!
-		if (pt.inputVolumePerKg != inputVolumePerKg) {
-			// if only total volume changed, means only add/reduce water
-			pt.inputVolumePerKg = inputVolumePerKg;
-			pt.inputDextrose_perc = pt.inputTotalVolume_ml
-					* pt.inputDextrose_perc / (inputVolumePerKg * pt.weight);
-			pt.inputTotalVolume_ml = inputVolumePerKg * pt.weight;
-		} else if (pt.inputLipidPerKg != inputLipidPerKg) {
-			// if lipid changed, then total kcal change accordingly, total volume will be assumed as the same by adjust water accordingly
-			pt.inputKcal = pt.inputKcal
-					+ (inputLipidPerKg * pt.weight - pt.inputLipid_g) * 2;
-			pt.inputLipidPerKg = inputLipidPerKg;
-		} else if (pt.inputDextrose_perc != inputDextrose_perc) {
-			// if inputDextrose_perc changes, then fix the inputTotalVolume_ml, dextrose and total kcal will change
-			// dextrose amount will be calculated in RecommendOrderGen
-			if (inputDextrose_perc != -1 && inputDextrose_perc != 0)
-				pt.inputKcal = pt.inputKcal + pt.inputTotalVolume_ml
-						* (inputDextrose_perc - pt.inputDextrose_perc) * 2.38
-						/ 0.7;
-			pt.inputDextrose_perc = inputDextrose_perc;
-		} else if (pt.inputProteinPerKg != inputProteinPerKg) {
-			// if protein changes, then total kcal changes accordingly, total volume will be assumed as the same by adjust water accordingly
-			pt.inputKcal = pt.inputKcal
-					+ (inputProteinPerKg - pt.inputProteinPerKg) * pt.weight
-					* 0.6;
-		} else {
-			if (pt.inputKcal == 0)
-				pt.inputKcal = pt.requiredAdjustedKcal;
-			if (pt.inputTotalVolume_ml == 0)
-				pt.inputTotalVolume_ml = pt.requiredTotalVolume;
+		// only the first of volume, lipid, dextrose % and protein that changed is applied, the others are ignored
+		InputUpdate update = new InputUpdate(pt);
+		if (pt.inputVolumePerKg != inputVolumePerKg)
+			update.set("inputVolumePerKg", inputVolumePerKg);
+		else if (pt.inputLipidPerKg != inputLipidPerKg)
+			update.set("inputLipidPerKg", inputLipidPerKg);
+		else if (pt.inputDextrose_perc != inputDextrose_perc)
+			update.set("inputDextrose_perc", inputDextrose_perc);
+		else if (pt.inputProteinPerKg != inputProteinPerKg)
+			update.set("inputProteinPerKg", inputProteinPerKg);
+
+		double[] values = { inputProteinPerKg, inputDextrose_perc,
+				inputCysMgPerg, inputNaPerKg, inputKPerKg, inputClPerKg,
+				inputAcetPerKg, inputMgPerKg, inputCalcium, inputPPerKg,
+				inputZn, inputCu, inputMn, inputCr, inputSel, inputIo, inputFe,
+				inputVitMix, inputVitK, inputVitC, inputVolumePerKg,
+				inputLipidPerKg, inputRanitidine, inputInsulin, otherFluid_ml,
+				pnhours, lipidhours };
+		for (int i = 0; i < values.length; i++) {
+			if (!InputUpdate.isCoupled(i))
+				update.set(InputUpdate.InputNames[i], values[i]);
 		}
+		// ivType is not updated here, the patient keeps its own
+		update.applyInput();
+	}
 
-		if (pt.inputVolumePerKg == 0)
-			pt.inputVolumePerKg = pt.requiredVolumePerKg;
-		if (pt.inputLipidPerKg == 0)
-			pt.inputLipidPerKg = pt.requiredLipidPerKg;
-		// there is no default value for inputDextrose_perc, till the medications is generated,
-		// because the dextrose are computed through MacKay's table by subtracting the liqid kcal
-		// from total kcal
-		if (pt.inputDextrose_perc == 0 && pt.requiredDextrose_perc != -1) {
-			pt.inputDextrose_perc = pt.requiredDextrose_perc;
-		} else if (pt.inputDextrose_perc == 0 && pt.dextrose_g_day != 0) {
-			pt.inputDextrose_perc = pt.dextrose_g_day / pt.inputTotalVolume_ml;
-		}
-
-		if (pt.inputProteinPerKg == 0)
-			pt.inputProteinPerKg = pt.requiredProteinPerKg;
-		if (pt.inputKcal == 0)
-			pt.inputKcal = pt.requiredAdjustedKcal;
-
-		pt.inputNaPerKg = inputNaPerKg;
-		pt.inputKPerKg = inputKPerKg;
-		pt.inputClPerKg = inputClPerKg;
-		pt.inputAcetPerKg = inputAcetPerKg;
-		pt.inputCaPerKg = inputCalcium;
-		pt.inputMgPerKg = inputMgPerKg;
-		pt.inputPPerKg = inputPPerKg;
-
-		pt.inputZn = inputZn;
-		pt.inputCu = inputCu;
-		pt.inputMn = inputMn;
-		pt.inputCr = inputCr;
-		pt.inputSel = inputSel;
-		pt.inputIo = inputIo;
-		pt.inputFe = inputFe;
-		pt.inputVitMix = inputVitMix;
-		pt.inputVitK = inputVitK;
-		pt.inputVitC = inputVitC;
-		pt.inputInsulin = inputInsulin;
-		pt.inputRanitidine = inputRanitidine;
-		pt.otherFluid_ml = otherFluid_ml;
-
-		pt.pnhours = pnhours;
-		pt.lipidhours = lipidhours;
-
+	/**
+	 * Calculate the daily amounts (e.g. inputNa_mEq, inputProtein_g) from the per kg input and the weight
+	 * 
+	 * @param pt
+	 */
+	public static void calculateAmounts(Patient pt) {
 		pt.inputNa_mEq = pt.inputNaPerKg * pt.weight;
 		pt.inputK_mEq = pt.inputKPerKg * pt.weight;
 		pt.inputCl_mEq = pt.inputClPerKg * pt.weight;
@@ -334,13 +441,7 @@ public class TPNCalculator {
 	 */
 	private static void calBodyWeights(Patient pt) {
 		if (pt.age >= 18 && pt.height >= 150) {
-			if (pt.gender == FEMALE) {
-				pt.idealBodyWeight = (45.5 + 2.3 * ((pt.height * 0.39 - 60) > 0 ? (pt.height * 0.39 - 60)
-						: 0));
-			} else {
-				pt.idealBodyWeight = (50 + 2.3 * ((pt.height * 0.39 - 60) > 0 ? (pt.height * 0.39 - 60)
-						: 0));
-			}
+			pt.idealBodyWeight = calIdealBodyWeight(pt.gender, pt.height);
 			pt.adjustedBodyWeight = 0.6 * pt.idealBodyWeight + 0.4 * pt.weight;
 
 			// rule from Scott's note
@@ -350,6 +451,41 @@ public class TPNCalculator {
 		}
 	}
 
+	/**
+	 * @return whether calWithoutLab takes the same branches for the two demographics: the adult body weight rule of
+	 *         calBodyWeights, and the bands of the table for the dosing weight
+	 */
+	static boolean sameBranches(RequirementTable table, int gender,
+			double age, double weight, double height, double otherAge,
+			double otherWeight, double otherHeight) {
+		boolean adult = age >= 18 && height >= 150, otherAdult = otherAge >= 18
+				&& otherHeight >= 150;
+		if (adult != otherAdult)
+			return false;
+		if (adult) {
+			double ideal = calIdealBodyWeight(gender, height), otherIdeal = calIdealBodyWeight(
+					gender, otherHeight);
+			boolean adjusted = weight > 1.3 * ideal, otherAdjusted = otherWeight > 1.3 * otherIdeal;
+			if (adjusted != otherAdjusted)
+				return false;
+			if (adjusted) {
+				weight = 0.6 * ideal + 0.4 * weight;
+				otherWeight = 0.6 * otherIdeal + 0.4 * otherWeight;
+			}
+		}
+		return table.sameBands(gender, age, weight, otherAge, otherWeight);
+	}
+
+	private static double calIdealBodyWeight(int gender, double height) {
+		if (gender == FEMALE) {
+			return (45.5 + 2.3 * ((height * 0.39 - 60) > 0 ? (height * 0.39 - 60)
+					: 0));
+		} else {
+			return (50 + 2.3 * ((height * 0.39 - 60) > 0 ? (height * 0.39 - 60)
+					: 0));
+		}
+	}
+
 	/**
 	 * calculate surface area based on Mosteller formula
 	 * 
@@ -373,48 +509,16 @@ public class TPNCalculator {
 		return Math.round(100000 * weight / (height * height)) / 10.0;
 	}
 
-	/**
-	 * calculate total required fluid volume, derived from WUSTL TPN Calculator
-	 * http://tpn.wustl.edu/calculator.html
-	 * 
-	 * @param weight
-	 * @param height
-	 * @return ml/day
-	 */
-	private static double calRequiredFluid(double weight, double height) {
-		double fluid = 0;
-		if (weight <= .75) {
-			fluid = 80 * weight;
-		}
-		if (weight >= .75 && weight * 1 < 1.25) {
-			fluid = 80 * weight;
-		}
-		if (weight >= 1.25 && weight * 1 < 2) {
-			fluid = 100 * weight;
-		}
-		if (weight >= 2 && weight * 1 <= 3) {
-			fluid = 100 * weight;
-		}
-		if (weight > 3 && weight * 1 <= 10) {
-			fluid = 100 * weight;
-		}
-		if (weight * 1 > 10) {
-			// if not light, use this instead:
-			fluid = 2000 * calSurfaceArea(weight, height);
-			// else we're still at our original default for very light patients
-			fluid = Math.round(fluid);
-		}
-		return fluid;
-	}
-
 	/**
 	 * calculate total required adjusted calorie, derived from WUSTL TPN Calculator
-	 * http://tpn.wustl.edu/calculator.html
+	 * http://tpn.wustl.edu/calculator.html. The resting calorie is looked up in the requirement table.
 	 * 
+	 * @param table
 	 * @param age
 	 * @param gender
 	 * @param weight
 	 * @param height
+	 * @param surfaceArea
 	 * @param stressor
 	 * 
 	 *            stressor=1.0, when Ventilated/Sedated
@@ -424,197 +528,11 @@ public class TPNCalculator {
 	 * 
 	 * @return kcal/day
 	 */
-	private static double calRequiredAdjustedKcal(double age, int gender,
-			double weight, double height, double stressor) {
-		return Math.round(calRequiredRestKcal(age, gender, weight, height)
-				* stressor);
-	}
-
-	/**
-	 * calculate total required basic calorie, derived from WUSTL TPN Calculator
-	 * http://tpn.wustl.edu/calculator.html
-	 * 
-	 * @param age
-	 * @param gender
-	 * @param weight
-	 * @param height
-	 * @return kcal/day
-	 */
-	private static double calRequiredRestKcal(double age, int gender,
-			double weight, double height) {
-		double kcal = 0;
-		if (weight <= .75) {
-			kcal = 30 * weight;
-		}
-		if (weight >= .75 && weight * 1 < 1.25) {
-			kcal = 40 * weight;
-		}
-		if (weight >= 1.25 && weight * 1 < 2) {
-			kcal = 50 * weight;
-		}
-		if (weight >= 2 && weight * 1 <= 3) {
-			kcal = 50 * weight;
-		}
-		if (weight > 3 && weight * 1 <= 10) {
-			kcal = 60 * weight;
-		}
-		if (weight * 1 > 10) {
-			kcal = 60 * weight;
-			// now replace kcal, depending on age:
-		}
-		if (age > 3) {
-			// ree varies by age and sex:
-			if (age * 1 > 10) {
-				if (gender == FEMALE) {
-					kcal = (655 + (1.85 * height) + (9.6 * weight) - (4.7 * age));
-				} else { // "male"
-					kcal = (66.5 + (5.00 * height) + (13.8 * weight) - (6.8 * age));
-				}
-			} else { // age between first and second max
-				if (gender == FEMALE) {
-					kcal = 499 + (22.5 * weight);
-				} else { // "male"
-					kcal = 495 + (22.7 * weight);
-				}
-			}
-		}
-		return Math.round(kcal);
-	}
-
-	/**
-	 * The following electrolytes, protein and fat requirement equations are based on
-	 * MacKay M, Farr F, Jones K. Pediatric parenteral nutrition via computerized worksheet and automated compounding. Nutr Clin Pract. 2000;15:130–137. et al.
-	 * and
-	 * Safe Practices for Parenteral Nutrition Formulations. National Advisory Group on Standards and Practice Guidelines for Parenteral Nutrition. JPEN J Parenter Enteral Nutr.
-	 * 1998;22(2):49–66. doi: 10.1177/014860719802200249. Available from: http://dx.doi.org/10.1177/014860719802200249. [PubMed] [Cross Ref]
-	 * and
-	 * http://www.who.int/nutrition/publications/guidelines/sodium_intake_printversion.pdf
-	 */
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return mEq/kg/day
-	 */
-	private static double requiredSodiumPerKg(double age, double weight) {
-		double sodiumInmEq = 0.0;
-		if (weight <= 2.5) {
-			sodiumInmEq = 4.0;
-		} else if (weight < 5) {
-			sodiumInmEq = 3.0;
-		} else if (weight < 10) {
-			sodiumInmEq = 3.0;
-		} else if (weight < 20) {
-			sodiumInmEq = 3.0;
-		} else if (weight < 50) {
-			sodiumInmEq = 2.5;
-		} else {
-			sodiumInmEq = 2.0;
-		}
-		return sodiumInmEq;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return mEq/kg/day
-	 */
-	private static double requiredPotassiumPerKg(double age, double weight) {
-		double potassiumInmEq = 0.0;
-		if (weight < 50) {
-			potassiumInmEq = 3.0;
-		} else {
-			potassiumInmEq = 1.5;
-		}
-		return potassiumInmEq;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return mEq/kg/day
-	 */
-	private static double requiredCalciumPerKg(double age, double weight) {
-		double calciumInmEq = 0.0;
-		if (weight <= 2.5) {
-			calciumInmEq = 2.8;
-		} else if (weight < 5) {
-			calciumInmEq = 2.5;
-		} else if (weight < 10) {
-			calciumInmEq = 1.5;
-		} else if (weight < 20) {
-			calciumInmEq = 1.0;
-		} else if (weight < 50) {
-			calciumInmEq = 0.5;
-		} else {
-			calciumInmEq = 0.3;
-		}
-		return calciumInmEq;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return mEq/kg/day
-	 */
-	private static double requiredPhosphorusPerKg(double age, double weight) {
-		double phosphorusInmEq = 0.0;
-		if (weight <= 2.5) {
-			phosphorusInmEq = 1.2;
-		} else if (weight < 5) {
-			phosphorusInmEq = 1.0;
-		} else if (weight < 10) {
-			phosphorusInmEq = 0.5;
-		} else if (weight < 20) {
-			phosphorusInmEq = 0.5;
-		} else if (weight < 50) {
-			phosphorusInmEq = 0.5;
-		} else {
-			phosphorusInmEq = 0.3;
-		}
-		return phosphorusInmEq;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return mEq/kg/day
-	 */
-	private static double requiredMagnesiumPerKg(double age, double weight) {
-
-		return 0.3;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return g/kg/day
-	 */
-	private static double requiredProteinPerKg(double age, double weight) {
-		double proteinInmg = 0.0;
-		if (weight < 20) {
-			proteinInmg = 2.0;
-		} else if (weight < 50) {
-			proteinInmg = 1.25;
-		} else {
-			proteinInmg = 0.75;
-		}
-		return proteinInmg;
-	}
-
-	/**
-	 * @param age
-	 * @param weight
-	 * @return g/kg/day
-	 */
-	private static double requiredFatPerKg(double age, double weight) {
-		double fatInmg = 0.0;
-		if (weight < 50) {
-			fatInmg = 2.0;
-		} else {
-			fatInmg = 0.5;
-		}
-		return fatInmg;
+	private static double calRequiredAdjustedKcal(RequirementTable table,
+			double age, int gender, double weight, double height,
+			double surfaceArea, double stressor) {
+		return Math.round(table.evaluate(RequirementTable.RestKcal, age,
+				gender, weight, height, surfaceArea) * stressor);
 	}
 
 }
@@ -0,0 +1,72 @@
+package edu.utah.bmi.tpn.objects;
+
+/**
+ * Dosage alerts of many patients, as one warning and one unacceptable bitset per patient stored back to back in two
+ * long arrays. The ordinals are the same as in AlertSet, an instance can be generated through
+ * "BatchDosageAlerts.checkAlerts(patients, kb)"
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class AlertBatch {
+
+	private final String[] variableNames, warningMessages,
+			unacceptableMessages;
+	// number of patients
+	public final int size;
+	// number of long words of each patient's bitset
+	public final int words;
+	// bitset of patient i starts at i * words
+	public final long[] warning, unacceptable;
+
+	public AlertBatch(int size, String[] variableNames,
+			String[] warningMessages, String[] unacceptableMessages) {
+		this.size = size;
+		this.variableNames = variableNames;
+		this.warningMessages = warningMessages;
+		this.unacceptableMessages = unacceptableMessages;
+		this.words = (variableNames.length + 63) >>> 6;
+		this.warning = new long[size * words];
+		this.unacceptable = new long[size * words];
+	}
+
+	public boolean isWarning(int patient, int ordinal) {
+		return (warning[patient * words + (ordinal >>> 6)] & (1L << ordinal)) != 0;
+	}
+
+	public boolean isUnacceptable(int patient, int ordinal) {
+		return (unacceptable[patient * words + (ordinal >>> 6)] & (1L << ordinal)) != 0;
+	}
+
+	/**
+	 * @return whether the patient has any unacceptable alert
+	 */
+	public boolean hasUnacceptable(int patient) {
+		for (int w = patient * words; w < (patient + 1) * words; w++) {
+			if (unacceptable[w] != 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the alerts of one patient as an AlertSet
+	 */
+	public AlertSet get(int patient) {
+		AlertSet alerts = new AlertSet(variableNames, warningMessages,
+				unacceptableMessages);
+		copyTo(patient, alerts);
+		return alerts;
+	}
+
+	/**
+	 * Overwrite a reusable AlertSet (of the same KB) with the alerts of one patient
+	 */
+	public void copyTo(int patient, AlertSet alerts) {
+		if (!alerts.uses(variableNames))
+			throw new IllegalArgumentException(
+					"The AlertSet was not created by the same ReferenceKB");
+		alerts.load(warning, unacceptable, patient * words);
+	}
+
+}
@@ -0,0 +1,267 @@
+package edu.utah.bmi.tpn.objects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact form of Alerts. Each variable checked by the KB has a dense ordinal, the warning and unacceptable
+ * variables are stored as two bitsets over these ordinals.
+ *
+ * The variable names and alert messages are shared by all AlertSets of the same KB snapshot, nothing is allocated
+ * when an alert is added, and strings are only built when the alerts are printed. An AlertSet can be cleared and
+ * reused for the next patient, an instance can be generated through "ReferenceKB.newAlertSet()"
+ *
+ * Several ordinals can check the same variable (e.g. the central line and the general dextrose % ranges). The
+ * ordinals keep the level of each range; the variable names (getWarningVariables, getUnacceptableVariables,
+ * getMessage(String), toString) take the most severe level of the variable's ranges and list each name once.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class AlertSet {
+
+	// checked variable name of each ordinal
+	private final String[] variableNames;
+	// alert message of each ordinal when the variable is above warning/unacceptable level
+	private final String[] warningMessages, unacceptableMessages;
+	private final long[] warning, unacceptable;
+
+	public AlertSet(String[] variableNames, String[] warningMessages,
+			String[] unacceptableMessages) {
+		this.variableNames = variableNames;
+		this.warningMessages = warningMessages;
+		this.unacceptableMessages = unacceptableMessages;
+		int words = (variableNames.length + 63) >>> 6;
+		warning = new long[words];
+		unacceptable = new long[words];
+	}
+
+	/**
+	 * @return an AlertSet of the same KB snapshot with the same alerts, e.g. to keep the alerts of one day while this
+	 *         one is reused
+	 */
+	public AlertSet copy() {
+		AlertSet copy = new AlertSet(variableNames, warningMessages,
+				unacceptableMessages);
+		copy.load(warning, unacceptable, 0);
+		return copy;
+	}
+
+	/**
+	 * @return whether the other AlertSet is of the same KB snapshot and has the same alerts
+	 */
+	public boolean hasSameAlerts(AlertSet other) {
+		if (other.variableNames != variableNames)
+			return false;
+		for (int i = 0; i < warning.length; i++) {
+			if (warning[i] != other.warning[i]
+					|| unacceptable[i] != other.unacceptable[i])
+				return false;
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < warning.length; i++) {
+			warning[i] = 0;
+			unacceptable[i] = 0;
+		}
+	}
+
+	// copy the bitsets of one patient from AlertBatch
+	void load(long[] warningBits, long[] unacceptableBits, int offset) {
+		System.arraycopy(warningBits, offset, warning, 0, warning.length);
+		System.arraycopy(unacceptableBits, offset, unacceptable, 0,
+				unacceptable.length);
+	}
+
+	public void addWarning(int ordinal) {
+		warning[ordinal >>> 6] |= 1L << ordinal;
+	}
+
+	public void addUnacceptable(int ordinal) {
+		unacceptable[ordinal >>> 6] |= 1L << ordinal;
+		// if the range is already unacceptable, it's not worthy to keep it in the warning list
+		warning[ordinal >>> 6] &= ~(1L << ordinal);
+	}
+
+	/**
+	 * Remove the alert of a variable, e.g. before it's checked again
+	 */
+	public void remove(int ordinal) {
+		warning[ordinal >>> 6] &= ~(1L << ordinal);
+		unacceptable[ordinal >>> 6] &= ~(1L << ordinal);
+	}
+
+	public boolean isWarning(int ordinal) {
+		return (warning[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+
+	public boolean isUnacceptable(int ordinal) {
+		return (unacceptable[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+
+	/**
+	 * @return the first warning ordinal that is >= from, or -1 if there is none
+	 */
+	public int nextWarning(int from) {
+		return nextSetBit(warning, from);
+	}
+
+	/**
+	 * @return the first unacceptable ordinal that is >= from, or -1 if there is none
+	 */
+	public int nextUnacceptable(int from) {
+		return nextSetBit(unacceptable, from);
+	}
+
+	public int warningCount() {
+		return count(warning);
+	}
+
+	public int unacceptableCount() {
+		return count(unacceptable);
+	}
+
+	public boolean isEmpty() {
+		for (int i = 0; i < warning.length; i++) {
+			if ((warning[i] | unacceptable[i]) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether this AlertSet is for the KB that owns these variable names
+	 */
+	public boolean uses(String[] variableNames) {
+		return this.variableNames == variableNames;
+	}
+
+	public int size() {
+		return variableNames.length;
+	}
+
+	public String getVariableName(int ordinal) {
+		return variableNames[ordinal];
+	}
+
+	/**
+	 * Given a variable ordinal, return the alert message if there is any
+	 */
+	public String getMessage(int ordinal) {
+		if (isUnacceptable(ordinal))
+			return unacceptableMessages[ordinal];
+		if (isWarning(ordinal))
+			return warningMessages[ordinal];
+		return "";
+	}
+
+	/**
+	 * Given a variable name, return the alert message if there is any. When several ranges check the variable, the
+	 * message of the first unacceptable one, otherwise of the first warning one.
+	 */
+	public String getMessage(String variableName) {
+		String message = "";
+		for (int i = 0; i < variableNames.length; i++) {
+			if (!variableNames[i].equals(variableName))
+				continue;
+			if (isUnacceptable(i))
+				return unacceptableMessages[i];
+			if (message.length() == 0 && isWarning(i))
+				message = warningMessages[i];
+		}
+		return message;
+	}
+
+	/**
+	 * @return whether any range that checks the variable is above its unacceptable level
+	 */
+	public boolean isUnacceptable(String variableName) {
+		for (int i = nextUnacceptable(0); i >= 0; i = nextUnacceptable(i + 1)) {
+			if (variableNames[i].equals(variableName))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the variables above the unacceptable level of any of their ranges, each once, in the order of the
+	 *         ordinals
+	 */
+	public List<String> getUnacceptableVariables() {
+		List<String> names = new ArrayList<String>();
+		for (int i = nextUnacceptable(0); i >= 0; i = nextUnacceptable(i + 1)) {
+			if (!names.contains(variableNames[i]))
+				names.add(variableNames[i]);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the variables above the warning level of a range and not unacceptable through another one, each once,
+	 *         in the order of the ordinals
+	 */
+	public List<String> getWarningVariables() {
+		List<String> names = new ArrayList<String>();
+		for (int i = nextWarning(0); i >= 0; i = nextWarning(i + 1)) {
+			if (!names.contains(variableNames[i])
+					&& !isUnacceptable(variableNames[i]))
+				names.add(variableNames[i]);
+		}
+		return names;
+	}
+
+	/**
+	 * Copy the alerts into the list based Alerts, one name per variable
+	 */
+	public Alerts toAlerts() {
+		Alerts alerts = new Alerts();
+		alerts.addWarning(getWarningVariables());
+		alerts.addUnacceptable(getUnacceptableVariables());
+		return alerts;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb, "warning variables: ", getWarningVariables());
+		append(sb, "unacceptable variables: ", getUnacceptableVariables());
+		return sb.toString();
+	}
+
+	public void printAlerts() {
+		System.out.println(this.toString());
+	}
+
+	private static void append(StringBuilder sb, String title,
+			List<String> names) {
+		if (names.isEmpty())
+			return;
+		sb.append(title).append(names.get(0));
+		for (int i = 1; i < names.size(); i++)
+			sb.append(',').append(names.get(i));
+		sb.append('\n');
+	}
+
+	private int nextSetBit(long[] bits, int from) {
+		int w = from >>> 6;
+		if (from >= variableNames.length)
+			return -1;
+		long word = bits[w] & (-1L << from);
+		while (true) {
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == bits.length)
+				return -1;
+			word = bits[w];
+		}
+	}
+
+	private static int count(long[] bits) {
+		int count = 0;
+		for (long word : bits)
+			count += Long.bitCount(word);
+		return count;
+	}
+
+}
@@ -0,0 +1,28 @@
+package edu.utah.bmi.tpn.objects;
+
+/**
+ * The input that clinicians adjust: the Patient fields from otherFluid_ml to inputLipid_g (input*PerKg, trace
+ * elements, total volume, kcal, iv hours, and the daily amounts derived from them by updateInput). Generated
+ * through "TPNCalculator.recommendedInput(...)", an instance is never changed after it's created.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class ClinicianInput extends FieldRecord {
+
+	static final int First = PatientFields.indexOf("otherFluid_ml");
+	static final int Last = PatientFields.indexOf("inputLipid_g");
+
+	private ClinicianInput(Patient pt) {
+		super(pt, First, Last);
+	}
+
+	public static ClinicianInput from(Patient pt) {
+		return new ClinicianInput(pt);
+	}
+
+	public void applyTo(Patient pt) {
+		applyFields(pt);
+	}
+
+}
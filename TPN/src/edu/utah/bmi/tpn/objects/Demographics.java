@@ -0,0 +1,86 @@
+package edu.utah.bmi.tpn.objects;
+
+/**
+ * The patient information extracted from EMR: age, gender, weight, height, stressor, serum creatinine and the
+ * planned iv type. An instance is never changed after it's created.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class Demographics {
+
+	public final double age, weight, height, stressor, sCr;
+	public final int gender, ivType;
+
+	public Demographics(double age, int gender, double weight, double height) {
+		this(age, gender, weight, height, 1.3, -1, IVTYPE.NotSpecified);
+	}
+
+	/**
+	 * @param sCr
+	 *            -1 if not specified
+	 * @param ivType
+	 *            see IVTYPE
+	 */
+	public Demographics(double age, int gender, double weight, double height,
+			double stressor, double sCr, int ivType) {
+		this.age = age;
+		this.gender = gender;
+		this.weight = weight;
+		this.height = height;
+		this.stressor = stressor;
+		this.sCr = sCr;
+		this.ivType = ivType;
+	}
+
+	/**
+	 * Note the weight of a patient is the dosing weight after TPNCalculator.calWithoutLab
+	 */
+	public static Demographics from(Patient pt) {
+		return new Demographics(pt.age, pt.gender, pt.weight, pt.height,
+				pt.stressor, pt.sCr, pt.ivType);
+	}
+
+	public void applyTo(Patient pt) {
+		pt.initiatePatient(age, gender, weight, height, stressor, ivType);
+		pt.sCr = sCr;
+	}
+
+	public Patient toPatient() {
+		Patient pt = new Patient(age, gender, weight, height, stressor, ivType);
+		pt.sCr = sCr;
+		return pt;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Demographics))
+			return false;
+		Demographics other = (Demographics) obj;
+		return Double.compare(age, other.age) == 0 && gender == other.gender
+				&& Double.compare(weight, other.weight) == 0
+				&& Double.compare(height, other.height) == 0
+				&& Double.compare(stressor, other.stressor) == 0
+				&& Double.compare(sCr, other.sCr) == 0
+				&& ivType == other.ivType;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = Double.hashCode(age);
+		hash = hash * 31 + gender;
+		hash = hash * 31 + Double.hashCode(weight);
+		hash = hash * 31 + Double.hashCode(height);
+		hash = hash * 31 + Double.hashCode(stressor);
+		hash = hash * 31 + Double.hashCode(sCr);
+		return hash * 31 + ivType;
+	}
+
+	@Override
+	public String toString() {
+		return "Demographics{age=" + age + ", gender=" + gender + ", weight="
+				+ weight + ", height=" + height + ", stressor=" + stressor
+				+ ", sCr=" + sCr + ", ivType=" + ivType + "}";
+	}
+
+}
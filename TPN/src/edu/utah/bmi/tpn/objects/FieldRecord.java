@@ -0,0 +1,75 @@
+package edu.utah.bmi.tpn.objects;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a contiguous range of Patient fields (by PatientFields ordinal), the common part of
+ * Requirements, ClinicianInput and OrderMetrics.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+abstract class FieldRecord {
+
+	private final int first;
+	private final double[] values;
+
+	FieldRecord(Patient pt, int first, int last) {
+		this.first = first;
+		this.values = new double[last - first + 1];
+		for (int i = 0; i < values.length; i++)
+			values[i] = PatientFields.get(pt, first + i);
+	}
+
+	void applyFields(Patient pt) {
+		for (int i = 0; i < values.length; i++)
+			PatientFields.set(pt, first + i, values[i]);
+	}
+
+	/**
+	 * @param ordinal
+	 *            see PatientFields.indexOf
+	 * @throws IllegalArgumentException
+	 *             if the field is not kept in this record
+	 */
+	public double get(int ordinal) {
+		if (ordinal < first || ordinal >= first + values.length)
+			throw new IllegalArgumentException(PatientFields.nameOf(ordinal)
+					+ " is not in " + getClass().getSimpleName());
+		return values[ordinal - first];
+	}
+
+	public double get(String variableName) {
+		int ordinal = PatientFields.indexOf(variableName);
+		if (ordinal == PatientFields.NotFound)
+			throw new IllegalArgumentException(
+					"Class Patient doesn't have any field named: "
+							+ variableName);
+		return get(ordinal);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return obj != null && obj.getClass() == getClass()
+				&& Arrays.equals(values, ((FieldRecord) obj).values);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(getClass().getSimpleName())
+				.append('{');
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(PatientFields.nameOf(first + i)).append('=')
+					.append(values[i]);
+		}
+		return sb.append('}').toString();
+	}
+
+}
@@ -2,7 +2,7 @@ package edu.utah.bmi.tpn.objects;
 
 /**
  * A class that store the information of one ingredient reference range (one row in the KB csv table).
- * It will be initiated when RecommendOrderGen.dosageAlerts() is called for the 1st time, through reading
+ * It will be initiated when RecommendOrderGen.getReferenceKB() is called for the 1st time, through reading
  * from resources/TPNRefereces.csv file;
  * 
  * @author Jianlin Shi
@@ -49,13 +49,30 @@ public class IngredientReferenceRange implements Cloneable {
 
 	}
 
+	public IngredientReferenceRange(String description,
+			String checkingVariableName, String alertingVariableName,
+			double ageLowerBound, double ageHigherBound, int gender,
+			String code, double warning, double unacceptable, int ivType) {
+		this.description = description;
+		this.checkingVariableName = checkingVariableName;
+		this.alertingVariableName = alertingVariableName;
+		this.ageLowerBound = ageLowerBound;
+		this.ageHigherBound = ageHigherBound;
+		this.gender = gender;
+		this.code = code;
+		this.warning = warning;
+		this.unacceptable = unacceptable;
+		this.ivType = ivType;
+	}
+
 	public void intitiate(String description, String checkingVariableName,
 			String alertingVariableName, String ageLowerBound,
 			String ageHigherBound, String gender, String code, String warning,
 			String unacceptable, String centralLine) {
 		this.description = description;
 		this.checkingVariableName = checkingVariableName;
-		
+		this.alertingVariableName = alertingVariableName;
+
 		if (!ageLowerBound.equals("")) {
 			this.ageLowerBound = Double.parseDouble(ageLowerBound);
 		} else {
@@ -0,0 +1,96 @@
+package edu.utah.bmi.tpn.objects;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The recommended medications of one patient (product code -> ml), generated through
+ * "RecommendOrderGen.generateOrder(patient)". An instance is never changed after it's created, so it can be shared
+ * between threads.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class MedicationOrder {
+
+	// product codes and descriptions, shared by all orders of the same product list
+	private final int[] codes;
+	private final String[] names;
+	// in "ml" unit, in the same order as codes
+	private final double[] ml;
+
+	public MedicationOrder(int[] codes, String[] names, double[] ml) {
+		if (codes.length != ml.length || names.length != ml.length)
+			throw new IllegalArgumentException(
+					"codes, names and ml need to have the same length");
+		this.codes = codes;
+		this.names = names;
+		this.ml = ml.clone();
+	}
+
+	public int size() {
+		return ml.length;
+	}
+
+	public int getCode(int i) {
+		return codes[i];
+	}
+
+	public String getName(int i) {
+		return names[i];
+	}
+
+	public double getMl(int i) {
+		return ml[i];
+	}
+
+	/**
+	 * @return ml of the product, or 0 if the product is not in this order
+	 */
+	public double getMlOfProduct(int code) {
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] == code)
+				return ml[i];
+		}
+		return 0;
+	}
+
+	/**
+	 * @return product code -> ml, in the order of the product list
+	 */
+	public Map<Integer, Double> toMap() {
+		LinkedHashMap<Integer, Double> map = new LinkedHashMap<Integer, Double>();
+		for (int i = 0; i < codes.length; i++)
+			map.put(codes[i], ml[i]);
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * @return whether obj orders the same products (codes) with the same ml, bit for bit
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MedicationOrder))
+			return false;
+		MedicationOrder other = (MedicationOrder) obj;
+		return Arrays.equals(codes, other.codes) && Arrays.equals(ml, other.ml);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(codes) + Arrays.hashCode(ml);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < names.length; i++) {
+			if (i > 0)
+				sb.append('\n');
+			sb.append(names[i]).append('\n').append(ml[i]);
+		}
+		return sb.toString();
+	}
+
+}
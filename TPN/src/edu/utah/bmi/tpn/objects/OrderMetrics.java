@@ -0,0 +1,77 @@
+package edu.utah.bmi.tpn.objects;
+
+/**
+ * The result of "RecommendOrderGen.generateOrder(demographics, requirements, input)": the medication order, the
+ * Patient fields from actFluid to pn_rate (actual fluid and kcal, output metrics and the variables for dosage
+ * checking), and the input as it was used (generateOrder fills in inputDextrose_perc when it's not set). An
+ * instance is never changed after it's created.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class OrderMetrics extends FieldRecord {
+
+	static final int First = PatientFields.indexOf("actFluid");
+	static final int Last = PatientFields.indexOf("pn_rate");
+
+	private final MedicationOrder order;
+	private final ClinicianInput input;
+
+	private OrderMetrics(Patient pt, MedicationOrder order) {
+		super(pt, First, Last);
+		this.order = order;
+		this.input = ClinicianInput.from(pt);
+	}
+
+	/**
+	 * @param pt
+	 *            a patient after RecommendOrderGen.generateOrder and the dosage check calculation
+	 * @param order
+	 *            the order of the patient
+	 */
+	public static OrderMetrics from(Patient pt, MedicationOrder order) {
+		return new OrderMetrics(pt, order);
+	}
+
+	/**
+	 * Copy the metrics and the input as it was used into the patient
+	 */
+	public void applyTo(Patient pt) {
+		input.applyTo(pt);
+		applyFields(pt);
+	}
+
+	public MedicationOrder getOrder() {
+		return order;
+	}
+
+	public ClinicianInput getInput() {
+		return input;
+	}
+
+	public double getActFluid() {
+		return get(PatientFields.indexOf("actFluid"));
+	}
+
+	public double getActKcal() {
+		return get(PatientFields.indexOf("actKcal"));
+	}
+
+	/**
+	 * @return whether obj has the same metrics, the same input and the same order
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (!super.equals(obj))
+			return false;
+		OrderMetrics other = (OrderMetrics) obj;
+		return input.equals(other.input) && order.equals(other.order);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * super.hashCode() + input.hashCode())
+				+ order.hashCode();
+	}
+
+}
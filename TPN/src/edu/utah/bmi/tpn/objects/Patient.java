@@ -128,6 +128,39 @@ public class Patient {
 		this.sCr = NotSpecified;
 	}
 
+	/**
+	 * Assemble a patient from its parts, the later parts can be null if they haven't been calculated yet
+	 * 
+	 * @param demographics
+	 * @param requirements
+	 * @param input
+	 * @param metrics
+	 * @return
+	 */
+	public static Patient of(Demographics demographics,
+			Requirements requirements, ClinicianInput input,
+			OrderMetrics metrics) {
+		Patient pt = demographics.toPatient();
+		if (requirements != null)
+			requirements.applyTo(pt);
+		if (input != null)
+			input.applyTo(pt);
+		if (metrics != null)
+			metrics.applyTo(pt);
+		return pt;
+	}
+
+	/**
+	 * @return a patient with the same values in all the fields, e.g. to try a change without touching this one
+	 */
+	public Patient copy() {
+		Patient copy = new Patient(age, gender, weight, height, stressor,
+				ivType);
+		for (int i = 0; i < PatientFields.COUNT; i++)
+			PatientFields.set(copy, i, PatientFields.get(this, i));
+		return copy;
+	}
+
 	// Extract from EMR, other fluids include other IV drugs that not included in TPN.
 	public void setOtherFluidVolume(double ml) {
 		this.otherFluid_ml = ml;
@@ -0,0 +1,116 @@
+package edu.utah.bmi.tpn.objects;
+
+import java.util.List;
+
+/**
+ * The same information as Patient for many patients, stored column by column: one primitive array per Patient field,
+ * indexed by row. A formula that reads weight and age of a range of rows then walks two contiguous arrays, instead
+ * of visiting one Patient object per row spread over the heap.
+ *
+ * The columns are indexed by PatientFields ordinals, e.g. column(PatientFields.indexOf("weight")). Rows are
+ * calculated through the batch versions of the calculator, e.g. "TPNCalculator.calWithoutLab(batch, from, to)",
+ * and can be copied from/to Patient objects for the single patient API.
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class PatientBatch {
+
+	// number of rows
+	public final int size;
+	// columns[ordinal][row], ordinal as in PatientFields
+	private final double[][] columns;
+	public final int[] gender, ivType;
+
+	/**
+	 * Create a batch of empty rows, initiated the same way as new Patient(0, 0, 0, 0)
+	 */
+	public PatientBatch(int size) {
+		this.size = size;
+		columns = new double[PatientFields.COUNT][size];
+		gender = new int[size];
+		ivType = new int[size];
+		// the columns are read directly, not through column(), which a subclass could override
+		double[] stressor = columns[PatientFields.indexOf("stressor")];
+		double[] sCr = columns[PatientFields.indexOf("sCr")];
+		for (int row = 0; row < size; row++) {
+			stressor[row] = 1.3;
+			sCr[row] = -1;
+			ivType[row] = IVTYPE.NotSpecified;
+		}
+	}
+
+	public static PatientBatch of(List<Patient> patients) {
+		return of(patients.toArray(new Patient[patients.size()]));
+	}
+
+	public static PatientBatch of(Patient[] patients) {
+		PatientBatch batch = new PatientBatch(patients.length);
+		for (int row = 0; row < patients.length; row++)
+			batch.set(row, patients[row]);
+		return batch;
+	}
+
+	/**
+	 * @param ordinal
+	 *            see PatientFields.indexOf
+	 * @return the column itself (not a copy), changes are visible to the batch
+	 */
+	public double[] column(int ordinal) {
+		return columns[ordinal];
+	}
+
+	public double[] column(String variableName) {
+		int ordinal = PatientFields.indexOf(variableName);
+		if (ordinal == PatientFields.NotFound)
+			throw new IllegalArgumentException(
+					"Class Patient doesn't have any field named: "
+							+ variableName);
+		return columns[ordinal];
+	}
+
+	public double get(int row, int ordinal) {
+		return columns[ordinal][row];
+	}
+
+	public void set(int row, int ordinal, double value) {
+		columns[ordinal][row] = value;
+	}
+
+	/**
+	 * Set the demographics of a row, the same as the Patient constructors
+	 */
+	public void set(int row, double age, int gender, double weight,
+			double height, double stressor, int ivType) {
+		set(row, new Patient(age, gender, weight, height, stressor, ivType));
+	}
+
+	/**
+	 * Copy all fields of a Patient into a row
+	 */
+	public void set(int row, Patient pt) {
+		for (int i = 0; i < columns.length; i++)
+			columns[i][row] = PatientFields.get(pt, i);
+		gender[row] = pt.gender;
+		ivType[row] = pt.ivType;
+	}
+
+	/**
+	 * Copy all fields of a row into an existing Patient, so that a Patient can be reused to read many rows
+	 */
+	public Patient copyTo(int row, Patient pt) {
+		for (int i = 0; i < columns.length; i++)
+			PatientFields.set(pt, i, columns[i][row]);
+		pt.gender = gender[row];
+		pt.ivType = ivType[row];
+		return pt;
+	}
+
+	/**
+	 * @return a new Patient with all fields of a row
+	 */
+	public Patient get(int row) {
+		return copyTo(row, new Patient(0, 0, 0, 0));
+	}
+
+}
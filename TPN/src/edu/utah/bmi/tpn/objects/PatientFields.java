@@ -0,0 +1,715 @@
+package edu.utah.bmi.tpn.objects;
+
+import java.util.HashMap;
+
+/**
+ * Dense ordinals and direct accessors for the double fields of Patient.
+ * 
+ * Variable names (e.g. the checkingVariableName column of the KB csv) are resolved to an ordinal once,
+ * after that a value can be read or written through a plain switch without reflection or boxing.
+ * The ordinals follow the declaration order in Patient, so keep NAMES and the switches below in sync
+ * when a field is added to Patient.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class PatientFields {
+
+	public static final int NotFound = -1;
+
+	private static final String[] NAMES = {
+			"age", "weight", "height", "stressor", "sCr", "surfaceArea", "BMI",
+			"requiredTotalVolume", "requiredAdjustedKcal", "requiredAdjustedKcalPerKg",
+			"idealBodyWeight", "adjustedBodyWeight", "crcl", "requiredDextrose_perc",
+			"requiredCysMgPerg", "requiredNaPerKg", "requiredKPerKg", "requiredClPerKg",
+			"requiredAcetPerKg", "requiredCaPerKg", "requiredMgPerKg", "requiredPPerKg",
+			"requiredProteinPerKg", "requiredLipidPerKg", "requiredZn", "requiredCu",
+			"requiredMn", "requiredCr", "requiredSel", "requiredIo", "requiredFe",
+			"requiredVitMix", "requiredVitK", "requiredVitC", "requiredAlbumin",
+			"requiredInsulin", "requiredRanitidine", "requiredVolumePerKg",
+			"otherFluid_ml", "inputProteinPerKg", "inputDextrose_perc",
+			"inputCysMgPerg", "inputTotalVolume_ml", "inputKcal", "inputNaPerKg",
+			"inputKPerKg", "inputClPerKg", "inputAcetPerKg", "inputCaPerKg",
+			"inputMgPerKg", "inputPPerKg", "inputLipidPerKg", "inputZn", "inputCu",
+			"inputMn", "inputCr", "inputSel", "inputIo", "inputFe", "inputVitMix",
+			"inputVitK", "inputVitC", "inputAlbumin", "inputInsulin", "inputRanitidine",
+			"inputVolumePerKg", "pnhours", "lipidhours", "inputNa_mEq", "inputK_mEq",
+			"inputCl_mEq", "inputAcet_mEq", "inputCa_mEq", "inputP_mmol", "inputMg_mEq",
+			"inputProtein_g", "inputLipid_g", "actFluid", "actKcal", "pn_ml_kg",
+			"pn_ml_day", "lipid_ml_kg", "lipid_ml_day", "total_ml_kg", "total_ml_day",
+			"twoInOne_mosm_l", "lipid_mosm_l", "threeInOne_mosm_l", "dextrose_g_day",
+			"protein_g_day", "lipid_g_day", "total_g_day", "dextrose_g_kg",
+			"protein_g_kg", "lipid_g_kg", "total_g_kg", "dextrose_cal_kg",
+			"protein_cal_kg", "lipid_cal_kg", "total_cal_kg", "dextrose_perc_cal",
+			"protein_perc_cal", "lipid_perc_cal", "total_perc_cal", "dex_mgKgMin",
+			"na_meq_l", "k_meq_kg_h", "k_meq_l", "cl_mEq_l", "npcal_g_nit",
+			"kcal_n_ratio", "ca_mEq_day", "p_mmol_day", "ca_p_ratio", "ca_mg_x_p_mg",
+			"precip_limit", "inputNa_mEq_l", "inputK_mEq_l", "inputCl_mEq_l",
+			"inputAcet_mEq_l", "inputZn_mg_l", "inputRanitidine_mg_Kg", "lipid_rate",
+			"pn_rate" };
+
+	// total number of double fields in Patient
+	public static final int COUNT = NAMES.length;
+
+	private static final HashMap<String, Integer> ORDINALS = new HashMap<String, Integer>();
+
+	static {
+		for (int i = 0; i < NAMES.length; i++) {
+			ORDINALS.put(NAMES[i], i);
+		}
+	}
+
+	private PatientFields() {
+	}
+
+	/**
+	 * @param variableName
+	 *            the name of a double field in Patient
+	 * @return the ordinal of the field, or NotFound if Patient doesn't have such a field
+	 */
+	public static int indexOf(String variableName) {
+		Integer ordinal = ORDINALS.get(variableName);
+		return ordinal == null ? NotFound : ordinal;
+	}
+
+	public static String nameOf(int ordinal) {
+		return NAMES[ordinal];
+	}
+
+	public static double get(Patient pt, int ordinal) {
+		switch (ordinal) {
+		case 0:
+			return pt.age;
+		case 1:
+			return pt.weight;
+		case 2:
+			return pt.height;
+		case 3:
+			return pt.stressor;
+		case 4:
+			return pt.sCr;
+		case 5:
+			return pt.surfaceArea;
+		case 6:
+			return pt.BMI;
+		case 7:
+			return pt.requiredTotalVolume;
+		case 8:
+			return pt.requiredAdjustedKcal;
+		case 9:
+			return pt.requiredAdjustedKcalPerKg;
+		case 10:
+			return pt.idealBodyWeight;
+		case 11:
+			return pt.adjustedBodyWeight;
+		case 12:
+			return pt.crcl;
+		case 13:
+			return pt.requiredDextrose_perc;
+		case 14:
+			return pt.requiredCysMgPerg;
+		case 15:
+			return pt.requiredNaPerKg;
+		case 16:
+			return pt.requiredKPerKg;
+		case 17:
+			return pt.requiredClPerKg;
+		case 18:
+			return pt.requiredAcetPerKg;
+		case 19:
+			return pt.requiredCaPerKg;
+		case 20:
+			return pt.requiredMgPerKg;
+		case 21:
+			return pt.requiredPPerKg;
+		case 22:
+			return pt.requiredProteinPerKg;
+		case 23:
+			return pt.requiredLipidPerKg;
+		case 24:
+			return pt.requiredZn;
+		case 25:
+			return pt.requiredCu;
+		case 26:
+			return pt.requiredMn;
+		case 27:
+			return pt.requiredCr;
+		case 28:
+			return pt.requiredSel;
+		case 29:
+			return pt.requiredIo;
+		case 30:
+			return pt.requiredFe;
+		case 31:
+			return pt.requiredVitMix;
+		case 32:
+			return pt.requiredVitK;
+		case 33:
+			return pt.requiredVitC;
+		case 34:
+			return pt.requiredAlbumin;
+		case 35:
+			return pt.requiredInsulin;
+		case 36:
+			return pt.requiredRanitidine;
+		case 37:
+			return pt.requiredVolumePerKg;
+		case 38:
+			return pt.otherFluid_ml;
+		case 39:
+			return pt.inputProteinPerKg;
+		case 40:
+			return pt.inputDextrose_perc;
+		case 41:
+			return pt.inputCysMgPerg;
+		case 42:
+			return pt.inputTotalVolume_ml;
+		case 43:
+			return pt.inputKcal;
+		case 44:
+			return pt.inputNaPerKg;
+		case 45:
+			return pt.inputKPerKg;
+		case 46:
+			return pt.inputClPerKg;
+		case 47:
+			return pt.inputAcetPerKg;
+		case 48:
+			return pt.inputCaPerKg;
+		case 49:
+			return pt.inputMgPerKg;
+		case 50:
+			return pt.inputPPerKg;
+		case 51:
+			return pt.inputLipidPerKg;
+		case 52:
+			return pt.inputZn;
+		case 53:
+			return pt.inputCu;
+		case 54:
+			return pt.inputMn;
+		case 55:
+			return pt.inputCr;
+		case 56:
+			return pt.inputSel;
+		case 57:
+			return pt.inputIo;
+		case 58:
+			return pt.inputFe;
+		case 59:
+			return pt.inputVitMix;
+		case 60:
+			return pt.inputVitK;
+		case 61:
+			return pt.inputVitC;
+		case 62:
+			return pt.inputAlbumin;
+		case 63:
+			return pt.inputInsulin;
+		case 64:
+			return pt.inputRanitidine;
+		case 65:
+			return pt.inputVolumePerKg;
+		case 66:
+			return pt.pnhours;
+		case 67:
+			return pt.lipidhours;
+		case 68:
+			return pt.inputNa_mEq;
+		case 69:
+			return pt.inputK_mEq;
+		case 70:
+			return pt.inputCl_mEq;
+		case 71:
+			return pt.inputAcet_mEq;
+		case 72:
+			return pt.inputCa_mEq;
+		case 73:
+			return pt.inputP_mmol;
+		case 74:
+			return pt.inputMg_mEq;
+		case 75:
+			return pt.inputProtein_g;
+		case 76:
+			return pt.inputLipid_g;
+		case 77:
+			return pt.actFluid;
+		case 78:
+			return pt.actKcal;
+		case 79:
+			return pt.pn_ml_kg;
+		case 80:
+			return pt.pn_ml_day;
+		case 81:
+			return pt.lipid_ml_kg;
+		case 82:
+			return pt.lipid_ml_day;
+		case 83:
+			return pt.total_ml_kg;
+		case 84:
+			return pt.total_ml_day;
+		case 85:
+			return pt.twoInOne_mosm_l;
+		case 86:
+			return pt.lipid_mosm_l;
+		case 87:
+			return pt.threeInOne_mosm_l;
+		case 88:
+			return pt.dextrose_g_day;
+		case 89:
+			return pt.protein_g_day;
+		case 90:
+			return pt.lipid_g_day;
+		case 91:
+			return pt.total_g_day;
+		case 92:
+			return pt.dextrose_g_kg;
+		case 93:
+			return pt.protein_g_kg;
+		case 94:
+			return pt.lipid_g_kg;
+		case 95:
+			return pt.total_g_kg;
+		case 96:
+			return pt.dextrose_cal_kg;
+		case 97:
+			return pt.protein_cal_kg;
+		case 98:
+			return pt.lipid_cal_kg;
+		case 99:
+			return pt.total_cal_kg;
+		case 100:
+			return pt.dextrose_perc_cal;
+		case 101:
+			return pt.protein_perc_cal;
+		case 102:
+			return pt.lipid_perc_cal;
+		case 103:
+			return pt.total_perc_cal;
+		case 104:
+			return pt.dex_mgKgMin;
+		case 105:
+			return pt.na_meq_l;
+		case 106:
+			return pt.k_meq_kg_h;
+		case 107:
+			return pt.k_meq_l;
+		case 108:
+			return pt.cl_mEq_l;
+		case 109:
+			return pt.npcal_g_nit;
+		case 110:
+			return pt.kcal_n_ratio;
+		case 111:
+			return pt.ca_mEq_day;
+		case 112:
+			return pt.p_mmol_day;
+		case 113:
+			return pt.ca_p_ratio;
+		case 114:
+			return pt.ca_mg_x_p_mg;
+		case 115:
+			return pt.precip_limit;
+		case 116:
+			return pt.inputNa_mEq_l;
+		case 117:
+			return pt.inputK_mEq_l;
+		case 118:
+			return pt.inputCl_mEq_l;
+		case 119:
+			return pt.inputAcet_mEq_l;
+		case 120:
+			return pt.inputZn_mg_l;
+		case 121:
+			return pt.inputRanitidine_mg_Kg;
+		case 122:
+			return pt.lipid_rate;
+		case 123:
+			return pt.pn_rate;
+		default:
+			throw new IndexOutOfBoundsException("Patient field ordinal: "
+					+ ordinal);
+		}
+	}
+
+	public static void set(Patient pt, int ordinal, double value) {
+		switch (ordinal) {
+		case 0:
+			pt.age = value;
+			break;
+		case 1:
+			pt.weight = value;
+			break;
+		case 2:
+			pt.height = value;
+			break;
+		case 3:
+			pt.stressor = value;
+			break;
+		case 4:
+			pt.sCr = value;
+			break;
+		case 5:
+			pt.surfaceArea = value;
+			break;
+		case 6:
+			pt.BMI = value;
+			break;
+		case 7:
+			pt.requiredTotalVolume = value;
+			break;
+		case 8:
+			pt.requiredAdjustedKcal = value;
+			break;
+		case 9:
+			pt.requiredAdjustedKcalPerKg = value;
+			break;
+		case 10:
+			pt.idealBodyWeight = value;
+			break;
+		case 11:
+			pt.adjustedBodyWeight = value;
+			break;
+		case 12:
+			pt.crcl = value;
+			break;
+		case 13:
+			pt.requiredDextrose_perc = value;
+			break;
+		case 14:
+			pt.requiredCysMgPerg = value;
+			break;
+		case 15:
+			pt.requiredNaPerKg = value;
+			break;
+		case 16:
+			pt.requiredKPerKg = value;
+			break;
+		case 17:
+			pt.requiredClPerKg = value;
+			break;
+		case 18:
+			pt.requiredAcetPerKg = value;
+			break;
+		case 19:
+			pt.requiredCaPerKg = value;
+			break;
+		case 20:
+			pt.requiredMgPerKg = value;
+			break;
+		case 21:
+			pt.requiredPPerKg = value;
+			break;
+		case 22:
+			pt.requiredProteinPerKg = value;
+			break;
+		case 23:
+			pt.requiredLipidPerKg = value;
+			break;
+		case 24:
+			pt.requiredZn = value;
+			break;
+		case 25:
+			pt.requiredCu = value;
+			break;
+		case 26:
+			pt.requiredMn = value;
+			break;
+		case 27:
+			pt.requiredCr = value;
+			break;
+		case 28:
+			pt.requiredSel = value;
+			break;
+		case 29:
+			pt.requiredIo = value;
+			break;
+		case 30:
+			pt.requiredFe = value;
+			break;
+		case 31:
+			pt.requiredVitMix = value;
+			break;
+		case 32:
+			pt.requiredVitK = value;
+			break;
+		case 33:
+			pt.requiredVitC = value;
+			break;
+		case 34:
+			pt.requiredAlbumin = value;
+			break;
+		case 35:
+			pt.requiredInsulin = value;
+			break;
+		case 36:
+			pt.requiredRanitidine = value;
+			break;
+		case 37:
+			pt.requiredVolumePerKg = value;
+			break;
+		case 38:
+			pt.otherFluid_ml = value;
+			break;
+		case 39:
+			pt.inputProteinPerKg = value;
+			break;
+		case 40:
+			pt.inputDextrose_perc = value;
+			break;
+		case 41:
+			pt.inputCysMgPerg = value;
+			break;
+		case 42:
+			pt.inputTotalVolume_ml = value;
+			break;
+		case 43:
+			pt.inputKcal = value;
+			break;
+		case 44:
+			pt.inputNaPerKg = value;
+			break;
+		case 45:
+			pt.inputKPerKg = value;
+			break;
+		case 46:
+			pt.inputClPerKg = value;
+			break;
+		case 47:
+			pt.inputAcetPerKg = value;
+			break;
+		case 48:
+			pt.inputCaPerKg = value;
+			break;
+		case 49:
+			pt.inputMgPerKg = value;
+			break;
+		case 50:
+			pt.inputPPerKg = value;
+			break;
+		case 51:
+			pt.inputLipidPerKg = value;
+			break;
+		case 52:
+			pt.inputZn = value;
+			break;
+		case 53:
+			pt.inputCu = value;
+			break;
+		case 54:
+			pt.inputMn = value;
+			break;
+		case 55:
+			pt.inputCr = value;
+			break;
+		case 56:
+			pt.inputSel = value;
+			break;
+		case 57:
+			pt.inputIo = value;
+			break;
+		case 58:
+			pt.inputFe = value;
+			break;
+		case 59:
+			pt.inputVitMix = value;
+			break;
+		case 60:
+			pt.inputVitK = value;
+			break;
+		case 61:
+			pt.inputVitC = value;
+			break;
+		case 62:
+			pt.inputAlbumin = value;
+			break;
+		case 63:
+			pt.inputInsulin = value;
+			break;
+		case 64:
+			pt.inputRanitidine = value;
+			break;
+		case 65:
+			pt.inputVolumePerKg = value;
+			break;
+		case 66:
+			pt.pnhours = value;
+			break;
+		case 67:
+			pt.lipidhours = value;
+			break;
+		case 68:
+			pt.inputNa_mEq = value;
+			break;
+		case 69:
+			pt.inputK_mEq = value;
+			break;
+		case 70:
+			pt.inputCl_mEq = value;
+			break;
+		case 71:
+			pt.inputAcet_mEq = value;
+			break;
+		case 72:
+			pt.inputCa_mEq = value;
+			break;
+		case 73:
+			pt.inputP_mmol = value;
+			break;
+		case 74:
+			pt.inputMg_mEq = value;
+			break;
+		case 75:
+			pt.inputProtein_g = value;
+			break;
+		case 76:
+			pt.inputLipid_g = value;
+			break;
+		case 77:
+			pt.actFluid = value;
+			break;
+		case 78:
+			pt.actKcal = value;
+			break;
+		case 79:
+			pt.pn_ml_kg = value;
+			break;
+		case 80:
+			pt.pn_ml_day = value;
+			break;
+		case 81:
+			pt.lipid_ml_kg = value;
+			break;
+		case 82:
+			pt.lipid_ml_day = value;
+			break;
+		case 83:
+			pt.total_ml_kg = value;
+			break;
+		case 84:
+			pt.total_ml_day = value;
+			break;
+		case 85:
+			pt.twoInOne_mosm_l = value;
+			break;
+		case 86:
+			pt.lipid_mosm_l = value;
+			break;
+		case 87:
+			pt.threeInOne_mosm_l = value;
+			break;
+		case 88:
+			pt.dextrose_g_day = value;
+			break;
+		case 89:
+			pt.protein_g_day = value;
+			break;
+		case 90:
+			pt.lipid_g_day = value;
+			break;
+		case 91:
+			pt.total_g_day = value;
+			break;
+		case 92:
+			pt.dextrose_g_kg = value;
+			break;
+		case 93:
+			pt.protein_g_kg = value;
+			break;
+		case 94:
+			pt.lipid_g_kg = value;
+			break;
+		case 95:
+			pt.total_g_kg = value;
+			break;
+		case 96:
+			pt.dextrose_cal_kg = value;
+			break;
+		case 97:
+			pt.protein_cal_kg = value;
+			break;
+		case 98:
+			pt.lipid_cal_kg = value;
+			break;
+		case 99:
+			pt.total_cal_kg = value;
+			break;
+		case 100:
+			pt.dextrose_perc_cal = value;
+			break;
+		case 101:
+			pt.protein_perc_cal = value;
+			break;
+		case 102:
+			pt.lipid_perc_cal = value;
+			break;
+		case 103:
+			pt.total_perc_cal = value;
+			break;
+		case 104:
+			pt.dex_mgKgMin = value;
+			break;
+		case 105:
+			pt.na_meq_l = value;
+			break;
+		case 106:
+			pt.k_meq_kg_h = value;
+			break;
+		case 107:
+			pt.k_meq_l = value;
+			break;
+		case 108:
+			pt.cl_mEq_l = value;
+			break;
+		case 109:
+			pt.npcal_g_nit = value;
+			break;
+		case 110:
+			pt.kcal_n_ratio = value;
+			break;
+		case 111:
+			pt.ca_mEq_day = value;
+			break;
+		case 112:
+			pt.p_mmol_day = value;
+			break;
+		case 113:
+			pt.ca_p_ratio = value;
+			break;
+		case 114:
+			pt.ca_mg_x_p_mg = value;
+			break;
+		case 115:
+			pt.precip_limit = value;
+			break;
+		case 116:
+			pt.inputNa_mEq_l = value;
+			break;
+		case 117:
+			pt.inputK_mEq_l = value;
+			break;
+		case 118:
+			pt.inputCl_mEq_l = value;
+			break;
+		case 119:
+			pt.inputAcet_mEq_l = value;
+			break;
+		case 120:
+			pt.inputZn_mg_l = value;
+			break;
+		case 121:
+			pt.inputRanitidine_mg_Kg = value;
+			break;
+		case 122:
+			pt.lipid_rate = value;
+			break;
+		case 123:
+			pt.pn_rate = value;
+			break;
+		default:
+			throw new IndexOutOfBoundsException("Patient field ordinal: "
+					+ ordinal);
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package edu.utah.bmi.tpn.objects;
+
+/**
+ * The requirements calculated by "TPNCalculator.calculateRequirements(demographics)": the Patient fields from
+ * surfaceArea to requiredVolumePerKg, and the dosing weight they are based on (calWithoutLab replaces the weight
+ * of an overweight adult with the adjusted body weight). An instance is never changed after it's created.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class Requirements extends FieldRecord {
+
+	static final int First = PatientFields.indexOf("surfaceArea");
+	static final int Last = PatientFields.indexOf("requiredVolumePerKg");
+
+	private final double weight;
+
+	private Requirements(Patient pt) {
+		super(pt, First, Last);
+		this.weight = pt.weight;
+	}
+
+	/**
+	 * @param pt
+	 *            a patient after TPNCalculator.calWithoutLab
+	 */
+	public static Requirements from(Patient pt) {
+		return new Requirements(pt);
+	}
+
+	/**
+	 * Copy the requirements and the dosing weight into the patient, after its demographics
+	 */
+	public void applyTo(Patient pt) {
+		applyFields(pt);
+		pt.weight = weight;
+	}
+
+	public double getWeight() {
+		return weight;
+	}
+
+	public double getRequiredTotalVolume() {
+		return get(PatientFields.indexOf("requiredTotalVolume"));
+	}
+
+	public double getRequiredAdjustedKcal() {
+		return get(PatientFields.indexOf("requiredAdjustedKcal"));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return super.equals(obj)
+				&& Double.compare(weight, ((Requirements) obj).weight) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return super.hashCode() * 31 + Double.hashCode(weight);
+	}
+
+}
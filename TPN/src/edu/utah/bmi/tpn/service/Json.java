@@ -0,0 +1,264 @@
+package edu.utah.bmi.tpn.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON reader/writer for the calculation service, so that the service doesn't need any library.
+ * Objects are read into LinkedHashMap, arrays into ArrayList, numbers into Double. Objects and arrays can be nested
+ * up to MaxDepth levels, so that a hostile text can't overflow the stack of the reader.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class Json {
+
+	// how deep objects and arrays can be nested
+	public static final int MaxDepth = 64;
+
+	private final String text;
+	private int pos = 0;
+	private int depth = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if text isn't valid JSON
+	 */
+	public static Object parse(String text) {
+		Json json = new Json(text);
+		Object value = json.readValue();
+		json.skipWhitespace();
+		if (json.pos != text.length())
+			throw json.error("unexpected content");
+		return value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if text isn't a JSON object
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> parseObject(String text) {
+		Object value = parse(text);
+		if (!(value instanceof Map))
+			throw new IllegalArgumentException("a JSON object is expected");
+		return (Map<String, Object>) value;
+	}
+
+	private Object readValue() {
+		skipWhitespace();
+		if (pos >= text.length())
+			throw error("unexpected end");
+		char c = text.charAt(pos);
+		switch (c) {
+		case '{':
+			enter();
+			Map<String, Object> map = readObject();
+			depth--;
+			return map;
+		case '[':
+			enter();
+			List<Object> list = readArray();
+			depth--;
+			return list;
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	private void enter() {
+		if (++depth > MaxDepth)
+			throw error("nested deeper than " + MaxDepth + " levels");
+	}
+
+	private Map<String, Object> readObject() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}') {
+			pos++;
+			return map;
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("a string key is expected");
+			String key = readString();
+			skipWhitespace();
+			if (peek() != ':')
+				throw error("':' is expected");
+			pos++;
+			map.put(key, readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == '}')
+				return map;
+			if (c != ',')
+				throw error("',' or '}' is expected");
+		}
+	}
+
+	private List<Object> readArray() {
+		List<Object> list = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			list.add(readValue());
+			skipWhitespace();
+			char c = next();
+			if (c == ']')
+				return list;
+			if (c != ',')
+				throw error("',' or ']' is expected");
+		}
+	}
+
+	private String readString() {
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (true) {
+			char c = next();
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (pos + 4 > text.length())
+					throw error("bad unicode escape");
+				try {
+					sb.append((char) Integer.parseInt(
+							text.substring(pos, pos + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("bad unicode escape");
+				}
+				pos += 4;
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	private Double readNumber() {
+		int start = pos;
+		while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0)
+			pos++;
+		if (start == pos)
+			throw error("unexpected character");
+		try {
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw error("bad number");
+		}
+	}
+
+	private void expect(String word) {
+		if (!text.startsWith(word, pos))
+			throw error("unexpected character");
+		pos += word.length();
+	}
+
+	private char peek() {
+		return pos < text.length() ? text.charAt(pos) : 0;
+	}
+
+	private char next() {
+		if (pos >= text.length())
+			throw error("unexpected end");
+		return text.charAt(pos++);
+	}
+
+	private void skipWhitespace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+			pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("Invalid JSON at " + pos + ": "
+				+ message);
+	}
+
+	/**
+	 * Append a string as a JSON string literal
+	 */
+	public static void appendString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Append a number, NaN and infinity are not valid JSON and are written as null
+	 */
+	public static void appendNumber(StringBuilder sb, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			sb.append("null");
+		else
+			sb.append(value);
+	}
+
+}
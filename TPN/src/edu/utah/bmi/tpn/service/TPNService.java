@@ -0,0 +1,374 @@
+package edu.utah.bmi.tpn.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.utah.bmi.tpn.functions.InputUpdate;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.ReferenceKBWatcher;
+import edu.utah.bmi.tpn.functions.RequirementCache;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * A standalone HTTP service for the calculator, built on the JDK's HTTP server without any other library.
+ * All endpoints take a JSON object through POST and answer with a JSON object:
+ * 
+ * <pre>
+ * POST /requirements  {"age":35, "gender":1, "weight":60, "height":175, "stressor":1.3}
+ * POST /crcl          {"age":35, "gender":1, "weight":60, "height":175, "sCr":1.1, "method":"CG"}
+ * POST /orders        {"age":35, "gender":1, "weight":60, "height":175, "ivType":1, "otherFluid_ml":1000,
+ *                      "inputs":{"inputKPerKg":3.5}}
+ * POST /alerts        same as /orders
+ * </pre>
+ * 
+ * "inputs" are optional adjustments to the recommended input, named as InputUpdate.InputNames, applied together.
+ * weight and height need to be positive. A request body larger than MaxRequestBytes is rejected with 413, an invalid
+ * request with 400.
+ * Each request runs on its own virtual thread when the JVM supports them (Java 21+), otherwise on a fixed pool. All
+ * requests share the current ReferenceKB snapshot, and a RequirementCache: the demographics are rounded to the
+ * precision that clinicians chart (e.g. weight to 1 g) before the requirements are calculated.
+ * 
+ * <pre>
+ * java edu.utah.bmi.tpn.service.TPNService [port] [KB csv file to watch]
+ * </pre>
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class TPNService {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// the largest request body that is read, a patient with all its inputs is well under 4 KB
+	public static final int MaxRequestBytes = 64 * 1024;
+
+	// the Patient fields that are returned for each endpoint
+	private static final int FirstRequirement = PatientFields
+			.indexOf("surfaceArea");
+	private static final int LastRequirement = PatientFields
+			.indexOf("requiredVolumePerKg");
+	private static final int FirstOutput = PatientFields.indexOf("actFluid");
+	private static final int LastOutput = PatientFields.indexOf("pn_rate");
+
+	// requests with the same charted demographics share their requirements
+	private static final RequirementCache Cache = new RequirementCache();
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public TPNService(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		server.createContext("/requirements", new Endpoint() {
+			@Override
+			void handle(Map<String, Object> request, StringBuilder response) {
+				Patient pt = readPatient(request);
+				Cache.calWithoutLab(pt);
+				appendFields(response, "requirements", pt, FirstRequirement,
+						LastRequirement);
+			}
+		});
+		server.createContext("/crcl", new Endpoint() {
+			@Override
+			void handle(Map<String, Object> request, StringBuilder response) {
+				Patient pt = readPatient(request);
+				if (!request.containsKey("sCr"))
+					throw new IllegalArgumentException("sCr is required");
+				Object method = request.get("method");
+				double crcl = TPNCalculator.calculateCrCl(pt, pt.sCr,
+						method == null ? "CG" : method.toString());
+				response.append("\"crcl\":");
+				Json.appendNumber(response, crcl);
+			}
+		});
+		server.createContext("/orders", new Endpoint() {
+			@Override
+			void handle(Map<String, Object> request, StringBuilder response) {
+				Patient pt = prepare(request);
+				MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+				appendOrder(response, order, pt);
+			}
+		});
+		server.createContext("/alerts", new Endpoint() {
+			@Override
+			void handle(Map<String, Object> request, StringBuilder response) {
+				ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+				Patient pt = prepare(request);
+				MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+				AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+						kb.newAlertSet());
+				appendOrder(response, order, pt);
+				response.append(',');
+				appendAlerts(response, alerts);
+			}
+		});
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		if (args.length > 1)
+			new ReferenceKBWatcher(new File(args[1]),
+					e -> System.err.println("The KB is not reloaded: " + e));
+		else
+			RecommendOrderGen.getReferenceKB();
+		TPNService service = new TPNService(port);
+		service.start();
+		System.out.println("TPN service is listening on port " + port);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @param delay
+	 *            seconds to wait for the running requests
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+	}
+
+	/**
+	 * @return the requirement cache shared by all the requests, e.g. for its hit rate
+	 */
+	public static RequirementCache getRequirementCache() {
+		return Cache;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * One virtual thread per request if the JVM has them, otherwise a fixed pool (never a thread per connection)
+	 */
+	static ExecutorService newRequestExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Runtime.getRuntime()
+					.availableProcessors() * 4);
+		}
+	}
+
+	private static Patient readPatient(Map<String, Object> request) {
+		Patient pt = new Patient(number(request, "age"), (int) number(
+				request, "gender"), positive(request, "weight"), positive(
+				request, "height"));
+		if (request.containsKey("stressor"))
+			pt.stressor = number(request, "stressor");
+		if (request.containsKey("ivType"))
+			pt.ivType = (int) number(request, "ivType");
+		if (request.containsKey("sCr"))
+			pt.setSCr(number(request, "sCr"));
+		if (request.containsKey("otherFluid_ml"))
+			pt.setOtherFluidVolume(number(request, "otherFluid_ml"));
+		return pt;
+	}
+
+	/**
+	 * Calculate the requirements and the recommended input, then apply the adjustments in "inputs"
+	 */
+	@SuppressWarnings("unchecked")
+	private static Patient prepare(Map<String, Object> request) {
+		Patient pt = readPatient(request);
+		Cache.calWithoutLab(pt);
+		if (pt.sCr != TPNCalculator.NotSpecified)
+			TPNCalculator.calculateCrCl(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		Object inputs = request.get("inputs");
+		if (inputs == null)
+			return pt;
+		if (!(inputs instanceof Map))
+			throw new IllegalArgumentException("inputs should be an object");
+		Map<String, Object> adjustments = (Map<String, Object>) inputs;
+		InputUpdate update = new InputUpdate(pt);
+		// an unknown input throws IllegalArgumentException
+		for (String name : adjustments.keySet())
+			update.set(name, number(adjustments, name));
+		update.applyInput();
+		return pt;
+	}
+
+	private static double number(Map<String, Object> request, String name) {
+		Object value = request.get(name);
+		if (!(value instanceof Double))
+			throw new IllegalArgumentException(name
+					+ " is required and should be a number");
+		return (Double) value;
+	}
+
+	private static double positive(Map<String, Object> request, String name) {
+		double value = number(request, name);
+		if (!(value > 0) || Double.isInfinite(value))
+			throw new IllegalArgumentException(name + " should be positive");
+		return value;
+	}
+
+	private static void appendFields(StringBuilder sb, String name,
+			Patient pt, int from, int to) {
+		Json.appendString(sb, name);
+		sb.append(":{");
+		for (int i = from; i <= to; i++) {
+			if (i > from)
+				sb.append(',');
+			Json.appendString(sb, PatientFields.nameOf(i));
+			sb.append(':');
+			Json.appendNumber(sb, PatientFields.get(pt, i));
+		}
+		sb.append('}');
+	}
+
+	private static void appendOrder(StringBuilder sb, MedicationOrder order,
+			Patient pt) {
+		sb.append("\"order\":{");
+		for (int i = 0; i < order.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+			Json.appendString(sb, Integer.toString(order.getCode(i)));
+			sb.append(':');
+			Json.appendNumber(sb, order.getMl(i));
+		}
+		sb.append("},");
+		appendFields(sb, "metrics", pt, FirstOutput, LastOutput);
+	}
+
+	private static void appendAlerts(StringBuilder sb, AlertSet alerts) {
+		// one entry per variable, at its most severe level
+		List<String> warning = alerts.getWarningVariables(), unacceptable = alerts
+				.getUnacceptableVariables();
+		sb.append("\"alerts\":{\"warning\":");
+		appendNames(sb, warning);
+		sb.append(",\"unacceptable\":");
+		appendNames(sb, unacceptable);
+		sb.append(",\"messages\":{");
+		appendMessages(sb, alerts, warning,
+				appendMessages(sb, alerts, unacceptable, true));
+		sb.append("}}");
+	}
+
+	/**
+	 * @return whether no message has been appended yet
+	 */
+	private static boolean appendMessages(StringBuilder sb, AlertSet alerts,
+			List<String> names, boolean first) {
+		for (String name : names) {
+			String message = alerts.getMessage(name);
+			if (message.length() == 0)
+				continue;
+			if (!first)
+				sb.append(',');
+			first = false;
+			Json.appendString(sb, name);
+			sb.append(':');
+			Json.appendString(sb, message);
+		}
+		return first;
+	}
+
+	private static void appendNames(StringBuilder sb, List<String> names) {
+		sb.append('[');
+		for (int i = 0; i < names.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+			Json.appendString(sb, names.get(i));
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * Reads the JSON request, lets the subclass fill the response object, and turns errors into status codes
+	 */
+	private static abstract class Endpoint implements HttpHandler {
+
+		abstract void handle(Map<String, Object> request,
+				StringBuilder response);
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			int status = 200;
+			StringBuilder response = new StringBuilder("{");
+			try {
+				if (!"POST".equals(exchange.getRequestMethod())) {
+					status = 405;
+					response.append("\"error\":\"use POST\"");
+				} else {
+					handle(Json.parseObject(read(exchange.getRequestBody())),
+							response);
+				}
+			} catch (RequestTooLarge e) {
+				status = 413;
+				response.setLength(1);
+				response.append("\"error\":");
+				Json.appendString(response, e.getMessage());
+			} catch (IllegalArgumentException e) {
+				status = 400;
+				response.setLength(1);
+				response.append("\"error\":");
+				Json.appendString(response, String.valueOf(e.getMessage()));
+			} catch (RuntimeException e) {
+				status = 500;
+				response.setLength(1);
+				response.append("\"error\":");
+				Json.appendString(response, e.toString());
+			}
+			response.append('}');
+			byte[] bytes = response.toString().getBytes(UTF8);
+			exchange.getResponseHeaders().set("Content-Type",
+					"application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}
+
+		private static String read(InputStream in) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			try {
+				while ((n = in.read(buffer)) > 0) {
+					if (bytes.size() + n > MaxRequestBytes)
+						throw new RequestTooLarge();
+					bytes.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			return new String(bytes.toByteArray(), UTF8);
+		}
+	}
+
+	private static final class RequestTooLarge extends
+			IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+
+		RequestTooLarge() {
+			super("the request body is larger than " + MaxRequestBytes
+					+ " bytes");
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.BatchDosageAlerts;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertBatch;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test the bitset based AlertSet against the list based Alerts
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestAlertSet {
+
+	@org.junit.Test
+	public void testPromotion() {
+		AlertSet alerts = new AlertSet(new String[] { "a", "b", "c" },
+				new String[] { "wa", "wb", "wc" }, new String[] { "ua", "ub",
+						"uc" });
+		alerts.addWarning(0);
+		alerts.addWarning(2);
+		alerts.addUnacceptable(2);
+		assertTrue(alerts.isWarning(0));
+		assertFalse(alerts.isWarning(2));
+		assertTrue(alerts.isUnacceptable(2));
+		assertTrue(alerts.getMessage("c").equals("uc"));
+		assertTrue(alerts.getMessage(1).equals(""));
+		assertTrue(alerts.toString().equals(alerts.toAlerts().toString()));
+		alerts.clear();
+		assertTrue(alerts.isEmpty());
+	}
+
+	@org.junit.Test
+	public void testDosageAlerts() {
+		Patient pt = new Patient(35, 1, 60, 175);
+		pt.otherFluid_ml = 1000;
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		RecommendOrderGen.calculate(pt);
+		pt.inputKPerKg = 3.5;
+
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		assertTrue(alerts.warningCount() == 3);
+		assertTrue(alerts.unacceptableCount() == 1);
+		assertTrue(alerts.toString().equals(
+				RecommendOrderGen.dosageAlerts(pt, kb).toString()));
+	}
+
+	@org.junit.Test
+	public void testBatch() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Random random = new Random(11);
+		Patient[] patients = new Patient[200];
+		for (int i = 0; i < patients.length; i++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 90,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			pt.inputKPerKg = random.nextDouble() * 5;
+			pt.inputZn = random.nextDouble() * 40;
+			RecommendOrderGen.calculate(pt);
+			patients[i] = pt;
+		}
+		AlertBatch batch = BatchDosageAlerts.checkAlerts(patients, kb);
+		AlertSet alerts = kb.newAlertSet();
+		for (int i = 0; i < patients.length; i++) {
+			RecommendOrderGen.checkAlerts(patients[i], kb, alerts);
+			assertTrue(alerts.toString().equals(batch.get(i).toString()));
+		}
+	}
+
+}
@@ -0,0 +1,56 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.ApplicabilityIndex;
+import edu.utah.bmi.tpn.objects.IVTYPE;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * Compare the ApplicabilityIndex with the original age/gender/iv type filters
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestApplicabilityIndex {
+
+	@org.junit.Test
+	public void test() {
+		Random random = new Random(7);
+		double[] ages = { -1, 0, 0.5, 1, 3, 13, 18, 150 };
+		int[] values = { -1, 0, 1, 2 };
+		IngredientReferenceRange[] ranges = new IngredientReferenceRange[150];
+		for (int i = 0; i < ranges.length; i++) {
+			IngredientReferenceRange irr = new IngredientReferenceRange("",
+					"inputZn", "", "", "", "", "", "", "", "");
+			irr.ageLowerBound = ages[random.nextInt(ages.length)];
+			irr.ageHigherBound = ages[random.nextInt(ages.length)];
+			irr.gender = values[random.nextInt(3)];
+			irr.ivType = values[random.nextInt(values.length)];
+			ranges[i] = irr;
+		}
+		ApplicabilityIndex index = new ApplicabilityIndex(ranges);
+		double[] patientAges = { 0, 0.1, 0.5, 0.7, 1, 2, 3, 12, 13, 17, 18,
+				40, 150, 200, Double.NaN };
+		for (double age : patientAges) {
+			for (int gender = -1; gender <= 3; gender++) {
+				for (int ivType = -1; ivType <= 3; ivType++) {
+					int offset = index.offset(age, gender, ivType);
+					for (int r = 0; r < ranges.length; r++) {
+						IngredientReferenceRange irr = ranges[r];
+						boolean expected = (irr.ageLowerBound == -1 || age > irr.ageLowerBound)
+								&& (irr.ageHigherBound == -1 || age <= irr.ageHigherBound)
+								&& ((ivType == irr.ivType || irr.ivType == IVTYPE.NotSpecified) && irr.ivType != IVTYPE.Deep)
+								&& (gender == irr.gender || irr.gender == -1);
+						assertTrue("age " + age + " gender " + gender
+								+ " ivType " + ivType + " range " + r,
+								index.isApplicable(offset, r) == expected);
+					}
+				}
+			}
+		}
+	}
+
+}
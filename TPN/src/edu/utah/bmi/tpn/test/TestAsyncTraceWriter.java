@@ -0,0 +1,173 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.trace.AsyncTraceWriter;
+import edu.utah.bmi.tpn.trace.Trace;
+import edu.utah.bmi.tpn.trace.TraceSink;
+
+/**
+ * Test that a disabled sink doesn't receive any event, that the events are written in the order they are reported,
+ * and that every event is either written or counted as dropped, when the queue is full or the writer is closing
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestAsyncTraceWriter {
+
+	@org.junit.Test
+	public void testDisabled() {
+		CountingSink disabled = new CountingSink(false);
+		CountingSink enabled = new CountingSink(true);
+		try {
+			Trace.setSink(disabled);
+			calculate();
+			Trace.setSink(enabled);
+			calculate();
+		} finally {
+			Trace.setSink(Trace.Disabled);
+		}
+		assertTrue(disabled.events.get() == 0);
+		assertTrue(enabled.events.get() > 0);
+	}
+
+	@org.junit.Test
+	public void testOrder() throws IOException {
+		StringWriter out = new StringWriter();
+		// room for every event
+		AsyncTraceWriter writer = new AsyncTraceWriter(out, 16384);
+		for (int i = 0; i < 10000; i++)
+			writer.calculated("test", "v" + i, i);
+		writer.close();
+		assertTrue(writer.getDropped() == 0);
+		String[] lines = out.toString().split("\n");
+		assertTrue(lines.length == 10000);
+		for (int i = 0; i < lines.length; i++) {
+			String[] columns = lines[i].split("\t");
+			assertTrue(columns[1].equals("calculated"));
+			assertTrue(columns[3].equals("v" + i));
+			assertTrue(Double.parseDouble(columns[4]) == i);
+		}
+		assertTrue(!writer.isEnabled());
+		writer.medication(1, 1);
+		assertTrue(writer.getDropped() == 1);
+	}
+
+	@org.junit.Test
+	public void testFullQueue() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final StringWriter out = new StringWriter();
+		// blocks the writer thread until the queue has filled up
+		Writer blocking = new Writer() {
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				out.write(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		AsyncTraceWriter writer = new AsyncTraceWriter(blocking, 4);
+		IngredientReferenceRange irr = RecommendOrderGen.getReferenceKB()
+				.getRange("inputZn");
+		for (int i = 0; i < 100; i++)
+			writer.ruleChecked(irr, i, TraceSink.Warning);
+		assertTrue(writer.getDropped() > 0);
+		release.countDown();
+		writer.close();
+		assertTrue(lines(out) + writer.getDropped() == 100);
+	}
+
+	@org.junit.Test
+	public void testClose() throws Exception {
+		for (int n = 0; n < 20; n++) {
+			StringWriter out = new StringWriter();
+			final AsyncTraceWriter writer = new AsyncTraceWriter(out, 1024);
+			final AtomicInteger offered = new AtomicInteger();
+			Thread[] threads = new Thread[4];
+			for (int t = 0; t < threads.length; t++) {
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < 2000; i++) {
+							writer.calculated("test", "v", i);
+							offered.incrementAndGet();
+						}
+					}
+				});
+				threads[t].start();
+			}
+			Thread.sleep(1);
+			writer.close();
+			for (Thread thread : threads)
+				thread.join();
+			assertTrue(offered.get() == 8000);
+			// the events reported while closing are counted, none is lost behind the end of the trace
+			assertTrue(lines(out) + writer.getDropped() == 8000);
+		}
+	}
+
+	private static void calculate() {
+		Patient pt = new Patient(2, 1, 12, 85);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		RecommendOrderGen.generateOrder(pt);
+		RecommendOrderGen.checkAlerts(pt);
+	}
+
+	private static int lines(StringWriter out) {
+		String text = out.toString();
+		return text.isEmpty() ? 0 : text.split("\n").length;
+	}
+
+	private static class CountingSink implements TraceSink {
+		private final boolean enabled;
+		final AtomicInteger events = new AtomicInteger();
+
+		CountingSink(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		@Override
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		@Override
+		public void calculated(String stage, String variableName, double value) {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void ruleChecked(IngredientReferenceRange irr, double value,
+				int outcome) {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void medication(int productCode, double ml) {
+			events.incrementAndGet();
+		}
+	}
+
+}
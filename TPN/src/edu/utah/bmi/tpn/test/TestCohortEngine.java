@@ -0,0 +1,150 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.utah.bmi.tpn.cohort.CohortEngine;
+import edu.utah.bmi.tpn.cohort.CohortResult;
+import edu.utah.bmi.tpn.cohort.CohortStats;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that the ordered and unordered cohort runs give every patient the same order and alerts as calculating it
+ * alone, and that the run counts the patients with warnings and unacceptable alerts
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestCohortEngine {
+
+	private static final int Patients = 500;
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		List<Patient> cohort = cohort(new Random(9));
+		List<CohortResult> expected = new ArrayList<CohortResult>();
+		int withWarning = 0, withUnacceptable = 0;
+		for (Patient pt : cohort) {
+			CohortResult result = calculate(pt.copy(), kb);
+			expected.add(result);
+			if (result.alerts.warningCount() > 0)
+				withWarning++;
+			if (result.alerts.unacceptableCount() > 0)
+				withUnacceptable++;
+		}
+		assertTrue(withWarning > 0 && withUnacceptable > 0);
+
+		CohortEngine engine = new CohortEngine(4);
+		try {
+			// ordered, from a list and from an iterator
+			List<Patient> patients = copy(cohort);
+			List<CohortResult> results = new ArrayList<CohortResult>();
+			CohortStats stats = engine.run(patients, results::add, true);
+			assertStats(stats, Patients, withWarning, withUnacceptable);
+			assertTrue(results.size() == Patients);
+			for (int i = 0; i < Patients; i++) {
+				assertTrue(results.get(i).patient == patients.get(i));
+				assertSame(expected.get(i), results.get(i));
+			}
+
+			results.clear();
+			stats = engine.run(copy(cohort).iterator(), results::add, true);
+			assertStats(stats, Patients, withWarning, withUnacceptable);
+			for (int i = 0; i < Patients; i++)
+				assertSame(expected.get(i), results.get(i));
+
+			// unordered, matched back to the source by the patient
+			patients = copy(cohort);
+			Map<Patient, Integer> rows = new IdentityHashMap<Patient, Integer>();
+			for (int i = 0; i < Patients; i++)
+				rows.put(patients.get(i), i);
+			ConcurrentLinkedQueue<CohortResult> unordered = new ConcurrentLinkedQueue<CohortResult>();
+			stats = engine.run(patients, unordered::add, false);
+			assertStats(stats, Patients, withWarning, withUnacceptable);
+			assertTrue(unordered.size() == Patients);
+			for (CohortResult result : unordered)
+				assertSame(expected.get(rows.remove(result.patient)), result);
+			assertTrue(rows.isEmpty());
+		} finally {
+			engine.close();
+		}
+	}
+
+	@org.junit.Test
+	public void testEmpty() {
+		CohortEngine engine = new CohortEngine(2);
+		try {
+			assertTrue(engine.collect(new ArrayList<Patient>()).isEmpty());
+			CohortStats stats = engine.run(new ArrayList<Patient>(),
+					result -> fail("no patient"), false);
+			assertStats(stats, 0, 0, 0);
+			assertTrue(stats.parallelism == 2);
+		} finally {
+			engine.close();
+		}
+	}
+
+	/**
+	 * The pipeline of CohortEngine, step by step for one patient
+	 */
+	private static CohortResult calculate(Patient pt, ReferenceKB kb) {
+		TPNCalculator.calWithoutLab(pt);
+		if (pt.sCr != TPNCalculator.NotSpecified)
+			TPNCalculator.calculateCrCl(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+		AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		return new CohortResult(pt, order, alerts);
+	}
+
+	private static List<Patient> cohort(Random random) {
+		List<Patient> cohort = new ArrayList<Patient>();
+		for (int i = 0; i < Patients; i++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 120,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			if (random.nextBoolean())
+				pt.sCr = 0.2 + random.nextDouble();
+			cohort.add(pt);
+		}
+		return cohort;
+	}
+
+	private static List<Patient> copy(List<Patient> cohort) {
+		List<Patient> copy = new ArrayList<Patient>();
+		for (Patient pt : cohort)
+			copy.add(pt.copy());
+		return copy;
+	}
+
+	private static void assertSame(CohortResult expected, CohortResult actual) {
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(PatientFields.nameOf(f), Double.compare(
+					PatientFields.get(expected.patient, f),
+					PatientFields.get(actual.patient, f)) == 0);
+		assertTrue(expected.order.toString().equals(actual.order.toString()));
+		assertTrue(expected.alerts.toString().equals(actual.alerts.toString()));
+	}
+
+	private static void assertStats(CohortStats stats, int patients,
+			int withWarning, int withUnacceptable) {
+		assertTrue(stats.patients == patients);
+		assertTrue(stats.withWarning == withWarning);
+		assertTrue(stats.withUnacceptable == withUnacceptable);
+	}
+
+}
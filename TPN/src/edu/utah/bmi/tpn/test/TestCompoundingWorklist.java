@@ -0,0 +1,94 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.utah.bmi.tpn.cohort.CompoundingWorklist;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test the totals, the grouping of the bags and the sequence of a compounding worklist
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestCompoundingWorklist {
+
+	@org.junit.Test
+	public void test() {
+		double resolution = 0.1;
+		List<MedicationOrder> orders = new ArrayList<MedicationOrder>();
+		for (int i = 0; i < 300; i++) {
+			// every weight is repeated 3 times, the 2nd one is near-identical to the 1st one
+			double weight = 2 + (i / 3) * 0.5 + (i % 3 == 1 ? 0.0001 : 0);
+			Patient pt = new Patient(i % 3 == 2 ? 5 : 1, 1, weight, 80);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			orders.add(RecommendOrderGen.generateOrder(pt));
+		}
+		CompoundingWorklist worklist = new CompoundingWorklist(resolution);
+		for (int i = 0; i < orders.size(); i++)
+			worklist.add("bag" + i, orders.get(i));
+		assertTrue(worklist.getOrderCount() == orders.size());
+		assertTrue(worklist.getBags().size() < orders.size());
+
+		// exact totals
+		for (int p = 0; p < RecommendOrderGen.MedicationCodes.length; p++) {
+			int code = RecommendOrderGen.MedicationCodes[p];
+			double total = 0;
+			for (MedicationOrder order : orders)
+				total += order.getMl(p);
+			assertTrue(worklist.getTotalMl(code) == total);
+			assertTrue(worklist.getTotals().get(code) == total);
+		}
+
+		// every order is in one bag, whose volumes are its own ones rounded
+		Set<String> labels = new HashSet<String>();
+		for (CompoundingWorklist.Bag bag : worklist.getBags()) {
+			for (String label : bag.getLabels()) {
+				assertTrue(labels.add(label));
+				MedicationOrder order = orders.get(Integer.parseInt(label
+						.substring(3)));
+				for (int p = 0; p < order.size(); p++)
+					assertTrue(Math.abs(bag.getMl(order.getCode(p))
+							- order.getMl(p)) <= resolution / 2 + 1e-9);
+			}
+		}
+		assertTrue(labels.size() == orders.size());
+		// the near-identical orders share a bag
+		CompoundingWorklist.Bag first = worklist.getBags().get(0);
+		assertTrue(first.getLabels().contains("bag0")
+				&& first.getLabels().contains("bag1"));
+
+		// product by product: each product is set up once, the bags of a product from the largest to the smallest
+		List<CompoundingWorklist.Step> steps = worklist.getSteps();
+		Set<Integer> products = new HashSet<Integer>();
+		for (int i = 0; i < steps.size(); i++) {
+			CompoundingWorklist.Step step = steps.get(i);
+			if (i == 0 || step.getCode() != steps.get(i - 1).getCode())
+				assertTrue(products.add(step.getCode()));
+			else
+				assertTrue(step.getMlPerBag() <= steps.get(i - 1)
+						.getMlPerBag());
+		}
+		assertTrue(worklist.getContainerChanges() == products.size() - 1);
+		// the steps of a product add up to its total, within the rounding
+		for (int code : products) {
+			double total = 0;
+			for (CompoundingWorklist.Step step : steps) {
+				if (step.getCode() == code)
+					total += step.getTotalMl();
+			}
+			assertTrue(Math.abs(total - worklist.getTotalMl(code)) <= orders
+					.size() * (resolution / 2 + 1e-9));
+		}
+	}
+
+}
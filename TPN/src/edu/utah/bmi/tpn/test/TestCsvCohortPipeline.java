@@ -0,0 +1,101 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import edu.utah.bmi.tpn.cohort.CohortResult;
+import edu.utah.bmi.tpn.cohort.CohortStats;
+import edu.utah.bmi.tpn.cohort.CsvCohortPipeline;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test the streaming csv pipeline with a small queue, so that the stages have to wait for each other, and that a
+ * patient whose calculation fails only fails its own row
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestCsvCohortPipeline {
+
+	@org.junit.Test
+	public void test() throws IOException {
+		StringBuilder input = new StringBuilder(
+				"gender,age,weight,height,ivType,otherFluid_ml\n");
+		for (int i = 0; i < 500; i++)
+			input.append(i % 2).append(',').append(i % 80).append(',')
+					.append(2 + i % 70).append(',').append(50 + i % 130)
+					.append(",1,100\n");
+		input.append("1,,60,175,,\n");
+
+		StringWriter output = new StringWriter();
+		CohortStats stats = new CsvCohortPipeline(3, 4).run(new StringReader(
+				input.toString()), output);
+		assertTrue(stats.patients == 501);
+
+		String[] lines = output.toString().split("\\r?\\n");
+		assertTrue(lines.length == 502);
+		boolean[] seen = new boolean[501];
+		for (int i = 1; i < lines.length; i++) {
+			String row = lines[i].substring(0, lines[i].indexOf(','));
+			String error = lines[i].substring(lines[i].lastIndexOf(',') + 1);
+			seen[Integer.parseInt(row)] = true;
+			// only the last row is missing the age
+			assertTrue(row.equals("500") == (error.length() > 0));
+		}
+		for (boolean row : seen)
+			assertTrue(row);
+	}
+
+	@org.junit.Test
+	public void testFailingRow() throws IOException {
+		StringBuilder input = new StringBuilder("age,gender,weight,height\n");
+		for (int i = 0; i < 200; i++)
+			input.append(30).append(',').append(i % 2).append(',')
+					.append(10 + i % 50).append(",150\n");
+		// the calculation of every patient of 13 kg fails
+		CsvCohortPipeline pipeline = new CsvCohortPipeline(2, 4) {
+			protected CohortResult calculate(Patient pt, ReferenceKB kb) {
+				if (pt.weight == 13)
+					throw new IllegalStateException("no 13 kg");
+				return super.calculate(pt, kb);
+			}
+		};
+		StringWriter output = new StringWriter();
+		CohortStats stats = pipeline.run(new StringReader(input.toString()),
+				output);
+		assertTrue(stats.patients == 200);
+		String[] lines = output.toString().split("\\r?\\n");
+		assertTrue(lines.length == 201);
+		int failed = 0;
+		for (int i = 1; i < lines.length; i++) {
+			int row = Integer.parseInt(lines[i].substring(0,
+					lines[i].indexOf(',')));
+			String error = lines[i].substring(lines[i].lastIndexOf(',') + 1);
+			assertTrue(lines[i].split(",", -1).length == lines[0]
+					.split(",").length);
+			if (row % 50 == 3) {
+				assertTrue(error, error.contains("no 13 kg"));
+				failed++;
+			} else {
+				assertTrue(error, error.length() == 0);
+			}
+		}
+		assertTrue(failed == 4);
+
+		// every row fails, the run still finishes
+		pipeline = new CsvCohortPipeline(2, 4) {
+			protected CohortResult calculate(Patient pt, ReferenceKB kb) {
+				throw new IllegalStateException("no patient");
+			}
+		};
+		output = new StringWriter();
+		stats = pipeline.run(new StringReader(input.toString()), output);
+		assertTrue(stats.patients == 200);
+		assertTrue(stats.withWarning == 0 && stats.withUnacceptable == 0);
+	}
+
+}
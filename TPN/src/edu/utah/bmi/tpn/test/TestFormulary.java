@@ -0,0 +1,157 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.Formulary;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test that the default formulary gives the same volumes as the label concentrations did when they were coded in
+ * RecommendOrderGen, and that a site's own formulary is compiled or rejected
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestFormulary {
+
+	private static final String Header = "code,name,concentration,kcal/ml,mOsm/ml,dosed by,inputLipid_g,inputProtein_g,inputNa_mEq,inputP_mmol";
+
+	@org.junit.Test
+	public void testDefault() {
+		Formulary formulary = RecommendOrderGen.getFormulary();
+		assertTrue(formulary.size() == 11);
+		assertTrue(formulary.getCode(formulary.getLipid()) == 27370);
+		assertTrue(formulary.getCode(formulary.getProtein()) == 251304);
+		assertTrue(formulary.getCode(formulary.getDextrose()) == 6392);
+		assertTrue(formulary.getConcentration(formulary.getDextrose()) == 70);
+		assertTrue(formulary.indexOf(19769) >= 0);
+		assertTrue(formulary.indexOf(1) == -1);
+
+		Random random = new Random(24);
+		double[] ml = new double[formulary.size()];
+		for (int n = 0; n < 200; n++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 120,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			formulary.volumes(pt, ml);
+			double naPhos = pt.inputP_mmol / 4;
+			assertSame(ml, formulary, 27370, pt.inputLipid_g / 0.2);
+			assertSame(ml, formulary, 12722, pt.inputMg_mEq / 4.06);
+			assertSame(ml, formulary, 3751, pt.inputCa_mEq / 0.465);
+			assertSame(ml, formulary, 19769, naPhos);
+			assertSame(ml, formulary, 17358, pt.inputK_mEq / 2);
+			assertSame(ml, formulary, 251304, pt.inputProtein_g / 0.15);
+			assertSame(ml, formulary, 19726, pt.inputNa_mEq / 4 - naPhos);
+			assertSame(ml, formulary, 17421, 0);
+			assertSame(ml, formulary, 17371, 0);
+			assertSame(ml, formulary, 19699, 0);
+
+			// the osmolarity comes from the mOsm/ml of the products, the same as the per ingredient factors it had
+			MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+			for (int p = 0; p < ml.length; p++)
+				ml[p] = order.getMl(p);
+			double legacy = (pt.protein_g_day * 10 + pt.dextrose_g_day * 5
+					+ pt.inputNa_mEq * 2 + pt.inputP_mmol * 2 + pt.inputMg_mEq
+					+ pt.inputK_mEq * 2 + pt.inputCa_mEq * 1.46
+					+ pt.lipid_ml_day * 0.26) / pt.inputTotalVolume_ml * 1000;
+			assertTrue(Math.abs(pt.threeInOne_mosm_l - legacy) < 1e-9 * legacy);
+			assertTrue(Math.abs(pt.threeInOne_mosm_l - formulary.osmoles(ml)
+					/ pt.inputTotalVolume_ml * 1000) < 1e-9 * legacy);
+			assertTrue(pt.lipid_mosm_l == 0.26);
+		}
+	}
+
+	@org.junit.Test
+	public void testCustom() throws IOException {
+		// sodium chloride 3 mEq/ml, and sodium phosphate with 2 mEq sodium per mmol phosphate
+		Formulary formulary = parse(Header + "\n"
+				+ "1,lipid,20,2,0.26,inputLipid_g,0.2,,,\n"
+				+ "2,sodium chloride,,,6,inputNa_mEq,,,3,\n"
+				+ "3,sodium phosphate,,,12,inputP_mmol,,,8,4\n"
+				+ "4,protein,10,0.4,1,inputProtein_g,,0.1,,\n"
+				+ "5,dextrose,50,1.7,2.5,inputDextrose_perc,,,,\n");
+		assertTrue(formulary.getDextrose() == 4);
+		assertTrue(formulary.getDosingInputs().length == 4);
+		Patient pt = new Patient(30, 1, 10, 80);
+		pt.inputLipid_g = 10;
+		pt.inputNa_mEq = 30;
+		pt.inputP_mmol = 2;
+		pt.inputProtein_g = 5;
+		double[] ml = new double[formulary.size()];
+		formulary.volumes(pt, ml);
+		assertTrue(ml[0] == 50);
+		assertTrue(ml[2] == 0.5);
+		// 30 mEq - 0.5 ml * 8 mEq/ml from the phosphate
+		assertTrue(Math.abs(ml[1] - 26.0 / 3) < 1e-12);
+		assertTrue(ml[3] == 50);
+		assertTrue(formulary.osmoles(ml) == 50 * 0.26 + ml[1] * 6 + 0.5 * 12
+				+ 50 * 1);
+	}
+
+	@org.junit.Test
+	public void testInvalid() throws IOException {
+		String lipid = "1,lipid,20,2,0.26,inputLipid_g,0.2,,,\n";
+		String protein = "4,protein,10,0.4,1,inputProtein_g,,0.1,,\n";
+		String dextrose = "5,dextrose,50,1.7,2.5,inputDextrose_perc,,,,\n";
+		// no dextrose product
+		assertInvalid(Header + "\n" + lipid + protein,
+				"no product is dosed by inputDextrose_perc");
+		// not a Patient field
+		assertInvalid(Header + ",inputSugar\n",
+				"doesn't have any field named: inputSugar");
+		// a missing column
+		assertInvalid(Header + "\n" + lipid
+				+ "4,protein,10,0.4,1,inputProtein_g,,0.1,\n" + dextrose,
+				"test:3: expect 10 columns");
+		// not a number
+		assertInvalid(Header + "\n" + lipid
+				+ "4,protein,ten,0.4,1,inputProtein_g,,0.1,,\n" + dextrose,
+				"not a number: ten");
+		// dosed by an ingredient that it doesn't contain
+		assertInvalid(Header + "\n" + lipid + protein + dextrose
+				+ "2,sodium chloride,,,6,inputNa_mEq,,,,\n",
+				"2 doesn't contain inputNa_mEq");
+		// two products dosed by the same ingredient
+		assertInvalid(Header + "\n" + lipid + protein + dextrose
+				+ "2,sodium chloride,,,6,inputNa_mEq,,,3,\n"
+				+ "6,sodium acetate,,,4,inputNa_mEq,,,2,\n",
+				"inputNa_mEq doses both 2 and 6");
+		// each product brings the ingredient that doses the other one
+		assertInvalid(Header + "\n" + lipid + protein + dextrose
+				+ "2,sodium,,,6,inputNa_mEq,,,3,1\n"
+				+ "3,phosphate,,,12,inputP_mmol,,,2,4\n",
+				"share their ingredients in a cycle");
+	}
+
+	private static Formulary parse(String csv) throws IOException {
+		return Formulary.parse(new StringReader(csv), "test");
+	}
+
+	private static void assertInvalid(String csv, String message)
+			throws IOException {
+		try {
+			parse(csv);
+			fail("should reject:\n" + csv);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+	private static void assertSame(double[] ml, Formulary formulary, int code,
+			double expected) {
+		double actual = ml[formulary.indexOf(code)];
+		assertTrue(code + ": " + actual + " != " + expected,
+				Double.doubleToLongBits(actual) == Double
+						.doubleToLongBits(expected));
+	}
+
+}
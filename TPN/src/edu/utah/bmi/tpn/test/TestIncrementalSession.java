@@ -0,0 +1,100 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.IncrementalSession;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test the incremental recalculation against a full recalculation after every change
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestIncrementalSession {
+
+	private static final String[] Changes = { "inputNaPerKg", "inputKPerKg",
+			"inputClPerKg", "inputAcetPerKg", "inputCaPerKg", "inputPPerKg",
+			"inputMgPerKg", "inputProteinPerKg", "inputLipidPerKg",
+			"inputZn", "inputRanitidine", "inputVolumePerKg",
+			"inputTotalVolume_ml", "inputKcal", "inputDextrose_perc",
+			"pnhours", "lipidhours", "weight", "age" };
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Random random = new Random(17);
+		AlertSet expected = kb.newAlertSet();
+		for (int p = 0; p < 50; p++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 90,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			Patient reference = copy(pt);
+			IncrementalSession session = new IncrementalSession(pt, kb);
+			MedicationOrder order = RecommendOrderGen.generateOrder(reference);
+			RecommendOrderGen.checkAlerts(reference, kb, expected);
+			compare(reference, order, expected, session);
+
+			for (int step = 0; step < 40; step++) {
+				String field = Changes[random.nextInt(Changes.length)];
+				double value = PatientFields.get(reference,
+						PatientFields.indexOf(field))
+						* (0.5 + random.nextDouble());
+				PatientFields.set(reference, PatientFields.indexOf(field),
+						value);
+				session.set(field, value);
+				session.recompute();
+				TPNCalculator.calculateAmounts(reference);
+				order = RecommendOrderGen.generateOrder(reference);
+				RecommendOrderGen.checkAlerts(reference, kb, expected);
+				compare(reference, order, expected, session);
+			}
+		}
+	}
+
+	@org.junit.Test
+	public void testAffectedOnly() {
+		Patient pt = new Patient(35, 1, 60, 175);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		IncrementalSession session = new IncrementalSession(pt);
+		session.recompute();
+		session.set("inputZn", pt.inputZn + 1);
+		session.recompute();
+		// only the dosage checking variables, and the rules that read inputZn_mg_l
+		assertTrue(session.getGroupsRun() == 1);
+		assertTrue(session.getRulesChecked() > 0);
+		assertTrue(session.getRulesChecked() < RecommendOrderGen
+				.getReferenceKB().size() / 4);
+		session.recompute();
+		assertTrue(session.getGroupsRun() == 0);
+	}
+
+	private static void compare(Patient reference, MedicationOrder order,
+			AlertSet expected, IncrementalSession session) {
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(PatientFields.nameOf(f), Double.compare(
+					PatientFields.get(reference, f),
+					PatientFields.get(session.getPatient(), f)) == 0);
+		assertTrue(order.toString().equals(session.getOrder().toString()));
+		assertTrue(expected.toString().equals(session.getAlerts().toString()));
+	}
+
+	private static Patient copy(Patient pt) {
+		PatientBatch batch = new PatientBatch(1);
+		batch.set(0, pt);
+		return batch.get(0);
+	}
+
+}
@@ -0,0 +1,138 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import edu.utah.bmi.tpn.functions.InputSolver;
+import edu.utah.bmi.tpn.functions.InputUpdate;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that the solver clears the violated ranges with the smallest changes, and that its solution is the same as
+ * applying the changes by hand
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestInputSolver {
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		assertTrue(kb.getRange("inputKPerKg").alertingVariableName
+				.equals("inputKPerKg"));
+
+		Patient pt = new Patient(2, 1, 12, 85);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		new InputUpdate(pt).set("inputKPerKg", 5)
+				.set("inputDextrose_perc", 30).apply();
+		AlertSet before = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		assertTrue(before.unacceptableCount() > 0);
+		Patient original = pt.copy();
+
+		InputSolver.Solution solution = new InputSolver(pt, kb).solve();
+		assertTrue(solution.isSolved());
+		assertTrue(solution.getAlerts().unacceptableCount() == 0);
+		Map<String, Double> changes = solution.getChanges();
+		// just below the unacceptable level of potassium (4 mEq/kg per day)
+		double k = changes.get("inputKPerKg");
+		assertTrue(k < 4 && k > 4 * (1 - 1e-6));
+
+		// the same as applying the changes by hand
+		Patient expected = pt.copy();
+		InputUpdate update = new InputUpdate(expected);
+		for (Map.Entry<String, Double> change : changes.entrySet())
+			update.set(change.getKey(), change.getValue());
+		MedicationOrder order = update.apply();
+		AlertSet alerts = RecommendOrderGen.checkAlerts(expected, kb,
+				kb.newAlertSet());
+		assertTrue(order.toString().equals(solution.getOrder().toString()));
+		assertTrue(alerts.toString().equals(solution.getAlerts().toString()));
+
+		// every change is needed: going back a little towards the original value violates its range again
+		for (Map.Entry<String, Double> change : changes.entrySet()) {
+			Patient back = pt.copy();
+			InputUpdate backUpdate = new InputUpdate(back);
+			for (Map.Entry<String, Double> other : changes.entrySet())
+				backUpdate.set(other.getKey(), other.getValue());
+			double from = PatientFields.get(pt,
+					PatientFields.indexOf(change.getKey()));
+			backUpdate.set(change.getKey(), change.getValue()
+					+ (from - change.getValue()) * 0.01);
+			backUpdate.apply();
+			assertTrue(RecommendOrderGen.checkAlerts(back, kb,
+					kb.newAlertSet()).unacceptableCount() > 0);
+		}
+
+		// clear the warnings too
+		InputSolver.Solution strict = new InputSolver(pt, kb).clearWarnings(
+				true).solve();
+		assertTrue(strict.isSolved());
+		assertTrue(strict.getAlerts().isEmpty());
+
+		// the patient itself is never changed
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(Double.compare(PatientFields.get(original, f),
+					PatientFields.get(pt, f)) == 0);
+	}
+
+	@org.junit.Test
+	public void testPeripheral() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		IngredientReferenceRange peripheral = kb
+				.getRange("threeInOne_mosm_l");
+		assertTrue(peripheral.ivType == 0 && peripheral.warning == 900
+				&& peripheral.unacceptable == 950);
+
+		Patient pt = new Patient(2, 1, 12, 85);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		new InputUpdate(pt).setIvType(0).set("inputDextrose_perc", 12)
+				.set("inputZn", 10).apply();
+		AlertSet before = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		int range = ordinal(before, "threeInOne_mosm_l");
+		assertTrue(pt.threeInOne_mosm_l > 950);
+		assertTrue(before.isUnacceptable(range));
+		assertTrue(before.unacceptableCount() == 1);
+
+		InputSolver.Solution solution = new InputSolver(pt, kb).solve();
+		assertTrue(solution.isSolved());
+		// one of the alerting variables of the range, up to just below the unacceptable level
+		assertTrue(solution.getChanges().size() == 1);
+		String name = solution.getChanges().keySet().iterator().next();
+		assertTrue(peripheral.alertingVariableName.contains(name));
+		double mosm = solution.getPatient().threeInOne_mosm_l;
+		assertTrue(mosm < 950 && mosm > 950 * (1 - 1e-6));
+
+		// below the warning level too
+		InputSolver.Solution strict = new InputSolver(pt, kb).clearWarnings(
+				true).solve();
+		assertTrue(strict.isSolved());
+		assertTrue(strict.getPatient().threeInOne_mosm_l <= 900);
+
+		// a central line doesn't check the osmolarity
+		Patient central = pt.copy();
+		new InputUpdate(central).setIvType(1).apply();
+		assertTrue(new InputSolver(central, kb).solve().getChanges().isEmpty());
+	}
+
+	private static int ordinal(AlertSet alerts, String variableName) {
+		for (int i = 0; i < alerts.size(); i++) {
+			if (variableName.equals(alerts.getVariableName(i)))
+				return i;
+		}
+		return -1;
+	}
+
+}
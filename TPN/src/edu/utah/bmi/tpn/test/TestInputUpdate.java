@@ -0,0 +1,138 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.InputUpdate;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that changing several inputs through one InputUpdate gives the same patient as changing them one at a time
+ * through updateInput
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestInputUpdate {
+
+	// the coupled inputs, in the order InputUpdate resolves them
+	private static final String[] Coupled = { "inputVolumePerKg",
+			"inputLipidPerKg", "inputDextrose_perc", "inputProteinPerKg" };
+	private static final String[] Others = { "inputNaPerKg", "inputKPerKg",
+			"inputZn", "pnhours", "lipidhours", "otherFluid_ml" };
+
+	@org.junit.Test
+	public void test() {
+		Random random = new Random(21);
+		for (int p = 0; p < 300; p++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 90,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			RecommendOrderGen.generateOrder(pt);
+			Patient sequential = copy(pt);
+
+			InputUpdate update = new InputUpdate(pt).setIvType(1);
+			for (String name : Coupled) {
+				if (random.nextBoolean())
+					continue;
+				double value = value(pt, name) * (0.5 + random.nextDouble());
+				update.set(name, value);
+				double[] values = inputs(sequential);
+				values[InputUpdate.indexOf(name)] = value;
+				updateInput(sequential, values, 1);
+			}
+			double[] values = inputs(sequential);
+			for (String name : Others) {
+				double value = value(pt, name) * (0.5 + random.nextDouble());
+				update.set(name, value);
+				values[InputUpdate.indexOf(name)] = value;
+			}
+			updateInput(sequential, values, 1);
+			// updateInput doesn't change the iv type
+			sequential.ivType = 1;
+
+			MedicationOrder order = update.apply();
+			MedicationOrder expected = RecommendOrderGen
+					.generateOrder(sequential);
+			for (int f = 0; f < PatientFields.COUNT; f++)
+				assertTrue(PatientFields.nameOf(f), Double.compare(
+						PatientFields.get(sequential, f),
+						PatientFields.get(pt, f)) == 0);
+			assertTrue(pt.ivType == 1);
+			assertTrue(expected.toString().equals(order.toString()));
+		}
+	}
+
+	@org.junit.Test
+	public void testProtein() {
+		Patient pt = new Patient(35, 1, 60, 175);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		double kcal = pt.inputKcal;
+		new InputUpdate(pt).set("inputProteinPerKg", pt.inputProteinPerKg + 1)
+				.applyInput();
+		assertTrue(pt.inputProtein_g == (pt.requiredProteinPerKg + 1) * pt.weight);
+		assertTrue(pt.inputKcal == kcal + pt.weight * 0.6);
+	}
+
+	@org.junit.Test
+	public void testOneCoupledChange() {
+		Patient pt = new Patient(35, 1, 60, 175);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		double[] values = inputs(pt);
+		double lipid = pt.inputLipidPerKg, kcal = pt.inputKcal;
+		values[InputUpdate.indexOf("inputVolumePerKg")] += 10;
+		values[InputUpdate.indexOf("inputLipidPerKg")] += 1;
+		values[InputUpdate.indexOf("inputNaPerKg")] += 1;
+		updateInput(pt, values, 1);
+		// updateInput only applies the volume, the first coupled input that changed
+		assertTrue(pt.inputVolumePerKg == pt.requiredVolumePerKg + 10);
+		assertTrue(pt.inputLipidPerKg == lipid);
+		assertTrue(pt.inputKcal == kcal);
+		assertTrue(pt.inputNaPerKg == pt.requiredNaPerKg + 1);
+		assertTrue(pt.ivType == TPNCalculator.NotSpecified);
+	}
+
+	@org.junit.Test
+	public void testUnknownInput() {
+		try {
+			new InputUpdate(new Patient(35, 1, 60, 175)).set("weight", 70);
+			fail("only the input fields can be updated");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private static double value(Patient pt, String name) {
+		return PatientFields.get(pt, PatientFields.indexOf(name));
+	}
+
+	private static double[] inputs(Patient pt) {
+		double[] values = new double[InputUpdate.InputNames.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = value(pt, InputUpdate.InputNames[i]);
+		return values;
+	}
+
+	private static void updateInput(Patient pt, double[] v, int ivType) {
+		TPNCalculator.updateInput(pt, v[0], v[1], v[2], v[3], v[4], v[5],
+				v[6], v[7], v[8], v[9], v[10], v[11], v[12], v[13], v[14],
+				v[15], v[16], v[17], v[18], v[19], v[20], v[21], v[22], v[23],
+				v[24], v[25], v[26], ivType);
+	}
+
+	private static Patient copy(Patient pt) {
+		PatientBatch batch = new PatientBatch(1);
+		batch.set(0, pt);
+		return batch.get(0);
+	}
+
+}
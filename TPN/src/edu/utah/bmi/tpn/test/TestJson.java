@@ -0,0 +1,92 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.utah.bmi.tpn.service.Json;
+
+/**
+ * Test the JSON reader/writer of the calculation service
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestJson {
+
+	@org.junit.Test
+	public void testParse() {
+		Map<String, Object> map = Json
+				.parseObject(" {\"age\": 35, \"name\":\"a\\\"b\\u0041\", \"ok\":true,"
+						+ " \"none\":null, \"list\":[1, -2.5e1, []], \"inputs\":{}} ");
+		assertTrue(map.get("age").equals(35.0));
+		assertTrue(map.get("name").equals("a\"bA"));
+		assertTrue(map.get("ok") == Boolean.TRUE);
+		assertTrue(map.containsKey("none") && map.get("none") == null);
+		List<?> list = (List<?>) map.get("list");
+		assertTrue(list.get(0).equals(1.0) && list.get(1).equals(-25.0));
+		assertTrue(((List<?>) list.get(2)).isEmpty());
+		assertTrue(((Map<?, ?>) map.get("inputs")).isEmpty());
+		assertTrue(Json.parse("[[[]]]").equals(
+				Arrays.asList(Arrays.asList(Arrays.asList()))));
+	}
+
+	@org.junit.Test
+	public void testInvalid() {
+		String[] invalid = { "", "{", "{\"a\":}", "{\"a\":1,}", "[1 2]",
+				"{a:1}", "tru", "1x", "\"\\u12\"", "{} {}" };
+		for (String text : invalid)
+			assertInvalid(text, "Invalid JSON");
+		try {
+			Json.parseObject("[1]");
+			fail("an array is not an object");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("object"));
+		}
+	}
+
+	@org.junit.Test
+	public void testDepth() {
+		assertTrue(Json.parse(nested(Json.MaxDepth)) instanceof List);
+		assertInvalid(nested(Json.MaxDepth + 1), "nested deeper");
+		// deep enough to overflow the stack of a reader without a limit
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			deep.append("{\"a\":[");
+		assertInvalid(deep.toString(), "nested deeper");
+	}
+
+	@org.junit.Test
+	public void testWrite() {
+		StringBuilder sb = new StringBuilder();
+		Json.appendString(sb, "a\"\\\n\u0001");
+		sb.append(',');
+		Json.appendNumber(sb, Double.NaN);
+		sb.append(',');
+		Json.appendNumber(sb, 1.5);
+		assertTrue(sb.toString().equals("\"a\\\"\\\\\\n\\u0001\",null,1.5"));
+		assertTrue(Json.parse("[" + sb + "]").equals(
+				Arrays.asList("a\"\\\n\u0001", null, 1.5)));
+	}
+
+	private static String nested(int depth) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++)
+			sb.append('[');
+		for (int i = 0; i < depth; i++)
+			sb.append(']');
+		return sb.toString();
+	}
+
+	private static void assertInvalid(String text, String message) {
+		try {
+			Json.parse(text);
+			fail("should reject: " + text);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(message));
+		}
+	}
+
+}
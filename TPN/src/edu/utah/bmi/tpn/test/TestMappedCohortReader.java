@@ -0,0 +1,113 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.utah.bmi.tpn.cohort.MappedCohortReader;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+
+/**
+ * Test that the memory-mapped reader parses the same values as Double.parseDouble, whatever the ranges are, and
+ * that reading in chunks gives the same rows as one batch
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestMappedCohortReader {
+
+	@org.junit.Test
+	public void test() throws IOException {
+		Random random = new Random(3);
+		int rows = 5000;
+		String[][] cells = new String[rows][];
+		File file = File.createTempFile("cohort", ".csv");
+		file.deleteOnExit();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+				"UTF-8");
+		writer.write("weight,age,gender,height,sCr,otherFluid_ml\r\n");
+		for (int i = 0; i < rows; i++) {
+			cells[i] = new String[] { number(random), number(random),
+					Integer.toString(random.nextInt(2)), number(random),
+					random.nextBoolean() ? "" : number(random), number(random) };
+			writer.write(String.join(",", cells[i]));
+			writer.write(i % 2 == 0 ? "\n" : "\r\n");
+			if (i % 1000 == 0)
+				writer.write("\n");
+		}
+		writer.close();
+
+		for (int threads = 1; threads <= 7; threads += 3) {
+			PatientBatch batch = new MappedCohortReader(threads).read(file);
+			assertTrue(batch.size == rows);
+			for (int i = 0; i < rows; i++)
+				assertRow(cells[i], batch, i);
+		}
+
+		// 4 KB chunks
+		final Map<Long, PatientBatch> chunks = new ConcurrentHashMap<Long, PatientBatch>();
+		long read = new MappedCohortReader(3).read(file, 4096,
+				(chunk, firstRow) -> chunks.put(firstRow, chunk));
+		assertTrue(read == rows);
+		assertTrue(chunks.size() > file.length() / 4096 / 2);
+		int row = 0;
+		while (row < rows) {
+			PatientBatch chunk = chunks.remove((long) row);
+			assertTrue("no chunk from row " + row, chunk != null);
+			// about 4 KB of lines of at least 20 bytes
+			assertTrue(chunk.size > 0 && chunk.size <= 4096 / 20 + 1);
+			for (int i = 0; i < chunk.size; i++)
+				assertRow(cells[row + i], chunk, i);
+			row += chunk.size;
+		}
+		assertTrue(chunks.isEmpty());
+
+		try {
+			new MappedCohortReader(2).read(file, 1 << 20, (chunk, firstRow) -> {
+				throw new IOException("consumer");
+			});
+			fail("the consumer's exception should be thrown");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().equals("consumer"));
+		}
+	}
+
+	private static void assertRow(String[] cells, PatientBatch batch, int i) {
+		assertTrue(same(cells[0], batch.column("weight")[i]));
+		assertTrue(same(cells[1], batch.column("age")[i]));
+		assertTrue(batch.gender[i] == Integer.parseInt(cells[2]));
+		assertTrue(same(cells[3], batch.column("height")[i]));
+		assertTrue(cells[4].length() == 0 ? batch.column("sCr")[i] == -1
+				: same(cells[4], batch.column("sCr")[i]));
+		assertTrue(same(cells[5], batch.column("otherFluid_ml")[i]));
+		assertTrue(batch.column("stressor")[i] == 1.3);
+		assertTrue(batch.ivType[i] == -1);
+	}
+
+	private static boolean same(String text, double value) {
+		return Double.compare(Double.parseDouble(text), value) == 0;
+	}
+
+	private static String number(Random random) {
+		switch (random.nextInt(5)) {
+		case 0:
+			return Integer.toString(random.nextInt(200));
+		case 1:
+			return String.format("%.2f", random.nextDouble() * 200);
+		case 2:
+			return Double.toString(random.nextDouble() * 200);
+		case 3:
+			return Double.toString(random.nextDouble() * 1e-5);
+		default:
+			return "0." + random.nextInt(1000000);
+		}
+	}
+
+}
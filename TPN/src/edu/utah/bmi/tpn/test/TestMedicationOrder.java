@@ -0,0 +1,62 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Generate orders of different patients in parallel, and compare them with the single threaded calculate()
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestMedicationOrder {
+
+	private static Patient newPatient(int i) {
+		Patient pt = new Patient(i % 40, i % 2, 2 + i % 70, 50 + i % 130);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		return pt;
+	}
+
+	@org.junit.Test
+	public void test() throws Exception {
+		Patient pt = newPatient(35);
+		RecommendOrderGen.calculate(pt);
+		MedicationOrder order = RecommendOrderGen.generateOrder(newPatient(35));
+		assertTrue(order.getMlOfProduct(27370) == RecommendOrderGen.med27370);
+		assertTrue(order.getMlOfProduct(6392) == RecommendOrderGen.med6392);
+		assertTrue(order.getMlOfProduct(19726) == RecommendOrderGen.med19726);
+		assertTrue(order.toMap().get(251304) == RecommendOrderGen.med251304);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<MedicationOrder>> futures = new ArrayList<Future<MedicationOrder>>();
+		for (int i = 0; i < 400; i++) {
+			final int id = i;
+			futures.add(executor.submit(new Callable<MedicationOrder>() {
+				@Override
+				public MedicationOrder call() {
+					return RecommendOrderGen.generateOrder(newPatient(id));
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++) {
+			MedicationOrder expected = RecommendOrderGen
+					.generateOrder(newPatient(i));
+			assertTrue(futures.get(i).get().toString()
+					.equals(expected.toString()));
+		}
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,90 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that the output metrics of a batch are bit-identical to the single patient calculation, whichever kernel is
+ * in use (run with and without "--add-modules jdk.incubator.vector"), for ranges that don't start or end on a
+ * vector boundary and for inputs that lead to 0, infinite or NaN metrics
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestMetricsKernel {
+
+	private static final String VectorKernel = "edu.utah.bmi.tpn.functions.VectorMetricsKernel";
+
+	@org.junit.Test
+	public void test() {
+		// the vectorized kernel is used whenever it's compiled and its module is added, unless it's turned off
+		boolean vector = !"false".equals(System.getProperty("tpn.vector"))
+				&& ModuleLayer.boot().findModule("jdk.incubator.vector")
+						.isPresent() && isCompiled(VectorKernel);
+		assertTrue(RecommendOrderGen.isVectorized() == vector);
+		Random random = new Random(23);
+		Patient[] patients = new Patient[101];
+		for (int i = 0; i < patients.length; i++) {
+			Patient pt = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 120,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			pt.otherFluid_ml = random.nextDouble() * 500;
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			switch (i % 7) {
+			case 1:
+				pt.pnhours = 0;
+				break;
+			case 2:
+				pt.inputCa_mEq = 0;
+				pt.inputP_mmol = 0;
+				break;
+			case 3:
+				pt.inputProtein_g = 0;
+				break;
+			case 4:
+				pt.lipidhours = 0;
+				pt.inputTotalVolume_ml = 0;
+				break;
+			}
+			patients[i] = pt;
+		}
+		PatientBatch batch = PatientBatch.of(patients);
+		double[][] ml = RecommendOrderGen.newMedicationColumns(batch.size);
+		RecommendOrderGen.generateOrders(batch, ml, 0, 3);
+		RecommendOrderGen.generateOrders(batch, ml, 3, 70);
+		RecommendOrderGen.generateOrders(batch, ml, 70, batch.size);
+
+		for (int i = 0; i < patients.length; i++) {
+			MedicationOrder order = RecommendOrderGen
+					.generateOrder(patients[i]);
+			Patient row = batch.get(i);
+			for (int f = 0; f < PatientFields.COUNT; f++) {
+				assertTrue(PatientFields.nameOf(f), Double.compare(
+						PatientFields.get(patients[i], f),
+						PatientFields.get(row, f)) == 0);
+			}
+			for (int p = 0; p < order.size(); p++)
+				assertTrue(Double.compare(order.getMl(p), ml[p][i]) == 0);
+		}
+	}
+
+	private static boolean isCompiled(String className) {
+		try {
+			Class.forName(className, false,
+					TestMetricsKernel.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+}
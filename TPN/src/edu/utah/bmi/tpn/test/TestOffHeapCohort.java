@@ -0,0 +1,67 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.cohort.CohortEngine;
+import edu.utah.bmi.tpn.cohort.CohortResult;
+import edu.utah.bmi.tpn.cohort.CohortStats;
+import edu.utah.bmi.tpn.cohort.OffHeapCohort;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that processing an off-heap cohort in place gives the same results as processing Patient objects
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestOffHeapCohort {
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		// more than one segment
+		int size = OffHeapCohort.SegmentRows + 1000;
+		OffHeapCohort cohort = new OffHeapCohort(size, kb);
+		Random random = new Random(5);
+		for (int i = 0; i < size; i++)
+			cohort.append(randomPatient(random));
+
+		CohortEngine engine = new CohortEngine(4);
+		CohortStats stats = engine.run(cohort);
+		engine.close();
+		assertTrue(stats.patients == size);
+
+		random = new Random(5);
+		Patient row = new Patient(0, 0, 0, 0);
+		for (int i = 0; i < size; i++) {
+			CohortResult result = CohortEngine.process(randomPatient(random),
+					kb);
+			cohort.read(i, row);
+			for (int f = 0; f < PatientFields.COUNT; f++)
+				assertTrue(Double.compare(PatientFields.get(result.patient, f),
+						PatientFields.get(row, f)) == 0);
+			assertTrue(result.order.toString().equals(
+					cohort.getOrder(i).toString()));
+			assertTrue(result.alerts.toString().equals(
+					cohort.readAlerts(i).toString()));
+			assertTrue(cohort.hasUnacceptable(i) == (result.alerts
+					.unacceptableCount() > 0));
+		}
+	}
+
+	private static Patient randomPatient(Random random) {
+		Patient pt = new Patient(random.nextDouble() * 80, random.nextInt(2),
+				0.5 + random.nextDouble() * 90, 40 + random.nextDouble() * 150,
+				random.nextInt(3) - 1);
+		if (random.nextBoolean())
+			pt.setSCr(0.3 + random.nextDouble());
+		pt.setOtherFluidVolume(random.nextDouble() * 300);
+		return pt;
+	}
+
+}
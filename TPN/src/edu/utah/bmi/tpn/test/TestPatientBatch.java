@@ -0,0 +1,66 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.BatchDosageAlerts;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertBatch;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientBatch;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test the column based batch calculation against the single patient calculation
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestPatientBatch {
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Random random = new Random(7);
+		Patient[] patients = new Patient[300];
+		for (int i = 0; i < patients.length; i++) {
+			patients[i] = new Patient(random.nextDouble() * 80,
+					random.nextInt(2), 0.5 + random.nextDouble() * 120,
+					40 + random.nextDouble() * 150, random.nextInt(3) - 1);
+			patients[i].otherFluid_ml = random.nextDouble() * 500;
+		}
+		PatientBatch batch = PatientBatch.of(patients);
+		// calculate the 1st half and the 2nd half separately
+		int half = batch.size / 2;
+		TPNCalculator.calWithoutLab(batch, 0, half);
+		TPNCalculator.calWithoutLab(batch, half, batch.size);
+		TPNCalculator.useRecommendedInput(batch, 0, batch.size);
+		double[][] ml = RecommendOrderGen.generateOrders(batch);
+		AlertBatch alertBatch = BatchDosageAlerts.checkAlerts(batch, kb);
+
+		AlertSet alerts = kb.newAlertSet();
+		for (int i = 0; i < patients.length; i++) {
+			Patient pt = patients[i];
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+			RecommendOrderGen.checkAlerts(pt, kb, alerts);
+
+			Patient row = batch.get(i);
+			for (int f = 0; f < PatientFields.COUNT; f++) {
+				assertTrue(PatientFields.nameOf(f), Double.compare(
+						PatientFields.get(pt, f), PatientFields.get(row, f)) == 0);
+			}
+			for (int p = 0; p < order.size(); p++)
+				assertTrue(Double.compare(order.getMl(p), ml[p][i]) == 0);
+			assertTrue(alerts.toString().equals(
+					alertBatch.get(i).toString()));
+		}
+	}
+
+}
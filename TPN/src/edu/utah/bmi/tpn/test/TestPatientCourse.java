@@ -0,0 +1,215 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.PatientCourse;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.ClinicianInput;
+import edu.utah.bmi.tpn.objects.Demographics;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that every day of a course is the same as a full recalculation from the day's demographics and the input
+ * carried from the day before, and that the unchanged records are shared
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestPatientCourse {
+
+	private static final String[] Changes = { "inputNaPerKg", "inputKPerKg",
+			"inputCaPerKg", "inputPPerKg", "inputProteinPerKg",
+			"inputLipidPerKg", "inputZn", "inputVolumePerKg",
+			"inputTotalVolume_ml", "pnhours", "otherFluid_ml" };
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Random random = new Random(25);
+		AlertSet expected = kb.newAlertSet();
+		for (int p = 0; p < 20; p++) {
+			double age = random.nextDouble() * 60, weight = 0.5 + random
+					.nextDouble() * 90, height = 40 + random.nextDouble() * 150;
+			int gender = random.nextInt(2), ivType = random.nextInt(3) - 1;
+			double sCr = -1;
+			Demographics demographics = new Demographics(age, gender, weight,
+					height, 1.3, sCr, ivType);
+			PatientCourse course = new PatientCourse(demographics, 10, kb);
+			ClinicianInput input = TPNCalculator.recommendedInput(
+					demographics,
+					TPNCalculator.calculateRequirements(demographics), 10);
+			input = compare(course.getDay(0), demographics, input, null,
+					Double.NaN, kb, expected);
+
+			for (int d = 1; d < 28; d++) {
+				switch (random.nextInt(6)) {
+				case 0:
+					weight *= 0.95 + random.nextDouble() * 0.1;
+					break;
+				case 1:
+					sCr = 0.2 + random.nextDouble();
+					break;
+				case 2:
+					age += 1.0 / 365;
+					break;
+				case 3:
+					gender = 1 - gender;
+					break;
+				}
+				demographics = new Demographics(age, gender, weight, height,
+						1.3, sCr, ivType);
+				Map<String, Double> changes = new HashMap<String, Double>();
+				if (random.nextInt(3) == 0) {
+					String field = Changes[random.nextInt(Changes.length)];
+					changes.put(field, input.get(field)
+							* (0.5 + random.nextDouble()));
+				}
+				double previousWeight = course.getLatest().getRequirements()
+						.getWeight();
+				PatientCourse.Day day = course.addDay(demographics, changes);
+				input = compare(day, demographics, input, changes,
+						previousWeight, kb, expected);
+			}
+			assertTrue(course.size() == 28);
+			assertTrue(course.getDistinctRecords() < 28 * 4);
+		}
+	}
+
+	@org.junit.Test
+	public void testShared() {
+		Demographics demographics = new Demographics(30, 0, 60, 165);
+		PatientCourse course = new PatientCourse(demographics, 0);
+		// the 2nd day runs again the groups whose output is read back (the dextrose % filled in on the 1st day)
+		course.addDay(new Demographics(30, 0, 60, 165));
+		int records = course.getDistinctRecords();
+		for (int d = 2; d < 10; d++) {
+			PatientCourse.Day day = course.addDay(new Demographics(30, 0, 60,
+					165));
+			assertTrue(day.getGroupsRun() == 0);
+			assertTrue(day.getRulesChecked() == 0);
+		}
+		PatientCourse.Day first = course.getDay(0), latest = course
+				.getLatest();
+		assertTrue(latest.getDemographics() == first.getDemographics());
+		assertTrue(latest.getRequirements() == first.getRequirements());
+		assertTrue(latest.getMetrics() == course.getDay(1).getMetrics());
+		assertTrue(course.getDistinctRecords() == records);
+
+		// a new lab changes the requirements (CrCl) but not the order
+		PatientCourse.Day lab = course.addDay(new Demographics(30, 0, 60,
+				165, 1.3, 0.8, -1));
+		assertTrue(lab.getRequirements() != latest.getRequirements());
+		assertTrue(lab.getRequirements().get("crcl") > 0);
+		assertTrue(lab.getMetrics() == latest.getMetrics());
+		assertTrue(lab.getGroupsRun() == 0);
+
+		// a clinician change keeps the requirements
+		Map<String, Double> changes = new HashMap<String, Double>();
+		changes.put("inputZn", lab.getInput().get("inputZn") + 100);
+		PatientCourse.Day zn = course.addDay(lab.getDemographics(), changes);
+		assertTrue(zn.getRequirements() == lab.getRequirements());
+		assertTrue(zn.getMetrics() != lab.getMetrics());
+		assertTrue(zn.getGroupsRun() == 1);
+		assertTrue(zn.getRulesChecked() < RecommendOrderGen.getReferenceKB()
+				.size() / 4);
+		assertTrue(zn.getOrder().toString()
+				.equals(lab.getOrder().toString()));
+
+		// a new weight recalculates the daily amounts and the order
+		PatientCourse.Day weight = course.addDay(new Demographics(30, 0, 58,
+				165, 1.3, 0.8, -1));
+		assertTrue(weight.getGroupsRun() > 1);
+		assertTrue(weight.getInput().get("inputNaPerKg") == zn.getInput().get(
+				"inputNaPerKg"));
+		assertTrue(weight.getInput().get("inputNa_mEq") != zn.getInput().get(
+				"inputNa_mEq"));
+
+		try {
+			changes.clear();
+			changes.put("weight", 50.0);
+			course.addDay(weight.getDemographics(), changes);
+			fail("weight is not an input field");
+		} catch (IllegalArgumentException e) {
+		}
+		assertTrue(course.size() == 13);
+	}
+
+	@org.junit.Test
+	public void testWeightChange() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		PatientCourse course = new PatientCourse(new Demographics(0.02, 1,
+				3.2, 50), 0, kb);
+		PatientCourse.Day first = course.getLatest();
+		Demographics heavier = new Demographics(0.02, 1, 4.0, 50);
+		PatientCourse.Day day = course.addDay(heavier);
+		double volumePerKg = first.getInput().get("inputVolumePerKg");
+		assertTrue(day.getInput().get("inputVolumePerKg") == volumePerKg);
+		assertTrue(day.getInput().get("inputTotalVolume_ml") == volumePerKg
+				* 4.0);
+		assertTrue(day.getMetrics().get("total_ml_day") == day.getInput().get(
+				"inputTotalVolume_ml"));
+		assertTrue(day.getMetrics().get("na_meq_l") == day.getInput().get(
+				"inputNa_mEq")
+				/ (volumePerKg * 4.0) * 1000);
+		// the same as a fresh calculation at the new weight with the same per kg input
+		compare(day, heavier, first.getInput(), null, 3.2, kb, kb.newAlertSet());
+
+		// the total volume set by the clinician on a weight change day is kept
+		Map<String, Double> changes = new HashMap<String, Double>();
+		changes.put("inputTotalVolume_ml", 380.0);
+		day = course.addDay(new Demographics(0.02, 1, 3.8, 50), changes);
+		assertTrue(day.getInput().get("inputTotalVolume_ml") == 380);
+	}
+
+	/**
+	 * Calculate the day from scratch and compare it with the course
+	 *
+	 * @param previousWeight
+	 *            the dosing weight of the day before
+	 * @return the input of the day
+	 */
+	private static ClinicianInput compare(PatientCourse.Day day,
+			Demographics demographics, ClinicianInput input,
+			Map<String, Double> changes, double previousWeight,
+			ReferenceKB kb, AlertSet expected) {
+		Patient reference = Patient.of(demographics,
+				TPNCalculator.calculateRequirements(demographics), input, null);
+		if (changes != null) {
+			for (Map.Entry<String, Double> change : changes.entrySet())
+				PatientFields.set(reference,
+						PatientFields.indexOf(change.getKey()),
+						change.getValue());
+		}
+		boolean totalVolumeSet = changes != null
+				&& changes.containsKey("inputTotalVolume_ml");
+		boolean volumePerKgSet = changes != null
+				&& changes.containsKey("inputVolumePerKg");
+		if (!Double.isNaN(previousWeight) && !totalVolumeSet
+				&& (volumePerKgSet || reference.weight != previousWeight))
+			reference.inputTotalVolume_ml = reference.inputVolumePerKg
+					* reference.weight;
+		TPNCalculator.calculateAmounts(reference);
+		MedicationOrder order = RecommendOrderGen.generateOrder(reference);
+		RecommendOrderGen.checkAlerts(reference, kb, expected);
+
+		Patient pt = day.toPatient();
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(
+					"day " + day.getDay() + " " + PatientFields.nameOf(f),
+					Double.compare(PatientFields.get(reference, f),
+							PatientFields.get(pt, f)) == 0);
+		assertTrue(order.toString().equals(day.getOrder().toString()));
+		assertTrue(expected.toString().equals(day.getAlerts().toString()));
+		return ClinicianInput.from(reference);
+	}
+
+}
@@ -0,0 +1,54 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.TreeMap;
+
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Make sure PatientFields is in sync with the double fields declared in Patient
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestPatientFields {
+
+	@org.junit.Test
+	public void test() throws IllegalArgumentException, IllegalAccessException {
+		Patient pt = new Patient(35, 1, 60, 175);
+		int count = 0;
+		for (Field field : Patient.class.getDeclaredFields()) {
+			if (field.getType() != double.class
+					|| Modifier.isStatic(field.getModifiers()))
+				continue;
+			int ordinal = PatientFields.indexOf(field.getName());
+			assertTrue(field.getName(), ordinal == count);
+			PatientFields.set(pt, ordinal, count + 0.5);
+			assertTrue(field.getDouble(pt) == count + 0.5);
+			assertTrue(PatientFields.get(pt, ordinal) == count + 0.5);
+			count++;
+		}
+		assertTrue(count == PatientFields.COUNT);
+		assertTrue(PatientFields.indexOf("noSuchField") == PatientFields.NotFound);
+	}
+
+	@org.junit.Test
+	public void testUnknownVariable() {
+		TreeMap<String, IngredientReferenceRange> ranges = new TreeMap<String, IngredientReferenceRange>();
+		IngredientReferenceRange irr = new IngredientReferenceRange("Typo",
+				"inputNa_meq_l", "", "", "", "", "", "154", "154", "");
+		ranges.put(irr.checkingVariableName, irr);
+		try {
+			new ReferenceKB(ranges);
+			fail("unknown variable name should be rejected when the KB is loaded");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+}
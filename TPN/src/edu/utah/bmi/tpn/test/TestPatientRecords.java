@@ -0,0 +1,91 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.ClinicianInput;
+import edu.utah.bmi.tpn.objects.Demographics;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.OrderMetrics;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+import edu.utah.bmi.tpn.objects.Requirements;
+
+/**
+ * Test that calculating through Demographics, Requirements, ClinicianInput and OrderMetrics gives the same patient
+ * as calculating through Patient
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestPatientRecords {
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Random random = new Random(13);
+		for (int i = 0; i < 300; i++) {
+			Demographics demographics = new Demographics(
+					random.nextDouble() * 80, random.nextInt(2),
+					0.5 + random.nextDouble() * 120,
+					40 + random.nextDouble() * 150, 1.3,
+					random.nextBoolean() ? -1 : 0.3 + random.nextDouble(),
+					random.nextInt(3) - 1);
+			double otherFluid = random.nextDouble() * 500;
+
+			Requirements requirements = TPNCalculator
+					.calculateRequirements(demographics);
+			ClinicianInput input = TPNCalculator.recommendedInput(
+					demographics, requirements, otherFluid);
+			OrderMetrics metrics = RecommendOrderGen.generateOrder(
+					demographics, requirements, input);
+			AlertSet alerts = RecommendOrderGen.checkAlerts(demographics,
+					requirements, metrics, kb, kb.newAlertSet());
+
+			Patient pt = demographics.toPatient();
+			pt.setOtherFluidVolume(otherFluid);
+			TPNCalculator.calWithoutLab(pt);
+			if (pt.sCr != -1)
+				TPNCalculator.calculateCrCl(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+			AlertSet expected = RecommendOrderGen.checkAlerts(pt, kb,
+					kb.newAlertSet());
+
+			Patient assembled = Patient.of(demographics, requirements, input,
+					metrics);
+			for (int f = 0; f < PatientFields.COUNT; f++)
+				assertTrue(PatientFields.nameOf(f), Double.compare(
+						PatientFields.get(pt, f),
+						PatientFields.get(assembled, f)) == 0);
+			assertTrue(order.toString().equals(metrics.getOrder().toString()));
+			assertTrue(expected.toString().equals(alerts.toString()));
+			assertTrue(requirements.equals(Requirements.from(pt)));
+			assertTrue(requirements.getWeight() == pt.weight);
+
+			// the records compare the order and the input as well as the metrics
+			assertTrue(order.equals(metrics.getOrder())
+					&& order.hashCode() == metrics.getOrder().hashCode());
+			OrderMetrics same = OrderMetrics.from(pt, order);
+			assertTrue(same.equals(metrics)
+					&& same.hashCode() == metrics.hashCode());
+			double[] ml = new double[order.size()];
+			for (int p = 0; p < ml.length; p++)
+				ml[p] = order.getMl(p);
+			ml[0] += 1;
+			MedicationOrder other = new MedicationOrder(
+					RecommendOrderGen.MedicationCodes,
+					RecommendOrderGen.MedicationNames, ml);
+			assertTrue(!other.equals(order));
+			assertTrue(!OrderMetrics.from(pt, other).equals(metrics));
+			pt.inputZn += 1;
+			assertTrue(!OrderMetrics.from(pt, order).equals(metrics));
+		}
+	}
+
+}
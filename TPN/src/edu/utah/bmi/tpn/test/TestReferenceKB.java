@@ -0,0 +1,137 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.List;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.ReferenceKBSnapshot;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.Alerts;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test that every csv row is a reference range of its own, also when several rows check the same variable
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestReferenceKB {
+
+	private static final String Header = "description,checkingVariableName,alertingVariableName,agelowerbound,agehigherbound,gender,ingredient_code,warning,unacceptable,vitype,guidelineLowerBound,guidelineHigherBound\n";
+
+	@org.junit.Test
+	public void testAgeBands() throws IOException {
+		ReferenceKB kb = ReferenceKB.parse(new StringReader(Header
+				+ "MVl-1 2 (ml),inputVitMix,inputVitMix,18,150,,,20,20,,,10\n"
+				+ "MVl-ped (ml),inputVitMix,inputVitMix,0,18,,,10,12,,,5\n"),
+				"test");
+		assertTrue(kb.size() == 2);
+		assertTrue(kb.getRanges("inputVitMix").size() == 2);
+		assertTrue(kb.getRange("inputVitMix").description
+				.equals("MVl-1 2 (ml)"));
+		assertTrue(kb.getCheckingVariableNames().size() == 1);
+
+		// the pediatric band
+		assertTrue(alerts(kb, 10, 5).isEmpty());
+		AlertSet alerts = alerts(kb, 10, 11);
+		assertTrue(alerts.warningCount() == 1
+				&& alerts.unacceptableCount() == 0);
+		assertTrue(alerts.getMessage("inputVitMix").startsWith("MVl-ped"));
+		assertTrue(alerts(kb, 10, 15).unacceptableCount() == 1);
+		// the adult band
+		assertTrue(alerts(kb, 30, 15).isEmpty());
+		alerts = alerts(kb, 30, 25);
+		assertTrue(alerts.unacceptableCount() == 1);
+		assertTrue(alerts.getMessage("inputVitMix").startsWith("MVl-1 2"));
+
+		// the snapshot keeps both rows
+		File csvFile = File.createTempFile("TestReferenceKB", ".csv");
+		File snapshotFile = ReferenceKBSnapshot.snapshotFileOf(csvFile);
+		try {
+			ReferenceKBSnapshot.write(kb, csvFile, snapshotFile);
+			ReferenceKB snapshot = ReferenceKBSnapshot.read(snapshotFile,
+					csvFile);
+			assertTrue(snapshot.size() == 2);
+			assertTrue(alerts(snapshot, 10, 11).warningCount() == 1);
+			assertTrue(alerts(snapshot, 30, 25).unacceptableCount() == 1);
+		} finally {
+			csvFile.delete();
+			snapshotFile.delete();
+		}
+	}
+
+	@org.junit.Test
+	public void testDefault() throws IOException {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		int rows = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(new File(RecommendOrderGen.ReferenceFile)),
+				ReferenceKB.Encoding));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] cells = line.split(",", -1);
+			if (!line.startsWith("description") && cells.length > 1
+					&& cells[1].length() > 0)
+				rows++;
+		}
+		reader.close();
+		assertTrue(kb.size() == rows);
+		assertTrue(kb.getRanges("inputVitMix").size() == 2);
+		assertTrue(kb.getRanges("inputDextrose_perc").size() == 3);
+		assertTrue(kb.getRanges("inputSugar").isEmpty());
+	}
+
+	@org.junit.Test
+	public void testMostSevere() {
+		// a central line at 40% matches "Central line (dextrose %)" (warning 25) and "Dextrose (concentration %)"
+		// (warning 25, unacceptable 35)
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Patient pt = new Patient(30, 1, 60, 175);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		RecommendOrderGen.calculate(pt);
+		pt.ivType = 1;
+		pt.inputDextrose_perc = 40;
+		AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+				kb.newAlertSet());
+		List<String> unacceptable = alerts.getUnacceptableVariables();
+		assertTrue(unacceptable.indexOf("inputDextrose_perc") == unacceptable
+				.lastIndexOf("inputDextrose_perc"));
+		assertTrue(alerts.isUnacceptable("inputDextrose_perc"));
+		assertTrue(!alerts.getWarningVariables().contains(
+				"inputDextrose_perc"));
+		assertTrue(alerts.getMessage("inputDextrose_perc").equals(
+				"Dextrose (concentration %): above unacceptable level 35.0"));
+		String text = alerts.toString();
+		assertTrue(text.indexOf("inputDextrose_perc") == text
+				.lastIndexOf("inputDextrose_perc"));
+
+		Alerts legacy = kb.toAlerts(alerts);
+		int first = legacy.unacceptable.indexOf("inputDextrose_perc");
+		assertTrue(first >= 0
+				&& first == legacy.unacceptable
+						.lastIndexOf("inputDextrose_perc"));
+		assertTrue(!legacy.warning.contains("inputDextrose_perc"));
+		assertTrue(legacy.toString().equals(text));
+	}
+
+	private static AlertSet alerts(ReferenceKB kb, double age,
+			double inputVitMix) {
+		Patient pt = new Patient(age, 1, 30, 140);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		RecommendOrderGen.calculate(pt);
+		pt.inputVitMix = inputVitMix;
+		return RecommendOrderGen.checkAlerts(pt, kb, kb.newAlertSet());
+	}
+
+}
@@ -0,0 +1,164 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.ReferenceKBSnapshot;
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * Test that a snapshot reads back the same KB as its csv, and that a stale or foreign snapshot is ignored in favor of
+ * the csv
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestReferenceKBSnapshot {
+
+	private static final String Potassium = "Potassium (mEq/L),inputK_mEq_l,inputKPerKg,,,,88480006,80,250,";
+
+	@org.junit.Test
+	public void testRoundTrip() throws IOException {
+		File csv = copyDefault();
+		File snapshotFile = ReferenceKBSnapshot.snapshotFileOf(csv);
+		try {
+			ReferenceKB kb = ReferenceKB.load(csv);
+			ReferenceKBSnapshot.write(kb, csv, snapshotFile);
+			ReferenceKB snapshot = ReferenceKBSnapshot.read(snapshotFile, csv);
+			assertTrue(snapshot != null);
+			assertSame(kb, snapshot);
+			assertTrue(snapshot.getSource().equals(snapshotFile.getPath()));
+			// load() uses the snapshot while it's up to date
+			assertTrue(ReferenceKBSnapshot.load(csv).getSource()
+					.equals(snapshotFile.getPath()));
+		} finally {
+			csv.delete();
+			snapshotFile.delete();
+		}
+	}
+
+	@org.junit.Test
+	public void testStale() throws IOException {
+		File csv = copyDefault();
+		File snapshotFile = ReferenceKBSnapshot.snapshotFileOf(csv);
+		try {
+			String text = read(csv);
+			ReferenceKBSnapshot.write(ReferenceKB.load(csv), csv, snapshotFile);
+			long lastModified = csv.lastModified();
+
+			// the same length, but modified later
+			write(csv, text.replace(Potassium, Potassium.replace(",250,",
+					",120,")));
+			assertTrue(csv.setLastModified(lastModified + 2000));
+			assertTrue(ReferenceKBSnapshot.read(snapshotFile, csv) == null);
+			ReferenceKB kb = ReferenceKBSnapshot.load(csv);
+			assertTrue(kb.getSource().equals(csv.getPath()));
+			assertTrue(kb.getRange("inputK_mEq_l").unacceptable == 120);
+
+			// the same modified time, but another length
+			write(csv, text.replace(Potassium, Potassium.replace(",250,",
+					",1200,")));
+			assertTrue(csv.setLastModified(lastModified));
+			assertTrue(ReferenceKBSnapshot.read(snapshotFile, csv) == null);
+			kb = ReferenceKBSnapshot.load(csv);
+			assertTrue(kb.getSource().equals(csv.getPath()));
+			assertTrue(kb.getRange("inputK_mEq_l").unacceptable == 1200);
+		} finally {
+			csv.delete();
+			snapshotFile.delete();
+		}
+	}
+
+	@org.junit.Test
+	public void testHeader() throws IOException {
+		File csv = copyDefault();
+		File snapshotFile = ReferenceKBSnapshot.snapshotFileOf(csv);
+		try {
+			ReferenceKB kb = ReferenceKB.load(csv);
+			ReferenceKBSnapshot.write(kb, csv, snapshotFile);
+			// another file format
+			writeInt(snapshotFile, 0, 0x504B0304);
+			assertFallsBack(snapshotFile, csv, kb);
+
+			// another version
+			ReferenceKBSnapshot.write(kb, csv, snapshotFile);
+			writeInt(snapshotFile, 4, ReferenceKBSnapshot.Version + 1);
+			assertFallsBack(snapshotFile, csv, kb);
+
+			// cut short
+			ReferenceKBSnapshot.write(kb, csv, snapshotFile);
+			RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+			try {
+				file.setLength(file.length() / 2);
+			} finally {
+				file.close();
+			}
+			assertFallsBack(snapshotFile, csv, kb);
+		} finally {
+			csv.delete();
+			snapshotFile.delete();
+		}
+	}
+
+	private static void assertFallsBack(File snapshotFile, File csv,
+			ReferenceKB expected) throws IOException {
+		assertTrue(ReferenceKBSnapshot.read(snapshotFile, csv) == null);
+		ReferenceKB kb = ReferenceKBSnapshot.load(csv);
+		assertTrue(kb.getSource().equals(csv.getPath()));
+		assertSame(expected, kb);
+	}
+
+	private static void assertSame(ReferenceKB expected, ReferenceKB actual) {
+		assertTrue(actual.size() == expected.size());
+		for (int i = 0; i < expected.size(); i++) {
+			IngredientReferenceRange a = expected.getRange(i), b = actual
+					.getRange(i);
+			assertTrue(a.description.equals(b.description));
+			assertTrue(a.checkingVariableName.equals(b.checkingVariableName));
+			assertTrue(a.alertingVariableName.equals(b.alertingVariableName));
+			assertTrue(a.code.equals(b.code));
+			assertTrue(Double.compare(a.ageLowerBound, b.ageLowerBound) == 0);
+			assertTrue(Double.compare(a.ageHigherBound, b.ageHigherBound) == 0);
+			assertTrue(Double.compare(a.warning, b.warning) == 0);
+			assertTrue(Double.compare(a.unacceptable, b.unacceptable) == 0);
+			assertTrue(a.gender == b.gender);
+			assertTrue(a.ivType == b.ivType);
+		}
+	}
+
+	private static File copyDefault() throws IOException {
+		File csv = File.createTempFile("TestReferenceKBSnapshot", ".csv");
+		Files.copy(new File(RecommendOrderGen.ReferenceFile).toPath(),
+				csv.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return csv;
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8);
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeInt(File file, long position, int value)
+			throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(position);
+			out.writeInt(value);
+		} finally {
+			out.close();
+		}
+	}
+
+}
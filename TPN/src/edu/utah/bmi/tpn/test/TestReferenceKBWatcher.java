@@ -0,0 +1,142 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.ReferenceKBWatcher;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test that an edited KB csv is reloaded and swapped in, that a bad edit keeps the previous snapshot and reports its
+ * error, and that the alerts checked while the snapshot is swapped come from one snapshot or the other
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestReferenceKBWatcher {
+
+	private static final String Potassium = "Potassium (mEq/L),inputK_mEq_l,inputKPerKg,,,,88480006,80,250,";
+	private static final long TimeoutMillis = 10000;
+
+	@org.junit.Test
+	public void testReload() throws Exception {
+		ReferenceKB original = RecommendOrderGen.getReferenceKB();
+		File dir = Files.createTempDirectory("tpn-kb").toFile();
+		File csv = new File(dir, "TPNReferences.csv");
+		String text = readDefault();
+		write(csv, text);
+		List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+		ReferenceKBWatcher watcher = new ReferenceKBWatcher(csv, errors::add);
+		try {
+			assertTrue(RecommendOrderGen.getReferenceKB().getRange(
+					"inputK_mEq_l").unacceptable == 250);
+			assertTrue(watcher.getReloads() == 0);
+			assertTrue(watcher.getLastError() == null);
+
+			write(csv, text.replace(Potassium,
+					"Potassium (mEq/L),inputK_mEq_l,inputKPerKg,,,,88480006,80,120,"));
+			long deadline = System.currentTimeMillis() + TimeoutMillis;
+			while (watcher.getReloads() == 0
+					&& System.currentTimeMillis() < deadline)
+				Thread.sleep(20);
+			assertTrue(watcher.getReloads() > 0);
+			assertTrue(RecommendOrderGen.getReferenceKB().getRange(
+					"inputK_mEq_l").unacceptable == 120);
+
+			// an unknown variable name keeps the current snapshot
+			ReferenceKB current = RecommendOrderGen.getReferenceKB();
+			long reloads = watcher.getReloads();
+			write(csv, text.replace("inputK_mEq_l", "inputKalium"));
+			assertTrue(!watcher.reload());
+			assertTrue(RecommendOrderGen.getReferenceKB() == current);
+			assertTrue(watcher.getReloads() == reloads);
+			assertUnknownName(watcher.getLastError());
+			// the watcher may have reloaded the bad edit as well
+			assertTrue(!errors.isEmpty());
+			for (Exception error : errors)
+				assertUnknownName(error);
+		} finally {
+			watcher.close();
+			RecommendOrderGen.setReferenceKB(original);
+			csv.delete();
+			dir.delete();
+		}
+	}
+
+	@org.junit.Test
+	public void testSwapDuringEvaluation() throws Exception {
+		ReferenceKB original = RecommendOrderGen.getReferenceKB();
+		// the same ranges, but no limit on the daily zinc
+		ReferenceKB relaxed = ReferenceKB.parse(new StringReader(readDefault()
+				.replace("Zinc (mg/d),inputZn,inputZn,,,,86739005,2.5,30,",
+						"Zinc (mg/d),inputZn,inputZn,,,,86739005,,,")),
+				"relaxed");
+		final Patient pt = new Patient(2, 1, 12, 85);
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		RecommendOrderGen.generateOrder(pt);
+		final String expected = RecommendOrderGen.checkAlerts(pt, original,
+				original.newAlertSet()).toString();
+		final String expectedRelaxed = RecommendOrderGen.checkAlerts(pt,
+				relaxed, relaxed.newAlertSet()).toString();
+		assertTrue(!expected.equals(expectedRelaxed));
+
+		final AtomicReference<String> mixed = new AtomicReference<String>();
+		final long deadline = System.currentTimeMillis() + 500;
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Patient copy = pt.copy();
+					while (System.currentTimeMillis() < deadline) {
+						String alerts = RecommendOrderGen.checkAlerts(copy)
+								.toString();
+						if (!alerts.equals(expected)
+								&& !alerts.equals(expectedRelaxed))
+							mixed.set(alerts);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		try {
+			for (int i = 0; System.currentTimeMillis() < deadline; i++)
+				RecommendOrderGen.setReferenceKB(i % 2 == 0 ? relaxed
+						: original);
+			for (Thread thread : threads)
+				thread.join();
+		} finally {
+			RecommendOrderGen.setReferenceKB(original);
+		}
+		assertTrue(mixed.get(), mixed.get() == null);
+	}
+
+	private static void assertUnknownName(Exception error) {
+		assertTrue(error instanceof IllegalArgumentException);
+		assertTrue(error.getMessage(), error.getMessage()
+				.contains("inputKalium"));
+	}
+
+	private static String readDefault() throws IOException {
+		return new String(Files.readAllBytes(new File(
+				RecommendOrderGen.ReferenceFile).toPath()),
+				StandardCharsets.UTF_8);
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,114 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import edu.utah.bmi.tpn.functions.RequirementCache;
+import edu.utah.bmi.tpn.functions.RequirementTable;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that the cached requirements are the same as calWithoutLab for charted demographics and next to the
+ * breakpoints, and the eviction and invalidation of the cache
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestRequirementCache {
+
+	@org.junit.Test
+	public void test() {
+		RequirementCache cache = new RequirementCache();
+		Random random = new Random(19);
+		for (int i = 0; i < 2000; i++) {
+			// charted with the default precision, and a few patients that share them
+			double age = Math.round(random.nextDouble() * 2000) / 100.0;
+			int gender = random.nextInt(2);
+			double weight = Math.round(500 + random.nextDouble() * 30000) / 1000.0;
+			double height = Math.round(300 + random.nextDouble() * 1500) / 10.0;
+			for (int k = 0; k < 3; k++) {
+				Patient expected = new Patient(age, gender, weight, height);
+				TPNCalculator.calWithoutLab(expected);
+				Patient pt = new Patient(age, gender, weight, height);
+				cache.calWithoutLab(pt);
+				for (int f = 0; f < PatientFields.COUNT; f++)
+					assertTrue(PatientFields.nameOf(f), Double.compare(
+							PatientFields.get(expected, f),
+							PatientFields.get(pt, f)) == 0);
+			}
+		}
+		assertTrue(cache.getMisses() == 2000);
+		assertTrue(cache.getHits() == 4000);
+	}
+
+	@org.junit.Test
+	public void testRounding() {
+		RequirementCache cache = new RequirementCache();
+		Patient pt = new Patient(0.02, 1, 3.2004, 50.01);
+		cache.calWithoutLab(pt);
+		Patient charted = new Patient(0.02, 1, 3.2, 50.0);
+		cache.calWithoutLab(charted);
+		assertTrue(cache.getHits() == 1);
+		assertTrue(pt.weight == 3.2);
+		assertTrue(pt.requiredTotalVolume == charted.requiredTotalVolume);
+	}
+
+	@org.junit.Test
+	public void testBreakpoints() {
+		RequirementCache cache = new RequirementCache();
+		// just above the 3 and 10 years bands of the resting energy, which round down into them
+		assertUncached(cache, new Patient(3.004, 1, 14, 95));
+		assertUncached(cache, new Patient(10.004, 1, 30, 135));
+		// just under 18 years, which rounds up into the adjusted body weight of an overweight adult
+		assertUncached(cache, new Patient(17.996, 0, 110, 160));
+		// just above the 10 kg band of the fluid
+		assertUncached(cache, new Patient(1, 1, 10.0004, 75));
+		assertTrue(cache.getBypasses() == 4);
+		assertTrue(cache.size() == 0);
+
+		// on the same side of the breakpoints once rounded, still cached
+		cache.calWithoutLab(new Patient(10.012, 1, 30, 135));
+		cache.calWithoutLab(new Patient(10.01, 1, 30, 135));
+		assertTrue(cache.getMisses() == 1 && cache.getHits() == 1);
+		assertTrue(cache.getBypasses() == 4);
+	}
+
+	@org.junit.Test
+	public void testEvictionAndInvalidation() throws IOException {
+		RequirementCache cache = new RequirementCache(2, 2, 3, 1, 2);
+		cache.get(1, 1, 3, 50, 1.3);
+		cache.get(1, 1, 4, 50, 1.3);
+		cache.get(1, 1, 3, 50, 1.3);
+		// evicts the weight of 4, the least recently used
+		cache.get(1, 1, 5, 50, 1.3);
+		assertTrue(cache.size() == 2 && cache.getEvictions() == 1);
+		cache.get(1, 1, 3, 50, 1.3);
+		assertTrue(cache.getHits() == 2 && cache.getMisses() == 3);
+
+		RequirementTable current = TPNCalculator.getRequirementTable();
+		try {
+			TPNCalculator.setRequirementTable(RequirementTable.load(new File(
+					TPNCalculator.RequirementFile)));
+			cache.get(1, 1, 3, 50, 1.3);
+			assertTrue(cache.getInvalidations() == 1);
+			assertTrue(cache.getMisses() == 4 && cache.size() == 1);
+		} finally {
+			TPNCalculator.setRequirementTable(current);
+		}
+	}
+
+	private static void assertUncached(RequirementCache cache, Patient pt) {
+		Patient expected = pt.copy();
+		TPNCalculator.calWithoutLab(expected);
+		cache.calWithoutLab(pt);
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(PatientFields.nameOf(f), Double.compare(
+					PatientFields.get(expected, f), PatientFields.get(pt, f)) == 0);
+	}
+
+}
@@ -0,0 +1,105 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import edu.utah.bmi.tpn.functions.RequirementTable;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.Patient;
+
+/**
+ * Test the bands of the requirement table at their boundaries, and the checks when a table is loaded
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestRequirementTable {
+
+	@org.junit.Test
+	public void testBoundaries() throws IOException {
+		RequirementTable table = RequirementTable.load(new File(
+				TPNCalculator.RequirementFile));
+		// sodium: <=2.5 kg 4, <20 kg 3, <50 kg 2.5, then 2
+		assertTrue(evaluate(table, RequirementTable.NaPerKg, 1, 2.5) == 4);
+		assertTrue(evaluate(table, RequirementTable.NaPerKg, 1, 2.51) == 3);
+		assertTrue(evaluate(table, RequirementTable.NaPerKg, 1, 49.9) == 2.5);
+		assertTrue(evaluate(table, RequirementTable.NaPerKg, 1, 50) == 2);
+		// fluid: 80 ml/kg below 1.25 kg, 100 ml/kg up to 10 kg
+		assertTrue(evaluate(table, RequirementTable.TotalVolume, 1, 0.75) == 60);
+		assertTrue(evaluate(table, RequirementTable.TotalVolume, 1, 1.25) == 125);
+		assertTrue(evaluate(table, RequirementTable.TotalVolume, 1, 10) == 1000);
+		// resting kcal: 30 kcal/kg below 0.75 kg, 40 from 0.75 kg, 50 up to 3 kg, 60 above
+		assertTrue(evaluate(table, RequirementTable.RestKcal, 1, 0.5) == 15);
+		assertTrue(evaluate(table, RequirementTable.RestKcal, 1, 0.75) == 30);
+		assertTrue(evaluate(table, RequirementTable.RestKcal, 1, 3) == 150);
+		assertTrue(evaluate(table, RequirementTable.RestKcal, 1, 4) == 240);
+		// zinc per kg above 25 kg
+		assertTrue(evaluate(table, RequirementTable.Zn, 1, 50) == 50);
+		// by age and gender
+		assertTrue(table.evaluate(RequirementTable.RestKcal, 5,
+				TPNCalculator.FEMALE, 20, 110, 0) == 949);
+		assertTrue(table.evaluate(RequirementTable.RestKcal, 5,
+				TPNCalculator.MALE, 20, 110, 0) == 949);
+		assertTrue(table.evaluate(RequirementTable.RestKcal, 35,
+				TPNCalculator.MALE, 60, 175, 0) == Math.round(66.5 + 5.00
+				* 175 + 13.8 * 60 - 6.8 * 35));
+	}
+
+	@org.junit.Test
+	public void testReplace() throws IOException {
+		RequirementTable current = TPNCalculator.getRequirementTable();
+		try {
+			TPNCalculator.setRequirementTable(RequirementTable.parse(
+					new StringReader(constants("")), "test"));
+			Patient pt = new Patient(35, 1, 60, 175);
+			TPNCalculator.calWithoutLab(pt);
+			assertTrue(pt.requiredNaPerKg == 1);
+			assertTrue(pt.requiredTotalVolume == 1);
+		} finally {
+			TPNCalculator.setRequirementTable(current);
+		}
+	}
+
+	@org.junit.Test
+	public void testMalformed() throws IOException {
+		String[] tables = {
+				// the bands are not in increasing order
+				"t,requiredNaPerKg,,,<5,3,,,,,,\nt,requiredNaPerKg,,,<=2.5,4,,,,,,\nt,requiredNaPerKg,,,,2,,,,,,\n",
+				// the last band is bounded
+				"t,requiredNaPerKg,,,<5,3,,,,,,\n",
+				// unknown requirement
+				"t,requiredNa,,,,3,,,,,,\n",
+				// an unbounded band before the last one
+				"t,requiredNaPerKg,,,,3,,,,,,\nt,requiredNaPerKg,,,<5,3,,,,,,\n" };
+		for (String csv : tables) {
+			try {
+				RequirementTable.parse(new StringReader(constants(csv)),
+						"test");
+				fail(csv);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return the rows, and a band of 1 for every requirement that the rows don't have
+	 */
+	private static String constants(String rows) {
+		StringBuilder csv = new StringBuilder(rows);
+		for (String requirement : RequirementTable.Requirements) {
+			if (!rows.contains("," + requirement + ","))
+				csv.append("t,").append(requirement).append(",,,,1,,,,,,\n");
+		}
+		return csv.toString();
+	}
+
+	private static double evaluate(RequirementTable table, int requirement,
+			double age, double weight) {
+		return table.evaluate(requirement, age, TPNCalculator.MALE, weight, 50,
+				0);
+	}
+
+}
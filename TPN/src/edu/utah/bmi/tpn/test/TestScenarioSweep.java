@@ -0,0 +1,76 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import edu.utah.bmi.tpn.functions.InputUpdate;
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.ScenarioSweep;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.objects.PatientFields;
+
+/**
+ * Test that every combination of a sweep is the same as applying it by hand, and that only the feasible ones are
+ * kept
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestScenarioSweep {
+
+	@org.junit.Test
+	public void test() {
+		ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+		Patient pt = new Patient(2, 1, 12, 85);
+		pt.otherFluid_ml = 100;
+		TPNCalculator.calWithoutLab(pt);
+		TPNCalculator.useRecommendedInput(pt);
+		// the recommended zinc is above the unacceptable level for this weight
+		new InputUpdate(pt).set("inputZn", 1).apply();
+		Patient before = pt.copy();
+
+		ScenarioSweep sweep = new ScenarioSweep(pt, kb)
+				.range("inputLipidPerKg", 0.5, 3, 0.5)
+				.range("inputDextrose_perc", 10, 25, 2.5)
+				.values("inputProteinPerKg", 2, 3)
+				.values("inputKPerKg", 2, 6);
+		assertTrue(sweep.size() == 6 * 7 * 2 * 2);
+		List<ScenarioSweep.Scenario> all = sweep.runAll();
+		assertTrue(all.size() == sweep.size());
+
+		int feasible = 0;
+		for (int i = 0; i < all.size(); i++) {
+			ScenarioSweep.Scenario scenario = all.get(i);
+			assertTrue(scenario.get("inputKPerKg") == (i % 2 == 0 ? 2 : 6));
+			Patient expected = pt.copy();
+			MedicationOrder order = new InputUpdate(expected)
+					.set("inputLipidPerKg", scenario.get("inputLipidPerKg"))
+					.set("inputDextrose_perc",
+							scenario.get("inputDextrose_perc"))
+					.set("inputProteinPerKg", scenario.get("inputProteinPerKg"))
+					.set("inputKPerKg", scenario.get("inputKPerKg")).apply();
+			AlertSet alerts = RecommendOrderGen.checkAlerts(expected, kb,
+					kb.newAlertSet());
+			assertTrue(order.toString().equals(scenario.getOrder().toString()));
+			assertTrue(alerts.toString().equals(
+					scenario.getAlerts().toString()));
+			assertTrue(scenario.getMetrics().get("dex_mgKgMin") == expected.dex_mgKgMin);
+			if (alerts.unacceptableCount() == 0)
+				feasible++;
+		}
+		List<ScenarioSweep.Scenario> kept = sweep.run();
+		assertTrue(kept.size() == feasible);
+		assertTrue(feasible > 0 && feasible < all.size());
+
+		// the patient itself is never changed
+		for (int f = 0; f < PatientFields.COUNT; f++)
+			assertTrue(Double.compare(PatientFields.get(before, f),
+					PatientFields.get(pt, f)) == 0);
+	}
+
+}
@@ -0,0 +1,174 @@
+package edu.utah.bmi.tpn.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import edu.utah.bmi.tpn.functions.RecommendOrderGen;
+import edu.utah.bmi.tpn.functions.ReferenceKB;
+import edu.utah.bmi.tpn.functions.TPNCalculator;
+import edu.utah.bmi.tpn.objects.AlertSet;
+import edu.utah.bmi.tpn.objects.MedicationOrder;
+import edu.utah.bmi.tpn.objects.Patient;
+import edu.utah.bmi.tpn.service.Json;
+import edu.utah.bmi.tpn.service.TPNService;
+
+/**
+ * Test the endpoints of the calculation service on a local port, and that invalid requests get an error status
+ *
+ * @author Jianlin Shi
+ *
+ */
+public class TestTPNService {
+
+	private static final String Patient = "\"age\":35, \"gender\":1, \"weight\":60, \"height\":175";
+
+	@org.junit.Test
+	public void test() throws IOException {
+		TPNService service = new TPNService(0);
+		service.start();
+		try {
+			Response response = post(service, "/requirements", "{" + Patient
+					+ "}");
+			assertTrue(response.body, response.status == 200);
+			Map<?, ?> requirements = (Map<?, ?>) response.json()
+					.get("requirements");
+			assertTrue(((Double) requirements.get("requiredTotalVolume")) > 0);
+
+			response = post(service, "/crcl", "{" + Patient + ", \"sCr\":1.1}");
+			assertTrue(response.body, response.status == 200);
+			assertTrue(((Double) response.json().get("crcl")) > 0);
+
+			// the same as a single patient calculation
+			response = post(service, "/alerts", "{" + Patient
+					+ ", \"inputs\":{\"inputKPerKg\":3.5}}");
+			assertTrue(response.body, response.status == 200);
+			Patient pt = new Patient(35, 1, 60, 175);
+			TPNCalculator.calWithoutLab(pt);
+			TPNCalculator.useRecommendedInput(pt);
+			TPNCalculator.updateInput(pt, pt.inputProteinPerKg,
+					pt.inputDextrose_perc, pt.inputCysMgPerg, pt.inputNaPerKg,
+					3.5, pt.inputClPerKg, pt.inputAcetPerKg, pt.inputMgPerKg,
+					pt.inputCaPerKg, pt.inputPPerKg, pt.inputZn, pt.inputCu,
+					pt.inputMn, pt.inputCr, pt.inputSel, pt.inputIo,
+					pt.inputFe, pt.inputVitMix, pt.inputVitK, pt.inputVitC,
+					pt.inputVolumePerKg, pt.inputLipidPerKg,
+					pt.inputRanitidine, pt.inputInsulin, pt.otherFluid_ml,
+					pt.pnhours, pt.lipidhours, pt.ivType);
+			MedicationOrder order = RecommendOrderGen.generateOrder(pt);
+			ReferenceKB kb = RecommendOrderGen.getReferenceKB();
+			AlertSet alerts = RecommendOrderGen.checkAlerts(pt, kb,
+					kb.newAlertSet());
+			Map<String, Object> json = response.json();
+			Map<?, ?> ml = (Map<?, ?>) json.get("order");
+			for (int i = 0; i < order.size(); i++)
+				assertTrue(ml.get(Integer.toString(order.getCode(i))).equals(
+						order.getMl(i)));
+			Map<?, ?> jsonAlerts = (Map<?, ?>) json.get("alerts");
+			assertTrue(jsonAlerts.get("unacceptable").equals(
+					alerts.getUnacceptableVariables()));
+			assertTrue(jsonAlerts.get("warning").equals(
+					alerts.getWarningVariables()));
+
+			// a variable above both the central line warning and the peripheral line limit, once at its most severe
+			response = post(service, "/alerts", "{" + Patient
+					+ ", \"ivType\":1, \"inputs\":{\"inputDextrose_perc\":40}}");
+			assertTrue(response.body, response.status == 200);
+			jsonAlerts = (Map<?, ?>) response.json().get("alerts");
+			List<?> unacceptable = (List<?>) jsonAlerts.get("unacceptable");
+			assertTrue(unacceptable.indexOf("inputDextrose_perc") >= 0);
+			assertTrue(unacceptable.indexOf("inputDextrose_perc") == unacceptable
+					.lastIndexOf("inputDextrose_perc"));
+			assertTrue(!((List<?>) jsonAlerts.get("warning"))
+					.contains("inputDextrose_perc"));
+			assertTrue(((Map<?, ?>) jsonAlerts.get("messages")).get(
+					"inputDextrose_perc").equals(
+					"Dextrose (concentration %): above unacceptable level 35.0"));
+
+			// errors
+			assertTrue(get(service, "/orders") == 405);
+			assertError(service, "/orders", "{\"age\":35}", 400);
+			assertError(service, "/orders", "{" + Patient
+					+ ", \"inputs\":{\"inputSugar\":1}}", 400);
+			assertError(service, "/orders",
+					"{\"age\":35, \"gender\":1, \"weight\":0, \"height\":175}",
+					400);
+			assertError(service, "/requirements",
+					"{\"age\":35, \"gender\":1, \"weight\":60, \"height\":-1}",
+					400);
+			StringBuilder deep = new StringBuilder();
+			for (int i = 0; i < 20000; i++)
+				deep.append('[');
+			assertError(service, "/orders", deep.toString(), 400);
+			StringBuilder large = new StringBuilder("{" + Patient
+					+ ", \"note\":\"");
+			while (large.length() <= TPNService.MaxRequestBytes)
+				large.append("xxxxxxxxxx");
+			large.append("\"}");
+			assertError(service, "/orders", large.toString(), 413);
+		} finally {
+			service.stop(0);
+		}
+	}
+
+	private static void assertError(TPNService service, String path,
+			String body, int status) throws IOException {
+		Response response = post(service, path, body);
+		assertTrue(path + " " + response.status + " " + response.body,
+				response.status == status);
+		assertTrue(response.json().get("error") instanceof String);
+	}
+
+	private static int get(TPNService service, String path)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) URI.create(
+				"http://localhost:" + service.getPort() + path).toURL()
+				.openConnection();
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		return status;
+	}
+
+	private static Response post(TPNService service, String path, String body)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) URI.create(
+				"http://localhost:" + service.getPort() + path).toURL()
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(body.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		Response response = new Response();
+		response.status = connection.getResponseCode();
+		InputStream in = response.status < 400 ? connection.getInputStream()
+				: connection.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0)
+			bytes.write(buffer, 0, n);
+		in.close();
+		response.body = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		connection.disconnect();
+		return response;
+	}
+
+	private static class Response {
+		int status;
+		String body;
+
+		Map<String, Object> json() {
+			return Json.parseObject(body);
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package edu.utah.bmi.tpn.trace;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * A TraceSink that hands events to a background thread, which writes them through a BufferedWriter.
+ * 
+ * The calculation threads never wait for the writer: when the queue is full the event is dropped and counted. Once
+ * close() has started, every event is either written or counted as dropped.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class AsyncTraceWriter implements TraceSink, Closeable {
+
+	private static final TraceEvent EndOfTrace = new TraceEvent("", "", "",
+			0, 0, 0, 0);
+
+	private final ArrayBlockingQueue<TraceEvent> queue;
+	private final BufferedWriter writer;
+	private final Thread worker;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed = false;
+	private volatile IOException writeError;
+
+	public AsyncTraceWriter(Writer out) {
+		this(out, 65536);
+	}
+
+	public AsyncTraceWriter(Writer out, int queueCapacity) {
+		this.queue = new ArrayBlockingQueue<TraceEvent>(queueCapacity);
+		this.writer = out instanceof BufferedWriter ? (BufferedWriter) out
+				: new BufferedWriter(out, 65536);
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "tpn-trace-writer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return !closed;
+	}
+
+	@Override
+	public void calculated(String stage, String variableName, double value) {
+		offer(new TraceEvent(TraceEvent.Calculated, stage, variableName,
+				value, -1, -1, WithinRange));
+	}
+
+	@Override
+	public void ruleChecked(IngredientReferenceRange irr, double value,
+			int outcome) {
+		offer(new TraceEvent(TraceEvent.Rule, irr.description,
+				irr.checkingVariableName, value, irr.warning,
+				irr.unacceptable, outcome));
+	}
+
+	@Override
+	public void medication(int productCode, double ml) {
+		offer(new TraceEvent(TraceEvent.Medication,
+				Integer.toString(productCode), "ml", ml, -1, -1, WithinRange));
+	}
+
+	private void offer(TraceEvent event) {
+		if (closed || !queue.offer(event)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		// close() may have started after the check above, then the event can be behind the end of the trace: take it
+		// back and count it, unless the writer already took it
+		if (closed && queue.remove(event))
+			dropped.incrementAndGet();
+	}
+
+	/**
+	 * @return number of events that were not written because the queue was full or the writer was closed
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void drain() {
+		ArrayList<TraceEvent> batch = new ArrayList<TraceEvent>();
+		StringBuilder sb = new StringBuilder();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				boolean end = false;
+				for (TraceEvent event : batch) {
+					// the events drained after the end are written too, they are not counted as dropped
+					if (event == EndOfTrace)
+						end = true;
+					else
+						event.appendTo(sb);
+				}
+				batch.clear();
+				writer.append(sb);
+				sb.setLength(0);
+				// flush whenever the queue runs empty, so that the trace is readable while running
+				if (end || queue.isEmpty())
+					writer.flush();
+				if (end)
+					break;
+			}
+		} catch (IOException e) {
+			writeError = e;
+			closed = true;
+			// the queued events won't be written any more
+			batch.clear();
+			queue.drainTo(batch);
+			batch.remove(EndOfTrace);
+			dropped.addAndGet(batch.size());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop accepting events, write the queued ones and close the underlying writer
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed && !worker.isAlive()) {
+			writer.close();
+			if (writeError != null)
+				throw writeError;
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(EndOfTrace);
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		writer.close();
+		if (writeError != null)
+			throw writeError;
+	}
+
+}
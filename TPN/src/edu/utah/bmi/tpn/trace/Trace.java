@@ -0,0 +1,54 @@
+package edu.utah.bmi.tpn.trace;
+
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * Holds the TraceSink used by TPNCalculator and RecommendOrderGen. Tracing is disabled by default.
+ * 
+ * <pre>
+ * AsyncTraceWriter writer = new AsyncTraceWriter(new FileWriter(&quot;trace.tsv&quot;));
+ * Trace.setSink(writer);
+ * ...
+ * Trace.setSink(Trace.Disabled);
+ * writer.close();
+ * </pre>
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public final class Trace {
+
+	public static final TraceSink Disabled = new TraceSink() {
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void calculated(String stage, String variableName, double value) {
+		}
+
+		@Override
+		public void ruleChecked(IngredientReferenceRange irr, double value,
+				int outcome) {
+		}
+
+		@Override
+		public void medication(int productCode, double ml) {
+		}
+	};
+
+	private static volatile TraceSink sink = Disabled;
+
+	private Trace() {
+	}
+
+	public static TraceSink sink() {
+		return sink;
+	}
+
+	public static void setSink(TraceSink traceSink) {
+		sink = traceSink == null ? Disabled : traceSink;
+	}
+
+}
@@ -0,0 +1,50 @@
+package edu.utah.bmi.tpn.trace;
+
+/**
+ * One structured trace event, only created when tracing is enabled.
+ * It is written as a tab separated row: time, type, name, variable, value, warning, unacceptable, outcome
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public class TraceEvent {
+
+	public static final String Calculated = "calculated";
+	public static final String Rule = "rule";
+	public static final String Medication = "medication";
+
+	public final long time;
+	public final String type;
+	// the stage, the rule description, or the product code
+	public final String name;
+	public final String variableName;
+	public final double value;
+	// only for rule events, -1 if not specified
+	public final double warning, unacceptable;
+	public final int outcome;
+
+	public TraceEvent(String type, String name, String variableName,
+			double value, double warning, double unacceptable, int outcome) {
+		this.time = System.currentTimeMillis();
+		this.type = type;
+		this.name = name;
+		this.variableName = variableName;
+		this.value = value;
+		this.warning = warning;
+		this.unacceptable = unacceptable;
+		this.outcome = outcome;
+	}
+
+	public void appendTo(StringBuilder sb) {
+		sb.append(time).append('\t').append(type).append('\t').append(name)
+				.append('\t').append(variableName).append('\t').append(value)
+				.append('\t').append(warning).append('\t').append(unacceptable)
+				.append('\t').append(outcome).append('\n');
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		appendTo(sb);
+		return sb.toString();
+	}
+}
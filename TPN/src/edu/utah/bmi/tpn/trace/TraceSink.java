@@ -0,0 +1,55 @@
+package edu.utah.bmi.tpn.trace;
+
+import edu.utah.bmi.tpn.objects.IngredientReferenceRange;
+
+/**
+ * Receives structured events from the calculator, dosage alert and order paths.
+ * 
+ * Callers always check isEnabled() before building an event, so a disabled sink costs one call that the JIT can
+ * inline away. Implementations must be thread-safe, events are reported from whichever thread runs the calculation.
+ * 
+ * @author Jianlin Shi
+ * 
+ */
+public interface TraceSink {
+
+	// outcomes of a reference range check
+	public static final int WithinRange = 0;
+	public static final int Warning = 1;
+	public static final int Unacceptable = 2;
+
+	public boolean isEnabled();
+
+	/**
+	 * A calculated value in TPNCalculator, e.g. a requirement or CrCl
+	 * 
+	 * @param stage
+	 *            which calculation reported the value
+	 * @param variableName
+	 *            the Patient field that was set
+	 * @param value
+	 */
+	public void calculated(String stage, String variableName, double value);
+
+	/**
+	 * A reference range that has been checked in RecommendOrderGen.dosageAlerts()
+	 * 
+	 * @param irr
+	 *            the applicable reference range (rule)
+	 * @param value
+	 *            the value of irr.checkingVariableName
+	 * @param outcome
+	 *            WithinRange, Warning or Unacceptable
+	 */
+	public void ruleChecked(IngredientReferenceRange irr, double value,
+			int outcome);
+
+	/**
+	 * The recommended volume of one medication generated by RecommendOrderGen
+	 * 
+	 * @param productCode
+	 * @param ml
+	 */
+	public void medication(int productCode, double ml);
+
+}